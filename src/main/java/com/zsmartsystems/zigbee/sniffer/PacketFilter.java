@@ -0,0 +1,26 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer;
+
+/**
+ * Selects the packets that are passed to a {@link PacketSink}. Filters are set with
+ * {@link SnifferEngine#setFilter(PacketSink, PacketFilter)} and are called on the capture thread for every received
+ * packet, so they must be quick and must not block. Filters are only ever called from one thread at a time.
+ *
+ * @author Chris Jackson
+ *
+ */
+public interface PacketFilter {
+    /**
+     * Checks if a packet should be passed to the sink
+     *
+     * @param packet the received {@link SnifferPacket}
+     * @return true if the packet should be passed to the sink
+     */
+    boolean accept(SnifferPacket packet);
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer;
+
+import java.util.List;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+
+/**
+ * Interface implemented by outputs registered with the {@link SnifferEngine}. Each sink is given its own queue, and
+ * its methods are never called concurrently, so implementations do not need to be thread safe with respect to
+ * themselves and may perform blocking I/O.
+ *
+ * @author Chris Jackson
+ *
+ */
+public interface PacketSink {
+    /**
+     * Gets the name of the sink. This is used in logs and to name the worker thread.
+     *
+     * @return the sink name
+     */
+    String getName();
+
+    /**
+     * Called each time the NCP has been initialised, before any packets from the NCP are delivered. This is called
+     * from the engine thread once all previously queued packets have been delivered.
+     *
+     * @param ieeeAddress the {@link IeeeAddress} of the NCP
+     * @param firmwareVersion the NCP firmware version string
+     */
+    default void ncpStarted(IeeeAddress ieeeAddress, String firmwareVersion) {
+    }
+
+    /**
+     * Called with the next batch of received packets, in the order they were received. The packets are shared with
+     * other sinks and are recycled once this method returns, so they must not be modified or kept.
+     *
+     * @param packets the list of {@link SnifferPacket}s
+     */
+    void packetsReceived(List<SnifferPacket> packets);
+
+    /**
+     * Called when {@link SnifferEngine#rotate()} is requested, to close the current output file and start a new one.
+     * This is called from the sink's worker between two batches of packets, so no packets are lost. This is only called
+     * for sinks that return true from {@link #isRotatable()}.
+     */
+    default void rotate() {
+    }
+
+    /**
+     * Checks if the sink can start a new output file when {@link #rotate()} is called. Sinks that don't write files,
+     * or can't split their output, return false.
+     *
+     * @return true if the sink implements {@link #rotate()}
+     */
+    default boolean isRotatable() {
+        return false;
+    }
+
+    /**
+     * Called when the sink is removed from the engine or the engine is shut down, once all queued packets have been
+     * delivered.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,777 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.ZigBeeChannel;
+import com.zsmartsystems.zigbee.dongle.ember.EmberMfglib;
+import com.zsmartsystems.zigbee.dongle.ember.EmberMfglibListener;
+import com.zsmartsystems.zigbee.dongle.ember.EmberNcp;
+import com.zsmartsystems.zigbee.dongle.ember.ZigBeeDongleEzsp;
+import com.zsmartsystems.zigbee.serial.ZigBeeSerialPort;
+import com.zsmartsystems.zigbee.sniffer.internal.LoadShedder;
+import com.zsmartsystems.zigbee.sniffer.internal.SinkWorker;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressLearner;
+import com.zsmartsystems.zigbee.sniffer.internal.jfr.SnifferEvents;
+import com.zsmartsystems.zigbee.transport.ZigBeePort;
+import com.zsmartsystems.zigbee.transport.ZigBeePort.FlowControl;
+
+/**
+ * The sniffer engine uses the {@link ZigBeeDongleEzsp} class to place an Ember NCP into mfglib mode and passes every
+ * received frame to the registered {@link PacketSink}s. The engine can be embedded into other applications - it
+ * manages the NCP, recovers it if it stops responding, and optionally rotates through a range of channels.
+ * <p>
+ * A quiet channel is not taken as a sign that the NCP has failed. When no frames are received, the NCP is probed by
+ * reading the mfglib channel. Probes start soon after the last frame and back off to the restart timeout while the
+ * NCP keeps responding. If a probe fails, mfglib is restarted on the NCP, and only if that fails is the serial port
+ * closed and the NCP fully reinitialised.
+ * <p>
+ * Received frames are held in pooled {@link SnifferPacket}s which are shared between all sinks without copying. Each
+ * sink has its own queue and worker, and receives packets in batches.
+ * <p>
+ * If a {@link LoadShedder} is set, it decides which frames are passed to the sinks when the sink queues start to
+ * fill, and frames that are kept as a sample of several frames are marked with a sample weight. Shed frames still use
+ * a sequence number, so sinks can tell that frames are missing.
+ * <p>
+ * If an {@link AddressCache} is set, the addresses of devices are learned from every received frame, including shed
+ * frames, before the filters are called, so filters and sinks can use the cache to identify devices.
+ * <p>
+ * Sinks, their filters and the channel can be changed while the engine is running without restarting the NCP. Each
+ * change takes effect between two received frames, so no frames are lost.
+ * <p>
+ * The engine can also be created without an NCP, to record frames received from another source such as the ZEP
+ * stream of another sniffer. The source fills packets from {@link #acquirePacket()} and passes them to
+ * {@link #packetReceived(SnifferPacket)}, and they go through the same address learning, load shedding, filters and
+ * sinks as frames from the NCP.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SnifferEngine {
+    private static final int PACKET_POOL_SIZE = 2048;
+    private static final long SINK_FLUSH_TIMEOUT = 5000;
+    private static final long SUPERVISOR_PERIOD = 250;
+    private static final long MIN_PROBE_INTERVAL = 2000;
+
+    private final String serialPortName;
+    private final int serialBaud;
+    private final FlowControl flowControl;
+
+    private final SnifferPacketPool pool = new SnifferPacketPool(PACKET_POOL_SIZE);
+    private final List<SinkRegistration> sinks = new CopyOnWriteArrayList<>();
+    private final long startTime = System.nanoTime();
+
+    private volatile int channelId = 11;
+    private Integer channelRotationIntervalMillis;
+    private int channelRotationRangeStart = 11;
+    private int channelRotationRangeEnd = 26;
+    private long lastChannelRotationTimestamp;
+    private long restartTimer = 30000;
+
+    private ZigBeeDongleEzsp dongle;
+    private EmberMfglib emberMfg;
+    private volatile IeeeAddress localIeeeAddress;
+    private volatile String firmwareVersion;
+    private int sequence = 0;
+    private volatile long captureMillis;
+    private long lastProbeMillis;
+    private long probeInterval = MIN_PROBE_INTERVAL;
+    private volatile long probes;
+    private volatile long probeFailures;
+    private volatile int softRecoveries;
+    private volatile int fullRestarts;
+    private volatile long downtimeMillis;
+
+    private volatile LoadShedder loadShedder;
+    private volatile AddressLearner addressLearner;
+
+    private volatile boolean running;
+    private Thread supervisor;
+    private final Object ncpLock = new Object();
+
+    private static class SinkRegistration {
+        private final PacketSink sink;
+        private final SinkWorker worker;
+        private final AtomicBoolean rotate = new AtomicBoolean();
+        private volatile PacketFilter filter;
+        // Set, while holding the registration lock, when the sink is closed - packets that reach the worker after
+        // this, because the capture thread offered them just as the sink was removed, are released undelivered
+        private volatile boolean closed;
+
+        SinkRegistration(final PacketSink sink) {
+            this.sink = sink;
+            this.worker = new SinkWorker(sink.getName(), new SinkWorker.PacketHandler() {
+                @Override
+                public void handlePackets(List<SnifferPacket> packets) {
+                    Object event = SnifferEvents.beginSinkWrite();
+                    try {
+                        synchronized (SinkRegistration.this) {
+                            if (!closed) {
+                                if (rotate.getAndSet(false)) {
+                                    sink.rotate();
+                                }
+                                if (!packets.isEmpty()) {
+                                    sink.packetsReceived(packets);
+                                }
+                            }
+                        }
+                    } finally {
+                        SnifferEvents.endSinkWrite(event, sink.getName(), packets);
+                        for (SnifferPacket packet : packets) {
+                            packet.release();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the engine for an Ember NCP on a serial port
+     *
+     * @param serialPortName the serial port name
+     * @param serialBaud the serial port baud rate
+     * @param flowControl the serial port {@link FlowControl}
+     */
+    public SnifferEngine(String serialPortName, int serialBaud, FlowControl flowControl) {
+        this.serialPortName = serialPortName;
+        this.serialBaud = serialBaud;
+        this.flowControl = flowControl;
+    }
+
+    /**
+     * Creates the engine without an NCP. Frames are passed to the engine with {@link #packetReceived(SnifferPacket)}
+     * once it is started, and the channel is the channel of the last frame received, or 0 before the first frame.
+     */
+    public SnifferEngine() {
+        this(null, 0, null);
+        channelId = 0;
+    }
+
+    /**
+     * Sets the channel to capture on. If the engine is running, the NCP is switched to the new channel without a
+     * restart, and channel rotation is stopped. An engine without an NCP can't change channel.
+     *
+     * @param channelId the channel number (11 to 26)
+     * @return true if the channel was set
+     */
+    public boolean setChannel(int channelId) {
+        if (channelId < 11 || channelId > 26 || !hasNcp()) {
+            return false;
+        }
+        synchronized (ncpLock) {
+            channelRotationIntervalMillis = null;
+            if (emberMfg != null) {
+                Object event = SnifferEvents.beginChannelSwitch();
+                boolean success = emberMfg.doMfglibSetChannel(ZigBeeChannel.create(channelId));
+                SnifferEvents.endChannelSwitch(event, this.channelId, channelId, success);
+                if (!success) {
+                    System.err.println("Error setting Ember channel");
+                    return false;
+                }
+            }
+            this.channelId = channelId;
+        }
+        return true;
+    }
+
+    /**
+     * Enables channel rotation. This must be called before {@link #start()}.
+     *
+     * @param intervalMillis the time to stay on each channel in milliseconds
+     * @param rangeStart the first channel in the rotation
+     * @param rangeEnd the last channel in the rotation
+     */
+    public void setChannelRotation(int intervalMillis, int rangeStart, int rangeEnd) {
+        channelRotationIntervalMillis = intervalMillis;
+        channelRotationRangeStart = rangeStart;
+        channelRotationRangeEnd = rangeEnd;
+        channelId = rangeStart;
+    }
+
+    /**
+     * Sets the longest time between liveness probes when no frames are being received. The NCP is only restarted if
+     * it does not respond to a probe. Probes are not used when channel rotation is enabled, as the channel changes
+     * check the NCP.
+     *
+     * @param restartTimer the maximum probe interval in milliseconds
+     */
+    public void setRestartTimeout(long restartTimer) {
+        this.restartTimer = restartTimer;
+    }
+
+    /**
+     * @return the channel currently being captured
+     */
+    public int getChannel() {
+        return channelId;
+    }
+
+    /**
+     * @return the number of liveness probes sent to the NCP
+     */
+    public long getProbes() {
+        return probes;
+    }
+
+    /**
+     * @return the number of liveness probes that the NCP failed
+     */
+    public long getProbeFailures() {
+        return probeFailures;
+    }
+
+    /**
+     * @return the number of times the NCP was recovered by restarting mfglib
+     */
+    public int getSoftRecoveries() {
+        return softRecoveries;
+    }
+
+    /**
+     * @return the number of times the NCP was fully reinitialised
+     */
+    public int getFullRestarts() {
+        return fullRestarts;
+    }
+
+    /**
+     * @return the total time in milliseconds that capture was stopped while the NCP was recovered
+     */
+    public long getDowntime() {
+        return downtimeMillis;
+    }
+
+    /**
+     * @return true if the engine captures from an NCP, false if frames are passed to it by another source
+     */
+    public boolean hasNcp() {
+        return serialPortName != null;
+    }
+
+    /**
+     * @return the {@link IeeeAddress} of the NCP, or null if the NCP has not been initialised
+     */
+    public IeeeAddress getIeeeAddress() {
+        return localIeeeAddress;
+    }
+
+    /**
+     * @return true if the engine is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Registers a sink. Sinks may be added before or after the engine is started.
+     *
+     * @param sink the {@link PacketSink} to add
+     */
+    public void addSink(PacketSink sink) {
+        SinkRegistration registration = new SinkRegistration(sink);
+        if (localIeeeAddress != null) {
+            sink.ncpStarted(localIeeeAddress, firmwareVersion);
+        }
+        sinks.add(registration);
+    }
+
+    /**
+     * @return the registered {@link PacketSink}s, in the order they were added
+     */
+    public List<PacketSink> getSinks() {
+        List<PacketSink> list = new ArrayList<>();
+        for (SinkRegistration registration : sinks) {
+            list.add(registration.sink);
+        }
+        return list;
+    }
+
+    /**
+     * Sets the filter for a sink. The new filter is used from the next received frame.
+     *
+     * @param sink the registered {@link PacketSink}
+     * @param filter the {@link PacketFilter}, or null to pass all packets to the sink
+     * @return true if the sink is registered
+     */
+    public boolean setFilter(PacketSink sink, PacketFilter filter) {
+        SinkRegistration registration = getRegistration(sink);
+        if (registration == null) {
+            return false;
+        }
+        registration.filter = filter;
+        return true;
+    }
+
+    /**
+     * Gets the filter for a sink
+     *
+     * @param sink the registered {@link PacketSink}
+     * @return the {@link PacketFilter}, or null if the sink has no filter
+     */
+    public PacketFilter getFilter(PacketSink sink) {
+        SinkRegistration registration = getRegistration(sink);
+        return registration == null ? null : registration.filter;
+    }
+
+    /**
+     * Gets the number of packets that were dropped for a sink because it could not keep up
+     *
+     * @param sink the registered {@link PacketSink}
+     * @return the number of dropped packets
+     */
+    public long getDropped(PacketSink sink) {
+        SinkRegistration registration = getRegistration(sink);
+        return registration == null ? 0 : registration.worker.getDropped();
+    }
+
+    /**
+     * Gets the number of packets waiting to be delivered to a sink
+     *
+     * @param sink the registered {@link PacketSink}
+     * @return the number of queued packets
+     */
+    public int getQueued(PacketSink sink) {
+        SinkRegistration registration = getRegistration(sink);
+        return registration == null ? 0 : registration.worker.getQueued();
+    }
+
+    /**
+     * Sets the stage that sheds load when the sinks can't keep up. The new shedder is used from the next received
+     * frame.
+     *
+     * @param loadShedder the {@link LoadShedder}, or null to pass all frames to the sinks
+     */
+    public void setLoadShedder(LoadShedder loadShedder) {
+        this.loadShedder = loadShedder;
+    }
+
+    /**
+     * @return the {@link LoadShedder}, or null if load is not shed
+     */
+    public LoadShedder getLoadShedder() {
+        return loadShedder;
+    }
+
+    /**
+     * Sets the cache that the addresses of devices are learned into. The cache is used from the next received frame.
+     *
+     * @param addressCache the {@link AddressCache}, or null to stop learning addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        addressLearner = addressCache == null ? null : new AddressLearner(addressCache);
+    }
+
+    /**
+     * @return the {@link AddressCache}, or null if addresses are not learned
+     */
+    public AddressCache getAddressCache() {
+        AddressLearner learner = addressLearner;
+        return learner == null ? null : learner.getCache();
+    }
+
+    /**
+     * Requests all sinks that can rotate their output to start new output files. Each sink is rotated by its own
+     * worker between two batches of packets - see {@link PacketSink#rotate()}. The worker is woken, so sinks that are
+     * not receiving packets are rotated too.
+     *
+     * @return the {@link PacketSink}s that were asked to rotate - sinks that are not
+     *         {@link PacketSink#isRotatable() rotatable} are left unchanged
+     */
+    public List<PacketSink> rotate() {
+        List<PacketSink> rotated = new ArrayList<>();
+        for (SinkRegistration registration : sinks) {
+            if (!registration.sink.isRotatable()) {
+                continue;
+            }
+            registration.rotate.set(true);
+            registration.worker.wake();
+            rotated.add(registration.sink);
+        }
+        return rotated;
+    }
+
+    /**
+     * Removes a sink. Any packets already queued for the sink are delivered before the sink is closed, and no packets
+     * are delivered once it is closed.
+     *
+     * @param sink the {@link PacketSink} to remove
+     */
+    public void removeSink(PacketSink sink) {
+        for (SinkRegistration registration : sinks) {
+            if (registration.sink == sink) {
+                sinks.remove(registration);
+                closeSink(registration);
+            }
+        }
+    }
+
+    /**
+     * Initialises the NCP and starts capturing. If the engine has no NCP, it is ready for frames to be passed to
+     * {@link #packetReceived(SnifferPacket)}.
+     *
+     * @return true if the NCP was initialised
+     */
+    public boolean start() {
+        if (serialPortName == null) {
+            running = true;
+            return true;
+        }
+        System.out.println("NCP initialisation starting...");
+        if (!initialiseNcp()) {
+            System.out.println("Unable to initialise NCP");
+            shutdownNcp();
+            return false;
+        }
+        System.out.println("NCP initialisation complete...");
+
+        running = true;
+        supervisor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                supervise();
+            }
+        }, "SnifferEngine");
+        supervisor.setDaemon(true);
+        supervisor.start();
+        return true;
+    }
+
+    /**
+     * Stops capturing, shuts down the NCP, and closes all sinks once their queued packets have been delivered.
+     */
+    public void shutdown() {
+        running = false;
+        if (supervisor != null && supervisor != Thread.currentThread()) {
+            supervisor.interrupt();
+            try {
+                supervisor.join(SINK_FLUSH_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        shutdownNcp();
+
+        for (SinkRegistration registration : sinks) {
+            sinks.remove(registration);
+            closeSink(registration);
+        }
+    }
+
+    private void supervise() {
+        captureMillis = System.currentTimeMillis();
+        while (running) {
+            try {
+                Thread.sleep(SUPERVISOR_PERIOD);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!running) {
+                break;
+            }
+
+            synchronized (ncpLock) {
+                if (channelRotationIntervalMillis == null) {
+                    checkLiveness();
+                } else if (System.currentTimeMillis() - lastChannelRotationTimestamp >= channelRotationIntervalMillis) {
+                    final ZigBeeChannel nextChannel = getNextChannel();
+                    System.out.println("Setting channel " + nextChannel.getChannel());
+                    Object event = SnifferEvents.beginChannelSwitch();
+                    boolean success = emberMfg.doMfglibSetChannel(nextChannel);
+                    SnifferEvents.endChannelSwitch(event, channelId, nextChannel.getChannel(), success);
+                    if (!success) {
+                        System.err.println("Error setting Ember channel");
+                        long failed = System.currentTimeMillis();
+                        restartNcp();
+                        downtimeMillis += System.currentTimeMillis() - failed;
+                        continue;
+                    }
+                    channelId = nextChannel.getChannel();
+                    lastChannelRotationTimestamp = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Probes the NCP if no frames have been received for the probe interval. The interval is reset when frames are
+     * received, and doubles up to the restart timeout each time the NCP responds on a quiet channel.
+     */
+    private void checkLiveness() {
+        if (captureMillis > lastProbeMillis) {
+            probeInterval = Math.min(MIN_PROBE_INTERVAL, restartTimer);
+        }
+        long now = System.currentTimeMillis();
+        if (now - Math.max(captureMillis, lastProbeMillis) < probeInterval) {
+            return;
+        }
+        lastProbeMillis = now;
+        if (probeNcp()) {
+            probeInterval = Math.min(probeInterval * 2, restartTimer);
+            return;
+        }
+
+        probeFailures++;
+        System.out.println("NCP did not respond to liveness check. Restarting mfglib...");
+        Object event = SnifferEvents.beginNcpRestart();
+        boolean restarted = restartMfglib();
+        SnifferEvents.endNcpRestart(event, false, restarted);
+        if (restarted) {
+            softRecoveries++;
+            System.out.println("NCP mfglib restarted");
+        } else {
+            System.out.println("NCP mfglib restart failed. Restarting NCP!");
+            restartNcp();
+        }
+        downtimeMillis += System.currentTimeMillis() - now;
+        lastProbeMillis = System.currentTimeMillis();
+        probeInterval = Math.min(MIN_PROBE_INTERVAL, restartTimer);
+    }
+
+    /**
+     * Checks the NCP is responding, and is still in mfglib mode on the right channel
+     *
+     * @return true if the NCP responded with the expected channel
+     */
+    private boolean probeNcp() {
+        probes++;
+        ZigBeeChannel channel = emberMfg.doMfglibGetChannel();
+        return channel != null && channel.getChannel() == channelId;
+    }
+
+    /**
+     * Restarts mfglib on the NCP without closing the serial port
+     *
+     * @return true if mfglib was restarted and the NCP responds
+     */
+    private boolean restartMfglib() {
+        emberMfg.doMfglibEnd();
+        if (!emberMfg.doMfglibStart() || !emberMfg.doMfglibSetChannel(ZigBeeChannel.create(channelId))) {
+            return false;
+        }
+        return probeNcp();
+    }
+
+    private void restartNcp() {
+        Object event = SnifferEvents.beginNcpRestart();
+        fullRestarts++;
+        System.out.println("NCP shutting down...");
+        shutdownNcp();
+
+        System.out.println("NCP initialisation starting...");
+        if (!initialiseNcp()) {
+            System.out.println("Unable to initialise NCP");
+            shutdownNcp();
+            running = false;
+            SnifferEvents.endNcpRestart(event, true, false);
+            return;
+        }
+        System.out.println("NCP initialisation complete...");
+        captureMillis = System.currentTimeMillis();
+        SnifferEvents.endNcpRestart(event, true, true);
+    }
+
+    /**
+     * Gets an empty packet from the pool, for a source other than the NCP to fill and pass to
+     * {@link #packetReceived(SnifferPacket)}. The caller holds one reference, and must release the packet with
+     * {@link #releasePacket(SnifferPacket)} if it is not passed to the engine.
+     *
+     * @return a {@link SnifferPacket}
+     */
+    public SnifferPacket acquirePacket() {
+        return pool.acquire();
+    }
+
+    /**
+     * Returns a packet from {@link #acquirePacket()} that was not passed to the engine to the pool
+     *
+     * @param packet the {@link SnifferPacket}
+     */
+    public void releasePacket(SnifferPacket packet) {
+        packet.release();
+    }
+
+    /**
+     * Passes a frame from a source other than the NCP to the sinks. The channel, LQI, RSSI, timestamp and data of the
+     * packet must be set - the sequence number and elapsed time are set by the engine. The caller's reference to the
+     * packet is taken over by the engine. This must only be called from one thread.
+     *
+     * @param packet a {@link SnifferPacket} from {@link #acquirePacket()}
+     */
+    public void packetReceived(SnifferPacket packet) {
+        Object event = SnifferEvents.beginFrame();
+        captureMillis = System.currentTimeMillis();
+        channelId = packet.getChannel();
+        dispatch(packet, event);
+    }
+
+    private void packetReceived(int lqi, int rssi, int[] data) {
+        Object event = SnifferEvents.beginFrame();
+        captureMillis = System.currentTimeMillis();
+
+        SnifferPacket packet = pool.acquire();
+        packet.setLqi(lqi);
+        packet.setRssi(rssi);
+        packet.setChannel(channelId);
+        packet.setTimestamp(captureMillis);
+        packet.setData(data);
+        dispatch(packet, event);
+    }
+
+    private void dispatch(SnifferPacket packet, Object event) {
+        int packetSequence = sequence++;
+        int channel = packet.getChannel();
+        int length = packet.getLength();
+        int rssi = packet.getRssi();
+        int lqi = packet.getLqi();
+        packet.setSequence(packetSequence);
+        packet.setElapsedMicros((System.nanoTime() - startTime) / 1000);
+        packet.setSampleWeight(1);
+
+        AddressLearner learner = addressLearner;
+        if (learner != null) {
+            learner.frameReceived(packet.getData(), length);
+        }
+
+        LoadShedder shedder = loadShedder;
+        if (shedder != null) {
+            if (shedder.isAdjustDue(captureMillis)) {
+                shedder.adjust(getPressure(), captureMillis);
+            }
+            int weight = shedder.sample(packet);
+            if (weight == 0) {
+                packet.release();
+                SnifferEvents.endFrame(event, packetSequence, channel, length, rssi, lqi);
+                return;
+            }
+            packet.setSampleWeight(weight);
+        }
+
+        for (SinkRegistration registration : sinks) {
+            PacketFilter filter = registration.filter;
+            if (filter != null && !filter.accept(packet)) {
+                continue;
+            }
+            if (registration.closed) {
+                continue;
+            }
+            packet.retain(1);
+            if (!registration.worker.offer(packet)) {
+                packet.release();
+            }
+        }
+        packet.release();
+        // The packet may already have been reused, so the event is filled from the values saved before dispatch
+        SnifferEvents.endFrame(event, packetSequence, channel, length, rssi, lqi);
+    }
+
+    /**
+     * @return the highest proportion of any sink queue that is in use, from 0 to 1
+     */
+    private double getPressure() {
+        double pressure = 0;
+        for (SinkRegistration registration : sinks) {
+            SinkWorker worker = registration.worker;
+            pressure = Math.max(pressure, (double) worker.getQueued() / worker.getQueueSize());
+        }
+        return pressure;
+    }
+
+    private SinkRegistration getRegistration(PacketSink sink) {
+        for (SinkRegistration registration : sinks) {
+            if (registration.sink == sink) {
+                return registration;
+            }
+        }
+        return null;
+    }
+
+    private void closeSink(SinkRegistration registration) {
+        if (!registration.worker.flush(SINK_FLUSH_TIMEOUT)) {
+            System.err.println("Timeout flushing " + registration.sink.getName() + " output");
+        }
+        // Waits for any batch in progress, so the sink is never written once it is closed
+        synchronized (registration) {
+            registration.closed = true;
+            registration.sink.close();
+        }
+    }
+
+    private void shutdownNcp() {
+        if (emberMfg != null) {
+            emberMfg.doMfglibEnd();
+            emberMfg = null;
+        }
+        if (dongle != null) {
+            dongle.shutdown();
+            dongle = null;
+        }
+    }
+
+    private boolean initialiseNcp() {
+        final ZigBeePort serialPort = new ZigBeeSerialPort(serialPortName, serialBaud, flowControl);
+        System.out.println("Opened serial port " + serialPortName + " at " + serialBaud);
+        dongle = new ZigBeeDongleEzsp(serialPort);
+
+        emberMfg = dongle.getEmberMfglib(new EmberMfglibListener() {
+            @Override
+            public synchronized void emberMfgLibPacketReceived(int lqi, int rssi, int[] data) {
+                packetReceived(lqi, rssi, data);
+            }
+        });
+
+        String ncpVersion = dongle.getFirmwareVersion();
+        if (ncpVersion.equals("")) {
+            System.err.println("Unable to communicate with Ember NCP");
+            return false;
+        }
+        System.out.println("Ember NCP version     : " + ncpVersion);
+
+        EmberNcp emberNcp = dongle.getEmberNcp();
+        IeeeAddress ieeeAddress = emberNcp.getIeeeAddress();
+        System.out.println("Ember NCP EUI         : " + ieeeAddress);
+
+        firmwareVersion = ncpVersion;
+        localIeeeAddress = ieeeAddress;
+        for (SinkRegistration registration : sinks) {
+            registration.worker.flush(SINK_FLUSH_TIMEOUT);
+            // The worker may still be delivering or rotating, so the sink is only called while holding its lock
+            synchronized (registration) {
+                if (!registration.closed) {
+                    registration.sink.ncpStarted(ieeeAddress, ncpVersion);
+                }
+            }
+        }
+
+        if (!emberMfg.doMfglibStart()) {
+            System.err.println("Error starting Ember mfglib");
+            return false;
+        }
+        if (!emberMfg.doMfglibSetChannel(ZigBeeChannel.create(channelId))) {
+            System.err.println("Error setting Ember channel");
+            return false;
+        }
+
+        lastChannelRotationTimestamp = System.currentTimeMillis();
+
+        return true;
+    }
+
+    private ZigBeeChannel getNextChannel() {
+        if (channelId == channelRotationRangeEnd) {
+            return ZigBeeChannel.create(channelRotationRangeStart);
+        }
+        return ZigBeeChannel.create(channelId + 1);
+    }
+}
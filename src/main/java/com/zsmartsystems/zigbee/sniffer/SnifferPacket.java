@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A single frame received by the sniffer, along with the radio information and capture time. This is the record that
+ * is passed to each {@link PacketSink}.
+ * <p>
+ * Packets are pooled by the {@link SnifferEngine} and the same instance is shared between all sinks without copying.
+ * Sinks must therefore treat the packet as read only, and must not keep a reference to it, or to the array returned by
+ * {@link #getData()}, once {@link PacketSink#packetsReceived} has returned. A sink that needs to keep the data must
+ * copy it.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SnifferPacket {
+    /**
+     * The maximum frame length that can be held in a packet
+     */
+    public static final int MAX_LENGTH = 256;
+
+    private static final AtomicIntegerFieldUpdater<SnifferPacket> REFERENCES = AtomicIntegerFieldUpdater
+            .newUpdater(SnifferPacket.class, "references");
+
+    private final SnifferPacketPool pool;
+    private volatile int references;
+
+    private int sequence;
+    private int lqi;
+    private int rssi;
+    private int channel;
+    private long timestampMicros;
+    private long elapsedMicros;
+    private int sampleWeight = 1;
+    private final int[] data = new int[MAX_LENGTH];
+    private int length;
+
+    /**
+     * Creates a packet that is not part of a pool
+     */
+    public SnifferPacket() {
+        this(null);
+    }
+
+    SnifferPacket(SnifferPacketPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the sniffer sequence number
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence the sniffer sequence number to set
+     */
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the link quality indicator (0 to 255)
+     */
+    public int getLqi() {
+        return lqi;
+    }
+
+    /**
+     * @param lqi the link quality indicator to set
+     */
+    public void setLqi(int lqi) {
+        this.lqi = lqi;
+    }
+
+    /**
+     * @return the received signal strength in dBm
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @param rssi the received signal strength to set
+     */
+    public void setRssi(int rssi) {
+        this.rssi = rssi;
+    }
+
+    /**
+     * @return the channel the frame was received on
+     */
+    public int getChannel() {
+        return channel;
+    }
+
+    /**
+     * @param channel the channel to set
+     */
+    public void setChannel(int channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * @return the capture time in milliseconds since the epoch (UTC)
+     */
+    public long getTimestamp() {
+        return timestampMicros / 1000;
+    }
+
+    /**
+     * @param timestamp the capture time in milliseconds since the epoch (UTC)
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestampMicros = timestamp * 1000;
+    }
+
+    /**
+     * @return the capture time in microseconds since the epoch (UTC)
+     */
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
+    /**
+     * Sets the capture time with microsecond resolution. This is used when packets are read from a file that holds
+     * more accurate times than the sniffer itself provides.
+     *
+     * @param timestampMicros the capture time in microseconds since the epoch (UTC)
+     */
+    public void setTimestampMicros(long timestampMicros) {
+        this.timestampMicros = timestampMicros;
+    }
+
+    /**
+     * @return the capture time in microseconds since the sniffer was started
+     */
+    public long getElapsedMicros() {
+        return elapsedMicros;
+    }
+
+    /**
+     * @param elapsedMicros the capture time in microseconds since the sniffer was started
+     */
+    public void setElapsedMicros(long elapsedMicros) {
+        this.elapsedMicros = elapsedMicros;
+    }
+
+    /**
+     * Gets the number of received frames this packet stands for. When the engine is shedding load, only one of every
+     * few bulk data frames is passed to the sinks, and the kept frame has a weight of the number of frames it was
+     * sampled from. Statistics should count the packet this many times.
+     *
+     * @return the sample weight - 1 if the frame was not sampled
+     */
+    public int getSampleWeight() {
+        return sampleWeight;
+    }
+
+    /**
+     * @param sampleWeight the number of received frames this packet stands for
+     */
+    public void setSampleWeight(int sampleWeight) {
+        this.sampleWeight = sampleWeight;
+    }
+
+    /**
+     * @return true if this packet was sampled from more than one frame
+     */
+    public boolean isSampled() {
+        return sampleWeight > 1;
+    }
+
+    /**
+     * Gets the raw IEEE 802.15.4 frame, including the two FCS bytes. Only the first {@link #getLength()} values in the
+     * array are valid.
+     *
+     * @return the backing array holding the frame
+     */
+    public int[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the number of bytes in the frame
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Sets the raw IEEE 802.15.4 frame. The data is copied into the packet and is truncated to {@link #MAX_LENGTH}.
+     *
+     * @param data the raw IEEE 802.15.4 frame to set
+     */
+    public void setData(int[] data) {
+        setData(data, data.length);
+    }
+
+    /**
+     * Sets the raw IEEE 802.15.4 frame. The data is copied into the packet and is truncated to {@link #MAX_LENGTH}.
+     *
+     * @param data the array holding the frame
+     * @param length the number of bytes in the frame
+     */
+    public void setData(int[] data, int length) {
+        setData(data, 0, length);
+    }
+
+    /**
+     * Sets the raw IEEE 802.15.4 frame. The data is copied into the packet and is truncated to {@link #MAX_LENGTH}.
+     *
+     * @param data the array holding the frame
+     * @param offset the offset of the frame in the array
+     * @param length the number of bytes in the frame
+     */
+    public void setData(int[] data, int offset, int length) {
+        this.length = Math.min(length, MAX_LENGTH);
+        System.arraycopy(data, offset, this.data, 0, this.length);
+    }
+
+    /**
+     * Gets a copy of the frame data that may be kept after the packet is released
+     *
+     * @return a new array holding the frame
+     */
+    public int[] copyData() {
+        int[] copy = new int[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    void retain(int count) {
+        REFERENCES.addAndGet(this, count);
+    }
+
+    void release() {
+        if (REFERENCES.decrementAndGet(this) == 0 && pool != null) {
+            pool.recycle(this);
+        }
+    }
+}
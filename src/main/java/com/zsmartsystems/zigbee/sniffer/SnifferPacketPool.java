@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of {@link SnifferPacket}s. Packets are reference counted, and are returned to the pool once every sink that
+ * they were delivered to has finished with them. If the pool is empty a new packet is created, and if the pool is full
+ * when a packet is returned the packet is left for the garbage collector, so the pool never blocks the capture.
+ *
+ * @author Chris Jackson
+ *
+ */
+class SnifferPacketPool {
+    private final BlockingQueue<SnifferPacket> free;
+
+    SnifferPacketPool(int size) {
+        free = new ArrayBlockingQueue<>(size);
+    }
+
+    /**
+     * Gets a packet from the pool. The packet is returned with a single reference held by the caller.
+     *
+     * @return a {@link SnifferPacket}
+     */
+    SnifferPacket acquire() {
+        SnifferPacket packet = free.poll();
+        if (packet == null) {
+            packet = new SnifferPacket(this);
+        }
+        packet.retain(1);
+        return packet;
+    }
+
+    void recycle(SnifferPacket packet) {
+        free.offer(packet);
+    }
+}
@@ -8,17 +8,17 @@
 package com.zsmartsystems.zigbee.sniffer;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.net.URL;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.function.IntSupplier;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -28,64 +28,76 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import com.zsmartsystems.zigbee.IeeeAddress;
-import com.zsmartsystems.zigbee.ZigBeeChannel;
-import com.zsmartsystems.zigbee.dongle.ember.EmberMfglib;
-import com.zsmartsystems.zigbee.dongle.ember.EmberMfglibListener;
-import com.zsmartsystems.zigbee.dongle.ember.EmberNcp;
-import com.zsmartsystems.zigbee.dongle.ember.ZigBeeDongleEzsp;
-import com.zsmartsystems.zigbee.serial.ZigBeeSerialPort;
-import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsAdapter;
-import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdLogFile;
-import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsPacketEm350Rx;
-import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsPrintf;
-import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsVersion;
-import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
-import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFrame;
-import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapHeader;
-import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepFrame;
-import com.zsmartsystems.zigbee.transport.ZigBeePort;
+import com.zsmartsystems.zigbee.security.ZigBeeKey;
+import com.zsmartsystems.zigbee.sniffer.internal.ConsoleSink;
+import com.zsmartsystems.zigbee.sniffer.internal.LoadShedder;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.anomaly.AnomalyDetector;
+import com.zsmartsystems.zigbee.sniffer.internal.anomaly.AnomalyDetectorSink;
+import com.zsmartsystems.zigbee.sniffer.internal.anomaly.AnomalyLogListener;
+import com.zsmartsystems.zigbee.sniffer.internal.anomaly.AnomalyWebhookListener;
+import com.zsmartsystems.zigbee.sniffer.internal.columnar.ColumnarSink;
+import com.zsmartsystems.zigbee.sniffer.internal.control.SnifferControlServer;
+import com.zsmartsystems.zigbee.sniffer.internal.json.NdjsonSink;
+import com.zsmartsystems.zigbee.sniffer.internal.security.DecryptingSink;
+import com.zsmartsystems.zigbee.sniffer.internal.security.ZigBeeKeyStore;
+import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdSink;
+import com.zsmartsystems.zigbee.sniffer.internal.spool.SegmentSpool;
+import com.zsmartsystems.zigbee.sniffer.internal.stats.ChannelStatisticsSink;
+import com.zsmartsystems.zigbee.sniffer.internal.stats.LossEstimatorSink;
+import com.zsmartsystems.zigbee.sniffer.internal.stats.StartupBenchmarkSink;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.AnalyzeTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.BenchmarkTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.CollectTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.ConvertTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.PcapMergeTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.PcapSplitTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.QueryTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.SnifferTool;
+import com.zsmartsystems.zigbee.sniffer.internal.tools.TransactionTool;
+import com.zsmartsystems.zigbee.sniffer.internal.transaction.TransactionSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepReceiver;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepSink;
 import com.zsmartsystems.zigbee.transport.ZigBeePort.FlowControl;
 
 /**
- * This class uses the {@link ZigBeeDongleEzsp} class to create a ZigBee sniffer and make the data available to
- * Wireshark and optionally write to a Silabs ISD event file.
+ * Command line application that uses the {@link SnifferEngine} to create a ZigBee sniffer and make the data available
+ * to Wireshark and optionally write to a Silabs ISD event file or pcap file.
  *
  * @author Chris Jackson
  *
  */
 public class ZigBeeSniffer {
-    static Integer channelId;
-    static Integer channelRotationIntervalMillis;
-    static Integer channelRotationRangeStart;
-    static Integer channelRotationRangeEnd;
-    static Long lastChannelRotationTimestamp;
-    static int sourcePort;
-    static int destinationPort;
-    static DatagramSocket client;
-    static InetAddress address;
-    static SilabsIsdLogFile isdFile;
-    static WiresharkPcapFile pcapFile;
-    static long startTime = System.nanoTime();
-    static ZigBeeDongleEzsp dongle;
-    static EmberMfglib emberMfg;
-    static EmberNcp emberNcp;
-    static Integer deviceId;
-    static IeeeAddress localIeeeAddress;
-    static long timezone = 0;
-    static int wiresharkFileLength = Integer.MAX_VALUE;
-    static int wiresharkCounter = 0;
-    static String wiresharkFilename;
-    static int sequence = 0;
-    static long captureMillis;
-    static long restartTimer = 30000;
+    private static final SnifferTool[] TOOLS = { new PcapMergeTool(), new PcapSplitTool(),
+            new ConvertTool(), new AnalyzeTool(), new QueryTool(), new CollectTool(), new TransactionTool(),
+            new BenchmarkTool() };
+
+    /**
+     * The time in milliseconds between saves of the address cache
+     */
+    private static final long ADDRESS_SAVE_PERIOD = 300000;
 
     public static void main(final String[] args) {
-        final int ZEP_UDP_PORT = 17754;
+        long mainStart = System.currentTimeMillis();
+        if (args.length != 0) {
+            for (SnifferTool tool : TOOLS) {
+                if (tool.getName().equals(args[0])) {
+                    tool.run(Arrays.copyOfRange(args, 1, args.length));
+                    return;
+                }
+            }
+        }
 
-        final String serialPortName;
+        String serialPortName = null;
+        Integer zepListenPort = null;
         Integer serialBaud = 115200;
         FlowControl flowControl = FlowControl.FLOWCONTROL_OUT_XONOFF;
+        long timezone = 0;
+        long wiresharkFileLength = Long.MAX_VALUE;
+        int destinationPort;
+        int sourcePort;
+        InetAddress address;
 
         System.out.println("Z-Smart Systems Ember Packet Sniffer");
 
@@ -110,16 +122,57 @@ public class ZigBeeSniffer {
                 .desc("Set the UDP source port (use 0 to let the system choose)").build());
         options.addOption(Option.builder("r").longOpt("dport").hasArg().argName("destination port")
                 .desc("Set the UDP destination port").build());
+        options.addOption(Option.builder().longOpt("zep-listen").hasArg().argName("port")
+                .desc("Record ZEP frames received on this UDP port instead of capturing from an NCP").build());
+        options.addOption(Option.builder().longOpt("spool").hasArg().argName("directory")
+                .desc("Keep ZEP frames in a spool directory while the destination is unreachable").build());
+        options.addOption(Option.builder().longOpt("spool-size").hasArg().argName("megabytes")
+                .desc("Maximum size of the ZEP spool (default 256)").build());
+        options.addOption(Option.builder().longOpt("replay-rate").hasArg().argName("frames")
+                .desc("Maximum ZEP frames per second when replaying the spool (default 1000)").build());
         options.addOption(Option.builder("s").longOpt("silabs").hasArg().argName("filename")
                 .desc("Log data to a Silabs ISD compatible event log").build());
         options.addOption(Option.builder("w").longOpt("pcap").hasArg().argName("filename")
                 .desc("Log data to a Wireshark pcap compatible log").build());
+        options.addOption(Option.builder().longOpt("columnar").hasArg().argName("filename")
+                .desc("Log data to a columnar capture file").build());
+        options.addOption(Option.builder().longOpt("addresses").hasArg().argName("filename")
+                .desc("Learn the IEEE addresses of devices, and keep them in a file across restarts").build());
+        options.addOption(Option.builder().longOpt("ndjson").hasArg().argName("target")
+                .desc("Log data as NDJSON to a file, - for stdout, or unix:path for a Unix socket").build());
         options.addOption(Option.builder("m").longOpt("maxpcap").hasArg().argName("length")
                 .desc("Maximum filesize for Wireshark files").build());
+        options.addOption(Option.builder().longOpt("preallocate")
+                .desc("Preallocate Wireshark files to the maximum filesize").build());
+        options.addOption(Option.builder().longOpt("snaplen").hasArg().argName("bytes")
+                .desc("Only write the first bytes of each frame to Wireshark files").build());
+        options.addOption(Option.builder().longOpt("shed")
+                .desc("Sample bulk data frames when the outputs can't keep up").build());
         options.addOption(Option.builder("t").longOpt("timeout").hasArg().argName("seconds")
-                .desc("NCP restart timeout in seconds").build());
+                .desc("Maximum NCP liveness check interval in seconds").build());
         options.addOption(Option.builder("d").longOpt("device-id").hasArg().argName("device-id")
                 .desc("Set the device ID that will be included in ZEP frame").build());
+        options.addOption(Option.builder("n").longOpt("nwkkey").hasArg().argName("key")
+                .desc("Add a network key for decryption (may be repeated)").build());
+        options.addOption(Option.builder("y").longOpt("linkkey").hasArg().argName("key")
+                .desc("Add a trust centre link key for decryption (may be repeated)").build());
+        options.addOption(Option.builder("x").longOpt("decrypt").hasArg().argName("filename")
+                .desc("Log decrypted data to a Wireshark pcap compatible log").build());
+        options.addOption(Option.builder("z").longOpt("stats").hasArg().argName("seconds")
+                .desc("Print per channel RF statistics at this interval (seconds)").build());
+        options.addOption(Option.builder().longOpt("stats-file").hasArg().argName("filename")
+                .desc("Append per channel RF statistics to a CSV file").build());
+        options.addOption(Option.builder().longOpt("loss").hasArg().argName("seconds")
+                .desc("Print estimated capture loss from sequence gaps at this interval (seconds)").build());
+        options.addOption(Option.builder().longOpt("anomaly").hasArg().argName("target")
+                .desc("Report traffic anomalies to the console, a log file, or an http: webhook (may be repeated)")
+                .build());
+        options.addOption(Option.builder().longOpt("transactions").hasArg().argName("seconds")
+                .desc("Print request/response latency and retries at this interval (seconds)").build());
+        options.addOption(Option.builder().longOpt("startup-benchmark")
+                .desc("Print the time from process start to the first captured frame, and exit").build());
+        options.addOption(Option.builder().longOpt("control").hasArg().argName("port")
+                .desc("Accept control commands on this local TCP port").build());
         options.addOption(Option.builder("l").longOpt("local").desc("Log times in local time").build());
         options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
 
@@ -131,9 +184,16 @@ public class ZigBeeSniffer {
             if (cmdline.hasOption("help")) {
                 HelpFormatter formatter = new HelpFormatter();
                 formatter.printHelp("ZigBeeSniffer", options);
+                System.out.println();
+                System.out.println("Offline tools - use ZigBeeSniffer <tool> --help for options");
+                for (SnifferTool tool : TOOLS) {
+                    System.out.println(String.format("  %-10s %s", tool.getName(), tool.getDescription()));
+                }
                 return;
             }
-            if (!cmdline.hasOption("port")) {
+            if (cmdline.hasOption("zep-listen")) {
+                zepListenPort = parseDecimalOrHexInt(cmdline.getOptionValue("zep-listen"));
+            } else if (!cmdline.hasOption("port")) {
                 System.err.println("Serial port must be specified with the 'port' option");
                 return;
             }
@@ -172,223 +232,360 @@ public class ZigBeeSniffer {
 
             System.out.println("Using timezone " + tz.getDisplayName() + " (" + timezone + ")");
         }
-        if (cmdline.hasOption("silabs")) {
-            try {
-                isdFile = new SilabsIsdLogFile(cmdline.getOptionValue("silabs"));
-            } catch (FileNotFoundException | UnsupportedEncodingException e) {
-                e.printStackTrace();
-                return;
-            }
-        } else {
-            isdFile = null;
-        }
-
-        if (cmdline.hasOption("timeout")) {
-            restartTimer = parseDecimalOrHexInt(cmdline.getOptionValue("timeout")) * 1000;
-        }
-
-        if (cmdline.hasOption("maxpcap")) {
-            wiresharkFileLength = parseDecimalOrHexInt(cmdline.getOptionValue("maxpcap"));
-            wiresharkCounter = 1;
-        }
-
-        if (cmdline.hasOption("pcap")) {
-            wiresharkFilename = cmdline.getOptionValue("pcap");
-            openPcapFile(wiresharkFilename, wiresharkCounter);
-        } else {
-            pcapFile = null;
-        }
 
-        if (cmdline.hasOption("dport")) {
-            destinationPort = parseDecimalOrHexInt(cmdline.getOptionValue("dport"));
-        } else {
-            destinationPort = ZEP_UDP_PORT;
+        if (cmdline.hasOption("channel") && cmdline.hasOption("rotate")) {
+            System.err.println("Either a specific channel should be set or scan rotation enabled, but not both");
+            return;
         }
-
-        try {
-            if (cmdline.hasOption("ipaddr")) {
-                address = InetAddress.getByName(cmdline.getOptionValue("ipaddr"));
-            } else {
-                address = InetAddress.getByName("127.0.0.1");
-            }
-
-            if (cmdline.hasOption("sport")) {
-                sourcePort = parseDecimalOrHexInt(cmdline.getOptionValue("sport"));
-            } else {
-                sourcePort = ZEP_UDP_PORT;
-            }
-
-            client = new DatagramSocket(sourcePort);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (zepListenPort != null && (cmdline.hasOption("channel") || cmdline.hasOption("rotate"))) {
+            System.err.println("The channel can't be set when receiving ZEP - it is set by the ZEP sources");
             return;
         }
 
-        if (cmdline.hasOption("channel") && cmdline.hasOption("rotate")) {
-            System.err.println("Either a specific channel should be set or scan rotation enabled, but not both");
-            return;
+        final SnifferEngine engine = zepListenPort == null
+                ? new SnifferEngine(serialPortName, serialBaud, flowControl)
+                : new SnifferEngine();
+
+        if (cmdline.hasOption("timeout")) {
+            engine.setRestartTimeout(parseDecimalOrHexInt(cmdline.getOptionValue("timeout")) * 1000);
         }
 
         if (cmdline.hasOption("rotate")) {
-            channelRotationIntervalMillis = Integer.parseInt(cmdline.getOptionValue("rotate")) * 1000;
+            int channelRotationIntervalMillis = Integer.parseInt(cmdline.getOptionValue("rotate")) * 1000;
             if ((cmdline.hasOption("rotate-start") && !cmdline.hasOption("rotate-end"))
                     || (!cmdline.hasOption("rotate-start") && cmdline.hasOption("rotate-end"))) {
                 System.err.println("Channel rotation range (start and end) must be provided together or not at all");
+                engine.shutdown();
                 return;
             }
+            int channelRotationRangeStart = 11;
+            int channelRotationRangeEnd = 26;
             if (cmdline.hasOption("rotate-start")) {
                 channelRotationRangeStart = parseDecimalOrHexInt(cmdline.getOptionValue("rotate-start"));
                 channelRotationRangeEnd = parseDecimalOrHexInt(cmdline.getOptionValue("rotate-end"));
                 if (channelRotationRangeStart > channelRotationRangeEnd) {
                     System.err.println("Invalid channel rotation range provided");
+                    engine.shutdown();
                     return;
                 }
-            } else {
-                channelRotationRangeStart = 11;
-                channelRotationRangeEnd = 26;
             }
-            channelId = channelRotationRangeStart;
-        } else {
+            engine.setChannelRotation(channelRotationIntervalMillis, channelRotationRangeStart,
+                    channelRotationRangeEnd);
+            System.out.println("Scanning channel range    : range = [" + channelRotationRangeStart + " , "
+                    + channelRotationRangeEnd + "] , interval = " + channelRotationIntervalMillis + " ms");
+        } else if (zepListenPort == null) {
             if (cmdline.hasOption("channel")) {
-                channelId = parseDecimalOrHexInt(cmdline.getOptionValue("channel"));
+                if (!engine.setChannel(parseDecimalOrHexInt(cmdline.getOptionValue("channel")))) {
+                    System.err.println("Invalid channel " + cmdline.getOptionValue("channel"));
+                    engine.shutdown();
+                    return;
+                }
             } else {
-                channelId = 11;
+                engine.setChannel(11);
             }
+            System.out.println("Logging on channel    : " + engine.getChannel());
         }
 
-        if (cmdline.hasOption("device-id")) {
-            deviceId = parseDecimalOrHexInt(cmdline.getOptionValue("device-id"));
+        if (cmdline.hasOption("shed")) {
+            engine.setLoadShedder(new LoadShedder());
         }
 
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-            while (!in.ready()) {
-                System.out.println("NCP initialisation starting...");
+        StartupBenchmarkSink startupBenchmark = null;
+        if (cmdline.hasOption("startup-benchmark")) {
+            startupBenchmark = new StartupBenchmarkSink(mainStart);
+            engine.addSink(startupBenchmark);
+        }
 
-                if (initialiseNcp(serialPortName, serialBaud, flowControl) == false) {
-                    System.out.println("Unable to initialise NCP");
+        AddressCache addressCache = null;
+        File addressFile = null;
+        if (cmdline.hasOption("addresses")) {
+            addressCache = new AddressCache();
+            addressFile = new File(cmdline.getOptionValue("addresses"));
+            if (addressFile.exists()) {
+                try {
+                    addressCache.load(addressFile);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    engine.shutdown();
                     return;
                 }
+            }
+            engine.setAddressCache(addressCache);
+            System.out.println("Address cache         : " + addressFile + " (" + addressCache.size() + " devices)");
+        }
 
-                System.out.println("NCP initialisation complete...");
-                System.out.println("Wireshark destination : " + address + ":" + destinationPort);
-                if (channelRotationIntervalMillis != null) {
-                    System.out.println("Scanning channel range    : range = [" + channelRotationRangeStart
-                            + " , " + channelRotationRangeEnd + "] , interval = " + channelRotationIntervalMillis
-                            + " ms");
-                } else {
-                    System.out.println("Logging on channel    : " + channelId);
+        // The console output would be mixed into NDJSON written to the standard output
+        if (!"-".equals(cmdline.getOptionValue("ndjson"))) {
+            engine.addSink(new ConsoleSink());
+        }
+
+        if (cmdline.hasOption("stats")) {
+            try {
+                engine.addSink(new ChannelStatisticsSink(new IntSupplier() {
+                    @Override
+                    public int getAsInt() {
+                        return engine.isRunning() ? engine.getChannel() : 0;
+                    }
+                }, parseDecimalOrHexInt(cmdline.getOptionValue("stats")) * 1000L,
+                        cmdline.getOptionValue("stats-file")));
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+        }
+
+        if (cmdline.hasOption("loss")) {
+            engine.addSink(
+                    new LossEstimatorSink(engine, parseDecimalOrHexInt(cmdline.getOptionValue("loss")) * 1000L));
+        }
+
+        if (cmdline.hasOption("anomaly")) {
+            AnomalyDetector detector = new AnomalyDetector();
+            detector.setAddressCache(addressCache);
+            try {
+                for (String target : cmdline.getOptionValues("anomaly")) {
+                    if ("console".equals(target)) {
+                        detector.addListener(new AnomalyLogListener());
+                    } else if (target.startsWith("http:") || target.startsWith("https:")) {
+                        detector.addListener(new AnomalyWebhookListener(new URL(target)));
+                    } else {
+                        detector.addListener(new AnomalyLogListener(target));
+                    }
                 }
-                if (deviceId != null) {
-                    System.out.println("Device ID    : " + deviceId);
-                } else {
-                    System.out.println("No device ID set. Last 16 bits of device EUID will be used.");
+            } catch (IOException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+            engine.addSink(new AnomalyDetectorSink(detector, new IntSupplier() {
+                @Override
+                public int getAsInt() {
+                    return engine.isRunning() ? engine.getChannel() : 0;
                 }
+            }));
+        }
 
-                captureMillis = System.currentTimeMillis();
-                while (!in.ready()) {
-                    if (channelRotationIntervalMillis == null) {
-                        if (captureMillis < System.currentTimeMillis() - restartTimer) {
-                            System.out.println(
-                                    "No NCP data received for " + (restartTimer / 1000) + " seconds. Restarting NCP!");
-                            break;
-                        }
-                    } else if (System.currentTimeMillis()
-                            - lastChannelRotationTimestamp >= channelRotationIntervalMillis) {
-                        final ZigBeeChannel nextChannel = getNextChannel();
-                        System.out.println("Setting channel " + nextChannel.getChannel());
-                        if (!emberMfg.doMfglibSetChannel(nextChannel)) {
-                            System.err.println("Error setting Ember channel");
-                            break;
-                        }
-                        channelId = nextChannel.getChannel();
-                        lastChannelRotationTimestamp = System.currentTimeMillis();
-                    }
-                    Thread.sleep(250);
+        ZigBeeKeyStore keyStore = new ZigBeeKeyStore();
+        try {
+            if (cmdline.hasOption("nwkkey")) {
+                for (String key : cmdline.getOptionValues("nwkkey")) {
+                    keyStore.addNetworkKey(new ZigBeeKey(key));
                 }
+            }
+            if (cmdline.hasOption("linkkey")) {
+                for (String key : cmdline.getOptionValues("linkkey")) {
+                    keyStore.addTrustCentreLinkKey(new ZigBeeKey(key));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid key: " + e.getMessage());
+            engine.shutdown();
+            return;
+        }
 
-                System.out.println("NCP shutting down...");
-                shutdownNcp();
+        if (cmdline.hasOption("transactions")) {
+            PacketSink transactionSink = new TransactionSink(
+                    parseDecimalOrHexInt(cmdline.getOptionValue("transactions")) * 1000L, addressCache);
+            // Secured frames can only be correlated once they are decrypted
+            if (cmdline.hasOption("nwkkey") || cmdline.hasOption("linkkey")) {
+                transactionSink = new DecryptingSink(keyStore, transactionSink);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            engine.addSink(transactionSink);
         }
 
-        shutdown();
-        System.out.println("Sniffer closed.");
-    }
+        if (cmdline.hasOption("silabs")) {
+            try {
+                engine.addSink(new SilabsIsdSink(cmdline.getOptionValue("silabs")));
+            } catch (FileNotFoundException | UnsupportedEncodingException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+        }
+
+        if (cmdline.hasOption("columnar")) {
+            try {
+                engine.addSink(new ColumnarSink(cmdline.getOptionValue("columnar")));
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+        }
+
+        if (cmdline.hasOption("ndjson")) {
+            try {
+                NdjsonSink ndjsonSink = new NdjsonSink(cmdline.getOptionValue("ndjson"));
+                ndjsonSink.setAddressCache(addressCache);
+                engine.addSink(ndjsonSink);
+            } catch (IOException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+        }
+
+        if (cmdline.hasOption("maxpcap")) {
+            wiresharkFileLength = parseDecimalOrHexLong(cmdline.getOptionValue("maxpcap"));
+        }
+
+        int snapLength = SnifferPacket.MAX_LENGTH;
+        if (cmdline.hasOption("snaplen")) {
+            snapLength = parseDecimalOrHexInt(cmdline.getOptionValue("snaplen"));
+            if (snapLength < 1 || snapLength > SnifferPacket.MAX_LENGTH) {
+                System.err.println("Snapshot length must be between 1 and " + SnifferPacket.MAX_LENGTH);
+                engine.shutdown();
+                return;
+            }
+        }
+
+        if (cmdline.hasOption("pcap")) {
+            try {
+                engine.addSink(new WiresharkPcapSink(cmdline.getOptionValue("pcap"), wiresharkFileLength, timezone,
+                        cmdline.hasOption("preallocate"), snapLength));
+            } catch (FileNotFoundException | UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (cmdline.hasOption("decrypt")) {
+            try {
+                engine.addSink(new DecryptingSink(keyStore,
+                        new WiresharkPcapSink(cmdline.getOptionValue("decrypt"), wiresharkFileLength, timezone,
+                                cmdline.hasOption("preallocate"), snapLength)));
+            } catch (FileNotFoundException | UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
 
-    private static void packetReceived(int sequence, int lqi, int rssi, int[] data) {
-        captureMillis = System.currentTimeMillis();
-
-        if (isdFile != null) {
-            SilabsPacketEm350Rx silabsPacket = new SilabsPacketEm350Rx();
-            silabsPacket.setSequence(sequence & 0xFF);
-            silabsPacket.setTimestamp((System.nanoTime() - startTime) / 1000);
-            silabsPacket.setData(data);
-            silabsPacket.setLqi(lqi);
-            silabsPacket.setRssi(rssi);
-            silabsPacket.setChannel(channelId);
-            isdFile.write(silabsPacket);
-        }
-
-        if (pcapFile != null) {
-            long seconds = (captureMillis + timezone) / 1000;
-            WiresharkPcapFrame pcapPacket = new WiresharkPcapFrame();
-            pcapPacket.setSeconds((int) (seconds));
-            pcapPacket.setMicroseconds((int) (captureMillis - (seconds * 1000)) * 1000);
-            pcapPacket.setData(data);
-
-            pcapFile.write(pcapPacket);
-
-            if (pcapFile.getLength() > wiresharkFileLength) {
-                System.out.println(
-                        "Breaking wireshark file " + wiresharkCounter + " at " + pcapFile.getLength() + " bytes.");
-                pcapFile.close();
-                wiresharkCounter++;
-                openPcapFile(wiresharkFilename, wiresharkCounter);
+        // When receiving ZEP, frames are only sent on as ZEP if a destination is given, so they aren't sent back to
+        // the port they are received on
+        if (zepListenPort == null || cmdline.hasOption("ipaddr") || cmdline.hasOption("dport")) {
+            if (cmdline.hasOption("dport")) {
+                destinationPort = parseDecimalOrHexInt(cmdline.getOptionValue("dport"));
+            } else {
+                destinationPort = WiresharkZepSink.ZEP_UDP_PORT;
+            }
+
+            try {
+                if (cmdline.hasOption("ipaddr")) {
+                    address = InetAddress.getByName(cmdline.getOptionValue("ipaddr"));
+                } else {
+                    address = InetAddress.getByName("127.0.0.1");
+                }
+
+                if (cmdline.hasOption("sport")) {
+                    sourcePort = parseDecimalOrHexInt(cmdline.getOptionValue("sport"));
+                } else if (zepListenPort != null) {
+                    // The ZEP port is likely to be the one frames are received on
+                    sourcePort = 0;
+                } else {
+                    sourcePort = WiresharkZepSink.ZEP_UDP_PORT;
+                }
+
+                WiresharkZepSink zepSink = new WiresharkZepSink(address, destinationPort, sourcePort);
+                zepSink.setTimezone(timezone);
+                if (cmdline.hasOption("device-id")) {
+                    Integer deviceId = parseDecimalOrHexInt(cmdline.getOptionValue("device-id"));
+                    zepSink.setDeviceId(deviceId);
+                    System.out.println("Device ID    : " + deviceId);
+                } else {
+                    System.out.println("No device ID set. Last 16 bits of device EUID will be used.");
+                }
+                if (cmdline.hasOption("spool")) {
+                    long spoolSize = cmdline.hasOption("spool-size")
+                            ? parseDecimalOrHexLong(cmdline.getOptionValue("spool-size"))
+                            : 256;
+                    int replayRate = cmdline.hasOption("replay-rate")
+                            ? parseDecimalOrHexInt(cmdline.getOptionValue("replay-rate"))
+                            : 1000;
+                    SegmentSpool spool = new SegmentSpool(new File(cmdline.getOptionValue("spool")),
+                            SegmentSpool.DEFAULT_SEGMENT_SIZE, spoolSize * 1024 * 1024);
+                    zepSink.setSpool(spool, replayRate);
+                    System.out.println("ZEP spool             : " + cmdline.getOptionValue("spool") + " ("
+                            + spool.getBacklog() + " frames to send)");
+                }
+                engine.addSink(zepSink);
+                System.out.println("Wireshark destination : " + address + ":" + destinationPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
             }
         }
 
-        WiresharkZepFrame zepFrame = new WiresharkZepFrame();
-        zepFrame.setLqi(lqi);
-        zepFrame.setChannelId(channelId);
-        zepFrame.setDeviceId(
-                deviceId != null ? deviceId : (localIeeeAddress.getValue()[1] << 8) + localIeeeAddress.getValue()[0]);
-        zepFrame.setData(data);
-        zepFrame.setSequence(sequence);
-        zepFrame.setTimestamp(captureMillis + timezone);
-        zepFrame.setRssi(rssi);
-        System.out.println(zepFrame);
+        WiresharkZepReceiver zepReceiver = null;
+        if (zepListenPort != null) {
+            try {
+                zepReceiver = new WiresharkZepReceiver(engine, zepListenPort,
+                        WiresharkZepReceiver.DEFAULT_RECEIVE_BUFFER);
+                System.out.println("ZEP listen port       : " + zepListenPort);
+            } catch (IOException e) {
+                e.printStackTrace();
+                engine.shutdown();
+                return;
+            }
+        }
 
-        byte[] buffer = zepFrame.getBuffer();
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, destinationPort);
+        SnifferControlServer controlServer = null;
         try {
-            client.send(packet);
-        } catch (IOException e) {
+            if (engine.start()) {
+                if (zepReceiver != null) {
+                    zepReceiver.start();
+                }
+                if (cmdline.hasOption("control")) {
+                    int controlPort = parseDecimalOrHexInt(cmdline.getOptionValue("control"));
+                    controlServer = new SnifferControlServer(engine, controlPort, timezone);
+                    System.out.println("Control port          : " + controlPort);
+                }
+                BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+                long lastSave = System.currentTimeMillis();
+                while (!in.ready() && engine.isRunning()
+                        && (startupBenchmark == null || !startupBenchmark.isComplete())) {
+                    Thread.sleep(250);
+                    if (addressFile != null && System.currentTimeMillis() - lastSave > ADDRESS_SAVE_PERIOD) {
+                        lastSave = System.currentTimeMillis();
+                        saveAddresses(addressCache, addressFile);
+                    }
+                }
+            }
+        } catch (Exception e) {
             e.printStackTrace();
         }
-    }
 
-    private static void shutdownNcp() {
-        if (emberMfg != null) {
-            emberMfg.doMfglibEnd();
-            emberMfg = null;
+        if (controlServer != null) {
+            controlServer.close();
+        }
+        if (zepReceiver != null) {
+            zepReceiver.close();
+        }
+        engine.shutdown();
+        if (zepReceiver == null) {
+            System.out.println("NCP recoveries        : " + engine.getSoftRecoveries() + " mfglib restarts, "
+                    + engine.getFullRestarts() + " full restarts, " + (engine.getDowntime() / 1000) + "s downtime");
+        } else {
+            System.out.println("ZEP received          : " + zepReceiver.getFrames() + " frames, "
+                    + zepReceiver.getInvalid() + " invalid, " + zepReceiver.getLost() + " lost");
+        }
+        LoadShedder shedder = engine.getLoadShedder();
+        if (shedder != null) {
+            System.out.println("Load shedding         : " + shedder.getPriorityFrames() + " priority frames, "
+                    + shedder.getBulkFrames() + " bulk frames kept, " + shedder.getShedFrames() + " shed");
         }
-        dongle.shutdown();
+        if (addressFile != null) {
+            saveAddresses(addressCache, addressFile);
+            System.out.println("Address cache         : " + addressCache.size() + " devices, "
+                    + addressCache.getLearned() + " learned, " + addressCache.getChanges() + " address changes");
+        }
+        System.out.println("Sniffer closed.");
     }
 
-    private static void shutdown() {
-        shutdownNcp();
-
-        client.close();
-        if (isdFile != null) {
-            isdFile.close();
-            isdFile = null;
-        }
-        if (pcapFile != null) {
-            pcapFile.close();
-            pcapFile = null;
+    private static void saveAddresses(AddressCache addressCache, File addressFile) {
+        try {
+            addressCache.save(addressFile);
+        } catch (IOException e) {
+            System.err.println("Unable to save address cache: " + e.getMessage());
         }
     }
 
@@ -408,87 +605,19 @@ public class ZigBeeSniffer {
         return Integer.parseInt(number, radix);
     }
 
-    private static void openPcapFile(String filename, int counter) {
-        try {
-            String file;
-            if (counter == 0) {
-                file = filename + ".pcap";
-            } else {
-                file = filename + String.format("-%04d.pcap", counter);
-            }
-            pcapFile = new WiresharkPcapFile(file);
-
-            WiresharkPcapHeader header = new WiresharkPcapHeader();
-            header.setMagicNumber(WiresharkPcapFile.MAGIC_NUMBER_STANDARD);
-            header.setNetwork(WiresharkPcapFile.LINKTYPE_IEEE802_15_4_WITHFCS);
-            header.setSnapLen(256);
-            header.setThisZone((int) timezone);
-            header.setSigFigs(3);
-            pcapFile.write(header);
-        } catch (FileNotFoundException | UnsupportedEncodingException e) {
-            e.printStackTrace();
-            pcapFile = null;
-        }
-    }
-
-    private static boolean initialiseNcp(String serialPortName, int serialBaud, FlowControl flowControl) {
-        final ZigBeePort serialPort = new ZigBeeSerialPort(serialPortName, serialBaud, flowControl);
-        System.out.println("Opened serial port " + serialPortName + " at " + serialBaud);
-        dongle = new ZigBeeDongleEzsp(serialPort);
-
-        emberMfg = dongle.getEmberMfglib(new EmberMfglibListener() {
-            @Override
-            public synchronized void emberMfgLibPacketReceived(int lqi, int rssi, int[] data) {
-                packetReceived(sequence++, lqi, rssi, data);
-            }
-        });
-
-        String ncpVersion = dongle.getFirmwareVersion();
-        if (ncpVersion.equals("")) {
-            System.err.println("Unable to communicate with Ember NCP");
-            shutdown();
-            return false;
-        }
-        System.out.println("Ember NCP version     : " + ncpVersion);
-
-        emberNcp = dongle.getEmberNcp();
-        localIeeeAddress = emberNcp.getIeeeAddress();
-        System.out.println("Ember NCP EUI         : " + localIeeeAddress);
-
-        if (isdFile != null) {
-            SilabsAdapter adapter = new SilabsAdapter();
-            adapter.setAddress(localIeeeAddress);
-            isdFile.write(adapter);
-            SilabsVersion version = new SilabsVersion();
-            version.setVersion(dongle.getFirmwareVersion());
-            isdFile.write(version);
-            DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            Date date = new Date();
-            SilabsPrintf printf = new SilabsPrintf();
-            printf.setString("Logging started at " + dateFormat.format(date));
-            isdFile.write(printf);
-        }
-
-        if (!emberMfg.doMfglibStart()) {
-            System.err.println("Error starting Ember mfglib");
-            shutdown();
-            return false;
-        }
-        if (!emberMfg.doMfglibSetChannel(ZigBeeChannel.create(channelId))) {
-            System.err.println("Error setting Ember channel");
-            shutdown();
-            return false;
-        }
-
-        lastChannelRotationTimestamp = System.currentTimeMillis();
-
-        return true;
-    }
-
-    private static ZigBeeChannel getNextChannel() {
-        if (channelId == channelRotationRangeEnd) {
-            return ZigBeeChannel.create(channelRotationRangeStart);
+    /**
+     * Parse decimal or hexadecimal long.
+     *
+     * @param strVal the string value to parse
+     * @return the parsed long value
+     */
+    private static long parseDecimalOrHexLong(String strVal) {
+        int radix = 10;
+        String number = strVal;
+        if (number.startsWith("0x")) {
+            number = number.substring(2);
+            radix = 16;
         }
-        return ZigBeeChannel.create(channelId + 1);
+        return Long.parseLong(number, radix);
     }
 }
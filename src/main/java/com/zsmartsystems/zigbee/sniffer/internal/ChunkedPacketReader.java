@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * Reads {@link SnifferPacket}s from a capture file in chunks so that the chunks can be parsed in parallel. The chunk
+ * boundaries are found in order with {@link #getChunkEnd(long)}, which only needs to look at enough of the file to
+ * find the next record boundary, and each chunk can then be read on any thread with {@link #read(long, long,
+ * PacketBatch)}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public interface ChunkedPacketReader extends Closeable {
+    /**
+     * @return the file offset of the first record
+     */
+    long getStart();
+
+    /**
+     * Finds the end of the chunk starting at the given offset. The end is always on a record boundary.
+     *
+     * @param start the file offset of the start of the chunk
+     * @return the file offset of the end of the chunk, or start if there are no more records
+     * @throws IOException if the file can't be read
+     */
+    long getChunkEnd(long start) throws IOException;
+
+    /**
+     * Reads all the records in a chunk. This may be called concurrently for different chunks.
+     *
+     * @param start the file offset of the start of the chunk
+     * @param end the file offset of the end of the chunk
+     * @param batch the {@link PacketBatch} to add the packets to
+     * @throws IOException if the file can't be read
+     */
+    void read(long start, long end, PacketBatch batch) throws IOException;
+
+    /**
+     * @return the address of the capture device if it is recorded in the file, or null
+     */
+    IeeeAddress getAdapterAddress();
+
+    /**
+     * @return the time the capture started in milliseconds since the epoch, or 0 if it is not known
+     */
+    long getStartTime();
+}
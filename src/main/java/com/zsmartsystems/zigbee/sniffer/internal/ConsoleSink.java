@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepFrame;
+
+/**
+ * {@link PacketSink} that prints each packet to the console so the user can confirm the sniffer is working
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ConsoleSink implements PacketSink {
+    @Override
+    public String getName() {
+        return "console";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        for (SnifferPacket packet : packets) {
+            WiresharkZepFrame zepFrame = new WiresharkZepFrame();
+            zepFrame.setLqi(packet.getLqi());
+            zepFrame.setData(packet.getData(), packet.getLength());
+            zepFrame.setSequence(packet.getSequence());
+            zepFrame.setRssi(packet.getRssi());
+            System.out.println(zepFrame);
+        }
+    }
+}
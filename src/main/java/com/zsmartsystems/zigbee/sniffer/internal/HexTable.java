@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+/**
+ * Converts values to upper case hex with a table holding the two characters for each byte value, so a byte is
+ * converted with two loads and no branches, and without the parsing and objects of {@link String#format}.
+ * <p>
+ * Values are written as {@link String#format} would with "%02X" - bytes as two characters, and values outside a byte
+ * without leading zeros, so negative values are written as eight characters.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class HexTable {
+    private static final byte[] DIGITS = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E',
+            'F' };
+
+    /**
+     * The two characters for each byte value, high nibble first
+     */
+    private static final byte[] PAIRS = new byte[512];
+
+    static {
+        for (int cnt = 0; cnt < 256; cnt++) {
+            PAIRS[cnt * 2] = DIGITS[cnt >> 4];
+            PAIRS[cnt * 2 + 1] = DIGITS[cnt & 0x0F];
+        }
+    }
+
+    private HexTable() {
+    }
+
+    /**
+     * Writes the low byte of a value as two hex characters
+     *
+     * @param buffer the array to write to
+     * @param position the position to write at
+     * @param value the value
+     * @return the position after the characters
+     */
+    public static int putByte(byte[] buffer, int position, int value) {
+        int index = (value & 0xFF) << 1;
+        buffer[position] = PAIRS[index];
+        buffer[position + 1] = PAIRS[index + 1];
+        return position + 2;
+    }
+
+    /**
+     * Writes a value as hex, with at least two characters
+     *
+     * @param buffer the array to write to
+     * @param position the position to write at
+     * @param value the value
+     * @return the position after the characters
+     */
+    public static int putValue(byte[] buffer, int position, int value) {
+        if ((value & ~0xFF) == 0) {
+            return putByte(buffer, position, value);
+        }
+        int digits = (35 - Integer.numberOfLeadingZeros(value)) >> 2;
+        for (int cnt = digits - 1; cnt >= 0; cnt--) {
+            buffer[position + cnt] = DIGITS[value & 0x0F];
+            value >>>= 4;
+        }
+        return position + digits;
+    }
+
+    /**
+     * Appends a value as hex, with at least two characters
+     *
+     * @param builder the {@link StringBuilder} to append to
+     * @param value the value
+     * @return the builder
+     */
+    public static StringBuilder appendValue(StringBuilder builder, int value) {
+        if ((value & ~0xFF) == 0) {
+            int index = value << 1;
+            return builder.append((char) PAIRS[index]).append((char) PAIRS[index + 1]);
+        }
+        return appendValue(builder, value & 0xFFFFFFFFL, 2);
+    }
+
+    /**
+     * Appends a value as hex, padded with zeros to a minimum number of characters
+     *
+     * @param builder the {@link StringBuilder} to append to
+     * @param value the value, which must not be negative
+     * @param width the minimum number of characters
+     * @return the builder
+     */
+    public static StringBuilder appendValue(StringBuilder builder, long value, int width) {
+        int digits = Math.max(width, (67 - Long.numberOfLeadingZeros(value)) >> 2);
+        for (int cnt = digits - 1; cnt >= 0; cnt--) {
+            builder.append((char) DIGITS[(int) (value >>> (cnt * 4)) & 0x0F]);
+        }
+        return builder;
+    }
+}
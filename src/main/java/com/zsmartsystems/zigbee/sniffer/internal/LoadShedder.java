@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.LongKeyTable;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+
+/**
+ * Sheds load in front of the sinks when the network is busier than the sinks can handle, such as during OTA image
+ * transfers or broadcast storms. Frames that are needed to follow the network are always kept - beacons, MAC
+ * commands, NWK commands, and the first {@link #CONVERSATION_FRAMES} frames of each conversation between two MAC
+ * addresses. All other frames are bulk frames, and one of every few bulk frames is kept.
+ * <p>
+ * The sampling ratio follows the pressure on the sinks, which is the highest proportion of any sink queue that is in
+ * use. The ratio is doubled while the pressure is above {@link #HIGH_PRESSURE} and halved while it is below
+ * {@link #LOW_PRESSURE}, at most every {@link #ADJUST_INTERVAL} milliseconds, so no frames are shed once the sinks
+ * catch up. Each kept bulk frame is given a sample weight of the ratio so statistics can be scaled.
+ * <p>
+ * The shedder is only called from the capture thread - the counters may be read from any thread.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class LoadShedder {
+    /**
+     * The highest sampling ratio - one of this many bulk frames is kept
+     */
+    public static final int MAX_RATIO = 64;
+
+    /**
+     * The number of frames always kept at the start of each conversation
+     */
+    public static final int CONVERSATION_FRAMES = 4;
+
+    /**
+     * The sink queue use above which the sampling ratio is increased
+     */
+    public static final double HIGH_PRESSURE = 0.5;
+
+    /**
+     * The sink queue use below which the sampling ratio is decreased
+     */
+    public static final double LOW_PRESSURE = 0.125;
+
+    /**
+     * The shortest time between changes of the sampling ratio in milliseconds
+     */
+    public static final long ADJUST_INTERVAL = 100;
+
+    /**
+     * The time after which a quiet conversation is taken to have ended, in microseconds
+     */
+    private static final long CONVERSATION_TIMEOUT = 10000000;
+
+    /**
+     * The number of conversations tracked before the table is cleared
+     */
+    private static final int MAX_CONVERSATIONS = 8192;
+
+    private static final int COLUMN_LAST_SEEN = 0;
+    private static final int COLUMN_FRAMES = 1;
+
+    private final MacHeader macHeader = new MacHeader();
+    private final NwkHeader nwkHeader = new NwkHeader();
+    private LongKeyTable conversations = new LongKeyTable(2);
+
+    private volatile int ratio = 1;
+    private int bulkCount;
+    private long lastAdjust;
+
+    private volatile long priorityFrames;
+    private volatile long bulkFrames;
+    private volatile long shedFrames;
+
+    /**
+     * Checks if the sampling ratio is due to be adjusted
+     *
+     * @param now the current time in milliseconds
+     * @return true if {@link #adjust(double, long)} should be called
+     */
+    public boolean isAdjustDue(long now) {
+        return now - lastAdjust >= ADJUST_INTERVAL;
+    }
+
+    /**
+     * Adjusts the sampling ratio to the pressure on the sinks
+     *
+     * @param pressure the highest proportion of any sink queue in use, from 0 to 1
+     * @param now the current time in milliseconds
+     */
+    public void adjust(double pressure, long now) {
+        lastAdjust = now;
+        if (pressure > HIGH_PRESSURE) {
+            ratio = Math.min(ratio * 2, MAX_RATIO);
+        } else if (pressure < LOW_PRESSURE) {
+            ratio = Math.max(ratio / 2, 1);
+        }
+    }
+
+    /**
+     * Decides if a packet is passed to the sinks
+     *
+     * @param packet the received {@link SnifferPacket}
+     * @return the sample weight of the packet, or 0 if the packet is shed
+     */
+    public int sample(SnifferPacket packet) {
+        if (isPriority(packet)) {
+            priorityFrames++;
+            return 1;
+        }
+        if (++bulkCount < ratio) {
+            shedFrames++;
+            return 0;
+        }
+        int weight = Math.max(bulkCount, 1);
+        bulkCount = 0;
+        bulkFrames++;
+        return weight;
+    }
+
+    /**
+     * @return the current sampling ratio - one of this many bulk frames is kept
+     */
+    public int getRatio() {
+        return ratio;
+    }
+
+    /**
+     * @return the number of frames kept because they are always needed
+     */
+    public long getPriorityFrames() {
+        return priorityFrames;
+    }
+
+    /**
+     * @return the number of bulk frames kept
+     */
+    public long getBulkFrames() {
+        return bulkFrames;
+    }
+
+    /**
+     * @return the number of bulk frames that were not passed to the sinks
+     */
+    public long getShedFrames() {
+        return shedFrames;
+    }
+
+    private boolean isPriority(SnifferPacket packet) {
+        int[] data = packet.getData();
+        if (!macHeader.parse(data, packet.getLength())) {
+            // Not a frame that can be sampled sensibly, and rare enough to keep
+            return true;
+        }
+        switch (macHeader.getFrameType()) {
+            case MacHeader.FRAME_TYPE_BEACON:
+            case MacHeader.FRAME_TYPE_COMMAND:
+                return true;
+            case MacHeader.FRAME_TYPE_DATA:
+                break;
+            default:
+                return false;
+        }
+
+        if (!macHeader.isSecurity()
+                && nwkHeader.parse(data, macHeader.getHeaderLength(),
+                        macHeader.getHeaderLength() + macHeader.getPayloadLength())
+                && nwkHeader.getFrameType() == NwkHeader.FRAME_TYPE_COMMAND) {
+            return true;
+        }
+
+        return isConversationStart(packet.getTimestampMicros());
+    }
+
+    private boolean isConversationStart(long timestamp) {
+        int pan = macHeader.getSourcePan() != -1 ? macHeader.getSourcePan() : macHeader.getDestinationPan();
+        long key = (macHeader.getSourceAddress() * 0x9E3779B97F4A7C15L) ^ macHeader.getDestinationAddress()
+                ^ ((long) pan << 48);
+        if (conversations.size() >= MAX_CONVERSATIONS) {
+            conversations = new LongKeyTable(2);
+        }
+        int slot = conversations.getSlot(key);
+        long lastSeen = conversations.get(slot, COLUMN_LAST_SEEN);
+        conversations.add(slot, COLUMN_LAST_SEEN, timestamp - lastSeen);
+        if (timestamp - lastSeen > CONVERSATION_TIMEOUT) {
+            conversations.add(slot, COLUMN_FRAMES, -conversations.get(slot, COLUMN_FRAMES));
+        }
+        if (conversations.get(slot, COLUMN_FRAMES) >= CONVERSATION_FRAMES) {
+            return false;
+        }
+        conversations.add(slot, COLUMN_FRAMES, 1);
+        return true;
+    }
+}
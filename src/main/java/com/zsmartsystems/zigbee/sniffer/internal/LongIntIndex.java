@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+/**
+ * An open addressing hash table from a long key to an int entry, with linear probing. The table is sized for a fixed
+ * number of entries when it is created and never grows, and keys are removed by shifting the following keys back, so
+ * the table doesn't fill with deleted markers. It is used to index entries held in primitive arrays without
+ * allocating memory.
+ * <p>
+ * The table is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class LongIntIndex {
+    /**
+     * Returned by {@link #get(long)} when the key is not in the table
+     */
+    public static final int NONE = -1;
+
+    private final long[] keys;
+    private final int[] entries;
+    private final int mask;
+
+    /**
+     * Creates the table
+     *
+     * @param capacity the maximum number of keys held
+     */
+    public LongIntIndex(int capacity) {
+        int length = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) * 2;
+        keys = new long[length];
+        entries = new int[length];
+        mask = length - 1;
+        for (int cnt = 0; cnt < length; cnt++) {
+            entries[cnt] = NONE;
+        }
+    }
+
+    /**
+     * @param key the key
+     * @return the entry for the key, or {@link #NONE}
+     */
+    public int get(long key) {
+        return entries[find(key)];
+    }
+
+    /**
+     * Sets the entry for a key, replacing any existing entry
+     *
+     * @param key the key
+     * @param entry the entry, which must not be {@link #NONE}
+     */
+    public void put(long key, int entry) {
+        int slot = find(key);
+        keys[slot] = key;
+        entries[slot] = entry;
+    }
+
+    /**
+     * Removes a key if it is in the table
+     *
+     * @param key the key
+     */
+    public void remove(long key) {
+        int slot = find(key);
+        if (entries[slot] == NONE) {
+            return;
+        }
+        // Shift later keys in the same run back, so lookups don't stop at the gap
+        int gap = slot;
+        entries[gap] = NONE;
+        int current = (gap + 1) & mask;
+        while (entries[current] != NONE) {
+            if (((current - home(keys[current])) & mask) >= ((current - gap) & mask)) {
+                keys[gap] = keys[current];
+                entries[gap] = entries[current];
+                entries[current] = NONE;
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+    }
+
+    private int home(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int slot = home(key);
+        while (entries[slot] != NONE && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * A reusable batch of {@link SnifferPacket}s read from one chunk of a file by a {@link ChunkedPacketReader}, along
+ * with the buffer the chunk is read into. The packets and the buffer are kept when the batch is cleared, so a batch
+ * can be reused for each chunk without allocating memory.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class PacketBatch {
+    private final List<SnifferPacket> packets = new ArrayList<>();
+    private byte[] buffer = new byte[0];
+    private int count;
+
+    /**
+     * Gets the buffer to read the chunk into, making sure it is at least the required size
+     *
+     * @param size the required size in bytes
+     * @return the buffer
+     */
+    public byte[] getBuffer(int size) {
+        if (buffer.length < size) {
+            buffer = new byte[size];
+        }
+        return buffer;
+    }
+
+    /**
+     * Gets the next packet in the batch to fill
+     *
+     * @return the {@link SnifferPacket}
+     */
+    public SnifferPacket add() {
+        if (count == packets.size()) {
+            packets.add(new SnifferPacket());
+        }
+        return packets.get(count++);
+    }
+
+    /**
+     * Removes the last packet returned by {@link #add()}, if it could not be read
+     */
+    public void removeLast() {
+        count--;
+    }
+
+    /**
+     * @return the packets in the batch
+     */
+    public List<SnifferPacket> getPackets() {
+        return packets.subList(0, count);
+    }
+
+    /**
+     * @return the number of packets in the batch
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Empties the batch so that it can be reused
+     */
+    public void clear() {
+        count = 0;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Provides the {@link Executor} that a {@link SinkWorker} runs its output on.
+ * <p>
+ * This is the Java 8 implementation, where all sinks share a small pool of daemon threads. The multi-release JAR
+ * contains a Java 21 version of this class under META-INF/versions/21 which gives each sink its own virtual threads.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SinkExecutors {
+    private static final int POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService pool;
+
+    private SinkExecutors() {
+    }
+
+    /**
+     * Gets the executor to be used for the named sink
+     *
+     * @param name the name of the sink, used for naming threads
+     * @return the {@link Executor} to run the sink on
+     */
+    public static synchronized Executor getExecutor(String name) {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SnifferSink-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.jfr.SnifferEvents;
+
+/**
+ * Decouples an output from the EZSP callback thread. Packets are placed in a bounded queue and are delivered to the
+ * {@link PacketHandler} in batches on the executor provided by {@link SinkExecutors}. Only one batch is ever in
+ * progress for a worker, so packets are always delivered in the order they were received.
+ * <p>
+ * If the output can't keep up and the queue is full, new packets are dropped and counted rather than blocking the
+ * capture.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SinkWorker implements Runnable {
+    /**
+     * Default number of packets that can be queued for a sink before packets are dropped
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    private static final int MAX_BATCH = 64;
+
+    private final String name;
+    private final PacketHandler handler;
+    private final Executor executor;
+    private final BlockingQueue<SnifferPacket> queue;
+    private final int queueSize;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final AtomicBoolean woken = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Interface implemented by the output to receive the packets
+     */
+    public interface PacketHandler {
+        /**
+         * Called from the worker thread with the next batch of packets
+         *
+         * @param packets the list of {@link SnifferPacket}s, in the order they were received
+         */
+        void handlePackets(List<SnifferPacket> packets);
+    }
+
+    public SinkWorker(String name, PacketHandler handler) {
+        this(name, handler, DEFAULT_QUEUE_SIZE);
+    }
+
+    public SinkWorker(String name, PacketHandler handler, int queueSize) {
+        this.name = name;
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.queueSize = queueSize;
+        this.executor = SinkExecutors.getExecutor(name);
+    }
+
+    /**
+     * Queues a packet for the output. This will not block.
+     *
+     * @param packet the {@link SnifferPacket} to send
+     * @return true if the packet was queued, false if it was dropped
+     */
+    public boolean offer(SnifferPacket packet) {
+        if (!queue.offer(packet)) {
+            SnifferEvents.queueDropped(name, dropped.incrementAndGet());
+            return false;
+        }
+        schedule();
+        return true;
+    }
+
+    /**
+     * Runs the handler on the worker thread even if no packets are queued, so the output can act on a request between
+     * batches. The handler may be called with an empty list.
+     */
+    public void wake() {
+        woken.set(true);
+        schedule();
+    }
+
+    /**
+     * @return the name of this sink
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of packets dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of packets currently waiting for the output
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of packets that can be queued before packets are dropped
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Waits for all queued packets to be delivered to the output.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return true if the queue was emptied
+     */
+    public boolean flush(long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (scheduled.get() || !queue.isEmpty()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<SnifferPacket> batch = new ArrayList<>(MAX_BATCH);
+        queue.drainTo(batch, MAX_BATCH);
+        boolean wake = woken.getAndSet(false);
+        try {
+            if (wake || !batch.isEmpty()) {
+                handler.handlePackets(batch);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            scheduled.set(false);
+        }
+
+        if (!queue.isEmpty() || woken.get()) {
+            schedule();
+        }
+    }
+}
@@ -19,6 +19,10 @@ public abstract class ZigBeeSnifferBinaryFrame {
         this.data = Arrays.copyOf(data, data.length);
     }
 
+    public void setData(int[] data, int length) {
+        this.data = Arrays.copyOf(data, length);
+    }
+
     protected void serializeBoolean(boolean val) {
         buffer[length++] = (byte) (val ? 0x01 : 0x00);
     }
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.address;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import com.zsmartsystems.zigbee.sniffer.internal.LongIntIndex;
+
+/**
+ * Resolves the 16 bit network address of a device on a PAN to its 64 bit IEEE address, and back. Most frames only
+ * carry network addresses, which change when a device rejoins, so the cache lets filters, statistics and sinks
+ * identify devices by their IEEE address. The mappings are learned from the traffic by an {@link AddressLearner}.
+ * <p>
+ * The cache holds a fixed number of devices. Each device is an entry in primitive arrays, indexed by two
+ * {@link LongIntIndex} hash tables - one keyed by IEEE address, and one keyed by PAN and network address. The entries
+ * are kept in a doubly linked list in order of use, and when the cache is full the least recently used device is
+ * evicted, so learning and lookups never allocate memory.
+ * <p>
+ * A network address belongs to one device at a time - when it is learned for another device, the old device keeps
+ * its IEEE address but its network address becomes unknown.
+ * <p>
+ * The cache can be saved to a text file, with one device per line as the PAN, network address and IEEE address in
+ * hex, least recently used first, so the order of use is kept when it is loaded again.
+ * <p>
+ * All methods are synchronized.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AddressCache {
+    /**
+     * The default number of devices held
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Returned when an address is not known
+     */
+    public static final long UNKNOWN = -1;
+
+    private static final int NONE = LongIntIndex.NONE;
+
+    private final int capacity;
+
+    // The devices - a network key of UNKNOWN means the network address is not known
+    private final long[] ieeeAddresses;
+    private final long[] networkKeys;
+
+    // The list of devices in order of use, from the most recently used at the head
+    private final int[] previous;
+    private final int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+
+    private final LongIntIndex ieeeIndex;
+    private final LongIntIndex networkIndex;
+
+    private long learned;
+    private long changes;
+    private long evictions;
+
+    /**
+     * Creates a cache holding up to {@link #DEFAULT_CAPACITY} devices
+     */
+    public AddressCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates the cache
+     *
+     * @param capacity the maximum number of devices held
+     */
+    public AddressCache(int capacity) {
+        this.capacity = capacity;
+        ieeeAddresses = new long[capacity];
+        networkKeys = new long[capacity];
+        previous = new int[capacity];
+        next = new int[capacity];
+        ieeeIndex = new LongIntIndex(capacity);
+        networkIndex = new LongIntIndex(capacity);
+    }
+
+    /**
+     * Records that a network address on a PAN belongs to a device
+     *
+     * @param pan the PAN ID
+     * @param networkAddress the network address
+     * @param ieeeAddress the IEEE address
+     */
+    public synchronized void learn(int pan, int networkAddress, long ieeeAddress) {
+        long networkKey = getNetworkKey(pan, networkAddress);
+        int entry = ieeeIndex.get(ieeeAddress);
+        if (entry == NONE) {
+            entry = allocate();
+            ieeeAddresses[entry] = ieeeAddress;
+            networkKeys[entry] = UNKNOWN;
+            ieeeIndex.put(ieeeAddress, entry);
+            learned++;
+        }
+        if (networkKeys[entry] != networkKey) {
+            int other = networkIndex.get(networkKey);
+            if (other != NONE) {
+                networkKeys[other] = UNKNOWN;
+                networkIndex.remove(networkKey);
+            }
+            if (networkKeys[entry] != UNKNOWN) {
+                networkIndex.remove(networkKeys[entry]);
+                changes++;
+            }
+            networkKeys[entry] = networkKey;
+            networkIndex.put(networkKey, entry);
+        }
+        touch(entry);
+    }
+
+    /**
+     * Forgets the device using a network address, for example after an address conflict is reported. The IEEE
+     * address of the device is kept.
+     *
+     * @param pan the PAN ID
+     * @param networkAddress the network address
+     */
+    public synchronized void forget(int pan, int networkAddress) {
+        long networkKey = getNetworkKey(pan, networkAddress);
+        int entry = networkIndex.get(networkKey);
+        if (entry != NONE) {
+            networkKeys[entry] = UNKNOWN;
+            networkIndex.remove(networkKey);
+        }
+    }
+
+    /**
+     * Gets the IEEE address of the device using a network address
+     *
+     * @param pan the PAN ID
+     * @param networkAddress the network address
+     * @return the IEEE address, or {@link #UNKNOWN}
+     */
+    public synchronized long getIeeeAddress(int pan, int networkAddress) {
+        int entry = networkIndex.get(getNetworkKey(pan, networkAddress));
+        if (entry == NONE) {
+            return UNKNOWN;
+        }
+        touch(entry);
+        return ieeeAddresses[entry];
+    }
+
+    /**
+     * Gets the current network address of a device
+     *
+     * @param ieeeAddress the IEEE address
+     * @return the network address, or {@link #UNKNOWN}
+     */
+    public synchronized long getNetworkAddress(long ieeeAddress) {
+        int entry = ieeeIndex.get(ieeeAddress);
+        if (entry == NONE || networkKeys[entry] == UNKNOWN) {
+            return UNKNOWN;
+        }
+        touch(entry);
+        return networkKeys[entry] & 0xFFFF;
+    }
+
+    /**
+     * @return the number of devices held
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of devices learned
+     */
+    public synchronized long getLearned() {
+        return learned;
+    }
+
+    /**
+     * @return the number of times a device was seen with a new network address
+     */
+    public synchronized long getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return the number of devices evicted because the cache was full
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * Loads the devices from a file saved by {@link #save(File)}, adding them to the cache
+     *
+     * @param file the file
+     * @throws IOException if the file can't be read
+     */
+    public synchronized void load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                try {
+                    if (fields.length != 3) {
+                        throw new NumberFormatException();
+                    }
+                    long ieeeAddress = Long.parseUnsignedLong(fields[2], 16);
+                    if (fields[1].equals("-")) {
+                        learnIeeeAddress(ieeeAddress);
+                    } else {
+                        learn(Integer.parseInt(fields[0], 16), Integer.parseInt(fields[1], 16), ieeeAddress);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("Ignoring invalid address cache line '" + line + "' in " + file);
+                }
+            }
+        }
+        learned = 0;
+        changes = 0;
+    }
+
+    /**
+     * Saves the devices to a file. The file is written under a temporary name and then renamed, so an existing file
+     * is not lost if the sniffer stops while saving.
+     *
+     * @param file the file
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void save(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (PrintWriter writer = new PrintWriter(
+                new OutputStreamWriter(new FileOutputStream(temporary), StandardCharsets.UTF_8))) {
+            writer.println("# PAN network IEEE - least recently used first");
+            for (int entry = tail; entry != NONE; entry = previous[entry]) {
+                long networkKey = networkKeys[entry];
+                if (networkKey == UNKNOWN) {
+                    writer.println("- - " + String.format("%016X", ieeeAddresses[entry]));
+                } else {
+                    writer.println(String.format("%04X %04X %016X", networkKey >> 16, networkKey & 0xFFFF,
+                            ieeeAddresses[entry]));
+                }
+            }
+            if (writer.checkError()) {
+                throw new IOException("Unable to write " + temporary);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Unable to rename " + temporary + " to " + file);
+        }
+    }
+
+    private void learnIeeeAddress(long ieeeAddress) {
+        int entry = ieeeIndex.get(ieeeAddress);
+        if (entry == NONE) {
+            entry = allocate();
+            ieeeAddresses[entry] = ieeeAddress;
+            networkKeys[entry] = UNKNOWN;
+            ieeeIndex.put(ieeeAddress, entry);
+        }
+        touch(entry);
+    }
+
+    private static long getNetworkKey(int pan, int networkAddress) {
+        return ((long) (pan & 0xFFFF) << 16) | (networkAddress & 0xFFFF);
+    }
+
+    /**
+     * Gets a free entry, evicting the least recently used device if the cache is full. The entry is not in the list.
+     */
+    private int allocate() {
+        if (size < capacity) {
+            previous[size] = NONE;
+            next[size] = NONE;
+            return size++;
+        }
+        int entry = tail;
+        unlink(entry);
+        ieeeIndex.remove(ieeeAddresses[entry]);
+        if (networkKeys[entry] != UNKNOWN) {
+            networkIndex.remove(networkKeys[entry]);
+        }
+        evictions++;
+        return entry;
+    }
+
+    /**
+     * Moves an entry to the head of the list, adding it if it is not in the list
+     */
+    private void touch(int entry) {
+        if (entry == head) {
+            return;
+        }
+        if (previous[entry] != NONE) {
+            unlink(entry);
+        }
+        previous[entry] = NONE;
+        next[entry] = head;
+        if (head != NONE) {
+            previous[head] = entry;
+        }
+        head = entry;
+        if (tail == NONE) {
+            tail = entry;
+        }
+    }
+
+    private void unlink(int entry) {
+        if (previous[entry] != NONE) {
+            next[previous[entry]] = next[entry];
+        } else {
+            head = next[entry];
+        }
+        if (next[entry] != NONE) {
+            previous[next[entry]] = previous[entry];
+        } else {
+            tail = previous[entry];
+        }
+        previous[entry] = NONE;
+        next[entry] = NONE;
+    }
+}
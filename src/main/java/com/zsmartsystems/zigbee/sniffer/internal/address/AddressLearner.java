@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.address;
+
+import com.zsmartsystems.zigbee.sniffer.internal.decode.ApsHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.SecurityHeader;
+
+/**
+ * Learns the network and IEEE addresses of devices from the frames they send, and records them in an
+ * {@link AddressCache}. Mappings are learned from -:
+ * <ul>
+ * <li>MAC association responses, which give the network address assigned to the joining device
+ * <li>NWK headers carrying the IEEE address of the source or destination
+ * <li>NWK auxiliary security headers, which carry the IEEE address of the device that secured the frame
+ * <li>NWK rejoin responses and ZDO device announcements, if the NWK layer is not secured
+ * </ul>
+ * NWK network status commands reporting an address conflict remove the network address from the cache, since the
+ * devices using it will change address.
+ * <p>
+ * Frames are parsed without holding the cache lock, so several learners on different threads can share a cache. The
+ * learner itself is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AddressLearner {
+    private static final int MAC_COMMAND_ASSOCIATION_RESPONSE = 0x02;
+    private static final int NWK_COMMAND_NETWORK_STATUS = 0x03;
+    private static final int NWK_COMMAND_REJOIN_RESPONSE = 0x07;
+    private static final int NWK_STATUS_ADDRESS_CONFLICT = 0x0D;
+    private static final int ZDO_PROFILE = 0x0000;
+    private static final int ZDO_DEVICE_ANNOUNCE = 0x0013;
+    private static final int BROADCAST_ADDRESSES = 0xFFF8;
+
+    private final AddressCache cache;
+    private final MacHeader mac = new MacHeader();
+    private final NwkHeader nwk = new NwkHeader();
+    private final ApsHeader aps = new ApsHeader();
+    private final SecurityHeader security = new SecurityHeader();
+
+    /**
+     * Creates the learner
+     *
+     * @param cache the {@link AddressCache} to record the addresses in
+     */
+    public AddressLearner(AddressCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the {@link AddressCache} the addresses are recorded in
+     */
+    public AddressCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Learns the addresses from a frame
+     *
+     * @param data the frame, including the FCS
+     * @param length the length of the frame
+     */
+    public void frameReceived(int[] data, int length) {
+        if (!mac.parse(data, length) || mac.isSecurity()) {
+            return;
+        }
+        int pan = mac.getDestinationPan();
+        int offset = mac.getHeaderLength();
+        int limit = offset + mac.getPayloadLength();
+        if (mac.getFrameType() == MacHeader.FRAME_TYPE_COMMAND) {
+            // Association response - the command, the network address and the status
+            if (offset + 4 <= limit && data[offset] == MAC_COMMAND_ASSOCIATION_RESPONSE && data[offset + 3] == 0
+                    && mac.getDestinationAddressMode() == MacHeader.ADDRESS_MODE_EXTENDED) {
+                learn(pan, data[offset + 1] | (data[offset + 2] << 8), mac.getDestinationAddress());
+            }
+            return;
+        }
+        if (mac.getFrameType() != MacHeader.FRAME_TYPE_DATA || pan == -1 || !nwk.parse(data, offset, limit)
+                || nwk.getFrameType() == NwkHeader.FRAME_TYPE_INTERPAN) {
+            return;
+        }
+
+        if (nwk.getSourceIeee() != -1) {
+            learn(pan, nwk.getSource(), nwk.getSourceIeee());
+        }
+        if (nwk.getDestinationIeee() != -1) {
+            learn(pan, nwk.getDestination(), nwk.getDestinationIeee());
+        }
+
+        int payloadOffset = offset + nwk.getHeaderLength();
+        if (nwk.isSecurity()) {
+            // The auxiliary header holds the IEEE address of the last hop, which is the source on the first hop
+            if (security.parse(data, payloadOffset, limit) && security.isExtendedNonce()
+                    && mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_SHORT
+                    && mac.getSourceAddress() == nwk.getSource()) {
+                learn(pan, nwk.getSource(), security.getSourceAddress());
+            }
+            return;
+        }
+
+        if (nwk.getFrameType() == NwkHeader.FRAME_TYPE_COMMAND) {
+            commandReceived(data, pan, payloadOffset, limit);
+        } else if (aps.parse(data, payloadOffset, limit) && !aps.isSecurity()
+                && aps.getFrameType() == ApsHeader.FRAME_TYPE_DATA && aps.getProfile() == ZDO_PROFILE
+                && aps.getCluster() == ZDO_DEVICE_ANNOUNCE) {
+            // Device announce - the ZDO sequence, network address, IEEE address and capabilities
+            int position = payloadOffset + aps.getHeaderLength();
+            if (position + 11 <= limit) {
+                long ieeeAddress = MacHeader.readAddress(data, position + 3, 8);
+                learn(pan, data[position + 1] | (data[position + 2] << 8), ieeeAddress);
+            }
+        }
+    }
+
+    private void commandReceived(int[] data, int pan, int offset, int limit) {
+        if (offset + 4 > limit) {
+            return;
+        }
+        switch (data[offset]) {
+            case NWK_COMMAND_NETWORK_STATUS:
+                if (data[offset + 1] == NWK_STATUS_ADDRESS_CONFLICT) {
+                    cache.forget(pan, data[offset + 2] | (data[offset + 3] << 8));
+                }
+                break;
+            case NWK_COMMAND_REJOIN_RESPONSE:
+                // The new network address and the status, sent to the IEEE address of the rejoining device
+                if (data[offset + 3] == 0 && nwk.getDestinationIeee() != -1) {
+                    learn(pan, data[offset + 1] | (data[offset + 2] << 8), nwk.getDestinationIeee());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void learn(int pan, int networkAddress, long ieeeAddress) {
+        if (networkAddress >= BROADCAST_ADDRESSES || ieeeAddress == 0 || ieeeAddress == -1) {
+            return;
+        }
+        cache.learn(pan, networkAddress, ieeeAddress);
+    }
+}
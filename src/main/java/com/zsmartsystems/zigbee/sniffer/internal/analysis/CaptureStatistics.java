@@ -0,0 +1,355 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.analysis;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+
+/**
+ * Aggregates the frames in a capture per device, per PAN, per frame type and per hour, along with RSSI and LQI
+ * distributions. Everything is counted in primitive arrays and {@link LongKeyTable}s, so separate parts of a capture
+ * can be counted on different threads and the results merged with {@link #merge(CaptureStatistics)}.
+ * <p>
+ * Devices are identified by the MAC source address - short addresses are counted per PAN, and extended addresses
+ * separately. RSSI and LQI are only counted for frames where the capture holds the radio information. If an
+ * {@link AddressCache} is set, the report gives the IEEE address of each short address where it is known.
+ * <p>
+ * The class is not thread safe - each thread should use its own instance.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class CaptureStatistics {
+    private static final int COLUMN_FRAMES = 0;
+    private static final int COLUMN_BYTES = 1;
+    private static final int COLUMN_RADIO_FRAMES = 2;
+    private static final int COLUMN_RSSI_SUM = 3;
+    private static final int COLUMN_LQI_SUM = 4;
+    private static final int COLUMNS = 5;
+
+    private static final long MICROS_PER_HOUR = 3600000000L;
+
+    private static final String[] MAC_FRAME_TYPES = { "Beacon", "Data", "Ack", "Command", "Reserved4", "Multipurpose",
+            "Fragment", "Extended" };
+    private static final String[] NWK_FRAME_TYPES = { "Data", "Command", "Reserved2", "InterPAN" };
+
+    private final LongKeyTable shortDevices = new LongKeyTable(COLUMNS);
+    private final LongKeyTable extendedDevices = new LongKeyTable(COLUMNS);
+    private final LongKeyTable pans = new LongKeyTable(COLUMNS);
+    private final LongKeyTable hours = new LongKeyTable(COLUMNS);
+    private final long[] macFrameTypes = new long[MAC_FRAME_TYPES.length];
+    private final long[] nwkFrameTypes = new long[NWK_FRAME_TYPES.length];
+    private final long[] rssiHistogram = new long[256];
+    private final long[] lqiHistogram = new long[256];
+    private long frames;
+    private long bytes;
+    private long malformed;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    private final MacHeader mac = new MacHeader();
+    private final NwkHeader nwk = new NwkHeader();
+    private AddressCache addressCache;
+
+    /**
+     * Sets the cache used to give the IEEE addresses of devices in the report
+     *
+     * @param addressCache the {@link AddressCache}, or null to only report the addresses in the frames
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Adds a frame to the statistics
+     *
+     * @param data the frame, including the FCS
+     * @param length the frame length
+     * @param timestamp the capture time in microseconds since the epoch
+     * @param radioInfo true if the RSSI and LQI are known
+     * @param rssi the RSSI in dBm
+     * @param lqi the LQI
+     */
+    public void frameReceived(int[] data, int length, long timestamp, boolean radioInfo, int rssi, int lqi) {
+        frames++;
+        bytes += length;
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        if (radioInfo) {
+            rssiHistogram[Math.max(-128, Math.min(127, rssi)) + 128]++;
+            lqiHistogram[lqi & 0xFF]++;
+        }
+        count(hours, timestamp / MICROS_PER_HOUR, length, radioInfo, rssi, lqi);
+
+        if (!mac.parse(data, length)) {
+            malformed++;
+            return;
+        }
+        macFrameTypes[mac.getFrameType()]++;
+        int pan = mac.getSourcePan() != -1 ? mac.getSourcePan() : mac.getDestinationPan();
+        if (pan != -1) {
+            count(pans, pan, length, radioInfo, rssi, lqi);
+        }
+        if (mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_SHORT) {
+            count(shortDevices, ((long) mac.getSourcePan() << 16) | mac.getSourceAddress(), length, radioInfo, rssi,
+                    lqi);
+        } else if (mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_EXTENDED) {
+            count(extendedDevices, mac.getSourceAddress(), length, radioInfo, rssi, lqi);
+        }
+
+        if (mac.getFrameType() == MacHeader.FRAME_TYPE_DATA && !mac.isSecurity()) {
+            int nwkLimit = mac.getHeaderLength() + mac.getPayloadLength();
+            if (nwk.parse(data, mac.getHeaderLength(), nwkLimit)) {
+                nwkFrameTypes[nwk.getFrameType()]++;
+            }
+        }
+    }
+
+    /**
+     * Adds the counts from another instance to this one
+     *
+     * @param other the {@link CaptureStatistics} to merge
+     */
+    public void merge(CaptureStatistics other) {
+        shortDevices.merge(other.shortDevices);
+        extendedDevices.merge(other.extendedDevices);
+        pans.merge(other.pans);
+        hours.merge(other.hours);
+        add(macFrameTypes, other.macFrameTypes);
+        add(nwkFrameTypes, other.nwkFrameTypes);
+        add(rssiHistogram, other.rssiHistogram);
+        add(lqiHistogram, other.lqiHistogram);
+        frames += other.frames;
+        bytes += other.bytes;
+        malformed += other.malformed;
+        firstTimestamp = Math.min(firstTimestamp, other.firstTimestamp);
+        lastTimestamp = Math.max(lastTimestamp, other.lastTimestamp);
+    }
+
+    /**
+     * @return the number of frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Writes the report as JSON
+     *
+     * @param out the {@link PrintStream} to write to
+     */
+    public void writeJson(PrintStream out) {
+        out.println("{");
+        out.println("  \"frames\": " + frames + ",");
+        out.println("  \"bytes\": " + bytes + ",");
+        out.println("  \"malformed\": " + malformed + ",");
+        out.println("  \"first\": \"" + formatTime(firstTimestamp, false) + "\",");
+        out.println("  \"last\": \"" + formatTime(lastTimestamp, false) + "\",");
+        out.println("  \"macFrameTypes\": {" + formatCounts(MAC_FRAME_TYPES, macFrameTypes) + "},");
+        out.println("  \"nwkFrameTypes\": {" + formatCounts(NWK_FRAME_TYPES, nwkFrameTypes) + "},");
+        writeJsonTable(out, "devices", shortDevices, extendedDevices, false);
+        writeJsonTable(out, "pans", pans, null, false);
+        writeJsonTable(out, "hours", hours, null, true);
+        out.println("  \"rssi\": {" + formatHistogram(rssiHistogram, -128) + "},");
+        out.println("  \"lqi\": {" + formatHistogram(lqiHistogram, 0) + "}");
+        out.println("}");
+    }
+
+    /**
+     * Writes the report as CSV. Each line starts with the section (device, pan, hour, mac, nwk, rssi or lqi) and the
+     * key, followed by the frame count, byte count, mean RSSI and mean LQI where they apply. If an
+     * {@link AddressCache} is set, there is a last column with the IEEE address of short device addresses.
+     *
+     * @param out the {@link PrintStream} to write to
+     */
+    public void writeCsv(PrintStream out) {
+        String empty = addressCache == null ? "" : ",";
+        out.println("section,key,frames,bytes,mean_rssi,mean_lqi" + (addressCache == null ? "" : ",ieee"));
+        writeCsvTable(out, "device", shortDevices, false, true);
+        writeCsvTable(out, "device", extendedDevices, false, false);
+        writeCsvTable(out, "pan", pans, false, false);
+        writeCsvTable(out, "hour", hours, true, false);
+        for (int cnt = 0; cnt < macFrameTypes.length; cnt++) {
+            out.println("mac," + MAC_FRAME_TYPES[cnt] + "," + macFrameTypes[cnt] + ",,," + empty);
+        }
+        for (int cnt = 0; cnt < nwkFrameTypes.length; cnt++) {
+            out.println("nwk," + NWK_FRAME_TYPES[cnt] + "," + nwkFrameTypes[cnt] + ",,," + empty);
+        }
+        for (int cnt = 0; cnt < rssiHistogram.length; cnt++) {
+            if (rssiHistogram[cnt] != 0) {
+                out.println("rssi," + (cnt - 128) + "," + rssiHistogram[cnt] + ",,," + empty);
+            }
+        }
+        for (int cnt = 0; cnt < lqiHistogram.length; cnt++) {
+            if (lqiHistogram[cnt] != 0) {
+                out.println("lqi," + cnt + "," + lqiHistogram[cnt] + ",,," + empty);
+            }
+        }
+    }
+
+    private void count(LongKeyTable table, long key, int length, boolean radioInfo, int rssi, int lqi) {
+        int slot = table.getSlot(key);
+        table.add(slot, COLUMN_FRAMES, 1);
+        table.add(slot, COLUMN_BYTES, length);
+        if (radioInfo) {
+            table.add(slot, COLUMN_RADIO_FRAMES, 1);
+            table.add(slot, COLUMN_RSSI_SUM, rssi);
+            table.add(slot, COLUMN_LQI_SUM, lqi);
+        }
+    }
+
+    private static void add(long[] total, long[] values) {
+        for (int cnt = 0; cnt < total.length; cnt++) {
+            total[cnt] += values[cnt];
+        }
+    }
+
+    private void writeJsonTable(PrintStream out, String name, LongKeyTable table, LongKeyTable extended,
+            boolean time) {
+        out.println("  \"" + name + "\": [");
+        boolean first = true;
+        for (LongKeyTable current : extended == null ? new LongKeyTable[] { table }
+                : new LongKeyTable[] { table, extended }) {
+            for (int slot : sortedSlots(current)) {
+                if (!first) {
+                    out.println(",");
+                }
+                first = false;
+                String key = formatKey(current.getKey(slot), current == shortDevices, current == extendedDevices,
+                        time);
+                out.print("    {\"key\": \"" + key + "\"");
+                long ieeeAddress = current == shortDevices ? resolve(current.getKey(slot)) : AddressCache.UNKNOWN;
+                if (ieeeAddress != AddressCache.UNKNOWN) {
+                    out.print(", \"ieee\": \"" + String.format("%016X", ieeeAddress) + "\"");
+                }
+                out.print(", \"frames\": " + current.get(slot, COLUMN_FRAMES) + ", \"bytes\": "
+                        + current.get(slot, COLUMN_BYTES));
+                long radioFrames = current.get(slot, COLUMN_RADIO_FRAMES);
+                if (radioFrames != 0) {
+                    out.print(String.format(Locale.ROOT, ", \"meanRssi\": %.1f, \"meanLqi\": %.1f",
+                            (double) current.get(slot, COLUMN_RSSI_SUM) / radioFrames,
+                            (double) current.get(slot, COLUMN_LQI_SUM) / radioFrames));
+                }
+                out.print("}");
+            }
+        }
+        out.println();
+        out.println("  ],");
+    }
+
+    private void writeCsvTable(PrintStream out, String section, LongKeyTable table, boolean time, boolean shortKey) {
+        for (int slot : sortedSlots(table)) {
+            String key = formatKey(table.getKey(slot), shortKey, table == extendedDevices, time);
+            StringBuilder builder = new StringBuilder();
+            builder.append(section).append(',').append(key).append(',');
+            builder.append(table.get(slot, COLUMN_FRAMES)).append(',').append(table.get(slot, COLUMN_BYTES));
+            long radioFrames = table.get(slot, COLUMN_RADIO_FRAMES);
+            if (radioFrames != 0) {
+                builder.append(String.format(Locale.ROOT, ",%.1f,%.1f",
+                        (double) table.get(slot, COLUMN_RSSI_SUM) / radioFrames,
+                        (double) table.get(slot, COLUMN_LQI_SUM) / radioFrames));
+            } else {
+                builder.append(",,");
+            }
+            if (addressCache != null) {
+                builder.append(',');
+                long ieeeAddress = shortKey ? resolve(table.getKey(slot)) : AddressCache.UNKNOWN;
+                if (ieeeAddress != AddressCache.UNKNOWN) {
+                    builder.append(String.format("%016X", ieeeAddress));
+                }
+            }
+            out.println(builder.toString());
+        }
+    }
+
+    /**
+     * @param key the PAN and short address of a device
+     * @return the IEEE address of the device, or {@link AddressCache#UNKNOWN}
+     */
+    private long resolve(long key) {
+        if (addressCache == null) {
+            return AddressCache.UNKNOWN;
+        }
+        return addressCache.getIeeeAddress((int) (key >> 16) & 0xFFFF, (int) key & 0xFFFF);
+    }
+
+    private String formatKey(long key, boolean shortAddress, boolean extendedAddress, boolean time) {
+        if (time) {
+            return formatTime(key * MICROS_PER_HOUR, true);
+        }
+        if (shortAddress) {
+            return String.format("%04X/%04X", (key >> 16) & 0xFFFF, key & 0xFFFF);
+        }
+        if (extendedAddress) {
+            return String.format("%016X", key);
+        }
+        return String.format("%04X", key);
+    }
+
+    private String formatTime(long timestamp, boolean hour) {
+        if (frames == 0) {
+            return "";
+        }
+        SimpleDateFormat format = new SimpleDateFormat(
+                hour ? "yyyy-MM-dd'T'HH:00'Z'" : "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp / 1000));
+    }
+
+    private String formatCounts(String[] names, long[] counts) {
+        StringBuilder builder = new StringBuilder();
+        for (int cnt = 0; cnt < names.length; cnt++) {
+            if (cnt != 0) {
+                builder.append(", ");
+            }
+            builder.append('"').append(names[cnt]).append("\": ").append(counts[cnt]);
+        }
+        return builder.toString();
+    }
+
+    private String formatHistogram(long[] histogram, int offset) {
+        StringBuilder builder = new StringBuilder();
+        for (int cnt = 0; cnt < histogram.length; cnt++) {
+            if (histogram[cnt] == 0) {
+                continue;
+            }
+            if (builder.length() != 0) {
+                builder.append(", ");
+            }
+            builder.append('"').append(cnt + offset).append("\": ").append(histogram[cnt]);
+        }
+        return builder.toString();
+    }
+
+    private List<Integer> sortedSlots(final LongKeyTable table) {
+        List<Integer> slots = new ArrayList<>(table.size());
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (table.isUsed(slot)) {
+                slots.add(slot);
+            }
+        }
+        Collections.sort(slots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer slot1, Integer slot2) {
+                return Long.compare(table.getKey(slot1), table.getKey(slot2));
+            }
+        });
+        return slots;
+    }
+}
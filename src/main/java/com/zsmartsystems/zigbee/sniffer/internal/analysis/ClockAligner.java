@@ -0,0 +1,280 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.analysis;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapMerger;
+
+/**
+ * Estimates the clock offset and drift of each sniffer from the frames heard by more than one sniffer, so captures
+ * from several sniffers can be merged in the order the frames were sent.
+ * <p>
+ * Each frame with a MAC source address is keyed by a hash of its MAC header and payload, which includes the MAC
+ * sequence number and source address. The keys of recent frames are held in a sliding window, and a frame from one
+ * sniffer that matches a frame from another sniffer gives a sample of the offset between the two clocks. A key that is
+ * heard twice by the same sniffer, such as a MAC retry, is ambiguous and is not matched.
+ * <p>
+ * The first sniffer is the reference. The offset of each other sniffer is modelled as offset + drift * time, fitted
+ * to the last {@link #SAMPLES} samples, taken at least 100ms apart, with a Theil-Sen estimate of the drift and the
+ * median of the offset, so the few samples from frames that were missed by one sniffer and matched to a retry are
+ * ignored. Until a sniffer has {@link #MIN_SAMPLES} samples its timestamps are not corrected. Memory is bounded by the
+ * window and the sample count.
+ * <p>
+ * The aligner is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ClockAligner implements WiresharkPcapMerger.TimestampCorrection {
+    /**
+     * The number of samples the model is fitted to
+     */
+    public static final int SAMPLES = 256;
+
+    /**
+     * The number of samples needed before a sniffer is corrected
+     */
+    public static final int MIN_SAMPLES = 8;
+
+    /**
+     * The largest drift that is believed, in parts per million
+     */
+    private static final double MAX_DRIFT = 500e-6;
+
+    /**
+     * The shortest time between two samples used to estimate the drift
+     */
+    private static final long MIN_DRIFT_INTERVAL = 1000000;
+
+    /**
+     * The shortest time between two samples, so the samples cover long enough to measure the drift
+     */
+    private static final long SAMPLE_INTERVAL = 100000;
+
+    /**
+     * The number of samples added between each fit once the sample ring is full
+     */
+    private static final int FIT_INTERVAL = 16;
+
+    /**
+     * The maximum number of frames held in the window
+     */
+    private static final int MAX_FRAMES = 100000;
+
+    private static final int FRAME_INPUT = 0;
+    private static final int FRAME_TIMESTAMP = 1;
+    private static final int FRAME_CORRECTED = 2;
+    private static final int FRAME_AMBIGUOUS = 3;
+
+    private final long windowMicros;
+    private final Model[] models;
+    private final MacHeader macHeader = new MacHeader();
+    private final LinkedHashMap<Long, long[]> window = new LinkedHashMap<>();
+
+    /**
+     * The clock model of one sniffer relative to the reference
+     */
+    private static class Model {
+        final long[] x = new long[SAMPLES];
+        final long[] y = new long[SAMPLES];
+        final long[] sorted = new long[SAMPLES];
+        final double[] slopes = new double[SAMPLES / 2];
+        int samples;
+        int next;
+        long matches;
+        long reference;
+        long offset;
+        double drift;
+
+        boolean isValid() {
+            return samples >= MIN_SAMPLES;
+        }
+
+        long correct(long timestamp) {
+            if (!isValid()) {
+                return timestamp;
+            }
+            return timestamp + offset + Math.round(drift * (timestamp - reference));
+        }
+
+        void add(long timestamp, long difference) {
+            matches++;
+            if (samples > 0 && timestamp - x[(next + SAMPLES - 1) % SAMPLES] < SAMPLE_INTERVAL) {
+                return;
+            }
+            x[next] = timestamp;
+            y[next] = difference;
+            next = (next + 1) % SAMPLES;
+            if (samples < SAMPLES) {
+                samples++;
+                fit();
+            } else if (next % FIT_INTERVAL == 0) {
+                fit();
+            }
+        }
+
+        void fit() {
+            // The ring holds the samples in time order from the oldest, at next once the ring is full
+            int first = samples < SAMPLES ? 0 : next;
+            int half = samples / 2;
+            int count = 0;
+            for (int cnt = 0; cnt < half; cnt++) {
+                int from = (first + cnt) % SAMPLES;
+                int to = (first + cnt + half) % SAMPLES;
+                long dx = x[to] - x[from];
+                if (dx >= MIN_DRIFT_INTERVAL) {
+                    slopes[count++] = (double) (y[to] - y[from]) / dx;
+                }
+            }
+            if (count > 0) {
+                Arrays.sort(slopes, 0, count);
+                drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, slopes[count / 2]));
+            } else {
+                drift = 0;
+            }
+
+            reference = x[(first + samples - 1) % SAMPLES];
+            for (int cnt = 0; cnt < samples; cnt++) {
+                sorted[cnt] = y[cnt] - Math.round(drift * (x[cnt] - reference));
+            }
+            Arrays.sort(sorted, 0, samples);
+            offset = sorted[samples / 2];
+        }
+    }
+
+    /**
+     * Creates the aligner
+     *
+     * @param inputs the number of sniffers - the first is the reference
+     * @param windowMillis the longest time between two sniffers hearing the same frame, in milliseconds
+     */
+    public ClockAligner(int inputs, long windowMillis) {
+        this.windowMicros = windowMillis * 1000;
+        models = new Model[inputs];
+        for (int cnt = 0; cnt < inputs; cnt++) {
+            models[cnt] = new Model();
+        }
+    }
+
+    @Override
+    public long correct(int input, long timestamp) {
+        return input == 0 ? timestamp : models[input].correct(timestamp);
+    }
+
+    /**
+     * Adds a frame, matching it against the frames from the other sniffers in the window. Frames should be added in
+     * approximately corrected timestamp order, as they are read from a {@link WiresharkPcapMerger} using this aligner.
+     *
+     * @param input the sniffer the frame was received by
+     * @param timestamp the timestamp from the sniffer in microseconds
+     * @param data the frame, including the FCS
+     * @param length the number of bytes in the frame
+     * @return the corrected timestamp in microseconds
+     */
+    public long frameReceived(int input, long timestamp, int[] data, int length) {
+        long corrected = correct(input, timestamp);
+        expire(corrected);
+
+        if (!macHeader.parse(data, length) || macHeader.getSourceAddressMode() == MacHeader.ADDRESS_MODE_NONE) {
+            return corrected;
+        }
+        Long key = hash(data, macHeader.getHeaderLength() + macHeader.getPayloadLength());
+        long[] frame = window.get(key);
+        if (frame == null) {
+            window.put(key, new long[] { input, timestamp, corrected, 0 });
+            return corrected;
+        }
+        if (frame[FRAME_INPUT] == input) {
+            frame[FRAME_AMBIGUOUS] = 1;
+            return corrected;
+        }
+        if (frame[FRAME_AMBIGUOUS] != 0) {
+            return corrected;
+        }
+
+        int other = (int) frame[FRAME_INPUT];
+        if (input != 0 && (other == 0 || models[other].isValid())) {
+            models[input].add(timestamp, correct(other, frame[FRAME_TIMESTAMP]) - timestamp);
+        } else if (other != 0 && (input == 0 || models[input].isValid())) {
+            models[other].add(frame[FRAME_TIMESTAMP], corrected - frame[FRAME_TIMESTAMP]);
+        }
+        return corrected;
+    }
+
+    private void expire(long now) {
+        Iterator<Map.Entry<Long, long[]>> iterator = window.entrySet().iterator();
+        while (iterator.hasNext()) {
+            long[] frame = iterator.next().getValue();
+            if (window.size() <= MAX_FRAMES && frame[FRAME_CORRECTED] >= now - windowMicros) {
+                break;
+            }
+            iterator.remove();
+        }
+    }
+
+    private static long hash(int[] data, int length) {
+        // FNV-1a
+        long hash = 0xCBF29CE484222325L;
+        for (int cnt = 0; cnt < length; cnt++) {
+            hash ^= data[cnt];
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @param input the sniffer
+     * @return the offset of the sniffer clock from the reference in microseconds, at the last sample
+     */
+    public long getOffset(int input) {
+        return models[input].offset;
+    }
+
+    /**
+     * @param input the sniffer
+     * @return the drift of the sniffer clock from the reference in parts per million
+     */
+    public double getDrift(int input) {
+        return models[input].drift * 1e6;
+    }
+
+    /**
+     * @param input the sniffer
+     * @return the number of frames matched with another sniffer
+     */
+    public long getMatches(int input) {
+        return models[input].matches;
+    }
+
+    /**
+     * Prints the offset and drift of each sniffer
+     *
+     * @param out the {@link PrintStream} to print to
+     * @param names the name of each sniffer
+     */
+    public void print(PrintStream out, String[] names) {
+        out.println(String.format("%-40s %12s %10s %10s", "Input", "Offset (ms)", "Drift ppm", "Matches"));
+        for (int cnt = 0; cnt < models.length; cnt++) {
+            Model model = models[cnt];
+            if (cnt == 0) {
+                out.println(String.format("%-40s %12s %10s %10s", names[cnt], "reference", "", ""));
+            } else if (!model.isValid()) {
+                out.println(String.format("%-40s %12s %10s %10d", names[cnt], "unknown", "", model.matches));
+            } else {
+                out.println(String.format("%-40s %12.3f %10.2f %10d", names[cnt], model.offset / 1000.0,
+                        model.drift * 1e6, model.matches));
+            }
+        }
+    }
+}
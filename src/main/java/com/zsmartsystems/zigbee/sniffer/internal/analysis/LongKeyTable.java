@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.analysis;
+
+/**
+ * An open addressing hash table with long keys, and a fixed number of long counters for each key. All the data is
+ * held in primitive arrays, so adding to a counter doesn't allocate memory, and two tables can be merged by adding
+ * their counters.
+ * <p>
+ * The table is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class LongKeyTable {
+    private final int columns;
+    private long[] keys;
+    private boolean[] used;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * Creates the table
+     *
+     * @param columns the number of counters for each key
+     */
+    public LongKeyTable(int columns) {
+        this.columns = columns;
+        allocate(64);
+    }
+
+    /**
+     * @return the number of keys in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots - slots from 0 to capacity - 1 can be checked with {@link #isUsed(int)}
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param slot the slot
+     * @return true if the slot holds a key
+     */
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    /**
+     * @param slot the slot
+     * @return the key in the slot
+     */
+    public long getKey(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @param slot the slot
+     * @param column the counter
+     * @return the counter value
+     */
+    public long get(int slot, int column) {
+        return values[slot * columns + column];
+    }
+
+    /**
+     * Gets the slot for a key, adding the key if it is not in the table. Slots change when the table grows, so the
+     * slot must not be kept after another key is added.
+     *
+     * @param key the key
+     * @return the slot
+     */
+    public int getSlot(long key) {
+        int slot = find(key);
+        if (used[slot]) {
+            return slot;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            slot = find(key);
+        }
+        used[slot] = true;
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Adds to a counter
+     *
+     * @param slot the slot returned by {@link #getSlot(long)}
+     * @param column the counter
+     * @param value the value to add
+     */
+    public void add(int slot, int column, long value) {
+        values[slot * columns + column] += value;
+    }
+
+    /**
+     * Adds all the counters in another table to this table
+     *
+     * @param other the {@link LongKeyTable} to merge
+     */
+    public void merge(LongKeyTable other) {
+        for (int otherSlot = 0; otherSlot < other.keys.length; otherSlot++) {
+            if (!other.used[otherSlot]) {
+                continue;
+            }
+            int slot = getSlot(other.keys[otherSlot]);
+            for (int column = 0; column < columns; column++) {
+                values[slot * columns + column] += other.values[otherSlot * columns + column];
+            }
+        }
+    }
+
+    private int find(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (used[slot] && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                int slot = find(oldKeys[oldSlot]);
+                used[slot] = true;
+                keys[slot] = oldKeys[oldSlot];
+                System.arraycopy(oldValues, oldSlot * columns, values, slot * columns, columns);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        values = new long[capacity * columns];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.analysis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressLearner;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapReader;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkTapHeader;
+
+/**
+ * Analyses a set of pcap files in parallel on a {@link ForkJoinPool}. The files are divided between the workers, and
+ * each file is split into chunks at record boundaries. Each chunk is memory mapped and counted into its own
+ * {@link CaptureStatistics}, and the results are merged as the tasks complete, so there is no shared state between
+ * the workers. The only exception is the optional {@link AddressCache}, which each chunk learns addresses into.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class PcapAnalyzer {
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private final ForkJoinPool pool;
+    private AddressCache addressCache;
+
+    /**
+     * Creates the analyser
+     *
+     * @param parallelism the number of worker threads
+     */
+    public PcapAnalyzer(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Sets the cache that the addresses of devices are learned into, and which is used to report the IEEE address of
+     * devices
+     *
+     * @param addressCache the {@link AddressCache}, or null to not learn addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Analyses the files
+     *
+     * @param filenames the pcap files
+     * @return the {@link CaptureStatistics} for all the files
+     * @throws IOException if a file can't be read or has an unsupported link type
+     */
+    public CaptureStatistics analyze(List<String> filenames) throws IOException {
+        try {
+            CaptureStatistics statistics = pool.invoke(new FilesTask(filenames, addressCache, 0, filenames.size()));
+            statistics.setAddressCache(addressCache);
+            return statistics;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Splits the list of files in half until each task has a single file, which is then split into chunks
+     */
+    private static class FilesTask extends RecursiveTask<CaptureStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> filenames;
+        private final AddressCache addressCache;
+        private final int from;
+        private final int to;
+
+        FilesTask(List<String> filenames, AddressCache addressCache, int from, int to) {
+            this.filenames = filenames;
+            this.addressCache = addressCache;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CaptureStatistics compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                FilesTask left = new FilesTask(filenames, addressCache, from, middle);
+                left.fork();
+                CaptureStatistics statistics = new FilesTask(filenames, addressCache, middle, to).compute();
+                statistics.merge(left.join());
+                return statistics;
+            }
+            if (to == from) {
+                return new CaptureStatistics();
+            }
+            try {
+                return analyzeFile(filenames.get(from));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private CaptureStatistics analyzeFile(String filename) throws IOException {
+            List<Long> boundaries = new ArrayList<>();
+            PcapFile file;
+            try (WiresharkPcapReader reader = new WiresharkPcapReader(filename)) {
+                if (reader.getNetwork() != WiresharkPcapFile.LINKTYPE_IEEE802_15_4_WITHFCS
+                        && reader.getNetwork() != WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP) {
+                    throw new IOException(filename + " has unsupported link type " + reader.getNetwork());
+                }
+                file = new PcapFile(filename, reader, addressCache);
+                boundaries.add(reader.getPosition());
+                long chunkStart = reader.getPosition();
+                while (reader.skip()) {
+                    if (reader.getPosition() - chunkStart >= CHUNK_SIZE) {
+                        chunkStart = reader.getPosition();
+                        boundaries.add(chunkStart);
+                    }
+                }
+                if (reader.getPosition() != chunkStart) {
+                    boundaries.add(reader.getPosition());
+                }
+            }
+            try {
+                return new ChunksTask(file, boundaries, 0, boundaries.size() - 1).compute();
+            } finally {
+                file.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Splits a range of chunks in half until each task has a single chunk
+     */
+    private static class ChunksTask extends RecursiveTask<CaptureStatistics> {
+        private static final long serialVersionUID = 1L;
+
+        private final PcapFile file;
+        private final List<Long> boundaries;
+        private final int from;
+        private final int to;
+
+        ChunksTask(PcapFile file, List<Long> boundaries, int from, int to) {
+            this.file = file;
+            this.boundaries = boundaries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected CaptureStatistics compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                ChunksTask left = new ChunksTask(file, boundaries, from, middle);
+                left.fork();
+                CaptureStatistics statistics = new ChunksTask(file, boundaries, middle, to).compute();
+                statistics.merge(left.join());
+                return statistics;
+            }
+            CaptureStatistics statistics = new CaptureStatistics();
+            if (to == from) {
+                return statistics;
+            }
+            try {
+                file.analyzeChunk(boundaries.get(from), boundaries.get(to), statistics);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * An open pcap file and its format
+     */
+    private static class PcapFile {
+        final FileChannel channel;
+        final ByteOrder order;
+        final boolean nanosecond;
+        final boolean tap;
+        final AddressCache addressCache;
+
+        PcapFile(String filename, WiresharkPcapReader reader, AddressCache addressCache) throws IOException {
+            this.addressCache = addressCache;
+            channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            order = reader.getByteOrder();
+            nanosecond = reader.isNanosecond();
+            tap = reader.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+        }
+
+        void analyzeChunk(long start, long end, CaptureStatistics statistics) throws IOException {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            buffer.order(order);
+            byte[] bytes = new byte[WiresharkTapHeader.LENGTH + SnifferPacket.MAX_LENGTH];
+            int[] data = new int[SnifferPacket.MAX_LENGTH];
+            SnifferPacket radio = new SnifferPacket();
+            AddressLearner learner = addressCache == null ? null : new AddressLearner(addressCache);
+
+            int limit = buffer.limit();
+            int position = 0;
+            while (position + RECORD_HEADER_LENGTH <= limit) {
+                long seconds = buffer.getInt(position) & 0xFFFFFFFFL;
+                int fraction = buffer.getInt(position + 4);
+                int length = buffer.getInt(position + 8);
+                int offset = position + RECORD_HEADER_LENGTH;
+                position = offset + length;
+                if (length < 0 || position > limit) {
+                    break;
+                }
+                long timestamp = seconds * 1000000L + (nanosecond ? fraction / 1000 : fraction);
+
+                int copy = Math.min(length, bytes.length);
+                buffer.position(offset);
+                buffer.get(bytes, 0, copy);
+                int frameOffset = 0;
+                if (tap) {
+                    frameOffset = WiresharkTapHeader.read(bytes, 0, copy, radio);
+                    if (frameOffset == -1) {
+                        continue;
+                    }
+                }
+                int frameLength = Math.min(copy - frameOffset, SnifferPacket.MAX_LENGTH);
+                for (int cnt = 0; cnt < frameLength; cnt++) {
+                    data[cnt] = bytes[frameOffset + cnt] & 0xFF;
+                }
+                statistics.frameReceived(data, frameLength, timestamp, tap, radio.getRssi(), radio.getLqi());
+                if (learner != null) {
+                    learner.frameReceived(data, frameLength);
+                }
+            }
+        }
+    }
+}
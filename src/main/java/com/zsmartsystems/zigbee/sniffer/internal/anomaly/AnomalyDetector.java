@@ -0,0 +1,417 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * Detects traffic anomalies as frames are captured, so they can be alerted on straight away -:
+ * <ul>
+ * <li>broadcast storms - a PAN sending far more MAC broadcasts than usual
+ * <li>retries - a device sending far more MAC retries than usual, which are frames with the same sequence number as
+ * its last frame
+ * <li>silence - the channel being listened to having no frames when it usually has traffic
+ * </ul>
+ * Frames are counted per channel, per PAN and per device in rings of {@link #BUCKETS} buckets of
+ * {@link #BUCKET_MILLIS} milliseconds, so the counts for the last five minutes are kept. Each second, the count over
+ * the last {@link #WINDOW_BUCKETS} buckets is compared against an exponentially weighted moving average and variance
+ * of the count per bucket, and an event is raised when it is well outside the baseline, and cleared when it returns.
+ * The baseline is not updated while an anomaly is raised, so a long storm doesn't become the new normal.
+ * <p>
+ * Counting a frame is a constant amount of work. The PANs and devices are held in fixed size tables, and a device is
+ * only looked for in a few slots - if they are all in use, the quietest device is replaced - so the memory used is
+ * bounded however many devices are seen. With the default sizes the detector uses about 2.5MB.
+ * <p>
+ * The detector is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnomalyDetector {
+    /**
+     * The length of each bucket in milliseconds
+     */
+    public static final long BUCKET_MILLIS = 1000;
+
+    /**
+     * The number of buckets kept for each counter
+     */
+    public static final int BUCKETS = 300;
+
+    /**
+     * The number of buckets in the detection window
+     */
+    public static final int WINDOW_BUCKETS = 10;
+
+    /**
+     * The number of buckets a counter must have before anomalies are detected
+     */
+    public static final int WARMUP_BUCKETS = 60;
+
+    /**
+     * The maximum number of devices tracked
+     */
+    public static final int MAX_DEVICES = 1024;
+
+    /**
+     * The maximum number of PANs tracked
+     */
+    public static final int MAX_PANS = 64;
+
+    private static final int MAX_CHANNELS = 32;
+
+    /**
+     * The smoothing factor of the baseline - the baseline follows about the last {@link #BUCKETS} buckets
+     */
+    private static final double ALPHA = 2.0 / (BUCKETS + 1);
+
+    /**
+     * A rate is anomalous if it is above the baseline by this many standard deviations, and by this factor
+     */
+    private static final double DEVIATIONS = 4;
+    private static final double FACTOR = 3;
+
+    private static final double MIN_BROADCAST_RATE = 2;
+    private static final double MIN_RETRY_RATE = 0.5;
+    private static final double MIN_RETRY_RATIO = 0.2;
+    private static final double MIN_SILENCE_BASELINE = 0.5;
+
+    /**
+     * The number of slots a key is looked for in
+     */
+    private static final int PROBES = 8;
+
+    private static final int METRIC_FRAMES = 0;
+    private static final int METRIC_BROADCASTS = 1;
+    private static final int METRIC_RETRIES = 1;
+
+    private static final long SHORT_ADDRESS_KEY = 0xFFFF000000000000L;
+
+    private final CounterTable channels = new CounterTable(MAX_CHANNELS, 1);
+    private final CounterTable pans = new CounterTable(MAX_PANS, 2);
+    private final CounterTable devices = new CounterTable(MAX_DEVICES, 2);
+    private final MacHeader mac = new MacHeader();
+    private final List<AnomalyListener> listeners = new ArrayList<>();
+    private AddressCache addressCache;
+
+    private int bucket;
+    private long bucketNumber = -1;
+    private int listenChannel = -1;
+    private int listenBuckets;
+    private long events;
+
+    /**
+     * A table of counters, with a ring of buckets for each metric of each key
+     */
+    private static class CounterTable {
+        final int metrics;
+        final int mask;
+        final long[] keys;
+        final boolean[] used;
+        final int[] ages;
+        final int[] lastSequences;
+        final int[] counts;
+        final long[] windowSums;
+        final double[] means;
+        final double[] variances;
+        final boolean[] active;
+        long replaced;
+
+        CounterTable(int capacity, int metrics) {
+            this.metrics = metrics;
+            mask = capacity - 1;
+            keys = new long[capacity];
+            used = new boolean[capacity];
+            ages = new int[capacity];
+            lastSequences = new int[capacity];
+            counts = new int[capacity * metrics * BUCKETS];
+            windowSums = new long[capacity * metrics];
+            means = new double[capacity * metrics];
+            variances = new double[capacity * metrics];
+            active = new boolean[capacity * metrics];
+        }
+
+        /**
+         * Gets the slot for a key, adding the key if needed. Slots are never emptied, so the search can stop at the
+         * first empty slot.
+         */
+        int getSlot(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int home = (int) (hash ^ (hash >>> 32)) & mask;
+            int victim = -1;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = (home + probe) & mask;
+                if (!used[slot]) {
+                    reset(slot, key);
+                    return slot;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+                if (!isActive(slot) && (victim == -1 || means[slot * metrics] < means[victim * metrics])) {
+                    victim = slot;
+                }
+            }
+            if (victim == -1) {
+                victim = home;
+            }
+            replaced++;
+            reset(victim, key);
+            return victim;
+        }
+
+        boolean isActive(int slot) {
+            for (int metric = 0; metric < metrics; metric++) {
+                if (active[slot * metrics + metric]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void add(int slot, int metric, int bucket, int value) {
+            counts[(slot * metrics + metric) * BUCKETS + bucket] += value;
+        }
+
+        private void reset(int slot, long key) {
+            used[slot] = true;
+            keys[slot] = key;
+            ages[slot] = 0;
+            lastSequences[slot] = -1;
+            for (int metric = 0; metric < metrics; metric++) {
+                int counter = slot * metrics + metric;
+                for (int cnt = 0; cnt < BUCKETS; cnt++) {
+                    counts[counter * BUCKETS + cnt] = 0;
+                }
+                windowSums[counter] = 0;
+                means[counter] = 0;
+                variances[counter] = 0;
+                active[counter] = false;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener for the events
+     *
+     * @param listener the {@link AnomalyListener}
+     */
+    public void addListener(AnomalyListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @return the listeners
+     */
+    public List<AnomalyListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * Sets the cache used to give the IEEE address of devices in events
+     *
+     * @param addressCache the {@link AddressCache}, or null to only give the address in the frames
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Counts a frame
+     *
+     * @param packet the received {@link SnifferPacket}
+     */
+    public void frameReceived(SnifferPacket packet) {
+        int weight = packet.getSampleWeight();
+        channels.add(channels.getSlot(packet.getChannel()), METRIC_FRAMES, bucket, weight);
+
+        int[] data = packet.getData();
+        if (!mac.parse(data, packet.getLength())) {
+            return;
+        }
+        int pan = mac.getSourcePan() != -1 ? mac.getSourcePan() : mac.getDestinationPan();
+        if (pan != -1) {
+            int slot = pans.getSlot(pan);
+            pans.add(slot, METRIC_FRAMES, bucket, weight);
+            if (mac.getDestinationAddressMode() == MacHeader.ADDRESS_MODE_SHORT
+                    && mac.getDestinationAddress() == 0xFFFF) {
+                pans.add(slot, METRIC_BROADCASTS, bucket, weight);
+            }
+        }
+
+        if (mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_NONE) {
+            return;
+        }
+        long key = mac.getSourceAddress();
+        if (mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_SHORT) {
+            key |= SHORT_ADDRESS_KEY | ((long) (pan & 0xFFFF) << 16);
+        }
+        int slot = devices.getSlot(key);
+        devices.add(slot, METRIC_FRAMES, bucket, weight);
+        if (mac.isAckRequest() && mac.getSequence() == devices.lastSequences[slot]) {
+            devices.add(slot, METRIC_RETRIES, bucket, 1);
+        }
+        devices.lastSequences[slot] = mac.getSequence();
+    }
+
+    /**
+     * Closes the buckets that have ended, checks for anomalies and updates the baselines. This should be called
+     * several times per bucket.
+     *
+     * @param now the current time in milliseconds
+     * @param currentChannel the channel being listened to, or 0 if not listening
+     */
+    public void tick(long now, int currentChannel) {
+        long number = now / BUCKET_MILLIS;
+        if (bucketNumber == -1) {
+            bucketNumber = number;
+            listenChannel = currentChannel;
+            return;
+        }
+        int steps = (int) Math.min(Math.max(number - bucketNumber, 0), BUCKETS);
+        bucketNumber = number;
+        for (int cnt = 0; cnt < steps; cnt++) {
+            if (currentChannel != listenChannel) {
+                listenChannel = currentChannel;
+                listenBuckets = 0;
+            } else {
+                listenBuckets++;
+            }
+            closeBucket(channels, now);
+            closeBucket(pans, now);
+            closeBucket(devices, now);
+            bucket = (bucket + 1) % BUCKETS;
+            clearBucket(channels);
+            clearBucket(pans);
+            clearBucket(devices);
+        }
+    }
+
+    /**
+     * @return the number of events raised and cleared
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the number of devices that were replaced in the table by other devices
+     */
+    public long getReplacedDevices() {
+        return devices.replaced;
+    }
+
+    private void closeBucket(CounterTable table, long now) {
+        int leaving = (bucket + BUCKETS - WINDOW_BUCKETS) % BUCKETS;
+        for (int slot = 0; slot <= table.mask; slot++) {
+            if (!table.used[slot]) {
+                continue;
+            }
+            table.ages[slot]++;
+            for (int metric = 0; metric < table.metrics; metric++) {
+                int counter = slot * table.metrics + metric;
+                table.windowSums[counter] += table.counts[counter * BUCKETS + bucket]
+                        - table.counts[counter * BUCKETS + leaving];
+            }
+
+            check(table, slot, now);
+
+            // The baseline is updated with the bucket leaving the window, so it never includes the buckets that are
+            // being checked, and a rising rate is not absorbed into the baseline before it is detected
+            int age = table.ages[slot] - WINDOW_BUCKETS;
+            if (age <= 0) {
+                continue;
+            }
+            if (table == channels && (table.keys[slot] != listenChannel || listenBuckets <= WINDOW_BUCKETS)) {
+                // A channel that is not being listened to is quiet, but that's not its usual rate
+                continue;
+            }
+            // Bias correct the first buckets, so the baseline is usable by the end of the warm up
+            double alpha = Math.max(ALPHA, 1.0 / age);
+            for (int metric = 0; metric < table.metrics; metric++) {
+                int counter = slot * table.metrics + metric;
+                if (table.active[counter]) {
+                    continue;
+                }
+                double difference = table.counts[counter * BUCKETS + leaving] - table.means[counter];
+                table.means[counter] += alpha * difference;
+                table.variances[counter] = (1 - alpha) * (table.variances[counter] + alpha * difference * difference);
+            }
+        }
+    }
+
+    private void clearBucket(CounterTable table) {
+        for (int counter = 0; counter < table.windowSums.length; counter++) {
+            table.counts[counter * BUCKETS + bucket] = 0;
+        }
+    }
+
+    private void check(CounterTable table, int slot, long now) {
+        if (table.ages[slot] < WARMUP_BUCKETS) {
+            return;
+        }
+        if (table == channels) {
+            int counter = slot;
+            boolean silent = table.keys[slot] == listenChannel && listenBuckets >= WINDOW_BUCKETS
+                    && table.windowSums[counter] == 0 && table.means[counter] >= MIN_SILENCE_BASELINE;
+            update(table, counter, silent, now, AnomalyEvent.TYPE_SILENCE, "channel " + table.keys[slot]);
+        } else if (table == pans) {
+            int counter = slot * table.metrics + METRIC_BROADCASTS;
+            update(table, counter, isHigh(table, counter, MIN_BROADCAST_RATE), now,
+                    AnomalyEvent.TYPE_BROADCAST_STORM, String.format("PAN %04X", table.keys[slot]));
+        } else {
+            int counter = slot * table.metrics + METRIC_RETRIES;
+            long frames = table.windowSums[slot * table.metrics + METRIC_FRAMES];
+            boolean retrying = isHigh(table, counter, MIN_RETRY_RATE) && frames > 0
+                    && table.windowSums[counter] >= MIN_RETRY_RATIO * frames;
+            if (retrying != table.active[counter]) {
+                // Only format the subject when it's needed, as there are many devices
+                update(table, counter, retrying, now, AnomalyEvent.TYPE_RETRIES, formatDevice(table.keys[slot]));
+            }
+        }
+    }
+
+    private boolean isHigh(CounterTable table, int counter, double minimum) {
+        double rate = (double) table.windowSums[counter] / WINDOW_BUCKETS;
+        double mean = table.means[counter];
+        double threshold = Math.max(minimum,
+                Math.max(mean * FACTOR, mean + DEVIATIONS * Math.sqrt(table.variances[counter])));
+        return rate > threshold;
+    }
+
+    private void update(CounterTable table, int counter, boolean anomalous, long now, int type, String subject) {
+        if (anomalous == table.active[counter]) {
+            return;
+        }
+        table.active[counter] = anomalous;
+        events++;
+        AnomalyEvent event = new AnomalyEvent(now, type, !anomalous, subject,
+                (double) table.windowSums[counter] / WINDOW_BUCKETS, table.means[counter]);
+        for (AnomalyListener listener : listeners) {
+            listener.anomalyDetected(event);
+        }
+    }
+
+    private String formatDevice(long key) {
+        if ((key & SHORT_ADDRESS_KEY) != SHORT_ADDRESS_KEY) {
+            return String.format("device %016X", key);
+        }
+        int pan = (int) (key >> 16) & 0xFFFF;
+        int address = (int) key & 0xFFFF;
+        long ieeeAddress = addressCache == null ? AddressCache.UNKNOWN : addressCache.getIeeeAddress(pan, address);
+        if (ieeeAddress == AddressCache.UNKNOWN) {
+            return String.format("device %04X/%04X", pan, address);
+        }
+        return String.format("device %04X/%04X (%016X)", pan, address, ieeeAddress);
+    }
+}
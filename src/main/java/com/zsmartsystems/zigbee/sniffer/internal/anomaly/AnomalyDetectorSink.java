@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that feeds an {@link AnomalyDetector}, and closes its buckets every {@link #TICK_PERIOD}
+ * milliseconds so silence is detected even when no frames arrive.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnomalyDetectorSink implements PacketSink {
+    private static final long TICK_PERIOD = 250;
+
+    private final AnomalyDetector detector;
+    private final IntSupplier currentChannel;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the sink and starts the detector
+     *
+     * @param detector the {@link AnomalyDetector}, with its listeners added
+     * @param currentChannel supplies the channel the sniffer is currently listening on
+     */
+    public AnomalyDetectorSink(AnomalyDetector detector, IntSupplier currentChannel) {
+        this.detector = detector;
+        this.currentChannel = currentChannel;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AnomalyDetector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_PERIOD, TICK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the {@link AnomalyDetector}
+     */
+    public AnomalyDetector getDetector() {
+        return detector;
+    }
+
+    @Override
+    public String getName() {
+        return "anomaly";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        synchronized (detector) {
+            for (SnifferPacket packet : packets) {
+                detector.frameReceived(packet);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        for (AnomalyListener listener : detector.getListeners()) {
+            listener.close();
+        }
+    }
+
+    private void tick() {
+        int channel = currentChannel.getAsInt();
+        synchronized (detector) {
+            detector.tick(System.currentTimeMillis(), channel);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * An anomaly raised or cleared by the {@link AnomalyDetector}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnomalyEvent {
+    /**
+     * A PAN is sending far more broadcasts than usual
+     */
+    public static final int TYPE_BROADCAST_STORM = 0;
+
+    /**
+     * A device is retrying far more frames than usual
+     */
+    public static final int TYPE_RETRIES = 1;
+
+    /**
+     * A channel that usually has traffic has gone silent
+     */
+    public static final int TYPE_SILENCE = 2;
+
+    private static final String[] TYPE_NAMES = { "broadcast-storm", "retries", "silence" };
+
+    private final long timestamp;
+    private final int type;
+    private final boolean cleared;
+    private final String subject;
+    private final double rate;
+    private final double baseline;
+
+    /**
+     * Creates the event
+     *
+     * @param timestamp the time in milliseconds since the epoch
+     * @param type the type of anomaly
+     * @param cleared true if the anomaly has ended
+     * @param subject the PAN, device or channel, as text
+     * @param rate the rate over the detection window, per second
+     * @param baseline the usual rate, per second
+     */
+    public AnomalyEvent(long timestamp, int type, boolean cleared, String subject, double rate, double baseline) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.cleared = cleared;
+        this.subject = subject;
+        this.rate = rate;
+        this.baseline = baseline;
+    }
+
+    /**
+     * @return the time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the type of anomaly
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the name of the type of anomaly
+     */
+    public String getTypeName() {
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * @return true if the anomaly has ended, or false if it has started
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * @return the PAN, device or channel, as text
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the rate over the detection window, per second
+     */
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * @return the usual rate, per second
+     */
+    public double getBaseline() {
+        return baseline;
+    }
+
+    /**
+     * @return the event as a single line JSON object
+     */
+    public String toJson() {
+        return String.format(Locale.ROOT,
+                "{\"time\":\"%s\",\"type\":\"%s\",\"state\":\"%s\",\"subject\":\"%s\",\"rate\":%.2f,"
+                        + "\"baseline\":%.2f}",
+                formatTime(), getTypeName(), cleared ? "cleared" : "raised", subject, rate, baseline);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s %s %s %s: %.2f/s (baseline %.2f/s)", formatTime(), getTypeName(),
+                cleared ? "cleared" : "raised", subject, rate, baseline);
+    }
+
+    private String formatTime() {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(timestamp));
+    }
+}
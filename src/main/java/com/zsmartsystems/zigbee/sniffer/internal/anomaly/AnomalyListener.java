@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+/**
+ * Receives the events from an {@link AnomalyDetector}. Listeners are called from the detector's timer thread, so they
+ * must not block.
+ *
+ * @author Chris Jackson
+ *
+ */
+public interface AnomalyListener {
+    /**
+     * Called when an anomaly is raised or cleared
+     *
+     * @param event the {@link AnomalyEvent}
+     */
+    void anomalyDetected(AnomalyEvent event);
+
+    /**
+     * Called when the detector is closed
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+/**
+ * {@link AnomalyListener} that prints events to the console as text, or appends them to a log file as one JSON
+ * object per line.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnomalyLogListener implements AnomalyListener {
+    private final PrintStream out;
+    private final boolean json;
+
+    /**
+     * Creates a listener that prints events to the console
+     */
+    public AnomalyLogListener() {
+        out = System.out;
+        json = false;
+    }
+
+    /**
+     * Creates a listener that appends events to a log file
+     *
+     * @param filename the log file name
+     * @throws FileNotFoundException if the file could not be opened
+     */
+    public AnomalyLogListener(String filename) throws FileNotFoundException {
+        out = new PrintStream(new FileOutputStream(filename, true), true);
+        json = true;
+    }
+
+    @Override
+    public void anomalyDetected(AnomalyEvent event) {
+        out.println(json ? event.toJson() : "Anomaly " + event);
+    }
+
+    @Override
+    public void close() {
+        if (out != System.out) {
+            out.close();
+        }
+    }
+}
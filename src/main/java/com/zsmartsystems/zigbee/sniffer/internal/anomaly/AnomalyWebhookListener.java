@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.anomaly;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * {@link AnomalyListener} that posts each event as JSON to an HTTP webhook. Events are queued and posted from a
+ * separate thread, so a slow or unreachable server never holds up the detector. If the queue is full, events are
+ * dropped and counted.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnomalyWebhookListener implements AnomalyListener, Runnable {
+    private static final int QUEUE_SIZE = 256;
+    private static final int TIMEOUT = 5000;
+
+    private final URL url;
+    private final BlockingQueue<AnomalyEvent> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+    private volatile long dropped;
+
+    /**
+     * Creates the listener and starts its thread
+     *
+     * @param url the webhook URL
+     */
+    public AnomalyWebhookListener(URL url) {
+        this.url = url;
+        thread = new Thread(this, "AnomalyWebhook");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the number of events dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public void anomalyDetected(AnomalyEvent event) {
+        if (!queue.offer(event)) {
+            dropped++;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            AnomalyEvent event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                post(event);
+            } catch (IOException e) {
+                System.err.println("Unable to post anomaly to " + url + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void post(AnomalyEvent event) throws IOException {
+        byte[] body = event.toJson().getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                System.err.println("Anomaly webhook " + url + " returned " + status);
+            }
+            // Read the response so the connection can be reused
+            try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                byte[] buffer = new byte[256];
+                while (in != null && in.read(buffer) != -1) {
+                    continue;
+                }
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+}
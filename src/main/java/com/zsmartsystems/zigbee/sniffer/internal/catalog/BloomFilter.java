@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.catalog;
+
+/**
+ * A fixed size bloom filter of long keys, used to record the device addresses seen in a capture segment. A key that
+ * was added is always found, and a key that was not added is found with a small false positive rate.
+ * <p>
+ * The filter is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class BloomFilter {
+    /**
+     * The default number of 64 bit words in the filter. With 4096 bits and 4 hashes the false positive rate is about
+     * 2% with 500 keys.
+     */
+    public static final int DEFAULT_WORDS = 64;
+
+    private static final int HASHES = 4;
+
+    private final long[] words;
+
+    /**
+     * Creates an empty filter of the default size
+     */
+    public BloomFilter() {
+        this(new long[DEFAULT_WORDS]);
+    }
+
+    /**
+     * Creates a filter from stored words
+     *
+     * @param words the filter bits - the number of words must be a power of two
+     */
+    public BloomFilter(long[] words) {
+        if (Integer.bitCount(words.length) != 1) {
+            throw new IllegalArgumentException("Bloom filter size must be a power of two");
+        }
+        this.words = words;
+    }
+
+    /**
+     * @return the filter bits. The array is not copied.
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /**
+     * Adds a key to the filter
+     *
+     * @param key the key
+     */
+    public void add(long key) {
+        long hash = mix(key);
+        int mask = words.length * 64 - 1;
+        for (int cnt = 0; cnt < HASHES; cnt++) {
+            int bit = (int) (hash >>> (cnt * 16)) & mask;
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks if a key may have been added to the filter
+     *
+     * @param key the key
+     * @return false if the key was definitely not added
+     */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        int mask = words.length * 64 - 1;
+        for (int cnt = 0; cnt < HASHES; cnt++) {
+            int bit = (int) (hash >>> (cnt * 16)) & mask;
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long mix(long key) {
+        long hash = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.catalog;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append only manifest of the capture segments written by a sink, so that segments can be selected by time,
+ * channel and device without opening them. One {@link SegmentInfo} record is appended each time a segment is closed.
+ * <p>
+ * The file starts with the magic number and version (two 32 bit integers), followed by the records. Each record is
+ * the payload length, the payload, and the CRC32 of the payload. The payload holds the segment name (modified UTF-8),
+ * the first and last timestamp, the channel mask, the frame count, the file size, the number of bloom filter words
+ * and the words. All values are big endian.
+ * <p>
+ * A record that was only partly written, for example because the sniffer was stopped while appending, is ignored
+ * along with anything following it, and is removed before the next record is appended.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SegmentCatalog {
+    /**
+     * The file name extension of a catalog
+     */
+    public static final String EXTENSION = ".catalog";
+
+    private static final int MAGIC = 0x5A434154;
+    private static final int VERSION = 1;
+    private static final int MAX_RECORD_LENGTH = 65536;
+    private static final int MAX_BLOOM_WORDS = 1024;
+
+    private final File file;
+    private long validLength;
+    private boolean checked;
+
+    /**
+     * Creates a catalog. The file is created when the first segment is added.
+     *
+     * @param filename the catalog file name
+     */
+    public SegmentCatalog(String filename) {
+        file = new File(filename);
+    }
+
+    /**
+     * @return the directory holding the catalog and its segments
+     */
+    public File getDirectory() {
+        return file.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * Appends a segment to the catalog
+     *
+     * @param segment the {@link SegmentInfo}
+     * @throws IOException if the catalog can't be written
+     */
+    public void append(SegmentInfo segment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(600);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeUTF(segment.getName());
+        payload.writeLong(segment.getFirstTimestamp());
+        payload.writeLong(segment.getLastTimestamp());
+        payload.writeInt(segment.getChannels());
+        payload.writeLong(segment.getFrames());
+        payload.writeLong(segment.getBytes());
+        long[] words = segment.getDevices().getWords();
+        payload.writeShort(words.length);
+        for (long word : words) {
+            payload.writeLong(word);
+        }
+        payload.flush();
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+
+        if (!checked) {
+            // Remove any partly written record left at the end of the catalog
+            read();
+            if (file.exists() && file.length() != validLength) {
+                try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                    truncate.setLength(validLength);
+                }
+            }
+            checked = true;
+        }
+
+        boolean create = validLength == 0;
+        try (FileOutputStream output = new FileOutputStream(file, true)) {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(bytes.size() + 16);
+            DataOutputStream recordOutput = new DataOutputStream(record);
+            if (create) {
+                recordOutput.writeInt(MAGIC);
+                recordOutput.writeInt(VERSION);
+            }
+            recordOutput.writeInt(bytes.size());
+            bytes.writeTo(recordOutput);
+            recordOutput.writeInt((int) crc.getValue());
+            // Write the record in one call so a partial record can only be left by a failure part way through
+            output.write(record.toByteArray());
+            validLength += record.size();
+        }
+    }
+
+    /**
+     * Reads all the complete records in the catalog
+     *
+     * @return the list of {@link SegmentInfo}s in the order they were added - empty if the catalog doesn't exist
+     * @throws IOException if the catalog can't be read or is not a segment catalog
+     */
+    public List<SegmentInfo> read() throws IOException {
+        List<SegmentInfo> segments = new ArrayList<>();
+        validLength = 0;
+        if (!file.exists()) {
+            return segments;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException(file + " is not a segment catalog");
+            }
+            validLength = 8;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = input.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if (input.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                SegmentInfo segment = decode(bytes);
+                if (segment == null) {
+                    break;
+                }
+                segments.add(segment);
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // The end of the catalog, or a partly written record
+        }
+        return segments;
+    }
+
+    private SegmentInfo decode(byte[] bytes) throws IOException {
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+        String name = payload.readUTF();
+        long firstTimestamp = payload.readLong();
+        long lastTimestamp = payload.readLong();
+        int channels = payload.readInt();
+        long frames = payload.readLong();
+        long size = payload.readLong();
+        int count = payload.readUnsignedShort();
+        if (count == 0 || count > MAX_BLOOM_WORDS || Integer.bitCount(count) != 1) {
+            return null;
+        }
+        long[] words = new long[count];
+        for (int cnt = 0; cnt < count; cnt++) {
+            words[cnt] = payload.readLong();
+        }
+        return new SegmentInfo(name, firstTimestamp, lastTimestamp, channels, frames, size, new BloomFilter(words));
+    }
+}
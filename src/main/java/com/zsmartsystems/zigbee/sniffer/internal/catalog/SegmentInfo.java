@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.catalog;
+
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * The summary of a capture segment held in the {@link SegmentCatalog} - the time of the first and last frame, the
+ * channels, the number of frames, the file size, and a {@link BloomFilter} of the MAC source and destination
+ * addresses. Timestamps are in microseconds, in the time written to the file.
+ * <p>
+ * The summary is built by calling {@link #frameReceived(long, int, int[], int)} for each frame written to the segment.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SegmentInfo {
+    private final String name;
+    private final BloomFilter devices;
+    private final MacHeader header;
+    private long firstTimestamp = Long.MAX_VALUE;
+    private long lastTimestamp = Long.MIN_VALUE;
+    private int channels;
+    private long frames;
+    private long bytes;
+
+    /**
+     * Creates an empty summary for a new segment
+     *
+     * @param name the segment file name, without the directory
+     */
+    public SegmentInfo(String name) {
+        this.name = name;
+        devices = new BloomFilter();
+        header = new MacHeader();
+    }
+
+    SegmentInfo(String name, long firstTimestamp, long lastTimestamp, int channels, long frames, long bytes,
+            BloomFilter devices) {
+        this.name = name;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.channels = channels;
+        this.frames = frames;
+        this.bytes = bytes;
+        this.devices = devices;
+        header = new MacHeader();
+    }
+
+    /**
+     * Adds a frame to the summary
+     *
+     * @param timestamp the frame time in microseconds
+     * @param channel the channel, or 0 if it is not known
+     * @param data the frame
+     * @param length the frame length
+     */
+    public void frameReceived(long timestamp, int channel, int[] data, int length) {
+        if (timestamp < firstTimestamp) {
+            firstTimestamp = timestamp;
+        }
+        if (timestamp > lastTimestamp) {
+            lastTimestamp = timestamp;
+        }
+        if (channel > 0 && channel < 32) {
+            channels |= 1 << channel;
+        }
+        frames++;
+        if (header.parse(data, length)) {
+            if (header.getSourceAddressMode() != MacHeader.ADDRESS_MODE_NONE) {
+                devices.add(header.getSourceAddress());
+            }
+            if (header.getDestinationAddressMode() != MacHeader.ADDRESS_MODE_NONE) {
+                devices.add(header.getDestinationAddress());
+            }
+        }
+    }
+
+    /**
+     * Sets the size of the segment file
+     *
+     * @param bytes the file size in bytes
+     */
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return the segment file name, without the directory
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the time of the first frame in microseconds
+     */
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * @return the time of the last frame in microseconds
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return a bit mask of the channels in the segment, with bit n set for channel n, or 0 if the channels are not
+     *         known
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return the number of frames in the segment
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the size of the segment file in bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    BloomFilter getDevices() {
+        return devices;
+    }
+
+    /**
+     * Checks if the segment may hold frames in a time range
+     *
+     * @param from the start of the range in microseconds
+     * @param to the end of the range in microseconds
+     * @return false if no frame in the segment is in the range
+     */
+    public boolean overlaps(long from, long to) {
+        return frames != 0 && firstTimestamp <= to && lastTimestamp >= from;
+    }
+
+    /**
+     * Checks if the segment may hold frames on a channel
+     *
+     * @param channel the channel
+     * @return false if no frame in the segment was received on the channel
+     */
+    public boolean mayContainChannel(int channel) {
+        return channels == 0 || (channel > 0 && channel < 32 && (channels & (1 << channel)) != 0);
+    }
+
+    /**
+     * Checks if the segment may hold frames to or from a device
+     *
+     * @param address the short or extended MAC address
+     * @return false if no frame in the segment was sent to or from the address
+     */
+    public boolean mayContainDevice(long address) {
+        return devices.mightContain(address);
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.collector;
+
+/**
+ * Throughput and loss counters for a remote sniffer node, identified by its ZEP device ID. The counters are only
+ * updated by the worker that owns the node, and are read by the reporting thread.
+ * <p>
+ * Frames lost between the node and the collector are counted from gaps in the ZEP sequence number, which the
+ * sniffer increments for each frame it sends.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NodeStatistics {
+    /**
+     * The largest sequence number jump that is counted as lost frames - a larger jump is taken as a restart of the
+     * remote sniffer
+     */
+    private static final long MAX_GAP = 100000;
+
+    private final int deviceId;
+    private final String site;
+    private volatile String remote;
+    private volatile long frames;
+    private volatile long bytes;
+    private volatile long lost;
+    private volatile long invalid;
+    private volatile long lastSeen;
+    private long lastSequence = -1;
+
+    // Counts at the last report, used to calculate the rates
+    private long reportFrames;
+    private long reportBytes;
+
+    NodeStatistics(int deviceId, String site) {
+        this.deviceId = deviceId;
+        this.site = site;
+    }
+
+    /**
+     * Adds a received frame
+     *
+     * @param remote the address the frame was received from
+     * @param sequence the ZEP sequence number, or -1 if the frame has no sequence number
+     * @param length the length of the ZEP frame in bytes
+     */
+    void frameReceived(String remote, long sequence, int length) {
+        this.remote = remote;
+        frames++;
+        bytes += length;
+        lastSeen = System.currentTimeMillis();
+        if (sequence == -1) {
+            return;
+        }
+        if (lastSequence != -1) {
+            long gap = (sequence - lastSequence) & 0xFFFFFFFFL;
+            if (gap > 1 && gap <= MAX_GAP) {
+                lost += gap - 1;
+            }
+        }
+        lastSequence = sequence;
+    }
+
+    /**
+     * Adds a frame that could not be decoded
+     */
+    void invalidReceived() {
+        invalid++;
+    }
+
+    /**
+     * @return the ZEP device ID
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return the site the node belongs to
+     */
+    public String getSite() {
+        return site;
+    }
+
+    /**
+     * @return the address the last frame was received from
+     */
+    public String getRemote() {
+        return remote;
+    }
+
+    /**
+     * @return the number of frames received
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of ZEP bytes received
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of frames missing from the ZEP sequence
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    /**
+     * @return the number of frames that could not be decoded
+     */
+    public long getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * @return the time the last frame was received in milliseconds
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Gets the frames and bytes received since the last call. Only called by the reporting thread.
+     *
+     * @return the frames and bytes since the last report
+     */
+    long[] takeInterval() {
+        long currentFrames = frames;
+        long currentBytes = bytes;
+        long[] interval = { currentFrames - reportFrames, currentBytes - reportBytes };
+        reportFrames = currentFrames;
+        reportBytes = currentBytes;
+        return interval;
+    }
+}
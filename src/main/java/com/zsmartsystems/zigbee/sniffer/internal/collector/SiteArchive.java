@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.collector;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapngSink;
+
+/**
+ * Merges the frames from all the nodes at a site into one time ordered pcapng file. Frames from different nodes
+ * arrive with different delays, so they are held in a reorder buffer and written once they are older than the reorder
+ * window, measured back from the newest frame received from the site. When the site goes quiet for the reorder window
+ * all held frames are written.
+ * <p>
+ * A frame that arrives after a later frame has been written is still written, and is counted as late.
+ * <p>
+ * Frames are added by the collector workers, and are written by a single flushing thread.
+ *
+ * @author Chris Jackson
+ *
+ */
+class SiteArchive {
+    /**
+     * The maximum number of frames held - older frames are written early if more are held
+     */
+    private static final int MAX_PENDING = 1000000;
+
+    private final String name;
+    private final String filename;
+    private final WiresharkPcapngSink sink;
+    private final long windowMicros;
+    private final PriorityQueue<SnifferPacket> pending = new PriorityQueue<>(1024, new Comparator<SnifferPacket>() {
+        @Override
+        public int compare(SnifferPacket packet1, SnifferPacket packet2) {
+            return Long.compare(packet1.getTimestampMicros(), packet2.getTimestampMicros());
+        }
+    });
+    private long newestTimestamp = Long.MIN_VALUE;
+    private long lastWritten = Long.MIN_VALUE;
+    private long lastReceived;
+    private long frames;
+    private long late;
+
+    /**
+     * Creates the archive and opens the file
+     *
+     * @param name the site name
+     * @param filename the pcapng file name
+     * @param windowMillis the reorder window in milliseconds
+     * @throws FileNotFoundException if the file could not be created
+     */
+    SiteArchive(String name, String filename, long windowMillis) throws FileNotFoundException {
+        this.name = name;
+        this.filename = filename;
+        this.windowMicros = windowMillis * 1000;
+        sink = new WiresharkPcapngSink(filename);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getFilename() {
+        return filename;
+    }
+
+    synchronized long getFrames() {
+        return frames;
+    }
+
+    synchronized long getLate() {
+        return late;
+    }
+
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Adds a frame to the reorder buffer
+     *
+     * @param packet the {@link SnifferPacket}, which is held by the archive
+     */
+    synchronized void add(SnifferPacket packet) {
+        long timestamp = packet.getTimestampMicros();
+        if (timestamp < lastWritten) {
+            late++;
+        }
+        if (timestamp > newestTimestamp) {
+            newestTimestamp = timestamp;
+        }
+        lastReceived = System.currentTimeMillis();
+        pending.add(packet);
+    }
+
+    /**
+     * Writes the frames that are older than the reorder window. Only called from the flushing thread.
+     *
+     * @param all true to write all held frames
+     */
+    void flush(boolean all) {
+        List<SnifferPacket> packets = new ArrayList<>();
+        synchronized (this) {
+            boolean quiet = System.currentTimeMillis() - lastReceived > windowMicros / 1000;
+            long limit = all || quiet ? Long.MAX_VALUE : newestTimestamp - windowMicros;
+            while (!pending.isEmpty()
+                    && (pending.peek().getTimestampMicros() <= limit || pending.size() > MAX_PENDING)) {
+                SnifferPacket packet = pending.poll();
+                if (packet.getTimestampMicros() > lastWritten) {
+                    lastWritten = packet.getTimestampMicros();
+                }
+                packets.add(packet);
+            }
+            frames += packets.size();
+        }
+        if (!packets.isEmpty()) {
+            sink.packetsReceived(packets);
+        }
+    }
+
+    /**
+     * Writes all held frames and closes the file. Only called once the flushing thread has stopped.
+     */
+    void close() {
+        flush(true);
+        sink.close();
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.collector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepDecoder;
+
+/**
+ * Receives ZEP frames from many remote sniffers and writes one merged, time ordered pcapng archive per site.
+ * <p>
+ * All sockets are handled by a single thread with NIO channels. Frames are received over UDP, as sent by
+ * {@link com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepSink}, and optionally over TCP where each ZEP
+ * frame is preceded by its length as a 16 bit big endian integer. Each frame is passed to one of a fixed number of
+ * worker threads chosen by the ZEP device ID, so all frames from a node are decoded in order by the same worker, and
+ * the nodes are spread over the workers. Each worker has a fixed number of receive buffers - if a worker can't keep
+ * up, frames for its nodes are dropped and counted.
+ * <p>
+ * Nodes are assigned to sites by their device ID. Nodes that are not assigned are written to their own archive.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ZepCollector implements Closeable {
+    private static final int BUFFERS_PER_WORKER = 4096;
+    private static final int MAX_DATAGRAM = 2048;
+    private static final long FLUSH_PERIOD = 100;
+
+    private final int workers;
+    private final Map<Integer, String> sites;
+    private final File directory;
+    private final long windowMillis;
+    private final String startTime;
+
+    private final Selector selector;
+    private final DatagramChannel udpChannel;
+    private final ServerSocketChannel tcpChannel;
+    private final List<BlockingQueue<Datagram>> queues = new ArrayList<>();
+    private final List<BlockingQueue<Datagram>> freeBuffers = new ArrayList<>();
+    private final AtomicLongArray dropped;
+    private final List<Thread> threads = new ArrayList<>();
+    private final ScheduledExecutorService flusher;
+    private final Map<Integer, NodeStatistics> nodes = new ConcurrentHashMap<>();
+    private final Map<String, SiteArchive> archives = new ConcurrentHashMap<>();
+    private volatile long invalid;
+    private volatile boolean running = true;
+    private long lastReport = System.currentTimeMillis();
+
+    /**
+     * A received ZEP frame waiting to be decoded. The buffers are reused.
+     */
+    private static class Datagram {
+        final byte[] data = new byte[MAX_DATAGRAM];
+        int length;
+        String remote;
+    }
+
+    /**
+     * Creates the collector, opens the sockets and starts receiving
+     *
+     * @param udpPort the UDP port to receive ZEP on
+     * @param tcpPort the TCP port to accept ZEP streams on, or 0 to only use UDP
+     * @param workers the number of decoding threads
+     * @param sites the site name for each device ID
+     * @param directory the directory to write the archives in
+     * @param windowMillis the reorder window in milliseconds
+     * @throws IOException if a socket can't be opened
+     */
+    public ZepCollector(int udpPort, int tcpPort, int workers, Map<Integer, String> sites, File directory,
+            long windowMillis) throws IOException {
+        this.workers = workers;
+        this.sites = sites;
+        this.directory = directory;
+        this.windowMillis = windowMillis;
+        dropped = new AtomicLongArray(workers);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        startTime = format.format(new Date());
+
+        selector = Selector.open();
+        udpChannel = DatagramChannel.open();
+        udpChannel.bind(new InetSocketAddress(udpPort));
+        udpChannel.configureBlocking(false);
+        udpChannel.register(selector, SelectionKey.OP_READ);
+        if (tcpPort != 0) {
+            tcpChannel = ServerSocketChannel.open();
+            tcpChannel.bind(new InetSocketAddress(tcpPort));
+            tcpChannel.configureBlocking(false);
+            tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } else {
+            tcpChannel = null;
+        }
+
+        for (int cnt = 0; cnt < workers; cnt++) {
+            BlockingQueue<Datagram> queue = new ArrayBlockingQueue<>(BUFFERS_PER_WORKER);
+            BlockingQueue<Datagram> free = new ArrayBlockingQueue<>(BUFFERS_PER_WORKER);
+            for (int buffer = 0; buffer < BUFFERS_PER_WORKER; buffer++) {
+                free.add(new Datagram());
+            }
+            queues.add(queue);
+            freeBuffers.add(free);
+        }
+        for (int cnt = 0; cnt < workers; cnt++) {
+            final int worker = cnt;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    decodeFrames(queues.get(worker), freeBuffers.get(worker));
+                }
+            }, "ZepCollectorWorker-" + cnt);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ZepCollectorFlush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (SiteArchive archive : archives.values()) {
+                    archive.flush(false);
+                }
+            }
+        }, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "ZepCollectorReceive");
+        receiver.setDaemon(true);
+        receiver.start();
+        threads.add(0, receiver);
+    }
+
+    /**
+     * @return the statistics for each node that has sent a frame
+     */
+    public List<NodeStatistics> getNodes() {
+        List<NodeStatistics> list = new ArrayList<>(nodes.values());
+        Collections.sort(list, new Comparator<NodeStatistics>() {
+            @Override
+            public int compare(NodeStatistics node1, NodeStatistics node2) {
+                int site = node1.getSite().compareTo(node2.getSite());
+                return site != 0 ? site : Integer.compare(node1.getDeviceId(), node2.getDeviceId());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return the number of frames dropped because a worker could not keep up
+     */
+    public long getDropped() {
+        long total = 0;
+        for (int cnt = 0; cnt < workers; cnt++) {
+            total += dropped.get(cnt);
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of received datagrams that were not ZEP data frames
+     */
+    public long getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Prints the node and site statistics. The rates are calculated since the last report.
+     *
+     * @param out the {@link PrintStream}
+     */
+    public synchronized void report(PrintStream out) {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastReport) / 1000.0;
+        lastReport = now;
+
+        out.println("Node  Site                 Remote              Frames   Frames/s     kB/s     Lost   Loss%"
+                + "  Invalid  Idle");
+        for (NodeStatistics node : getNodes()) {
+            long[] interval = node.takeInterval();
+            long frames = node.getFrames();
+            long lost = node.getLost();
+            out.println(String.format("%04X  %-20s %-15s %10d %10.1f %8.1f %8d %7.2f %8d %5d", node.getDeviceId(),
+                    node.getSite(), node.getRemote(), frames, interval[0] / seconds, interval[1] / seconds / 1024,
+                    lost, frames + lost == 0 ? 0 : lost * 100.0 / (frames + lost), node.getInvalid(),
+                    (now - node.getLastSeen()) / 1000));
+        }
+        for (SiteArchive archive : archives.values()) {
+            out.println(String.format("Site %-20s %10d written %8d late %8d pending  %s", archive.getName(),
+                    archive.getFrames(), archive.getLate(), archive.getPending(), archive.getFilename()));
+        }
+        out.println("Collector dropped " + getDropped() + " frames, " + getInvalid() + " invalid datagrams");
+    }
+
+    /**
+     * Stops receiving, writes all held frames and closes the archives
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        for (Thread thread : threads) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SiteArchive archive : archives.values()) {
+            archive.close();
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        try {
+            while (running) {
+                selector.select(1000);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.channel() == udpChannel) {
+                        SocketAddress address;
+                        while ((address = udpChannel.receive(buffer)) != null) {
+                            dispatch(buffer.array(), 0, buffer.position(),
+                                    ((InetSocketAddress) address).getAddress().getHostAddress());
+                            buffer.clear();
+                        }
+                    } else if (key.isAcceptable()) {
+                        SocketChannel connection = tcpChannel.accept();
+                        if (connection != null) {
+                            connection.configureBlocking(false);
+                            connection.register(selector, SelectionKey.OP_READ,
+                                    ByteBuffer.allocate(MAX_DATAGRAM + 2));
+                        }
+                    } else if (key.isReadable()) {
+                        readStream(key);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads from a TCP connection, and passes on each complete length prefixed frame
+     */
+    private void readStream(SelectionKey key) {
+        SocketChannel connection = (SocketChannel) key.channel();
+        ByteBuffer buffer = (ByteBuffer) key.attachment();
+        String remote = connection.socket().getInetAddress().getHostAddress();
+        try {
+            if (connection.read(buffer) == -1) {
+                key.cancel();
+                connection.close();
+                return;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= 2) {
+                int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                if (length > MAX_DATAGRAM) {
+                    System.err.println("Closing ZEP stream from " + remote + " with invalid frame length " + length);
+                    key.cancel();
+                    connection.close();
+                    return;
+                }
+                if (buffer.remaining() < 2 + length) {
+                    break;
+                }
+                dispatch(buffer.array(), buffer.position() + 2, length, remote);
+                buffer.position(buffer.position() + 2 + length);
+            }
+            buffer.compact();
+        } catch (IOException e) {
+            key.cancel();
+            try {
+                connection.close();
+            } catch (IOException closeException) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Copies a received frame into a buffer of the worker that handles the node. Called from the receive thread.
+     */
+    private void dispatch(byte[] data, int offset, int length, String remote) {
+        int deviceId = WiresharkZepDecoder.getDeviceId(data, offset, length);
+        if (deviceId == -1 || length > MAX_DATAGRAM) {
+            invalid++;
+            return;
+        }
+        int worker = deviceId % workers;
+        Datagram datagram = freeBuffers.get(worker).poll();
+        if (datagram == null) {
+            dropped.incrementAndGet(worker);
+            return;
+        }
+        System.arraycopy(data, offset, datagram.data, 0, length);
+        datagram.length = length;
+        datagram.remote = remote;
+        queues.get(worker).add(datagram);
+    }
+
+    /**
+     * Decodes the frames for the nodes handled by a worker, and adds them to the site archives
+     */
+    private void decodeFrames(BlockingQueue<Datagram> queue, BlockingQueue<Datagram> free) {
+        WiresharkZepDecoder decoder = new WiresharkZepDecoder();
+        while (running || !queue.isEmpty()) {
+            Datagram datagram;
+            try {
+                datagram = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (datagram == null) {
+                continue;
+            }
+            SnifferPacket packet = new SnifferPacket();
+            boolean valid = decoder.decode(datagram.data, 0, datagram.length, packet);
+            NodeStatistics node = getNode(WiresharkZepDecoder.getDeviceId(datagram.data, 0, datagram.length));
+            if (valid) {
+                packet.setSequence(decoder.getSequence());
+                node.frameReceived(datagram.remote, decoder.getVersion() == 1 ? -1 : decoder.getSequence(),
+                        datagram.length);
+                SiteArchive archive = getArchive(node.getSite());
+                if (archive != null) {
+                    archive.add(packet);
+                }
+            } else {
+                node.invalidReceived();
+            }
+            free.add(datagram);
+        }
+    }
+
+    private NodeStatistics getNode(int deviceId) {
+        NodeStatistics node = nodes.get(deviceId);
+        if (node == null) {
+            String site = sites.get(deviceId);
+            node = new NodeStatistics(deviceId, site != null ? site : String.format("node-%04X", deviceId));
+            NodeStatistics existing = nodes.putIfAbsent(deviceId, node);
+            if (existing != null) {
+                node = existing;
+            }
+        }
+        return node;
+    }
+
+    private SiteArchive getArchive(String site) {
+        SiteArchive archive = archives.get(site);
+        if (archive != null) {
+            return archive;
+        }
+        synchronized (archives) {
+            archive = archives.get(site);
+            if (archive == null) {
+                String filename = new File(directory, site + "-" + startTime + ".pcapng").getPath();
+                try {
+                    archive = new SiteArchive(site, filename, windowMillis);
+                } catch (FileNotFoundException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+                archives.put(site, archive);
+            }
+            return archive;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.columnar;
+
+import java.util.Arrays;
+
+/**
+ * A growable little endian byte buffer used to encode and decode a column. The buffer is reused between row groups.
+ *
+ * @author Chris Jackson
+ *
+ */
+class ColumnBuffer {
+    private byte[] data;
+    private int length;
+    private int position;
+
+    ColumnBuffer(int capacity) {
+        data = new byte[capacity];
+    }
+
+    byte[] getData() {
+        return data;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    /**
+     * Clears the buffer and makes sure it can hold the given number of bytes without growing
+     *
+     * @param capacity the number of bytes
+     */
+    void reset(int capacity) {
+        if (data.length < capacity) {
+            data = new byte[capacity];
+        }
+        length = 0;
+        position = 0;
+    }
+
+    /**
+     * Sets the length of data that has been written directly into {@link #getData()}, and starts reading from the
+     * beginning of the buffer
+     *
+     * @param length the number of bytes
+     */
+    void setLength(int length) {
+        this.length = length;
+        position = 0;
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        data[length++] = (byte) value;
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        for (int cnt = 0; cnt < 4; cnt++) {
+            data[length++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    void putLong(long value) {
+        ensure(8);
+        for (int cnt = 0; cnt < 8; cnt++) {
+            data[length++] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    void putVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            data[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[length++] = (byte) value;
+    }
+
+    void putBytes(ColumnBuffer source) {
+        ensure(source.length);
+        System.arraycopy(source.data, 0, data, length, source.length);
+        length += source.length;
+    }
+
+    void putZigzag(long value) {
+        putVarint((value << 1) ^ (value >> 63));
+    }
+
+    int getByte() {
+        return data[position++];
+    }
+
+    int getInt() {
+        int value = 0;
+        for (int cnt = 0; cnt < 4; cnt++) {
+            value |= (data[position++] & 0xFF) << (cnt * 8);
+        }
+        return value;
+    }
+
+    long getLong() {
+        long value = 0;
+        for (int cnt = 0; cnt < 8; cnt++) {
+            value |= (data[position++] & 0xFFL) << (cnt * 8);
+        }
+        return value;
+    }
+
+    long getVarint() {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    long getZigzag() {
+        long value = getVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Makes sure that the given number of bytes can be added without growing the buffer
+     *
+     * @param count the number of bytes
+     */
+    void ensure(int count) {
+        if (length + count > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + count));
+        }
+    }
+}
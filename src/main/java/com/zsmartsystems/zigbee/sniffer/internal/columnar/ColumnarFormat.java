@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.columnar;
+
+/**
+ * Constants for the columnar capture format. The file is written little endian and looks like this -:
+ *
+ * <pre>
+ * file header      int64 FILE_MAGIC, int32 VERSION
+ * row group        int32 ROW_GROUP_MAGIC, int32 rows, int32 columns
+ *                  column directory - for each column:
+ *                      uint8 column, uint8 encoding, int64 min, int64 max, int32 stored length, int32 length
+ *                  column data - for each column, stored length bytes
+ * ...
+ * footer           int32 FOOTER_MAGIC, int32 row groups
+ *                  for each row group: int64 offset, int32 rows, and for each column: int64 min, int64 max
+ * trailer          int32 footer length, int64 FILE_MAGIC
+ * </pre>
+ * <p>
+ * Each column in a row group is encoded as below, and is then compressed with deflate if the encoding is
+ * {@link #ENCODING_DEFLATE}. Varints are unsigned LEB128.
+ * <ul>
+ * <li>{@link #COLUMN_TIMESTAMP}: the difference from the previous timestamp in microseconds as a zigzag varint. The
+ * first difference is from 0.
+ * <li>{@link #COLUMN_CHANNEL}, {@link #COLUMN_RSSI}, {@link #COLUMN_LQI}, {@link #COLUMN_FRAME_TYPE}: one byte per
+ * row. The RSSI is signed, and the frame type is 255 if the MAC header could not be decoded.
+ * <li>{@link #COLUMN_PAN}: the PAN ID plus one as a varint, or 0 if the frame has no PAN ID.
+ * <li>{@link #COLUMN_SOURCE}, {@link #COLUMN_DESTINATION}: a dictionary of the addresses in the row group - a varint
+ * count followed by a uint8 address mode and int64 address for each entry - and then the dictionary index plus one
+ * as a varint for each row, or 0 if the frame has no address.
+ * <li>{@link #COLUMN_FRAME}: the raw frame, including the FCS, as a varint length followed by the bytes.
+ * </ul>
+ * <p>
+ * The min and max statistics hold the lowest and highest value in the column, using the same values as
+ * {@link ColumnarReader#readColumn}, ignoring rows where the value is not present. For the frame column they hold the
+ * frame lengths. If no row has a value, min is greater than max.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ColumnarFormat {
+    public static final long FILE_MAGIC = 0x314C4F43425A5A00L;
+    public static final int VERSION = 1;
+    public static final int ROW_GROUP_MAGIC = 0x5052435A;
+    public static final int FOOTER_MAGIC = 0x5446435A;
+
+    public static final int FILE_HEADER_LENGTH = 12;
+    public static final int ROW_GROUP_HEADER_LENGTH = 12;
+    public static final int DIRECTORY_ENTRY_LENGTH = 26;
+    public static final int TRAILER_LENGTH = 12;
+
+    public static final int ENCODING_PLAIN = 0;
+    public static final int ENCODING_DEFLATE = 1;
+
+    public static final int COLUMN_TIMESTAMP = 0;
+    public static final int COLUMN_CHANNEL = 1;
+    public static final int COLUMN_RSSI = 2;
+    public static final int COLUMN_LQI = 3;
+    public static final int COLUMN_FRAME_TYPE = 4;
+    public static final int COLUMN_PAN = 5;
+    public static final int COLUMN_SOURCE = 6;
+    public static final int COLUMN_DESTINATION = 7;
+    public static final int COLUMN_FRAME = 8;
+    public static final int COLUMNS = 9;
+
+    public static final String[] COLUMN_NAMES = { "timestamp", "channel", "rssi", "lqi", "frame_type", "pan", "source",
+            "destination", "frame" };
+
+    private ColumnarFormat() {
+    }
+}
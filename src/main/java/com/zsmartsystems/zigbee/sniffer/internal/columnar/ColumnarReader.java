@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.columnar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a file written by {@link ColumnarWriter}. The row groups are listed from the footer, and each column of a row
+ * group can be read on its own, so a query only reads the columns it uses. Row groups can be skipped using their
+ * column statistics without reading any column data.
+ * <p>
+ * If the file has no footer, for example because the sniffer was stopped without closing the file, the row groups are
+ * found by reading the row group headers from the start of the file.
+ * <p>
+ * The reader is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ColumnarReader implements Closeable {
+    private static final int DIRECTORY_LENGTH = ColumnarFormat.ROW_GROUP_HEADER_LENGTH
+            + ColumnarFormat.COLUMNS * ColumnarFormat.DIRECTORY_ENTRY_LENGTH;
+
+    private final FileChannel channel;
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+    private final Inflater inflater = new Inflater();
+    private final ColumnBuffer stored = new ColumnBuffer(65536);
+    private final ColumnBuffer column = new ColumnBuffer(65536);
+
+    /**
+     * A row group in the file, with the statistics for each column
+     */
+    public static class RowGroup {
+        private final long offset;
+        private final int rows;
+        private final long[] min = new long[ColumnarFormat.COLUMNS];
+        private final long[] max = new long[ColumnarFormat.COLUMNS];
+
+        RowGroup(long offset, int rows) {
+            this.offset = offset;
+            this.rows = rows;
+        }
+
+        /**
+         * @return the number of rows in the group
+         */
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @param column the column
+         * @return the lowest value in the column
+         */
+        public long getMin(int column) {
+            return min[column];
+        }
+
+        /**
+         * @param column the column
+         * @return the highest value in the column
+         */
+        public long getMax(int column) {
+            return max[column];
+        }
+
+        /**
+         * Checks if a column may hold values in a range, so that row groups that can't match a query can be skipped
+         *
+         * @param column the column
+         * @param from the lowest value
+         * @param to the highest value
+         * @return false if no row in the group has a value in the range
+         */
+        public boolean mayContain(int column, long from, long to) {
+            return min[column] <= to && max[column] >= from;
+        }
+    }
+
+    /**
+     * Opens the file and reads the list of row groups
+     *
+     * @param filename the file name
+     * @throws IOException if the file can't be read or is not a columnar capture file
+     */
+    public ColumnarReader(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            ColumnBuffer header = read(0, ColumnarFormat.FILE_HEADER_LENGTH, stored);
+            if (header == null || header.getLong() != ColumnarFormat.FILE_MAGIC
+                    || header.getInt() != ColumnarFormat.VERSION) {
+                throw new IOException(filename + " is not a columnar capture file");
+            }
+            if (!readFooter()) {
+                scanRowGroups();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the row groups in the file, in the order they were written
+     */
+    public List<RowGroup> getRowGroups() {
+        return Collections.unmodifiableList(rowGroups);
+    }
+
+    /**
+     * Reads a column of a row group. The values are as described in {@link ColumnarFormat} - timestamps are in
+     * microseconds, the RSSI is signed, and a missing PAN ID or address is -1. For the frame column, the frame lengths
+     * are returned - use {@link #readFrames(RowGroup)} to read the frames.
+     *
+     * @param group the {@link RowGroup}
+     * @param columnId the column
+     * @return the value for each row
+     * @throws IOException if the column can't be read
+     */
+    public long[] readColumn(RowGroup group, int columnId) throws IOException {
+        ColumnBuffer buffer = readColumnData(group, columnId);
+        long[] values = new long[group.rows];
+        switch (columnId) {
+            case ColumnarFormat.COLUMN_TIMESTAMP:
+                long timestamp = 0;
+                for (int row = 0; row < group.rows; row++) {
+                    timestamp += buffer.getZigzag();
+                    values[row] = timestamp;
+                }
+                break;
+            case ColumnarFormat.COLUMN_RSSI:
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = buffer.getByte();
+                }
+                break;
+            case ColumnarFormat.COLUMN_CHANNEL:
+            case ColumnarFormat.COLUMN_LQI:
+            case ColumnarFormat.COLUMN_FRAME_TYPE:
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = buffer.getByte() & 0xFF;
+                }
+                break;
+            case ColumnarFormat.COLUMN_PAN:
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = buffer.getVarint() - 1;
+                }
+                break;
+            case ColumnarFormat.COLUMN_SOURCE:
+            case ColumnarFormat.COLUMN_DESTINATION:
+                long[] dictionary = new long[(int) buffer.getVarint() + 1];
+                dictionary[0] = -1;
+                for (int cnt = 1; cnt < dictionary.length; cnt++) {
+                    buffer.getByte();
+                    dictionary[cnt] = buffer.getLong();
+                }
+                for (int row = 0; row < group.rows; row++) {
+                    values[row] = dictionary[(int) buffer.getVarint()];
+                }
+                break;
+            case ColumnarFormat.COLUMN_FRAME:
+                for (int row = 0; row < group.rows; row++) {
+                    int length = (int) buffer.getVarint();
+                    values[row] = length;
+                    for (int cnt = 0; cnt < length; cnt++) {
+                        buffer.getByte();
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown column " + columnId);
+        }
+        return values;
+    }
+
+    /**
+     * Reads the raw frames of a row group, including the FCS
+     *
+     * @param group the {@link RowGroup}
+     * @return the frame for each row
+     * @throws IOException if the column can't be read
+     */
+    public int[][] readFrames(RowGroup group) throws IOException {
+        ColumnBuffer buffer = readColumnData(group, ColumnarFormat.COLUMN_FRAME);
+        int[][] frames = new int[group.rows][];
+        for (int row = 0; row < group.rows; row++) {
+            int[] frame = new int[(int) buffer.getVarint()];
+            for (int cnt = 0; cnt < frame.length; cnt++) {
+                frame[cnt] = buffer.getByte() & 0xFF;
+            }
+            frames[row] = frame;
+        }
+        return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        channel.close();
+    }
+
+    private ColumnBuffer readColumnData(RowGroup group, int columnId) throws IOException {
+        ColumnBuffer directory = read(group.offset, DIRECTORY_LENGTH, stored);
+        if (directory == null || directory.getInt() != ColumnarFormat.ROW_GROUP_MAGIC) {
+            throw new IOException("Invalid row group at " + group.offset);
+        }
+        directory.getInt();
+        int columns = directory.getInt();
+        long position = group.offset + DIRECTORY_LENGTH;
+        int encoding = 0;
+        int storedLength = 0;
+        int length = 0;
+        for (int cnt = 0; cnt < columns && cnt <= columnId; cnt++) {
+            position += storedLength;
+            directory.getByte();
+            encoding = directory.getByte();
+            directory.getLong();
+            directory.getLong();
+            storedLength = directory.getInt();
+            length = directory.getInt();
+        }
+
+        if (encoding == ColumnarFormat.ENCODING_PLAIN) {
+            return read(position, storedLength, column);
+        }
+        if (read(position, storedLength, stored) == null) {
+            throw new IOException("Truncated row group at " + group.offset);
+        }
+        column.reset(length);
+        inflater.reset();
+        inflater.setInput(stored.getData(), 0, storedLength);
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                inflated += inflater.inflate(column.getData(), inflated, length - inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column in row group at " + group.offset, e);
+        }
+        column.setLength(length);
+        return column;
+    }
+
+    private boolean readFooter() throws IOException {
+        long size = channel.size();
+        ColumnBuffer trailer = read(size - ColumnarFormat.TRAILER_LENGTH, ColumnarFormat.TRAILER_LENGTH, stored);
+        if (trailer == null) {
+            return false;
+        }
+        int footerLength = trailer.getInt();
+        if (trailer.getLong() != ColumnarFormat.FILE_MAGIC || footerLength < 8
+                || footerLength > size - ColumnarFormat.TRAILER_LENGTH) {
+            return false;
+        }
+        ColumnBuffer footer = read(size - ColumnarFormat.TRAILER_LENGTH - footerLength, footerLength, stored);
+        if (footer == null || footer.getInt() != ColumnarFormat.FOOTER_MAGIC) {
+            return false;
+        }
+        int count = footer.getInt();
+        for (int cnt = 0; cnt < count; cnt++) {
+            RowGroup group = new RowGroup(footer.getLong(), footer.getInt());
+            for (int columnId = 0; columnId < ColumnarFormat.COLUMNS; columnId++) {
+                group.min[columnId] = footer.getLong();
+                group.max[columnId] = footer.getLong();
+            }
+            rowGroups.add(group);
+        }
+        return true;
+    }
+
+    private void scanRowGroups() throws IOException {
+        long position = ColumnarFormat.FILE_HEADER_LENGTH;
+        long size = channel.size();
+        while (true) {
+            ColumnBuffer directory = read(position, DIRECTORY_LENGTH, stored);
+            if (directory == null || directory.getInt() != ColumnarFormat.ROW_GROUP_MAGIC) {
+                return;
+            }
+            RowGroup group = new RowGroup(position, directory.getInt());
+            int columns = directory.getInt();
+            long length = DIRECTORY_LENGTH;
+            for (int cnt = 0; cnt < columns; cnt++) {
+                int columnId = directory.getByte();
+                directory.getByte();
+                group.min[columnId] = directory.getLong();
+                group.max[columnId] = directory.getLong();
+                length += directory.getInt();
+                directory.getInt();
+            }
+            if (position + length > size) {
+                return;
+            }
+            rowGroups.add(group);
+            position += length;
+        }
+    }
+
+    /**
+     * Reads part of the file into a buffer
+     *
+     * @return the buffer, or null if the file is too short
+     */
+    private ColumnBuffer read(long position, int length, ColumnBuffer buffer) throws IOException {
+        if (position < 0 || position + length > channel.size()) {
+            return null;
+        }
+        buffer.reset(length);
+        ByteBuffer target = ByteBuffer.wrap(buffer.getData(), 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                return null;
+            }
+        }
+        buffer.setLength(length);
+        return buffer;
+    }
+}
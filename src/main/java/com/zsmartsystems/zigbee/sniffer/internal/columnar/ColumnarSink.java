@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.columnar;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that writes packets to a columnar capture file with a {@link ColumnarWriter}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ColumnarSink implements PacketSink {
+    private final ColumnarWriter writer;
+
+    /**
+     * Creates the sink and opens the file
+     *
+     * @param filename the file name
+     * @throws FileNotFoundException if the file could not be created
+     */
+    public ColumnarSink(String filename) throws FileNotFoundException {
+        writer = new ColumnarWriter(filename);
+    }
+
+    @Override
+    public String getName() {
+        return "columnar";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        try {
+            for (SnifferPacket packet : packets) {
+                writer.write(packet);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.columnar;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.LongKeyTable;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * Writes {@link SnifferPacket}s to a file in the columnar format described in {@link ColumnarFormat}. Rows are encoded
+ * into their columns as they are written, and each row group is compressed and written once it holds the row group
+ * size. The footer with the row group statistics is written when the writer is closed.
+ * <p>
+ * The writer is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ColumnarWriter implements Closeable {
+    /**
+     * The default number of rows in a row group
+     */
+    public static final int DEFAULT_ROW_GROUP_SIZE = 65536;
+
+    private static final int DIRECTORY_LENGTH = ColumnarFormat.ROW_GROUP_HEADER_LENGTH
+            + ColumnarFormat.COLUMNS * ColumnarFormat.DIRECTORY_ENTRY_LENGTH;
+
+    private final BufferedOutputStream output;
+    private final int rowGroupSize;
+    private final MacHeader header = new MacHeader();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    private final ColumnBuffer[] columns = new ColumnBuffer[ColumnarFormat.COLUMNS];
+    private final long[] min = new long[ColumnarFormat.COLUMNS];
+    private final long[] max = new long[ColumnarFormat.COLUMNS];
+    private final ColumnBuffer[] dictionaries = new ColumnBuffer[2];
+    private final LongKeyTable[][] addresses = new LongKeyTable[2][2];
+    private final int[] dictionarySize = new int[2];
+    private final ColumnBuffer directory = new ColumnBuffer(DIRECTORY_LENGTH);
+    private final ColumnBuffer compressed = new ColumnBuffer(65536);
+    private final ColumnBuffer footer = new ColumnBuffer(1024);
+
+    private int rows;
+    private long lastTimestamp;
+    private int rowGroups;
+    private long totalRows;
+    private long bytesWritten;
+
+    /**
+     * Creates the file with the default row group size
+     *
+     * @param filename the file name
+     * @throws FileNotFoundException if the file could not be created
+     */
+    public ColumnarWriter(String filename) throws FileNotFoundException {
+        this(filename, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    /**
+     * Creates the file
+     *
+     * @param filename the file name
+     * @param rowGroupSize the number of rows in each row group
+     * @throws FileNotFoundException if the file could not be created
+     */
+    public ColumnarWriter(String filename, int rowGroupSize) throws FileNotFoundException {
+        this.rowGroupSize = rowGroupSize;
+        output = new BufferedOutputStream(new FileOutputStream(filename), 65536);
+        for (int column = 0; column < ColumnarFormat.COLUMNS; column++) {
+            columns[column] = new ColumnBuffer(4096);
+        }
+        for (int cnt = 0; cnt < 2; cnt++) {
+            dictionaries[cnt] = new ColumnBuffer(1024);
+        }
+        startRowGroup();
+
+        ColumnBuffer fileHeader = new ColumnBuffer(ColumnarFormat.FILE_HEADER_LENGTH);
+        fileHeader.putLong(ColumnarFormat.FILE_MAGIC);
+        fileHeader.putInt(ColumnarFormat.VERSION);
+        try {
+            write(fileHeader);
+        } catch (IOException e) {
+            throw new FileNotFoundException(filename + " could not be written: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the number of rows written
+     */
+    public long getRows() {
+        return totalRows + rows;
+    }
+
+    /**
+     * @return the number of bytes written to the file so far
+     */
+    public long getLength() {
+        return bytesWritten;
+    }
+
+    /**
+     * Adds a packet to the current row group, and writes the row group if it is full
+     *
+     * @param packet the {@link SnifferPacket}
+     * @throws IOException if the file can't be written
+     */
+    public void write(SnifferPacket packet) throws IOException {
+        long timestamp = packet.getTimestampMicros();
+        columns[ColumnarFormat.COLUMN_TIMESTAMP].putZigzag(timestamp - lastTimestamp);
+        lastTimestamp = timestamp;
+        updateStatistics(ColumnarFormat.COLUMN_TIMESTAMP, timestamp);
+
+        columns[ColumnarFormat.COLUMN_CHANNEL].putByte(packet.getChannel());
+        updateStatistics(ColumnarFormat.COLUMN_CHANNEL, packet.getChannel());
+        columns[ColumnarFormat.COLUMN_RSSI].putByte(packet.getRssi());
+        updateStatistics(ColumnarFormat.COLUMN_RSSI, (byte) packet.getRssi());
+        columns[ColumnarFormat.COLUMN_LQI].putByte(packet.getLqi());
+        updateStatistics(ColumnarFormat.COLUMN_LQI, packet.getLqi() & 0xFF);
+
+        int[] data = packet.getData();
+        int length = packet.getLength();
+        if (header.parse(data, length)) {
+            columns[ColumnarFormat.COLUMN_FRAME_TYPE].putByte(header.getFrameType());
+            updateStatistics(ColumnarFormat.COLUMN_FRAME_TYPE, header.getFrameType());
+            int pan = header.getDestinationPan() != -1 ? header.getDestinationPan() : header.getSourcePan();
+            columns[ColumnarFormat.COLUMN_PAN].putVarint(pan + 1);
+            if (pan != -1) {
+                updateStatistics(ColumnarFormat.COLUMN_PAN, pan);
+            }
+            putAddress(0, header.getSourceAddressMode(), header.getSourceAddress());
+            putAddress(1, header.getDestinationAddressMode(), header.getDestinationAddress());
+        } else {
+            columns[ColumnarFormat.COLUMN_FRAME_TYPE].putByte(0xFF);
+            updateStatistics(ColumnarFormat.COLUMN_FRAME_TYPE, 0xFF);
+            columns[ColumnarFormat.COLUMN_PAN].putVarint(0);
+            columns[ColumnarFormat.COLUMN_SOURCE].putVarint(0);
+            columns[ColumnarFormat.COLUMN_DESTINATION].putVarint(0);
+        }
+
+        ColumnBuffer frame = columns[ColumnarFormat.COLUMN_FRAME];
+        frame.putVarint(length);
+        for (int cnt = 0; cnt < length; cnt++) {
+            frame.putByte(data[cnt]);
+        }
+        updateStatistics(ColumnarFormat.COLUMN_FRAME, length);
+
+        if (++rows >= rowGroupSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the current row group, even if it is not full
+     *
+     * @throws IOException if the file can't be written
+     */
+    public void flush() throws IOException {
+        if (rows == 0) {
+            return;
+        }
+        for (int cnt = 0; cnt < 2; cnt++) {
+            ColumnBuffer column = columns[ColumnarFormat.COLUMN_SOURCE + cnt];
+            ColumnBuffer dictionary = dictionaries[cnt];
+            ColumnBuffer combined = new ColumnBuffer(10 + dictionary.getLength() + column.getLength());
+            combined.putVarint(dictionarySize[cnt]);
+            combined.putBytes(dictionary);
+            combined.putBytes(column);
+            columns[ColumnarFormat.COLUMN_SOURCE + cnt] = combined;
+        }
+
+        footer.putLong(bytesWritten);
+        footer.putInt(rows);
+        directory.reset(DIRECTORY_LENGTH);
+        directory.putInt(ColumnarFormat.ROW_GROUP_MAGIC);
+        directory.putInt(rows);
+        directory.putInt(ColumnarFormat.COLUMNS);
+        byte[][] stored = new byte[ColumnarFormat.COLUMNS][];
+        for (int column = 0; column < ColumnarFormat.COLUMNS; column++) {
+            stored[column] = compress(columns[column]);
+            directory.putByte(column);
+            directory.putByte(ColumnarFormat.ENCODING_DEFLATE);
+            directory.putLong(min[column]);
+            directory.putLong(max[column]);
+            directory.putInt(stored[column].length);
+            directory.putInt(columns[column].getLength());
+            footer.putLong(min[column]);
+            footer.putLong(max[column]);
+        }
+        write(directory);
+        for (int column = 0; column < ColumnarFormat.COLUMNS; column++) {
+            output.write(stored[column]);
+            bytesWritten += stored[column].length;
+        }
+
+        rowGroups++;
+        totalRows += rows;
+        startRowGroup();
+    }
+
+    /**
+     * Writes the last row group and the footer, and closes the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+            ColumnBuffer trailer = new ColumnBuffer(8 + footer.getLength() + ColumnarFormat.TRAILER_LENGTH);
+            trailer.putInt(ColumnarFormat.FOOTER_MAGIC);
+            trailer.putInt(rowGroups);
+            trailer.putBytes(footer);
+            trailer.putInt(trailer.getLength());
+            trailer.putLong(ColumnarFormat.FILE_MAGIC);
+            write(trailer);
+        } finally {
+            deflater.end();
+            output.close();
+        }
+    }
+
+    private void putAddress(int dictionary, int mode, long address) {
+        ColumnBuffer column = columns[ColumnarFormat.COLUMN_SOURCE + dictionary];
+        if (mode == MacHeader.ADDRESS_MODE_NONE) {
+            column.putVarint(0);
+            return;
+        }
+        LongKeyTable table = addresses[dictionary][mode == MacHeader.ADDRESS_MODE_SHORT ? 0 : 1];
+        int slot = table.getSlot(address);
+        if (table.get(slot, 0) == 0) {
+            table.add(slot, 0, ++dictionarySize[dictionary]);
+            dictionaries[dictionary].putByte(mode);
+            dictionaries[dictionary].putLong(address);
+        }
+        column.putVarint(table.get(slot, 0));
+        updateStatistics(ColumnarFormat.COLUMN_SOURCE + dictionary, address);
+    }
+
+    private void updateStatistics(int column, long value) {
+        if (value < min[column]) {
+            min[column] = value;
+        }
+        if (value > max[column]) {
+            max[column] = value;
+        }
+    }
+
+    private void startRowGroup() {
+        rows = 0;
+        lastTimestamp = 0;
+        for (int column = 0; column < ColumnarFormat.COLUMNS; column++) {
+            columns[column].reset(0);
+            min[column] = Long.MAX_VALUE;
+            max[column] = Long.MIN_VALUE;
+        }
+        for (int cnt = 0; cnt < 2; cnt++) {
+            dictionaries[cnt].reset(0);
+            dictionarySize[cnt] = 0;
+            addresses[cnt][0] = new LongKeyTable(1);
+            addresses[cnt][1] = new LongKeyTable(1);
+        }
+    }
+
+    private byte[] compress(ColumnBuffer column) {
+        deflater.reset();
+        deflater.setInput(column.getData(), 0, column.getLength());
+        deflater.finish();
+        compressed.reset(column.getLength() / 2 + 64);
+        while (!deflater.finished()) {
+            compressed.ensure(4096);
+            byte[] buffer = compressed.getData();
+            int length = compressed.getLength();
+            compressed.setLength(length + deflater.deflate(buffer, length, buffer.length - length));
+        }
+        byte[] result = new byte[compressed.getLength()];
+        System.arraycopy(compressed.getData(), 0, result, 0, result.length);
+        return result;
+    }
+
+    private void write(ColumnBuffer buffer) throws IOException {
+        output.write(buffer.getData(), 0, buffer.getLength());
+        bytesWritten += buffer.getLength();
+    }
+}
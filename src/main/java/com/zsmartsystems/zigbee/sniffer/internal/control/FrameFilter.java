@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.control;
+
+import com.zsmartsystems.zigbee.sniffer.PacketFilter;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * A {@link PacketFilter} that selects frames by channel, PAN, address and MAC frame type. The filter is written as a
+ * comma separated list of terms, all of which must match -:
+ * <ul>
+ * <li>channel=&lt;channel&gt; - the channel the frame was received on
+ * <li>pan=&lt;pan id&gt; - the source or destination PAN
+ * <li>addr=&lt;address&gt; - the source or destination address, either a 16 bit short address or a 64 bit extended
+ * address. If the filter has an {@link AddressCache}, an extended address also matches frames that use the short
+ * address of the device, so the device can be followed when it rejoins with a new short address.
+ * <li>type=beacon|data|ack|command - the MAC frame type
+ * </ul>
+ * Numbers may be decimal, or hexadecimal with a 0x prefix. For example "pan=0x1a62,type=data".
+ *
+ * @author Chris Jackson
+ *
+ */
+public class FrameFilter implements PacketFilter {
+    private static final int ANY = -1;
+
+    private final String text;
+    private final AddressCache addressCache;
+    private final MacHeader header = new MacHeader();
+    private int channel = ANY;
+    private int pan = ANY;
+    private long address = ANY;
+    private int frameType = ANY;
+
+    private FrameFilter(String text, AddressCache addressCache) {
+        this.text = text;
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Parses a filter
+     *
+     * @param text the filter text
+     * @return the {@link FrameFilter}
+     * @throws IllegalArgumentException if the filter is not valid
+     */
+    public static FrameFilter parse(String text) {
+        return parse(text, null);
+    }
+
+    /**
+     * Parses a filter that resolves short addresses to extended addresses
+     *
+     * @param text the filter text
+     * @param addressCache the {@link AddressCache}, or null to only match the addresses in the frame
+     * @return the {@link FrameFilter}
+     * @throws IllegalArgumentException if the filter is not valid
+     */
+    public static FrameFilter parse(String text, AddressCache addressCache) {
+        FrameFilter filter = new FrameFilter(text, addressCache);
+        for (String term : text.split(",")) {
+            String[] parts = term.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid filter term '" + term + "'");
+            }
+            String value = parts[1].trim().toLowerCase();
+            try {
+                switch (parts[0].trim().toLowerCase()) {
+                    case "channel":
+                        filter.channel = (int) parseNumber(value);
+                        break;
+                    case "pan":
+                        filter.pan = (int) parseNumber(value) & 0xFFFF;
+                        break;
+                    case "addr":
+                        filter.address = parseNumber(value);
+                        break;
+                    case "type":
+                        filter.frameType = parseFrameType(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter term '" + parts[0] + "'");
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number '" + parts[1] + "'");
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public boolean accept(SnifferPacket packet) {
+        if (channel != ANY && packet.getChannel() != channel) {
+            return false;
+        }
+        if (pan == ANY && address == ANY && frameType == ANY) {
+            return true;
+        }
+        if (!header.parse(packet.getData(), packet.getLength())) {
+            return false;
+        }
+        if (frameType != ANY && header.getFrameType() != frameType) {
+            return false;
+        }
+        if (pan != ANY && header.getDestinationPan() != pan && header.getSourcePan() != pan) {
+            return false;
+        }
+        if (address != ANY
+                && !matchesAddress(header.getDestinationAddressMode(), header.getDestinationPan(),
+                        header.getDestinationAddress())
+                && !matchesAddress(header.getSourceAddressMode(), header.getSourcePan(), header.getSourceAddress())) {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private boolean matchesAddress(int mode, int framePan, long frameAddress) {
+        if (mode == MacHeader.ADDRESS_MODE_NONE) {
+            return false;
+        }
+        if (frameAddress == address) {
+            return true;
+        }
+        return mode == MacHeader.ADDRESS_MODE_SHORT && addressCache != null && (address & ~0xFFFFL) != 0
+                && addressCache.getIeeeAddress(framePan, (int) frameAddress) == address;
+    }
+
+    private static long parseNumber(String value) {
+        if (value.startsWith("0x")) {
+            return Long.parseUnsignedLong(value.substring(2), 16);
+        }
+        return Long.parseLong(value);
+    }
+
+    private static int parseFrameType(String value) {
+        switch (value) {
+            case "beacon":
+                return MacHeader.FRAME_TYPE_BEACON;
+            case "data":
+                return MacHeader.FRAME_TYPE_DATA;
+            case "ack":
+                return MacHeader.FRAME_TYPE_ACK;
+            case "command":
+                return MacHeader.FRAME_TYPE_COMMAND;
+            default:
+                throw new IllegalArgumentException("Unknown frame type '" + value + "'");
+        }
+    }
+}
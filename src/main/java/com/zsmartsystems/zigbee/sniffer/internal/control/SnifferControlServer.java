@@ -0,0 +1,260 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.control;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.PacketFilter;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferEngine;
+import com.zsmartsystems.zigbee.sniffer.internal.columnar.ColumnarSink;
+import com.zsmartsystems.zigbee.sniffer.internal.json.NdjsonSink;
+import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapngSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepSink;
+
+/**
+ * A simple line based control interface for a running {@link SnifferEngine}. The server listens on a TCP port on the
+ * loopback interface only, and can be used with tools such as netcat. Each command is a single line, and the response
+ * ends with a line holding "OK" or "ERROR" followed by the reason.
+ * <p>
+ * Sinks are referred to by the number shown by the "sinks" command. All changes are made while capture continues and
+ * take effect between two received frames - the NCP is not restarted.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SnifferControlServer {
+    private static final String[] HELP = { "status                        Show the capture status",
+            "sinks                         List the outputs",
+            "channel <channel>             Change the channel",
+            "add pcap <filename> [length]  Add a pcap output, optionally split into segments",
+            "add pcapng <filename>         Add a pcapng output",
+            "add isd <filename>            Add a Silabs ISD output",
+            "add zcol <filename>           Add a columnar capture output",
+            "add zep <address> [port]      Add a Wireshark ZEP output",
+            "add ndjson <target>           Add an NDJSON output to a file or unix:path socket",
+            "remove <sink>                 Remove an output",
+            "filter <sink> <filter>|none   Set the filter for an output (channel=, pan=, addr=, type=)",
+            "rotate                        Start new files for the outputs that can be split (pcap)",
+            "quit                          Close the connection" };
+
+    private final SnifferEngine engine;
+    private final ServerSocket serverSocket;
+    private final long timezone;
+
+    /**
+     * Creates the server and starts listening
+     *
+     * @param engine the {@link SnifferEngine} to control
+     * @param port the TCP port
+     * @param timezone the offset in milliseconds added to the packet time in outputs that are added
+     * @throws IOException if the port can't be opened
+     */
+    public SnifferControlServer(SnifferEngine engine, int port, long timezone) throws IOException {
+        this.engine = engine;
+        this.timezone = timezone;
+        serverSocket = new ServerSocket(port, 5, InetAddress.getLoopbackAddress());
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "SnifferControl");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes the server. Open connections are closed when their client disconnects.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnection(socket);
+                }
+            }, "SnifferControl-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void handleConnection(Socket socket) {
+        try (Socket client = socket;
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+                PrintWriter out = new PrintWriter(
+                        new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] args = line.trim().split("\\s+");
+                if (args[0].isEmpty()) {
+                    continue;
+                }
+                if (args[0].equalsIgnoreCase("quit")) {
+                    break;
+                }
+                try {
+                    handleCommand(args, out);
+                    out.println("OK");
+                } catch (IllegalArgumentException | IOException e) {
+                    out.println("ERROR " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            // The client has gone
+        }
+    }
+
+    private void handleCommand(String[] args, PrintWriter out) throws IOException {
+        switch (args[0].toLowerCase()) {
+            case "help":
+                for (String help : HELP) {
+                    out.println(help);
+                }
+                break;
+            case "status":
+                out.println("running " + engine.isRunning());
+                out.println("channel " + engine.getChannel());
+                out.println("ncp " + engine.getIeeeAddress());
+                out.println("sinks " + engine.getSinks().size());
+                out.println("probes " + engine.getProbes() + " failed=" + engine.getProbeFailures());
+                out.println("recoveries soft=" + engine.getSoftRecoveries() + " full=" + engine.getFullRestarts()
+                        + " downtime=" + engine.getDowntime() + "ms");
+                break;
+            case "sinks":
+                List<PacketSink> sinks = engine.getSinks();
+                for (int cnt = 0; cnt < sinks.size(); cnt++) {
+                    PacketSink sink = sinks.get(cnt);
+                    PacketFilter filter = engine.getFilter(sink);
+                    out.println((cnt + 1) + " " + sink.getName() + " queued=" + engine.getQueued(sink) + " dropped="
+                            + engine.getDropped(sink) + " filter=" + (filter == null ? "none" : filter));
+                }
+                break;
+            case "channel":
+                checkArguments(args, 2);
+                if (!engine.hasNcp()) {
+                    throw new IllegalArgumentException("No NCP - the channel is set by the frame source");
+                }
+                if (!engine.setChannel(parseNumber(args[1]))) {
+                    throw new IllegalArgumentException("Unable to set channel " + args[1]);
+                }
+                break;
+            case "add":
+                checkArguments(args, 3);
+                PacketSink sink = createSink(args);
+                engine.addSink(sink);
+                out.println(engine.getSinks().size() + " " + sink.getName());
+                break;
+            case "remove":
+                checkArguments(args, 2);
+                engine.removeSink(getSink(args[1]));
+                break;
+            case "filter":
+                checkArguments(args, 3);
+                engine.setFilter(getSink(args[1]),
+                        args[2].equalsIgnoreCase("none") ? null : FrameFilter.parse(args[2], engine.getAddressCache()));
+                break;
+            case "rotate":
+                List<PacketSink> rotated = engine.rotate();
+                for (PacketSink output : engine.getSinks()) {
+                    out.println(output.getName() + (rotated.contains(output) ? " rotated" : " can't rotate"));
+                }
+                if (rotated.isEmpty()) {
+                    throw new IllegalArgumentException("No outputs can be rotated");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command '" + args[0] + "' - use help for commands");
+        }
+    }
+
+    private PacketSink createSink(String[] args) throws IOException {
+        switch (args[1].toLowerCase()) {
+            case "pcap":
+                String filename = args[2];
+                if (filename.endsWith(".pcap")) {
+                    filename = filename.substring(0, filename.length() - 5);
+                }
+                long maxLength = args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE;
+                return new WiresharkPcapSink(filename, maxLength, timezone);
+            case "pcapng":
+                WiresharkPcapngSink pcapngSink = new WiresharkPcapngSink(args[2]);
+                pcapngSink.setAddressCache(engine.getAddressCache());
+                return pcapngSink;
+            case "isd":
+                return new SilabsIsdSink(args[2]);
+            case "zcol":
+                return new ColumnarSink(args[2]);
+            case "ndjson":
+                NdjsonSink ndjsonSink = new NdjsonSink(args[2]);
+                ndjsonSink.setAddressCache(engine.getAddressCache());
+                return ndjsonSink;
+            case "zep":
+                int port = args.length > 3 ? parseNumber(args[3]) : WiresharkZepSink.ZEP_UDP_PORT;
+                WiresharkZepSink zepSink = new WiresharkZepSink(InetAddress.getByName(args[2]), port, 0);
+                zepSink.setTimezone(timezone);
+                return zepSink;
+            default:
+                throw new IllegalArgumentException("Unknown output type '" + args[1] + "'");
+        }
+    }
+
+    private PacketSink getSink(String number) {
+        List<PacketSink> sinks = engine.getSinks();
+        int index = parseNumber(number) - 1;
+        if (index < 0 || index >= sinks.size()) {
+            throw new IllegalArgumentException("Unknown sink " + number);
+        }
+        return sinks.get(index);
+    }
+
+    private void checkArguments(String[] args, int count) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("Missing arguments - use help for commands");
+        }
+    }
+
+    private int parseNumber(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number '" + value + "'");
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.decode;
+
+/**
+ * Decodes the ZigBee APS header from an unencrypted NWK payload. The class is reusable in the same way as
+ * {@link MacHeader}.
+ *
+ * <pre>
+ * | Frame Control | Dest EP | Group | Cluster | Profile | Src EP | Counter | Extended Header |
+ * |       1       |   0/1   |  0/2  |   0/2   |   0/2   |  0/1   |    1    |      0/1/2      |
+ * </pre>
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ApsHeader {
+    public static final int FRAME_TYPE_DATA = 0;
+    public static final int FRAME_TYPE_COMMAND = 1;
+    public static final int FRAME_TYPE_ACK = 2;
+
+    public static final int DELIVERY_UNICAST = 0;
+    public static final int DELIVERY_BROADCAST = 2;
+    public static final int DELIVERY_GROUP = 3;
+
+    /**
+     * APS command used to send keys to devices
+     */
+    public static final int COMMAND_TRANSPORT_KEY = 0x05;
+
+    private int frameType;
+    private int deliveryMode;
+    private boolean security;
+    private boolean ackRequest;
+    private int destinationEndpoint;
+    private int group;
+    private int cluster;
+    private int profile;
+    private int sourceEndpoint;
+    private int counter;
+    private int offset;
+    private int headerLength;
+
+    /**
+     * Decodes the APS header
+     *
+     * @param data the frame
+     * @param offset the offset of the APS header (the NWK payload)
+     * @param limit the offset of the end of the NWK payload
+     * @return true if the header was decoded
+     */
+    public boolean parse(int[] data, int offset, int limit) {
+        this.offset = offset;
+        if (offset + 2 > limit) {
+            return false;
+        }
+        int frameControl = data[offset];
+        frameType = frameControl & 0x03;
+        deliveryMode = (frameControl >> 2) & 0x03;
+        boolean ackFormat = (frameControl & 0x10) != 0;
+        security = (frameControl & 0x20) != 0;
+        ackRequest = (frameControl & 0x40) != 0;
+        boolean extendedHeader = (frameControl & 0x80) != 0;
+
+        destinationEndpoint = -1;
+        group = -1;
+        cluster = -1;
+        profile = -1;
+        sourceEndpoint = -1;
+
+        int position = offset + 1;
+        boolean addressed = frameType == FRAME_TYPE_DATA || (frameType == FRAME_TYPE_ACK && !ackFormat);
+        if (addressed) {
+            if (deliveryMode == DELIVERY_GROUP) {
+                if (position + 2 > limit) {
+                    return false;
+                }
+                group = data[position] | (data[position + 1] << 8);
+                position += 2;
+            } else {
+                if (position + 1 > limit) {
+                    return false;
+                }
+                destinationEndpoint = data[position++];
+            }
+            if (position + 5 > limit) {
+                return false;
+            }
+            cluster = data[position] | (data[position + 1] << 8);
+            profile = data[position + 2] | (data[position + 3] << 8);
+            sourceEndpoint = data[position + 4];
+            position += 5;
+        }
+        if (position + 1 > limit) {
+            return false;
+        }
+        counter = data[position++];
+
+        if (extendedHeader) {
+            if (position + 1 > limit) {
+                return false;
+            }
+            int extendedControl = data[position++];
+            if ((extendedControl & 0x03) != 0) {
+                // Block number, and ACK bitfield in an acknowledgement
+                position += frameType == FRAME_TYPE_ACK ? 2 : 1;
+            }
+        }
+        if (position > limit) {
+            return false;
+        }
+
+        headerLength = position - offset;
+        return true;
+    }
+
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public int getDeliveryMode() {
+        return deliveryMode;
+    }
+
+    public boolean isSecurity() {
+        return security;
+    }
+
+    public boolean isAckRequest() {
+        return ackRequest;
+    }
+
+    /**
+     * @return the destination endpoint, or -1 if not present
+     */
+    public int getDestinationEndpoint() {
+        return destinationEndpoint;
+    }
+
+    /**
+     * @return the group address, or -1 if not present
+     */
+    public int getGroup() {
+        return group;
+    }
+
+    /**
+     * @return the cluster ID, or -1 if not present
+     */
+    public int getCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return the profile ID, or -1 if not present
+     */
+    public int getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return the source endpoint, or -1 if not present
+     */
+    public int getSourceEndpoint() {
+        return sourceEndpoint;
+    }
+
+    public int getCounter() {
+        return counter;
+    }
+
+    /**
+     * @return the offset of the APS header in the frame
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the APS header, excluding any security header
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+}
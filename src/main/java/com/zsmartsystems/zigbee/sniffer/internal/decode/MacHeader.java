@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.decode;
+
+/**
+ * Decodes the IEEE 802.15.4 MAC header from a raw frame. The class is reusable - {@link #parse(int[], int)} overwrites
+ * all fields so a single instance can be used for every frame without allocation.
+ *
+ * <pre>
+ * | Frame Control | Sequence | Dest PAN | Dest Address | Src PAN | Src Address | Payload | FCS |
+ * |       2       |    1     |   0/2    |    0/2/8     |   0/2   |    0/2/8    |    n    |  2  |
+ * </pre>
+ *
+ * @author Chris Jackson
+ *
+ */
+public class MacHeader {
+    public static final int FRAME_TYPE_BEACON = 0;
+    public static final int FRAME_TYPE_DATA = 1;
+    public static final int FRAME_TYPE_ACK = 2;
+    public static final int FRAME_TYPE_COMMAND = 3;
+
+    public static final int ADDRESS_MODE_NONE = 0;
+    public static final int ADDRESS_MODE_SHORT = 2;
+    public static final int ADDRESS_MODE_EXTENDED = 3;
+
+    private static final int FCS_LENGTH = 2;
+
+    private int frameType;
+    private boolean security;
+    private boolean framePending;
+    private boolean ackRequest;
+    private boolean panIdCompression;
+    private int destinationAddressMode;
+    private int sourceAddressMode;
+    private int frameVersion;
+    private int sequence;
+    private int destinationPan;
+    private long destinationAddress;
+    private int sourcePan;
+    private long sourceAddress;
+    private int headerLength;
+    private int payloadLength;
+
+    /**
+     * Decodes the MAC header
+     *
+     * @param data the frame, including the FCS
+     * @param length the number of bytes in the frame
+     * @return true if the header was decoded
+     */
+    public boolean parse(int[] data, int length) {
+        if (length < 3 + FCS_LENGTH) {
+            return false;
+        }
+        int frameControl = data[0] | (data[1] << 8);
+        frameType = frameControl & 0x07;
+        security = (frameControl & 0x0008) != 0;
+        framePending = (frameControl & 0x0010) != 0;
+        ackRequest = (frameControl & 0x0020) != 0;
+        panIdCompression = (frameControl & 0x0040) != 0;
+        destinationAddressMode = (frameControl >> 10) & 0x03;
+        frameVersion = (frameControl >> 12) & 0x03;
+        sourceAddressMode = (frameControl >> 14) & 0x03;
+        sequence = data[2];
+
+        int offset = 3;
+        destinationPan = -1;
+        destinationAddress = -1;
+        sourcePan = -1;
+        sourceAddress = -1;
+
+        if (destinationAddressMode != ADDRESS_MODE_NONE) {
+            if (offset + 2 > length) {
+                return false;
+            }
+            destinationPan = data[offset] | (data[offset + 1] << 8);
+            offset += 2;
+            int addressLength = addressLength(destinationAddressMode);
+            if (addressLength == 0 || offset + addressLength > length) {
+                return false;
+            }
+            destinationAddress = readAddress(data, offset, addressLength);
+            offset += addressLength;
+        }
+        if (sourceAddressMode != ADDRESS_MODE_NONE) {
+            if (panIdCompression) {
+                sourcePan = destinationPan;
+            } else {
+                if (offset + 2 > length) {
+                    return false;
+                }
+                sourcePan = data[offset] | (data[offset + 1] << 8);
+                offset += 2;
+            }
+            int addressLength = addressLength(sourceAddressMode);
+            if (addressLength == 0 || offset + addressLength > length) {
+                return false;
+            }
+            sourceAddress = readAddress(data, offset, addressLength);
+            offset += addressLength;
+        }
+
+        headerLength = offset;
+        payloadLength = length - FCS_LENGTH - offset;
+        return payloadLength >= 0;
+    }
+
+    private static int addressLength(int mode) {
+        switch (mode) {
+            case ADDRESS_MODE_SHORT:
+                return 2;
+            case ADDRESS_MODE_EXTENDED:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Reads a little endian address
+     *
+     * @param data the frame
+     * @param offset the offset of the first byte
+     * @param length the address length in bytes
+     * @return the address
+     */
+    public static long readAddress(int[] data, int offset, int length) {
+        long address = 0;
+        for (int cnt = length - 1; cnt >= 0; cnt--) {
+            address = (address << 8) | (data[offset + cnt] & 0xFF);
+        }
+        return address;
+    }
+
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public boolean isSecurity() {
+        return security;
+    }
+
+    public boolean isFramePending() {
+        return framePending;
+    }
+
+    public boolean isAckRequest() {
+        return ackRequest;
+    }
+
+    public boolean isPanIdCompression() {
+        return panIdCompression;
+    }
+
+    public int getDestinationAddressMode() {
+        return destinationAddressMode;
+    }
+
+    public int getSourceAddressMode() {
+        return sourceAddressMode;
+    }
+
+    public int getFrameVersion() {
+        return frameVersion;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the destination PAN ID, or -1 if not present
+     */
+    public int getDestinationPan() {
+        return destinationPan;
+    }
+
+    /**
+     * @return the destination address, or -1 if not present
+     */
+    public long getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    /**
+     * @return the source PAN ID, or -1 if not present
+     */
+    public int getSourcePan() {
+        return sourcePan;
+    }
+
+    /**
+     * @return the source address, or -1 if not present
+     */
+    public long getSourceAddress() {
+        return sourceAddress;
+    }
+
+    /**
+     * @return the length of the MAC header, which is also the offset of the MAC payload
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * @return the length of the MAC payload, excluding the FCS
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.decode;
+
+/**
+ * Decodes the ZigBee NWK header from the payload of an IEEE 802.15.4 data frame. The class is reusable in the same way
+ * as {@link MacHeader}.
+ *
+ * <pre>
+ * | Frame Control | Dest | Src | Radius | Seq | Dest IEEE | Src IEEE | Multicast | Source Route |
+ * |       2       |  2   |  2  |   1    |  1  |    0/8    |   0/8    |    0/1    |   variable   |
+ * </pre>
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NwkHeader {
+    public static final int FRAME_TYPE_DATA = 0;
+    public static final int FRAME_TYPE_COMMAND = 1;
+    public static final int FRAME_TYPE_INTERPAN = 3;
+
+    private int frameType;
+    private int protocolVersion;
+    private boolean multicast;
+    private boolean security;
+    private boolean sourceRoute;
+    private int destination;
+    private int source;
+    private int radius;
+    private int sequence;
+    private long destinationIeee;
+    private long sourceIeee;
+    private int offset;
+    private int headerLength;
+
+    /**
+     * Decodes the NWK header
+     *
+     * @param data the frame
+     * @param offset the offset of the NWK header (the MAC payload)
+     * @param limit the offset of the end of the MAC payload
+     * @return true if the header was decoded
+     */
+    public boolean parse(int[] data, int offset, int limit) {
+        this.offset = offset;
+        if (offset + 8 > limit) {
+            return false;
+        }
+        int frameControl = data[offset] | (data[offset + 1] << 8);
+        frameType = frameControl & 0x03;
+        protocolVersion = (frameControl >> 2) & 0x0F;
+        multicast = (frameControl & 0x0100) != 0;
+        security = (frameControl & 0x0200) != 0;
+        sourceRoute = (frameControl & 0x0400) != 0;
+        boolean destinationIeeePresent = (frameControl & 0x0800) != 0;
+        boolean sourceIeeePresent = (frameControl & 0x1000) != 0;
+
+        if (frameType == FRAME_TYPE_INTERPAN) {
+            headerLength = 2;
+            return true;
+        }
+
+        destination = data[offset + 2] | (data[offset + 3] << 8);
+        source = data[offset + 4] | (data[offset + 5] << 8);
+        radius = data[offset + 6];
+        sequence = data[offset + 7];
+
+        int position = offset + 8;
+        destinationIeee = -1;
+        sourceIeee = -1;
+        if (destinationIeeePresent) {
+            if (position + 8 > limit) {
+                return false;
+            }
+            destinationIeee = MacHeader.readAddress(data, position, 8);
+            position += 8;
+        }
+        if (sourceIeeePresent) {
+            if (position + 8 > limit) {
+                return false;
+            }
+            sourceIeee = MacHeader.readAddress(data, position, 8);
+            position += 8;
+        }
+        if (multicast) {
+            position++;
+        }
+        if (sourceRoute) {
+            if (position + 2 > limit) {
+                return false;
+            }
+            int relayCount = data[position];
+            position += 2 + relayCount * 2;
+        }
+        if (position > limit) {
+            return false;
+        }
+
+        headerLength = position - offset;
+        return true;
+    }
+
+    public int getFrameType() {
+        return frameType;
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    public boolean isSecurity() {
+        return security;
+    }
+
+    public boolean isSourceRoute() {
+        return sourceRoute;
+    }
+
+    public int getDestination() {
+        return destination;
+    }
+
+    public int getSource() {
+        return source;
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the destination IEEE address, or -1 if not present
+     */
+    public long getDestinationIeee() {
+        return destinationIeee;
+    }
+
+    /**
+     * @return the source IEEE address, or -1 if not present
+     */
+    public long getSourceIeee() {
+        return sourceIeee;
+    }
+
+    /**
+     * @return the offset of the NWK header in the frame
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the NWK header, excluding any security header
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.decode;
+
+/**
+ * Decodes the ZigBee auxiliary security header used by the NWK and APS layers
+ *
+ * <pre>
+ * | Security Control | Frame Counter | Source Address | Key Sequence |
+ * |        1         |       4       |      0/8       |     0/1      |
+ * </pre>
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SecurityHeader {
+    public static final int KEY_ID_DATA = 0;
+    public static final int KEY_ID_NETWORK = 1;
+    public static final int KEY_ID_KEY_TRANSPORT = 2;
+    public static final int KEY_ID_KEY_LOAD = 3;
+
+    /**
+     * The security level used by ZigBee (ENC-MIC-32). The level is not sent over the air.
+     */
+    public static final int SECURITY_LEVEL = 5;
+
+    /**
+     * The length of the MIC for {@link #SECURITY_LEVEL}
+     */
+    public static final int MIC_LENGTH = 4;
+
+    private int securityControl;
+    private int keyIdentifier;
+    private boolean extendedNonce;
+    private long frameCounter;
+    private long sourceAddress;
+    private int keySequence;
+    private int length;
+
+    /**
+     * Decodes the security header
+     *
+     * @param data the frame
+     * @param offset the offset of the security header
+     * @param limit the offset of the end of the data
+     * @return true if the header was decoded
+     */
+    public boolean parse(int[] data, int offset, int limit) {
+        if (offset + 5 > limit) {
+            return false;
+        }
+        securityControl = data[offset];
+        keyIdentifier = (securityControl >> 3) & 0x03;
+        extendedNonce = (securityControl & 0x20) != 0;
+        frameCounter = MacHeader.readAddress(data, offset + 1, 4);
+
+        int position = offset + 5;
+        sourceAddress = -1;
+        keySequence = -1;
+        if (extendedNonce) {
+            if (position + 8 > limit) {
+                return false;
+            }
+            sourceAddress = MacHeader.readAddress(data, position, 8);
+            position += 8;
+        }
+        if (keyIdentifier == KEY_ID_NETWORK) {
+            if (position + 1 > limit) {
+                return false;
+            }
+            keySequence = data[position++];
+        }
+        length = position - offset;
+        return true;
+    }
+
+    /**
+     * @return the security control byte with the security level set to {@link #SECURITY_LEVEL}, as used in the nonce
+     */
+    public int getSecurityControl() {
+        return (securityControl & 0xF8) | SECURITY_LEVEL;
+    }
+
+    public int getKeyIdentifier() {
+        return keyIdentifier;
+    }
+
+    public boolean isExtendedNonce() {
+        return extendedNonce;
+    }
+
+    public long getFrameCounter() {
+        return frameCounter;
+    }
+
+    /**
+     * @return the IEEE address of the device that secured the frame, or -1 if not present
+     */
+    public long getSourceAddress() {
+        return sourceAddress;
+    }
+
+    /**
+     * @return the network key sequence number, or -1 if not present
+     */
+    public int getKeySequence() {
+        return keySequence;
+    }
+
+    /**
+     * @return the length of the security header
+     */
+    public int getLength() {
+        return length;
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.jfr;
+
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * Emits JDK Flight Recorder events for the capture pipeline, so that hiccups in a capture can be correlated with
+ * garbage collection, thread and I/O events recorded by the JVM.
+ * <p>
+ * Events that have a duration are started with a begin method, which returns a handle that is passed to the matching
+ * end method. The handle is null when the event is not being recorded, and the end methods then do nothing.
+ * <p>
+ * This is the Java 8 implementation, which records nothing. The multi-release JAR contains a Java 21 version of this
+ * class under META-INF/versions/21 which emits the events.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SnifferEvents {
+    private SnifferEvents() {
+    }
+
+    /**
+     * Starts timing the handling of a received frame on the capture thread
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginFrame() {
+        return null;
+    }
+
+    /**
+     * Ends the handling of a received frame
+     *
+     * @param event the handle returned by {@link #beginFrame()}
+     * @param sequence the sniffer sequence number of the frame
+     * @param channel the channel the frame was received on
+     * @param length the frame length
+     * @param rssi the RSSI of the frame
+     * @param lqi the LQI of the frame
+     */
+    public static void endFrame(Object event, int sequence, int channel, int length, int rssi, int lqi) {
+    }
+
+    /**
+     * Starts timing a batch of packets being written by a sink
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginSinkWrite() {
+        return null;
+    }
+
+    /**
+     * Ends a batch of packets being written by a sink
+     *
+     * @param event the handle returned by {@link #beginSinkWrite()}
+     * @param sink the name of the sink
+     * @param packets the packets that were written
+     */
+    public static void endSinkWrite(Object event, String sink, List<SnifferPacket> packets) {
+    }
+
+    /**
+     * Starts timing the closing of a capture file when the output is rotated
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginRotation() {
+        return null;
+    }
+
+    /**
+     * Ends the closing of a capture file
+     *
+     * @param event the handle returned by {@link #beginRotation()}
+     * @param file the name of the file that was closed
+     * @param bytes the length of the file
+     * @param frames the number of frames in the file
+     */
+    public static void endRotation(Object event, String file, long bytes, long frames) {
+    }
+
+    /**
+     * Starts timing a channel switch on the NCP
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginChannelSwitch() {
+        return null;
+    }
+
+    /**
+     * Ends a channel switch on the NCP
+     *
+     * @param event the handle returned by {@link #beginChannelSwitch()}
+     * @param fromChannel the previous channel
+     * @param toChannel the new channel
+     * @param success true if the NCP switched channel
+     */
+    public static void endChannelSwitch(Object event, int fromChannel, int toChannel, boolean success) {
+    }
+
+    /**
+     * Starts timing a restart of the NCP
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginNcpRestart() {
+        return null;
+    }
+
+    /**
+     * Ends a restart of the NCP
+     *
+     * @param event the handle returned by {@link #beginNcpRestart()}
+     * @param full true if the serial port and NCP were restarted, or false if only mfglib was restarted
+     * @param success true if the NCP is capturing again
+     */
+    public static void endNcpRestart(Object event, boolean full, boolean success) {
+    }
+
+    /**
+     * Records a packet being dropped because a sink's queue was full
+     *
+     * @param sink the name of the sink
+     * @param dropped the total number of packets dropped by the sink
+     */
+    public static void queueDropped(String sink, long dropped) {
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.json;
+
+import java.nio.charset.StandardCharsets;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * Encodes a {@link SnifferPacket} as a single line JSON object, written directly into a byte array. Field names and
+ * other constant text are held as pre-encoded bytes, and numbers, hex and the ISO 8601 time are written digit by
+ * digit, so encoding a packet creates no objects.
+ * <p>
+ * Each record holds the capture time in microseconds since the epoch (ts) and as UTC text (time), the sniffer
+ * sequence number, channel, RSSI, LQI and frame length, and the sample weight if the packet was sampled. If the IEEE
+ * 802.15.4 MAC header can be decoded, the frame type, flags, MAC sequence number, and the PAN IDs and addresses that
+ * are present are added, with the MAC payload (without the FCS) as hex. Otherwise the whole frame is added as hex.
+ * PAN IDs and addresses are upper case hex strings. If an {@link AddressCache} is set, the IEEE addresses of short
+ * source and destination addresses are added where they are known (srcieee and dstieee).
+ * <p>
+ * The encoder is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NdjsonEncoder {
+    /**
+     * The longest record the encoder can write, including the newline
+     */
+    public static final int MAX_RECORD_LENGTH = 1024;
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TS = bytes("{\"ts\":");
+    private static final byte[] TIME = bytes(",\"time\":\"");
+    private static final byte[] SEQUENCE = bytes(",\"seq\":");
+    private static final byte[] CHANNEL = bytes(",\"ch\":");
+    private static final byte[] RSSI = bytes(",\"rssi\":");
+    private static final byte[] LQI = bytes(",\"lqi\":");
+    private static final byte[] LENGTH = bytes(",\"len\":");
+    private static final byte[] SAMPLE = bytes(",\"sample\":");
+    private static final byte[] TYPE = bytes(",\"type\":\"");
+    private static final byte[] SECURITY = bytes(",\"sec\":");
+    private static final byte[] PENDING = bytes(",\"pending\":");
+    private static final byte[] ACK_REQUEST = bytes(",\"ackreq\":");
+    private static final byte[] VERSION = bytes(",\"ver\":");
+    private static final byte[] MAC_SEQUENCE = bytes(",\"mseq\":");
+    private static final byte[] DESTINATION_PAN = bytes(",\"dpan\":\"");
+    private static final byte[] DESTINATION = bytes(",\"dst\":\"");
+    private static final byte[] SOURCE_PAN = bytes(",\"span\":\"");
+    private static final byte[] SOURCE = bytes(",\"src\":\"");
+    private static final byte[] SOURCE_IEEE = bytes(",\"srcieee\":\"");
+    private static final byte[] DESTINATION_IEEE = bytes(",\"dstieee\":\"");
+    private static final byte[] PAYLOAD = bytes(",\"payload\":\"");
+    private static final byte[] FRAME = bytes(",\"frame\":\"");
+    private static final byte[] TRUE = bytes("true");
+    private static final byte[] FALSE = bytes("false");
+    private static final byte[] END = bytes("}\n");
+
+    private static final byte[][] FRAME_TYPES = { bytes("beacon"), bytes("data"), bytes("ack"), bytes("command"),
+            bytes("reserved"), bytes("multipurpose"), bytes("fragment"), bytes("extended") };
+
+    private static final long MICROS_PER_DAY = 86400000000L;
+
+    private final MacHeader macHeader = new MacHeader();
+    private final byte[] digits = new byte[20];
+    private AddressCache addressCache;
+
+    /**
+     * Sets the cache used to add the IEEE addresses of devices to records
+     *
+     * @param addressCache the {@link AddressCache}, or null to not add addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Encodes a packet, followed by a newline. There must be at least {@link #MAX_RECORD_LENGTH} bytes available.
+     *
+     * @param packet the {@link SnifferPacket}
+     * @param buffer the array to write to
+     * @param offset the offset to write at
+     * @return the offset after the record
+     */
+    public int encode(SnifferPacket packet, byte[] buffer, int offset) {
+        int position = offset;
+        long timestamp = packet.getTimestampMicros();
+        position = put(buffer, position, TS);
+        position = putLong(buffer, position, timestamp);
+        position = put(buffer, position, TIME);
+        position = putTime(buffer, position, timestamp);
+        buffer[position++] = '"';
+        position = put(buffer, position, SEQUENCE);
+        position = putLong(buffer, position, packet.getSequence() & 0xFFFFFFFFL);
+        position = put(buffer, position, CHANNEL);
+        position = putLong(buffer, position, packet.getChannel());
+        position = put(buffer, position, RSSI);
+        position = putLong(buffer, position, packet.getRssi());
+        position = put(buffer, position, LQI);
+        position = putLong(buffer, position, packet.getLqi());
+        position = put(buffer, position, LENGTH);
+        position = putLong(buffer, position, packet.getLength());
+        if (packet.isSampled()) {
+            position = put(buffer, position, SAMPLE);
+            position = putLong(buffer, position, packet.getSampleWeight());
+        }
+
+        int[] data = packet.getData();
+        if (!macHeader.parse(data, packet.getLength())) {
+            position = put(buffer, position, FRAME);
+            position = putHex(buffer, position, data, 0, packet.getLength());
+            buffer[position++] = '"';
+            return put(buffer, position, END);
+        }
+
+        position = put(buffer, position, TYPE);
+        position = put(buffer, position, FRAME_TYPES[macHeader.getFrameType()]);
+        buffer[position++] = '"';
+        position = put(buffer, position, SECURITY);
+        position = put(buffer, position, macHeader.isSecurity() ? TRUE : FALSE);
+        position = put(buffer, position, PENDING);
+        position = put(buffer, position, macHeader.isFramePending() ? TRUE : FALSE);
+        position = put(buffer, position, ACK_REQUEST);
+        position = put(buffer, position, macHeader.isAckRequest() ? TRUE : FALSE);
+        position = put(buffer, position, VERSION);
+        position = putLong(buffer, position, macHeader.getFrameVersion());
+        position = put(buffer, position, MAC_SEQUENCE);
+        position = putLong(buffer, position, macHeader.getSequence());
+        if (macHeader.getDestinationPan() != -1) {
+            position = put(buffer, position, DESTINATION_PAN);
+            position = putHexValue(buffer, position, macHeader.getDestinationPan(), 4);
+            buffer[position++] = '"';
+        }
+        if (macHeader.getDestinationAddressMode() != MacHeader.ADDRESS_MODE_NONE) {
+            position = put(buffer, position, DESTINATION);
+            position = putAddress(buffer, position, macHeader.getDestinationAddressMode(),
+                    macHeader.getDestinationAddress());
+        }
+        if (macHeader.getSourcePan() != -1) {
+            position = put(buffer, position, SOURCE_PAN);
+            position = putHexValue(buffer, position, macHeader.getSourcePan(), 4);
+            buffer[position++] = '"';
+        }
+        if (macHeader.getSourceAddressMode() != MacHeader.ADDRESS_MODE_NONE) {
+            position = put(buffer, position, SOURCE);
+            position = putAddress(buffer, position, macHeader.getSourceAddressMode(), macHeader.getSourceAddress());
+        }
+        if (addressCache != null) {
+            position = putIeeeAddress(buffer, position, DESTINATION_IEEE, macHeader.getDestinationAddressMode(),
+                    macHeader.getDestinationPan(), macHeader.getDestinationAddress());
+            position = putIeeeAddress(buffer, position, SOURCE_IEEE, macHeader.getSourceAddressMode(),
+                    macHeader.getSourcePan(), macHeader.getSourceAddress());
+        }
+        position = put(buffer, position, PAYLOAD);
+        position = putHex(buffer, position, data, macHeader.getHeaderLength(), macHeader.getPayloadLength());
+        buffer[position++] = '"';
+        return put(buffer, position, END);
+    }
+
+    private int putAddress(byte[] buffer, int position, int mode, long address) {
+        position = putHexValue(buffer, position, address, mode == MacHeader.ADDRESS_MODE_EXTENDED ? 16 : 4);
+        buffer[position++] = '"';
+        return position;
+    }
+
+    private int putIeeeAddress(byte[] buffer, int position, byte[] name, int mode, int pan, long address) {
+        if (mode != MacHeader.ADDRESS_MODE_SHORT) {
+            return position;
+        }
+        long ieeeAddress = addressCache.getIeeeAddress(pan, (int) address);
+        if (ieeeAddress == AddressCache.UNKNOWN) {
+            return position;
+        }
+        position = put(buffer, position, name);
+        position = putHexValue(buffer, position, ieeeAddress, 16);
+        buffer[position++] = '"';
+        return position;
+    }
+
+    private static int put(byte[] buffer, int position, byte[] text) {
+        System.arraycopy(text, 0, buffer, position, text.length);
+        return position + text.length;
+    }
+
+    private int putLong(byte[] buffer, int position, long value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            buffer[position++] = digits[--count];
+        }
+        return position;
+    }
+
+    private static int putDigits(byte[] buffer, int position, long value, int width) {
+        for (int cnt = width - 1; cnt >= 0; cnt--) {
+            buffer[position + cnt] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + width;
+    }
+
+    private static int putHexValue(byte[] buffer, int position, long value, int width) {
+        for (int cnt = width - 1; cnt >= 0; cnt--) {
+            buffer[position + cnt] = HEX[(int) (value & 0x0F)];
+            value >>>= 4;
+        }
+        return position + width;
+    }
+
+    private static int putHex(byte[] buffer, int position, int[] data, int offset, int length) {
+        for (int cnt = offset; cnt < offset + length; cnt++) {
+            buffer[position++] = HEX[(data[cnt] >> 4) & 0x0F];
+            buffer[position++] = HEX[data[cnt] & 0x0F];
+        }
+        return position;
+    }
+
+    /**
+     * Writes the time as yyyy-MM-ddTHH:mm:ss.SSSSSSZ. The date is calculated from the day number with the civil from
+     * days algorithm, which works for all dates in the proleptic Gregorian calendar.
+     */
+    private static int putTime(byte[] buffer, int position, long timestamp) {
+        long days = Math.floorDiv(timestamp, MICROS_PER_DAY);
+        long micros = Math.floorMod(timestamp, MICROS_PER_DAY);
+
+        long shifted = days + 719468;
+        long era = Math.floorDiv(shifted, 146097);
+        long dayOfEra = shifted - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long monthIndex = (5 * dayOfYear + 2) / 153;
+        long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+        long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        position = putDigits(buffer, position, year, 4);
+        buffer[position++] = '-';
+        position = putDigits(buffer, position, month, 2);
+        buffer[position++] = '-';
+        position = putDigits(buffer, position, day, 2);
+        buffer[position++] = 'T';
+        position = putDigits(buffer, position, micros / 3600000000L, 2);
+        buffer[position++] = ':';
+        position = putDigits(buffer, position, (micros / 60000000L) % 60, 2);
+        buffer[position++] = ':';
+        position = putDigits(buffer, position, (micros / 1000000L) % 60, 2);
+        buffer[position++] = '.';
+        position = putDigits(buffer, position, micros % 1000000L, 6);
+        buffer[position++] = 'Z';
+        return position;
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.json;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Opens the output of an {@link NdjsonSink}. The target is a file name, - for the standard output, or unix:path for a
+ * Unix domain socket that a log shipper is listening on.
+ * <p>
+ * This is the Java 8 implementation, which can't connect to Unix domain sockets. The multi-release JAR contains a
+ * Java 21 version of this class under META-INF/versions/21 which can.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NdjsonOutputs {
+    /**
+     * The target prefix for a Unix domain socket
+     */
+    public static final String UNIX_PREFIX = "unix:";
+
+    private NdjsonOutputs() {
+    }
+
+    /**
+     * Opens the output
+     *
+     * @param target the file name, - for the standard output, or unix:path for a Unix domain socket
+     * @return the {@link WritableByteChannel} to write to
+     * @throws IOException if the output can't be opened
+     */
+    public static WritableByteChannel open(String target) throws IOException {
+        if ("-".equals(target)) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        if (target.startsWith(UNIX_PREFIX)) {
+            throw new IOException("Unix domain socket outputs need Java 16 or later");
+        }
+        return new FileOutputStream(target).getChannel();
+    }
+}
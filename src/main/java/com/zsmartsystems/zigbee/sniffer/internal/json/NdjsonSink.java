@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.json;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+
+/**
+ * {@link PacketSink} that writes one JSON object per line (NDJSON) for each packet, for log pipelines. Records are
+ * encoded by an {@link NdjsonEncoder} into a reusable buffer, and the buffer is written once per batch, or when it is
+ * full, so each batch of packets takes a single write.
+ * <p>
+ * If the output fails, for example because the reader of a socket has gone away, the error is reported once and
+ * later packets are discarded.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NdjsonSink implements PacketSink {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final WritableByteChannel channel;
+    private final boolean standardOutput;
+    private final NdjsonEncoder encoder = new NdjsonEncoder();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+    private int length;
+    private boolean failed;
+
+    /**
+     * Creates the sink and opens the output
+     *
+     * @param target the file name, - for the standard output, or unix:path for a Unix domain socket
+     * @throws IOException if the output can't be opened
+     */
+    public NdjsonSink(String target) throws IOException {
+        channel = NdjsonOutputs.open(target);
+        standardOutput = "-".equals(target);
+    }
+
+    /**
+     * Sets the cache used to add the IEEE addresses of devices to records
+     *
+     * @param addressCache the {@link AddressCache}, or null to not add addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        encoder.setAddressCache(addressCache);
+    }
+
+    @Override
+    public String getName() {
+        return "ndjson";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        if (failed) {
+            return;
+        }
+        try {
+            for (SnifferPacket packet : packets) {
+                if (length + NdjsonEncoder.MAX_RECORD_LENGTH > BUFFER_SIZE) {
+                    flush();
+                }
+                length = encoder.encode(packet, buffer, length);
+            }
+            flush();
+        } catch (IOException e) {
+            System.err.println("NDJSON output failed (" + e.getMessage() + "). Discarding packets.");
+            failed = true;
+            length = 0;
+        }
+    }
+
+    private void flush() throws IOException {
+        byteBuffer.clear();
+        byteBuffer.limit(length);
+        while (byteBuffer.hasRemaining()) {
+            channel.write(byteBuffer);
+        }
+        length = 0;
+    }
+
+    @Override
+    public void close() {
+        if (standardOutput) {
+            // Closing the channel would close the standard output for the rest of the application
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
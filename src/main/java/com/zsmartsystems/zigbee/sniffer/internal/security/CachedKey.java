@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.security;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.zsmartsystems.zigbee.security.MmoHash;
+import com.zsmartsystems.zigbee.security.ZigBeeKey;
+
+/**
+ * Holds a key along with the expanded AES key schedule for each thread that uses it, so the schedule is only computed
+ * once per key and thread rather than once per frame. The key-transport and key-load keys that are derived from a link
+ * key are also computed on first use and cached.
+ *
+ * @author Chris Jackson
+ *
+ */
+class CachedKey {
+    private final ZigBeeKey key;
+    private final SecretKeySpec keySpec;
+    private volatile CachedKey keyTransportKey;
+    private volatile CachedKey keyLoadKey;
+
+    private final ThreadLocal<Cipher> cipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+                aes.init(Cipher.ENCRYPT_MODE, keySpec);
+                return aes;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES is not available", e);
+            }
+        }
+    };
+
+    CachedKey(ZigBeeKey key) {
+        this.key = key;
+        int[] value = key.getValue();
+        byte[] bytes = new byte[value.length];
+        for (int cnt = 0; cnt < value.length; cnt++) {
+            bytes[cnt] = (byte) value[cnt];
+        }
+        keySpec = new SecretKeySpec(bytes, "AES");
+    }
+
+    /**
+     * @return the {@link ZigBeeKey}
+     */
+    ZigBeeKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return the AES cipher for this key, initialised for the calling thread
+     */
+    Cipher getCipher() {
+        return cipher.get();
+    }
+
+    /**
+     * @return the key-transport key derived from this link key
+     */
+    CachedKey getKeyTransportKey() {
+        if (keyTransportKey == null) {
+            keyTransportKey = new CachedKey(new ZigBeeKey(hmac(0x00)));
+        }
+        return keyTransportKey;
+    }
+
+    /**
+     * @return the key-load key derived from this link key
+     */
+    CachedKey getKeyLoadKey() {
+        if (keyLoadKey == null) {
+            keyLoadKey = new CachedKey(new ZigBeeKey(hmac(0x02)));
+        }
+        return keyLoadKey;
+    }
+
+    /**
+     * Calculates the keyed hash (HMAC using the AES-MMO hash) of a single byte with this key
+     *
+     * @param input the byte to hash
+     * @return the hash
+     */
+    private int[] hmac(int input) {
+        int[] value = key.getValue();
+        int[] inner = new int[value.length + 1];
+        int[] outer = new int[value.length * 2];
+        for (int cnt = 0; cnt < value.length; cnt++) {
+            inner[cnt] = value[cnt] ^ 0x36;
+            outer[cnt] = value[cnt] ^ 0x5C;
+        }
+        inner[value.length] = input;
+        int[] innerHash = new MmoHash(inner).getHash();
+        System.arraycopy(innerHash, 0, outer, value.length, innerHash.length);
+        return new MmoHash(outer).getHash();
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(key.getValue());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof CachedKey)) {
+            return false;
+        }
+        return Arrays.equals(key.getValue(), ((CachedKey) obj).key.getValue());
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.security;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Implements AES-CCM* decryption as used by the ZigBee NWK and APS layers (security level 5 - ENC-MIC-32, with a 13
+ * byte nonce and a 2 byte length field).
+ * <p>
+ * The class holds scratch buffers so that no memory is allocated per frame - it is not thread safe and each thread
+ * must use its own instance.
+ *
+ * @author Chris Jackson
+ *
+ */
+class CcmStar {
+    private static final int BLOCK_SIZE = 16;
+    private static final int NONCE_LENGTH = 13;
+    private static final int MIC_LENGTH = 4;
+
+    private final byte[] nonce = new byte[NONCE_LENGTH];
+    private final byte[] counterBlock = new byte[BLOCK_SIZE];
+    private final byte[] keyStream = new byte[BLOCK_SIZE];
+    private final byte[] macBlock = new byte[BLOCK_SIZE];
+    private final byte[] macState = new byte[BLOCK_SIZE];
+
+    /**
+     * Sets the nonce for the next decryption
+     *
+     * @param source the IEEE address of the device that secured the frame
+     * @param frameCounter the security frame counter
+     * @param securityControl the security control byte, including the security level
+     */
+    void setNonce(long source, long frameCounter, int securityControl) {
+        for (int cnt = 0; cnt < 8; cnt++) {
+            nonce[cnt] = (byte) (source >> (cnt * 8));
+        }
+        for (int cnt = 0; cnt < 4; cnt++) {
+            nonce[8 + cnt] = (byte) (frameCounter >> (cnt * 8));
+        }
+        nonce[12] = (byte) securityControl;
+    }
+
+    /**
+     * Decrypts and authenticates a frame. The MIC immediately follows the encrypted data.
+     *
+     * @param cipher the AES cipher initialised with the key
+     * @param data the frame
+     * @param authOffset the offset of the authenticated (unencrypted) header
+     * @param authLength the length of the authenticated header
+     * @param dataOffset the offset of the encrypted data
+     * @param dataLength the length of the encrypted data, excluding the MIC
+     * @param output the array to write the decrypted data to, starting at index 0
+     * @return true if the MIC was valid
+     */
+    boolean decrypt(Cipher cipher, int[] data, int authOffset, int authLength, int dataOffset, int dataLength,
+            int[] output) {
+        try {
+            // CTR mode decryption
+            counterBlock[0] = 0x01;
+            System.arraycopy(nonce, 0, counterBlock, 1, NONCE_LENGTH);
+            for (int block = 0; block * BLOCK_SIZE < dataLength; block++) {
+                setCounter(block + 1);
+                cipher.update(counterBlock, 0, BLOCK_SIZE, keyStream, 0);
+                int start = block * BLOCK_SIZE;
+                int end = Math.min(dataLength, start + BLOCK_SIZE);
+                for (int cnt = start; cnt < end; cnt++) {
+                    output[cnt] = (data[dataOffset + cnt] ^ keyStream[cnt - start]) & 0xFF;
+                }
+            }
+
+            // CBC-MAC over the header and the plain text
+            macBlock[0] = (byte) ((authLength > 0 ? 0x40 : 0x00) | (((MIC_LENGTH - 2) / 2) << 3) | 0x01);
+            System.arraycopy(nonce, 0, macBlock, 1, NONCE_LENGTH);
+            macBlock[14] = (byte) (dataLength >> 8);
+            macBlock[15] = (byte) dataLength;
+            cipher.update(macBlock, 0, BLOCK_SIZE, macState, 0);
+
+            if (authLength > 0) {
+                int position = 0;
+                macBlock[0] = (byte) (authLength >> 8);
+                macBlock[1] = (byte) authLength;
+                int fill = 2;
+                while (position < authLength) {
+                    while (fill < BLOCK_SIZE && position < authLength) {
+                        macBlock[fill++] = (byte) data[authOffset + position++];
+                    }
+                    macUpdate(cipher, fill);
+                    fill = 0;
+                }
+            }
+            for (int position = 0; position < dataLength; position += BLOCK_SIZE) {
+                int fill = Math.min(BLOCK_SIZE, dataLength - position);
+                for (int cnt = 0; cnt < fill; cnt++) {
+                    macBlock[cnt] = (byte) output[position + cnt];
+                }
+                macUpdate(cipher, fill);
+            }
+
+            // Encrypt the calculated MIC with the first key stream block and compare
+            setCounter(0);
+            cipher.update(counterBlock, 0, BLOCK_SIZE, keyStream, 0);
+            int micOffset = dataOffset + dataLength;
+            for (int cnt = 0; cnt < MIC_LENGTH; cnt++) {
+                if (((macState[cnt] ^ keyStream[cnt]) & 0xFF) != data[micOffset + cnt]) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (ShortBufferException e) {
+            return false;
+        }
+    }
+
+    private void setCounter(int counter) {
+        counterBlock[14] = (byte) (counter >> 8);
+        counterBlock[15] = (byte) counter;
+    }
+
+    private void macUpdate(Cipher cipher, int fill) throws ShortBufferException {
+        for (int cnt = fill; cnt < BLOCK_SIZE; cnt++) {
+            macBlock[cnt] = 0;
+        }
+        for (int cnt = 0; cnt < BLOCK_SIZE; cnt++) {
+            macBlock[cnt] ^= macState[cnt];
+        }
+        cipher.update(macBlock, 0, BLOCK_SIZE, macState, 0);
+    }
+}
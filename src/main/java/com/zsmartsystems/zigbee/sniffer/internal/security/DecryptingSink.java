@@ -0,0 +1,144 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.security;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that decrypts each packet with a {@link ZigBeeDecryptor} and passes the decrypted packets on to
+ * another sink, such as a pcap file. Packets that are not secured, or that can't be decrypted, are passed on
+ * unchanged so the output is a complete capture.
+ * <p>
+ * Each batch is decrypted in parallel on the common {@link ForkJoinPool}, which is shared by all decrypting sinks, and
+ * the results are passed on in the original order. Small batches are decrypted on the caller's thread.
+ * If a key is learned while decrypting a batch, the batch is decrypted again in order so that frames following the
+ * transport-key command use the new key.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class DecryptingSink implements PacketSink {
+    private static final int SPLIT_THRESHOLD = 8;
+
+    private final ZigBeeKeyStore keyStore;
+    private final ZigBeeDecryptor decryptor;
+    private final PacketSink output;
+    private final List<SnifferPacket> decryptedPackets = new ArrayList<>();
+
+    /**
+     * Creates the sink
+     *
+     * @param keyStore the {@link ZigBeeKeyStore} holding the keys
+     * @param output the {@link PacketSink} to pass the decrypted packets to
+     */
+    public DecryptingSink(ZigBeeKeyStore keyStore, PacketSink output) {
+        this.keyStore = keyStore;
+        this.decryptor = new ZigBeeDecryptor(keyStore);
+        this.output = output;
+    }
+
+    @Override
+    public String getName() {
+        return "decrypt-" + output.getName();
+    }
+
+    @Override
+    public void ncpStarted(IeeeAddress ieeeAddress, String firmwareVersion) {
+        output.ncpStarted(ieeeAddress, firmwareVersion);
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        int[][] results = new int[packets.size()][];
+        int generation = keyStore.getGeneration();
+        if (packets.size() > SPLIT_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new DecryptTask(packets, results, 0, packets.size()));
+        } else {
+            decrypt(packets, results, 0, packets.size());
+        }
+        if (keyStore.getGeneration() != generation) {
+            decrypt(packets, results, 0, packets.size());
+        }
+
+        while (decryptedPackets.size() < packets.size()) {
+            decryptedPackets.add(new SnifferPacket());
+        }
+        for (int cnt = 0; cnt < packets.size(); cnt++) {
+            SnifferPacket packet = packets.get(cnt);
+            SnifferPacket decrypted = decryptedPackets.get(cnt);
+            decrypted.setSequence(packet.getSequence());
+            decrypted.setLqi(packet.getLqi());
+            decrypted.setRssi(packet.getRssi());
+            decrypted.setChannel(packet.getChannel());
+            decrypted.setTimestampMicros(packet.getTimestampMicros());
+            decrypted.setElapsedMicros(packet.getElapsedMicros());
+            decrypted.setSampleWeight(packet.getSampleWeight());
+            if (results[cnt] == null) {
+                decrypted.setData(packet.getData(), packet.getLength());
+            } else {
+                decrypted.setData(results[cnt]);
+            }
+        }
+        output.packetsReceived(decryptedPackets.subList(0, packets.size()));
+    }
+
+    @Override
+    public void rotate() {
+        output.rotate();
+    }
+
+    @Override
+    public boolean isRotatable() {
+        return output.isRotatable();
+    }
+
+    @Override
+    public void close() {
+        output.close();
+    }
+
+    private void decrypt(List<SnifferPacket> packets, int[][] results, int start, int end) {
+        for (int cnt = start; cnt < end; cnt++) {
+            SnifferPacket packet = packets.get(cnt);
+            results[cnt] = decryptor.decrypt(packet.getData(), packet.getLength());
+        }
+    }
+
+    private class DecryptTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<SnifferPacket> packets;
+        private final int[][] results;
+        private final int start;
+        private final int end;
+
+        DecryptTask(List<SnifferPacket> packets, int[][] results, int start, int end) {
+            this.packets = packets;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= SPLIT_THRESHOLD) {
+                decrypt(packets, results, start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new DecryptTask(packets, results, start, middle), new DecryptTask(packets, results, middle, end));
+        }
+    }
+}
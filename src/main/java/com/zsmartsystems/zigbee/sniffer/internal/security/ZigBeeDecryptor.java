@@ -0,0 +1,317 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.security;
+
+import java.util.Arrays;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.security.ZigBeeKey;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.ApsHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.SecurityHeader;
+
+/**
+ * Decrypts the NWK and APS layers of ZigBee frames using the keys in a {@link ZigBeeKeyStore}.
+ * <p>
+ * The decrypted frame has the security headers and MICs removed, and the security flags cleared, so that it can be
+ * read by tools that don't have the keys. The FCS is recalculated. Keys sent in APS transport-key commands are added
+ * to the key store once the frame carrying them has been decrypted.
+ * <p>
+ * This class is thread safe - each thread uses its own decoder and cipher state.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ZigBeeDecryptor {
+    private static final int KEY_TYPE_NETWORK = 0x01;
+    private static final int KEY_TYPE_APPLICATION_LINK = 0x03;
+    private static final int KEY_TYPE_TC_LINK = 0x04;
+
+    private final ZigBeeKeyStore keyStore;
+
+    private final ThreadLocal<Context> context = new ThreadLocal<Context>() {
+        @Override
+        protected Context initialValue() {
+            return new Context();
+        }
+    };
+
+    /**
+     * Per thread decoder state
+     */
+    private static class Context {
+        final MacHeader mac = new MacHeader();
+        final NwkHeader nwk = new NwkHeader();
+        final ApsHeader aps = new ApsHeader();
+        final SecurityHeader security = new SecurityHeader();
+        final CcmStar ccm = new CcmStar();
+        final int[] plain = new int[256];
+    }
+
+    public ZigBeeDecryptor(ZigBeeKeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Decrypts a frame
+     *
+     * @param data the raw IEEE 802.15.4 frame, including the FCS
+     * @param length the length of the frame
+     * @return a new array with the decrypted frame, or null if the frame was not secured or could not be decrypted
+     */
+    public int[] decrypt(int[] data, int length) {
+        Context ctx = context.get();
+        MacHeader mac = ctx.mac;
+        NwkHeader nwk = ctx.nwk;
+        SecurityHeader security = ctx.security;
+
+        if (!mac.parse(data, length) || mac.getFrameType() != MacHeader.FRAME_TYPE_DATA || mac.isSecurity()) {
+            return null;
+        }
+        int nwkOffset = mac.getHeaderLength();
+        int nwkLimit = nwkOffset + mac.getPayloadLength();
+        if (!nwk.parse(data, nwkOffset, nwkLimit) || nwk.getFrameType() == NwkHeader.FRAME_TYPE_INTERPAN) {
+            return null;
+        }
+        int pan = mac.getDestinationPan();
+        if (nwk.getSourceIeee() != -1) {
+            keyStore.addAddress(pan, nwk.getSource(), nwk.getSourceIeee());
+        }
+        if (!nwk.isSecurity()) {
+            // Transport-key commands to joining devices only use APS security
+            if (nwk.getFrameType() != NwkHeader.FRAME_TYPE_DATA) {
+                return null;
+            }
+            int[] frame = decryptAps(ctx, data, pan, nwkOffset + nwk.getHeaderLength(), nwkLimit);
+            if (frame != null) {
+                setFcs(frame);
+            }
+            return frame;
+        }
+
+        int securityOffset = nwkOffset + nwk.getHeaderLength();
+        if (!security.parse(data, securityOffset, nwkLimit) || !security.isExtendedNonce()
+                || security.getKeyIdentifier() != SecurityHeader.KEY_ID_NETWORK) {
+            return null;
+        }
+        if (mac.getSourceAddressMode() == MacHeader.ADDRESS_MODE_SHORT && mac.getSourceAddress() == nwk.getSource()) {
+            keyStore.addAddress(pan, nwk.getSource(), security.getSourceAddress());
+        }
+
+        int payloadOffset = securityOffset + security.getLength();
+        int payloadLength = nwkLimit - payloadOffset - SecurityHeader.MIC_LENGTH;
+        if (payloadLength < 0) {
+            return null;
+        }
+
+        int[] work = Arrays.copyOf(data, length);
+        work[securityOffset] = security.getSecurityControl();
+        ctx.ccm.setNonce(security.getSourceAddress(), security.getFrameCounter(), security.getSecurityControl());
+
+        boolean decrypted = false;
+        CachedKey sequenceKey = keyStore.getNetworkKey(security.getKeySequence());
+        if (sequenceKey != null) {
+            decrypted = ctx.ccm.decrypt(sequenceKey.getCipher(), work, nwkOffset, payloadOffset - nwkOffset,
+                    payloadOffset, payloadLength, ctx.plain);
+        }
+        if (!decrypted) {
+            for (CachedKey key : keyStore.getNetworkKeys()) {
+                if (key != sequenceKey && ctx.ccm.decrypt(key.getCipher(), work, nwkOffset,
+                        payloadOffset - nwkOffset, payloadOffset, payloadLength, ctx.plain)) {
+                    decrypted = true;
+                    break;
+                }
+            }
+        }
+        if (!decrypted) {
+            return null;
+        }
+
+        // Rebuild the frame without the NWK security header and MIC
+        int[] frame = new int[securityOffset + payloadLength + 2];
+        System.arraycopy(data, 0, frame, 0, securityOffset);
+        System.arraycopy(ctx.plain, 0, frame, securityOffset, payloadLength);
+        frame[nwkOffset + 1] &= ~0x02;
+
+        if (nwk.getFrameType() == NwkHeader.FRAME_TYPE_DATA) {
+            int[] apsFrame = decryptAps(ctx, frame, pan, securityOffset, securityOffset + payloadLength);
+            if (apsFrame != null) {
+                frame = apsFrame;
+            }
+        }
+
+        setFcs(frame);
+        return frame;
+    }
+
+    /**
+     * Decrypts the APS layer of a frame where the NWK layer has already been decrypted
+     *
+     * @return the new frame, with space for the FCS, or null if the APS layer is not secured or could not be
+     *         decrypted
+     */
+    private int[] decryptAps(Context ctx, int[] frame, int pan, int apsOffset, int apsLimit) {
+        ApsHeader aps = ctx.aps;
+        NwkHeader nwk = ctx.nwk;
+        SecurityHeader security = ctx.security;
+
+        if (!aps.parse(frame, apsOffset, apsLimit) || !aps.isSecurity()) {
+            return null;
+        }
+        int securityOffset = apsOffset + aps.getHeaderLength();
+        if (!security.parse(frame, securityOffset, apsLimit)) {
+            return null;
+        }
+        int payloadOffset = securityOffset + security.getLength();
+        int payloadLength = apsLimit - payloadOffset - SecurityHeader.MIC_LENGTH;
+        if (payloadLength < 0) {
+            return null;
+        }
+
+        long source = security.getSourceAddress();
+        if (source == -1) {
+            source = nwk.getSourceIeee() != -1 ? nwk.getSourceIeee() : keyStore.getAddress(pan, nwk.getSource());
+        }
+        if (source == -1) {
+            return null;
+        }
+        long destination = nwk.getDestinationIeee() != -1 ? nwk.getDestinationIeee()
+                : keyStore.getAddress(pan, nwk.getDestination());
+
+        int[] work = Arrays.copyOf(frame, apsLimit);
+        work[securityOffset] = security.getSecurityControl();
+        ctx.ccm.setNonce(source, security.getFrameCounter(), security.getSecurityControl());
+
+        int keyIdentifier = security.getKeyIdentifier();
+        int authLength = payloadOffset - apsOffset;
+        boolean decrypted = tryLinkKey(ctx, keyStore.getDeviceLinkKey(source), keyIdentifier, work, apsOffset,
+                authLength, payloadOffset, payloadLength)
+                || (destination != -1 && tryLinkKey(ctx, keyStore.getDeviceLinkKey(destination), keyIdentifier, work,
+                        apsOffset, authLength, payloadOffset, payloadLength));
+        if (!decrypted) {
+            for (CachedKey key : keyStore.getTrustCentreLinkKeys()) {
+                if (tryLinkKey(ctx, key, keyIdentifier, work, apsOffset, authLength, payloadOffset, payloadLength)) {
+                    decrypted = true;
+                    break;
+                }
+            }
+        }
+        if (!decrypted && keyIdentifier == SecurityHeader.KEY_ID_DATA) {
+            for (CachedKey key : keyStore.getApplicationLinkKeys()) {
+                if (tryLinkKey(ctx, key, keyIdentifier, work, apsOffset, authLength, payloadOffset, payloadLength)) {
+                    decrypted = true;
+                    break;
+                }
+            }
+        }
+        if (!decrypted) {
+            return null;
+        }
+
+        if (aps.getFrameType() == ApsHeader.FRAME_TYPE_COMMAND && payloadLength > 0
+                && ctx.plain[0] == ApsHeader.COMMAND_TRANSPORT_KEY) {
+            learnTransportKey(ctx.plain, payloadLength, destination);
+        }
+
+        int[] apsFrame = new int[securityOffset + payloadLength + 2];
+        System.arraycopy(frame, 0, apsFrame, 0, securityOffset);
+        System.arraycopy(ctx.plain, 0, apsFrame, securityOffset, payloadLength);
+        apsFrame[apsOffset] &= ~0x20;
+        return apsFrame;
+    }
+
+    private boolean tryLinkKey(Context ctx, CachedKey linkKey, int keyIdentifier, int[] work, int authOffset,
+            int authLength, int payloadOffset, int payloadLength) {
+        if (linkKey == null) {
+            return false;
+        }
+        CachedKey key;
+        switch (keyIdentifier) {
+            case SecurityHeader.KEY_ID_DATA:
+                key = linkKey;
+                break;
+            case SecurityHeader.KEY_ID_KEY_TRANSPORT:
+                key = linkKey.getKeyTransportKey();
+                break;
+            case SecurityHeader.KEY_ID_KEY_LOAD:
+                key = linkKey.getKeyLoadKey();
+                break;
+            default:
+                return false;
+        }
+        return ctx.ccm.decrypt(key.getCipher(), work, authOffset, authLength, payloadOffset, payloadLength,
+                ctx.plain);
+    }
+
+    /**
+     * Adds the key from a decrypted APS transport-key command to the key store
+     *
+     * @param payload the decrypted APS command payload, starting with the command ID
+     * @param length the payload length
+     * @param destination the IEEE address of the device the command was sent to, or -1 if not known
+     */
+    private void learnTransportKey(int[] payload, int length, long destination) {
+        if (length < 18) {
+            return;
+        }
+        int keyType = payload[1];
+        ZigBeeKey key = new ZigBeeKey(Arrays.copyOfRange(payload, 2, 18));
+        switch (keyType) {
+            case KEY_TYPE_NETWORK:
+                if (length >= 19) {
+                    key.setSequenceNumber(payload[18]);
+                }
+                keyStore.addNetworkKey(key);
+                System.out.println("Learned network key " + key);
+                break;
+            case KEY_TYPE_TC_LINK:
+                if (length >= 26) {
+                    long address = readIeee(payload, 18);
+                    keyStore.addDeviceLinkKey(address, key);
+                    System.out.println("Learned trust centre link key for " + toIeeeAddress(address) + " " + key);
+                }
+                break;
+            case KEY_TYPE_APPLICATION_LINK:
+                keyStore.addApplicationLinkKey(key);
+                System.out.println("Learned application link key " + key);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static long readIeee(int[] data, int offset) {
+        long address = 0;
+        for (int cnt = 7; cnt >= 0; cnt--) {
+            address = (address << 8) | (data[offset + cnt] & 0xFF);
+        }
+        return address;
+    }
+
+    private static IeeeAddress toIeeeAddress(long address) {
+        return new IeeeAddress(String.format("%016X", address));
+    }
+
+    /**
+     * Sets the IEEE 802.15.4 FCS (CRC-16/KERMIT) in the last two bytes of the frame
+     *
+     * @param frame the frame
+     */
+    static void setFcs(int[] frame) {
+        int crc = 0;
+        for (int cnt = 0; cnt < frame.length - 2; cnt++) {
+            crc ^= frame[cnt] & 0xFF;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x0001) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+            }
+        }
+        frame[frame.length - 2] = crc & 0xFF;
+        frame[frame.length - 1] = (crc >> 8) & 0xFF;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.security;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.zsmartsystems.zigbee.security.ZigBeeKey;
+
+/**
+ * Holds the keys used by the {@link ZigBeeDecryptor}. Keys can be configured by the user, or are learned from
+ * transport-key commands once the key used to protect them is known.
+ * <p>
+ * The store also keeps the mapping of network addresses to IEEE addresses that is needed to build the APS nonce when
+ * the frame doesn't carry the IEEE address of the sender.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ZigBeeKeyStore {
+    /**
+     * The default trust centre link key used by ZigBee 3.0 and HA devices ("ZigBeeAlliance09")
+     */
+    public static final ZigBeeKey DEFAULT_TC_LINK_KEY = new ZigBeeKey(
+            new int[] { 0x5A, 0x69, 0x67, 0x42, 0x65, 0x65, 0x41, 0x6C, 0x6C, 0x69, 0x61, 0x6E, 0x63, 0x65, 0x30, 0x39 });
+
+    private final List<CachedKey> networkKeys = new CopyOnWriteArrayList<>();
+    private final Map<Integer, CachedKey> networkKeysBySequence = new ConcurrentHashMap<>();
+    private final List<CachedKey> trustCentreLinkKeys = new CopyOnWriteArrayList<>();
+    private final List<CachedKey> applicationLinkKeys = new CopyOnWriteArrayList<>();
+    private final Map<Long, CachedKey> deviceLinkKeys = new ConcurrentHashMap<>();
+    private final Map<Integer, Long> addresses = new ConcurrentHashMap<>();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public ZigBeeKeyStore() {
+        addTrustCentreLinkKey(DEFAULT_TC_LINK_KEY);
+    }
+
+    /**
+     * Adds a network key
+     *
+     * @param key the network {@link ZigBeeKey}. If the key has a sequence number it is used to select the key.
+     */
+    public void addNetworkKey(ZigBeeKey key) {
+        CachedKey cachedKey = new CachedKey(key);
+        if (key.hasSequenceNumber()) {
+            networkKeysBySequence.put(key.getSequenceNumber(), cachedKey);
+        }
+        if (!networkKeys.contains(cachedKey)) {
+            networkKeys.add(0, cachedKey);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a trust centre link key that is used for all devices
+     *
+     * @param key the link {@link ZigBeeKey}
+     */
+    public void addTrustCentreLinkKey(ZigBeeKey key) {
+        CachedKey cachedKey = new CachedKey(key);
+        if (!trustCentreLinkKeys.contains(cachedKey)) {
+            trustCentreLinkKeys.add(cachedKey);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a link key used by a single device
+     *
+     * @param address the IEEE address of the device
+     * @param key the link {@link ZigBeeKey}
+     */
+    public void addDeviceLinkKey(long address, ZigBeeKey key) {
+        deviceLinkKeys.put(address, new CachedKey(key));
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Adds an application link key shared between two devices
+     *
+     * @param key the link {@link ZigBeeKey}
+     */
+    public void addApplicationLinkKey(ZigBeeKey key) {
+        CachedKey cachedKey = new CachedKey(key);
+        if (!applicationLinkKeys.contains(cachedKey)) {
+            applicationLinkKeys.add(cachedKey);
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records the IEEE address of a device
+     *
+     * @param pan the PAN ID
+     * @param networkAddress the network address
+     * @param ieeeAddress the IEEE address
+     */
+    public void addAddress(int pan, int networkAddress, long ieeeAddress) {
+        addresses.put((pan << 16) | networkAddress, ieeeAddress);
+    }
+
+    /**
+     * Gets the IEEE address of a device
+     *
+     * @param pan the PAN ID
+     * @param networkAddress the network address
+     * @return the IEEE address, or -1 if not known
+     */
+    public long getAddress(int pan, int networkAddress) {
+        Long address = addresses.get((pan << 16) | networkAddress);
+        return address == null ? -1 : address;
+    }
+
+    /**
+     * Gets a counter that is incremented each time a key is added. This allows users to detect that frames that
+     * previously failed to decrypt may now succeed.
+     *
+     * @return the key generation
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return true if a network key is known
+     */
+    public boolean hasNetworkKey() {
+        return !networkKeys.isEmpty();
+    }
+
+    /**
+     * Gets the network key with a sequence number
+     *
+     * @param sequence the key sequence number from the frame
+     * @return the key, or null if no key with the sequence number is known
+     */
+    CachedKey getNetworkKey(int sequence) {
+        return networkKeysBySequence.get(sequence);
+    }
+
+    /**
+     * @return all network keys, most recently added first
+     */
+    List<CachedKey> getNetworkKeys() {
+        return networkKeys;
+    }
+
+    /**
+     * Gets the link key for a device
+     *
+     * @param address the IEEE address
+     * @return the key, or null if no key is known for the device
+     */
+    CachedKey getDeviceLinkKey(long address) {
+        return deviceLinkKeys.get(address);
+    }
+
+    List<CachedKey> getTrustCentreLinkKeys() {
+        return trustCentreLinkKeys;
+    }
+
+    List<CachedKey> getApplicationLinkKeys() {
+        return applicationLinkKeys;
+    }
+}
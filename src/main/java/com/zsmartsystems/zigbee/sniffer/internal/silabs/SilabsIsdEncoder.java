@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.silabs;
+
+import java.nio.charset.StandardCharsets;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.HexTable;
+
+/**
+ * Encodes a {@link SnifferPacket} as an EM350 receive packet line in the Silabs ISD log format, written directly into a
+ * byte array. The line is the same as {@link SilabsPacketEm350Rx} writes, including the line separator, but encoding
+ * creates no objects, and the hex conversion uses the {@link HexTable}.
+ * <p>
+ * The encoder is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SilabsIsdEncoder {
+    /**
+     * The longest line the encoder can write, including the line separator
+     */
+    public static final int MAX_RECORD_LENGTH = 1024;
+
+    private static final byte[] PACKET_TYPE = (" 16908325 Packet ").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SOURCE = ("] [ZSmartSystems] [").getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END = ("]" + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] digits = new byte[20];
+
+    /**
+     * Encodes a packet, followed by the line separator. There must be at least {@link #MAX_RECORD_LENGTH} bytes
+     * available.
+     *
+     * @param packet the {@link SnifferPacket}
+     * @param buffer the array to write to
+     * @param offset the offset to write at
+     * @return the offset after the line
+     */
+    public int encode(SnifferPacket packet, byte[] buffer, int offset) {
+        int length = packet.getLength();
+        int position = offset;
+        buffer[position++] = '[';
+        position = putLong(buffer, position, packet.getElapsedMicros());
+        buffer[position++] = ' ';
+        // 32uS per byte - extra bytes added to give same value as Simplicity Studio generated logs.
+        position = putLong(buffer, position, (length + 9) * 32);
+        position = put(buffer, position, PACKET_TYPE);
+        position = HexTable.putByte(buffer, position, packet.getSequence());
+        position = put(buffer, position, SOURCE);
+
+        position = HexTable.putValue(buffer, position, length);
+        int[] data = packet.getData();
+        for (int cnt = 0; cnt < length; cnt++) {
+            buffer[position++] = ' ';
+            position = HexTable.putValue(buffer, position, data[cnt]);
+        }
+        buffer[position++] = ' ';
+        position = HexTable.putValue(buffer, position, packet.getLqi());
+        buffer[position++] = ' ';
+        position = HexTable.putValue(buffer, position, packet.getRssi());
+        buffer[position++] = ' ';
+        position = HexTable.putValue(buffer, position, (packet.getChannel() - 11) * 16);
+        return put(buffer, position, END);
+    }
+
+    private static int put(byte[] buffer, int position, byte[] text) {
+        System.arraycopy(text, 0, buffer, position, text.length);
+        return position + text.length;
+    }
+
+    private int putLong(byte[] buffer, int position, long value) {
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int count = 0;
+        do {
+            digits[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (count > 0) {
+            buffer[position++] = digits[--count];
+        }
+        return position;
+    }
+}
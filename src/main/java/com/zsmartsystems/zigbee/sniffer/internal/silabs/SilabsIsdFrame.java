@@ -7,6 +7,8 @@
  */
 package com.zsmartsystems.zigbee.sniffer.internal.silabs;
 
+import com.zsmartsystems.zigbee.sniffer.internal.HexTable;
+
 /**
  * A class to encapsulate the ZigBee ISD log for Silabs Simplicity Studio
  * <p>
@@ -73,7 +75,7 @@ public abstract class SilabsIsdFrame {
         if (value == null) {
             builder.append("XX");
         } else {
-            builder.append(String.format("%02X", value));
+            HexTable.appendValue(builder, value);
         }
     }
 
@@ -8,33 +8,80 @@
 package com.zsmartsystems.zigbee.sniffer.internal.silabs;
 
 import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
 
 /**
  * This class provides a logger in the Silabs ISD event.log format
+ * <p>
+ * Packets are written in batches - the whole batch is encoded by a {@link SilabsIsdEncoder} into one buffer, which is
+ * written to the file at once.
  *
  * @author Chris Jackson
  *
  */
 public class SilabsIsdLogFile {
-    private final PrintWriter writer;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileOutputStream output;
+    private final SilabsIsdEncoder encoder = new SilabsIsdEncoder();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int length;
 
     public SilabsIsdLogFile(String filename) throws FileNotFoundException, UnsupportedEncodingException {
-        writer = new PrintWriter(filename, "UTF-8");
+        output = new FileOutputStream(filename);
 
-        writer.println("# (c) Ember - InSight Desktop");
-        writer.println("# File created with Z-Smart Systems ZigBeeSniffer");
-        writer.flush();
+        writeLine("# (c) Ember - InSight Desktop");
+        writeLine("# File created with Z-Smart Systems ZigBeeSniffer");
     }
 
     public void write(SilabsIsdFrame frame) {
-        writer.println(frame.getBuffer());
-        writer.flush();
+        writeLine(frame.getBuffer());
+    }
+
+    /**
+     * Writes a batch of received packets
+     *
+     * @param packets the {@link SnifferPacket}s to write
+     */
+    public void write(List<SnifferPacket> packets) {
+        try {
+            for (SnifferPacket packet : packets) {
+                if (length + SilabsIsdEncoder.MAX_RECORD_LENGTH > BUFFER_SIZE) {
+                    flush();
+                }
+                length = encoder.encode(packet, buffer, length);
+            }
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+            length = 0;
+        }
     }
 
     public void close() {
-        writer.flush();
-        writer.close();
+        try {
+            output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeLine(String line) {
+        try {
+            output.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flush() throws IOException {
+        output.write(buffer, 0, length);
+        length = 0;
     }
 }
@@ -0,0 +1,327 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.silabs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.ChunkedPacketReader;
+import com.zsmartsystems.zigbee.sniffer.internal.PacketBatch;
+
+/**
+ * Reads received packets from a Silabs ISD event log, such as those written by {@link SilabsIsdLogFile}. The file is
+ * split into chunks on line boundaries so that it can be parsed on several threads, and the hex data is decoded with
+ * a lookup table.
+ * <p>
+ * Only EM250 and EM350 receive events are read - other events are ignored. The ISD timestamps are relative to the
+ * start of the capture, so if the log contains the "Logging started at" message written by the sniffer, it is used
+ * to give the packets an absolute time.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SilabsIsdReader implements ChunkedPacketReader {
+    private static final int EVENT_EM250_RX = 16908323;
+    private static final int EVENT_EM350_RX = 16908325;
+    private static final int EVENT_ADAPTER = 327686;
+    private static final int EVENT_PRINTF = 131074;
+
+    private static final String LOGGING_STARTED = "Logging started at ";
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int HEADER_SCAN_SIZE = 64 * 1024;
+    private static final int MAX_TOKENS = SnifferPacket.MAX_LENGTH + 4;
+
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int cnt = 0; cnt < 10; cnt++) {
+            HEX_VALUES['0' + cnt] = (byte) cnt;
+        }
+        for (int cnt = 0; cnt < 6; cnt++) {
+            HEX_VALUES['A' + cnt] = (byte) (10 + cnt);
+            HEX_VALUES['a' + cnt] = (byte) (10 + cnt);
+        }
+    }
+
+    /**
+     * Working arrays used while parsing a chunk, so that parsing doesn't allocate memory per line
+     */
+    private static class Scratch {
+        final long[] header = new long[3];
+        final int[] value = new int[1];
+        final int[] tokens = new int[MAX_TOKENS];
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private IeeeAddress adapterAddress;
+    private long startTime;
+    private long startOffset;
+
+    /**
+     * Opens the log and reads the adapter address and start time from the start of the file
+     *
+     * @param filename the ISD log file
+     * @throws IOException if the file can't be read
+     */
+    public SilabsIsdReader(String filename) throws IOException {
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        size = channel.size();
+        readHeader();
+    }
+
+    @Override
+    public long getStart() {
+        return 0;
+    }
+
+    @Override
+    public IeeeAddress getAdapterAddress() {
+        return adapterAddress;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getChunkEnd(long start) throws IOException {
+        long end = start + CHUNK_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        while (end < size) {
+            buffer.clear();
+            int read = channel.read(buffer, end);
+            if (read <= 0) {
+                break;
+            }
+            for (int cnt = 0; cnt < read; cnt++) {
+                if (buffer.get(cnt) == '\n') {
+                    return end + cnt + 1;
+                }
+            }
+            end += read;
+        }
+        return size;
+    }
+
+    @Override
+    public void read(long start, long end, PacketBatch batch) throws IOException {
+        int length = (int) (end - start);
+        byte[] buffer = batch.getBuffer(length);
+        readFully(buffer, start, length);
+
+        Scratch scratch = new Scratch();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            parsePacket(buffer, lineStart, lineEnd, scratch, batch);
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void parsePacket(byte[] buffer, int start, int end, Scratch scratch, PacketBatch batch) {
+        if (start >= end || buffer[start] != '[') {
+            return;
+        }
+        long[] header = scratch.header;
+        int[] tokens = scratch.tokens;
+        int position = parseHeader(buffer, start + 1, end, header);
+        if (position == -1 || (header[2] != EVENT_EM350_RX && header[2] != EVENT_EM250_RX)) {
+            return;
+        }
+        long timestamp = header[0];
+
+        // Event name is followed by the sequence number
+        while (position < end && buffer[position] != ' ' && buffer[position] != ']') {
+            position++;
+        }
+        int sequence = 0;
+        if (position < end && buffer[position] == ' ') {
+            position = parseHex(buffer, position + 1, end, scratch.value);
+            if (position == -1) {
+                return;
+            }
+            sequence = scratch.value[0];
+        }
+
+        int count = parseData(buffer, position, end, tokens, scratch.value);
+        if (count < 1) {
+            return;
+        }
+        int length = Math.min(tokens[0] & 0xFF, SnifferPacket.MAX_LENGTH);
+        if (count < length + 1) {
+            return;
+        }
+
+        SnifferPacket packet = batch.add();
+        packet.setSequence(sequence & 0xFF);
+        packet.setElapsedMicros(timestamp);
+        packet.setTimestampMicros(startTime * 1000 + timestamp - startOffset);
+        packet.setData(tokens, 1, length);
+        if (count >= length + 4) {
+            packet.setLqi(tokens[length + 1] & 0xFF);
+            packet.setRssi((byte) tokens[length + 2]);
+            packet.setChannel(((tokens[length + 3] & 0xFF) >> 4) + 11);
+        } else {
+            packet.setLqi(0);
+            packet.setRssi(0);
+            packet.setChannel(0);
+        }
+    }
+
+    /**
+     * Parses the timestamp, duration and event type
+     *
+     * @return the position after the event type, or -1 if the header is invalid
+     */
+    private int parseHeader(byte[] buffer, int position, int end, long[] header) {
+        for (int field = 0; field < header.length; field++) {
+            long value = 0;
+            int digits = 0;
+            while (position < end && buffer[position] >= '0' && buffer[position] <= '9') {
+                value = value * 10 + buffer[position++] - '0';
+                digits++;
+            }
+            if (digits == 0 || position >= end || buffer[position] != ' ') {
+                return -1;
+            }
+            header[field] = value;
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Parses the space separated hex values in the data field, which is the third bracketed field on the line
+     *
+     * @return the number of values
+     */
+    private int parseData(byte[] buffer, int position, int end, int[] tokens, int[] value) {
+        int brackets = 0;
+        while (position < end && brackets < 2) {
+            if (buffer[position++] == '[') {
+                brackets++;
+            }
+        }
+        int count = 0;
+        while (position < end && buffer[position] != ']' && count < tokens.length) {
+            if (buffer[position] == ' ') {
+                position++;
+                continue;
+            }
+            position = parseHex(buffer, position, end, value);
+            if (position == -1) {
+                return 0;
+            }
+            tokens[count++] = value[0];
+        }
+        return count;
+    }
+
+    /**
+     * Parses a hex value. Values longer than two digits, such as sign extended negative numbers, are accepted.
+     *
+     * @return the position after the value, or -1 if it's not a hex value
+     */
+    private int parseHex(byte[] buffer, int position, int end, int[] value) {
+        int result = 0;
+        int start = position;
+        while (position < end && buffer[position] >= 0) {
+            int digit = HEX_VALUES[buffer[position]];
+            if (digit == -1) {
+                break;
+            }
+            result = (result << 4) | digit;
+            position++;
+        }
+        if (position == start) {
+            return -1;
+        }
+        value[0] = result;
+        return position;
+    }
+
+    private void readHeader() throws IOException {
+        int length = (int) Math.min(size, HEADER_SCAN_SIZE);
+        byte[] buffer = new byte[length];
+        readFully(buffer, 0, length);
+
+        Scratch scratch = new Scratch();
+        long[] header = scratch.header;
+        int[] tokens = scratch.tokens;
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && buffer[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == length) {
+                break;
+            }
+            int position = buffer[lineStart] == '[' ? parseHeader(buffer, lineStart + 1, lineEnd, header) : -1;
+            if (position != -1) {
+                if (header[2] == EVENT_EM350_RX || header[2] == EVENT_EM250_RX) {
+                    break;
+                }
+                int count = parseData(buffer, position, lineEnd, tokens, scratch.value);
+                if (header[2] == EVENT_ADAPTER && count == 8) {
+                    int[] address = new int[8];
+                    for (int cnt = 0; cnt < 8; cnt++) {
+                        address[cnt] = tokens[7 - cnt] & 0xFF;
+                    }
+                    adapterAddress = new IeeeAddress(address);
+                }
+                if (header[2] == EVENT_PRINTF) {
+                    byte[] chars = new byte[count];
+                    for (int cnt = 0; cnt < count; cnt++) {
+                        chars[cnt] = (byte) tokens[cnt];
+                    }
+                    String message = new String(chars, StandardCharsets.ISO_8859_1);
+                    if (message.startsWith(LOGGING_STARTED)) {
+                        try {
+                            startTime = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss")
+                                    .parse(message.substring(LOGGING_STARTED.length())).getTime();
+                            startOffset = header[0];
+                        } catch (ParseException e) {
+                            // Leave the start time unknown
+                        }
+                    }
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    private void readFully(byte[] buffer, long position, int length) throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+        while (byteBuffer.hasRemaining()) {
+            if (channel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.silabs;
+
+import java.io.FileNotFoundException;
+import java.io.UnsupportedEncodingException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that writes packets to a Silabs ISD compatible event log. Each batch of packets is encoded into
+ * one buffer and written at once.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SilabsIsdSink implements PacketSink {
+    private final SilabsIsdLogFile isdFile;
+    private long startTime;
+
+    /**
+     * Creates the sink and opens the log file
+     *
+     * @param filename the log filename
+     * @throws FileNotFoundException if the file could not be created
+     * @throws UnsupportedEncodingException
+     */
+    public SilabsIsdSink(String filename) throws FileNotFoundException, UnsupportedEncodingException {
+        isdFile = new SilabsIsdLogFile(filename);
+    }
+
+    /**
+     * Sets the time recorded in the log as the start of logging. By default the time the NCP is started is used.
+     *
+     * @param startTime the start time in milliseconds since the epoch
+     */
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    @Override
+    public String getName() {
+        return "isd";
+    }
+
+    @Override
+    public void ncpStarted(IeeeAddress ieeeAddress, String firmwareVersion) {
+        SilabsAdapter adapter = new SilabsAdapter();
+        adapter.setAddress(ieeeAddress);
+        isdFile.write(adapter);
+        SilabsVersion version = new SilabsVersion();
+        version.setVersion(firmwareVersion);
+        isdFile.write(version);
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        Date date = new Date(startTime == 0 ? System.currentTimeMillis() : startTime);
+        SilabsPrintf printf = new SilabsPrintf();
+        printf.setString("Logging started at " + dateFormat.format(date));
+        isdFile.write(printf);
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        isdFile.write(packets);
+    }
+
+    @Override
+    public void close() {
+        isdFile.close();
+    }
+}
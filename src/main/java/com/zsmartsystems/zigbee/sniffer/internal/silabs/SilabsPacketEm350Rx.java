@@ -15,6 +15,7 @@ package com.zsmartsystems.zigbee.sniffer.internal.silabs;
  */
 public class SilabsPacketEm350Rx extends SilabsIsdFrame {
     private int[] data;
+    private int length;
     private int lqi;
     private int rssi;
     private int channel;
@@ -25,7 +26,19 @@ public class SilabsPacketEm350Rx extends SilabsIsdFrame {
     }
 
     public void setData(int[] data) {
+        setData(data, data.length);
+    }
+
+    /**
+     * Sets the frame data. The array is referenced rather than copied, so it must not be changed until the frame has
+     * been written.
+     *
+     * @param data the array holding the frame
+     * @param length the number of bytes in the frame
+     */
+    public void setData(int[] data, int length) {
         this.data = data;
+        this.length = length;
     }
 
     public void setLqi(int lqi) {
@@ -43,12 +56,12 @@ public class SilabsPacketEm350Rx extends SilabsIsdFrame {
     @Override
     public String getBuffer() {
         // 32uS per byte - extra bytes added to give same value as Simplicity Studio generated logs.
-        eventDuration = (data.length + 9) * 32;
+        eventDuration = (length + 9) * 32;
 
         getHeader();
-        formatValue(data.length);
-        for (int value : data) {
-            formatValue(value);
+        formatValue(length);
+        for (int cnt = 0; cnt < length; cnt++) {
+            formatValue(data[cnt]);
         }
 
         formatValue(lqi);
@@ -0,0 +1,399 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.spool;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A persistent first in, first out queue of byte records, held in an append only log of memory mapped segment files
+ * in a directory. Records are appended by one thread and read in order by another, and records that have been read
+ * stay in the spool until they are committed, so reading can be rewound to the last commit if the records were not
+ * delivered.
+ * <p>
+ * Each segment file (segment-NNNNNNNNNN.spool) is created at its full size and starts with a magic number, a version
+ * and the index of the segment in the log. Each record is a 32 bit length followed by the data. The data is written
+ * before the length, so a record that was only partly written when the process stopped has a length of zero and marks
+ * the end of the segment. The committed position is held in a small memory mapped cursor file, so the spool carries on
+ * from the last commit after a restart.
+ * <p>
+ * Segments before the committed position are no longer needed. When the spool is full, the oldest segment is dropped
+ * even if its records have not been committed, and the lost records are counted as dropped. Segments that are no longer
+ * needed stay mapped and are reused for new segments by rewriting their header, as a mapped file can't be deleted or
+ * replaced on Windows, so once the spool has filled the directory keeps up to the maximum size of segment files.
+ * <p>
+ * All methods are synchronized.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SegmentSpool {
+    /**
+     * The default size of each segment file
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final int MAGIC = 0x5A53504C;
+    private static final int VERSION = 2;
+    private static final int SEGMENT_HEADER_LENGTH = 16;
+    private static final int CURSOR_LENGTH = 16;
+    private static final String CURSOR_NAME = "cursor";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_EXTENSION = ".spool";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private final List<MappedByteBuffer> unusedSegments = new ArrayList<>();
+    private final MappedByteBuffer cursor;
+
+    // The number in the name of the next new segment file
+    private long nextFile;
+
+    // The positions are held as the segment index and the offset in the segment
+    private long writeSegment;
+    private int writeOffset;
+    private long readSegment;
+    private int readOffset;
+    private long commitSegment;
+    private int commitOffset;
+
+    // Record numbers, counted from the committed position when the spool was opened
+    private long written;
+    private long read;
+    private long committed;
+    private long dropped;
+
+    /**
+     * Opens the spool, creating the directory if needed, and recovers the records that were not committed
+     *
+     * @param directory the directory holding the segments
+     * @param segmentSize the size of each segment file in bytes
+     * @param maxBytes the maximum size of all the segments - at least two segments are kept
+     * @throws IOException if the spool can't be opened
+     */
+    public SegmentSpool(File directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / segmentSize));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new FileNotFoundException("Unable to create spool directory " + directory);
+        }
+
+        cursor = map(new File(directory, CURSOR_NAME), CURSOR_LENGTH);
+        commitSegment = cursor.getLong(0);
+        commitOffset = (int) cursor.getLong(8);
+
+        List<File> unusedFiles = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_EXTENSION)) {
+                    continue;
+                }
+                try {
+                    nextFile = Math.max(nextFile, Long.parseLong(
+                            name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length())) + 1);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                    continue;
+                }
+                long index = readIndex(file);
+                if (index < commitSegment || segments.containsKey(index)) {
+                    unusedFiles.add(file);
+                } else {
+                    segments.put(index, map(file, segmentSize));
+                }
+            }
+        }
+        // Files that aren't needed are kept for reuse, up to the size of the spool
+        for (File file : unusedFiles) {
+            if (segments.size() + unusedSegments.size() < maxSegments) {
+                unusedSegments.add(map(file, segmentSize));
+            } else if (!file.delete()) {
+                System.err.println("Unable to delete spool segment " + file);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            commitSegment = Math.max(commitSegment, 0);
+            createSegment(commitSegment);
+            commitOffset = SEGMENT_HEADER_LENGTH;
+        } else if (segments.firstKey() > commitSegment || commitOffset < SEGMENT_HEADER_LENGTH) {
+            commitSegment = segments.firstKey();
+            commitOffset = SEGMENT_HEADER_LENGTH;
+        }
+        writeCursor();
+
+        // Count the records that were not committed, and find the end of the last segment
+        readSegment = commitSegment;
+        readOffset = commitOffset;
+        writeSegment = segments.lastKey();
+        writeOffset = SEGMENT_HEADER_LENGTH;
+        while (skipRecord()) {
+            written++;
+        }
+        // If a damaged record stopped the count early, appending starts in a new segment
+        writeOffset = readSegment == writeSegment ? readOffset : segmentSize;
+        readSegment = commitSegment;
+        readOffset = commitOffset;
+    }
+
+    /**
+     * Appends a record
+     *
+     * @param data the array holding the record
+     * @param offset the offset of the record
+     * @param length the length of the record
+     * @return false if the record is too long for a segment
+     * @throws IOException if a new segment can't be created
+     */
+    public synchronized boolean append(byte[] data, int offset, int length) throws IOException {
+        if (length <= 0 || SEGMENT_HEADER_LENGTH + 4 + length + 4 > segmentSize) {
+            return false;
+        }
+        // Leave room for the zero length that marks the end of the segment
+        if (writeOffset + 4 + length + 4 > segmentSize) {
+            if (segments.size() >= maxSegments) {
+                dropOldestSegment();
+            }
+            writeSegment++;
+            createSegment(writeSegment);
+            writeOffset = SEGMENT_HEADER_LENGTH;
+        }
+        MappedByteBuffer segment = segments.get(writeSegment);
+        segment.position(writeOffset + 4);
+        segment.put(data, offset, length);
+        // A record that was only partly written before a restart may have left data after the new record
+        segment.putInt(writeOffset + 4 + length, 0);
+        segment.putInt(writeOffset, length);
+        writeOffset += 4 + length;
+        written++;
+        return true;
+    }
+
+    /**
+     * Reads the next record
+     *
+     * @param buffer the buffer to read the record into - longer records are skipped
+     * @return the length of the record, or -1 if there are no more records
+     */
+    public synchronized int read(byte[] buffer) {
+        while (advance()) {
+            MappedByteBuffer segment = segments.get(readSegment);
+            int length = segment.getInt(readOffset);
+            if (readOffset + 4 + length > segmentSize) {
+                // A damaged record - carry on in the next segment
+                readOffset = segmentSize;
+                continue;
+            }
+            readOffset += 4 + length;
+            read++;
+            if (length > buffer.length) {
+                continue;
+            }
+            segment.position(readOffset - length);
+            segment.get(buffer, 0, length);
+            return length;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the position after the last record read, which can later be committed
+     *
+     * @return the position, as the segment index, offset and record number
+     */
+    public synchronized long[] getReadPosition() {
+        return new long[] { readSegment, readOffset, read };
+    }
+
+    /**
+     * Commits the records before a position, which was returned by {@link #getReadPosition()}. The records are removed
+     * from the spool and segments that are no longer needed are kept for reuse.
+     *
+     * @param position the position
+     */
+    public synchronized void commit(long[] position) {
+        if (position[2] <= committed || position[0] < segments.firstKey()) {
+            return;
+        }
+        commitSegment = position[0];
+        commitOffset = (int) position[1];
+        committed = position[2];
+        writeCursor();
+        while (segments.firstKey() < commitSegment) {
+            unusedSegments.add(segments.remove(segments.firstKey()));
+        }
+    }
+
+    /**
+     * Moves the read position back to the last commit, so the records are read again
+     */
+    public synchronized void rewind() {
+        readSegment = commitSegment;
+        readOffset = commitOffset;
+        read = committed;
+    }
+
+    /**
+     * @return the number of records that have not been read
+     */
+    public synchronized long getBacklog() {
+        return written - read;
+    }
+
+    /**
+     * @return the number of records that have not been committed
+     */
+    public synchronized long getUncommitted() {
+        return written - committed;
+    }
+
+    /**
+     * @return the number of records that were deleted before they were committed because the spool was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Writes the spool to disk
+     */
+    public synchronized void close() {
+        cursor.force();
+        for (MappedByteBuffer segment : segments.values()) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Moves the read position to the next record, moving to the next segment at the end of a segment
+     *
+     * @return true if there is a record at the read position
+     */
+    private boolean advance() {
+        while (true) {
+            MappedByteBuffer segment = segments.get(readSegment);
+            if (segment != null && readOffset + 4 <= segmentSize && segment.getInt(readOffset) > 0) {
+                return true;
+            }
+            if (readSegment >= writeSegment) {
+                return false;
+            }
+            readSegment++;
+            readOffset = SEGMENT_HEADER_LENGTH;
+        }
+    }
+
+    private boolean skipRecord() {
+        if (!advance()) {
+            return false;
+        }
+        int length = segments.get(readSegment).getInt(readOffset);
+        if (readOffset + 4 + length > segmentSize) {
+            return false;
+        }
+        readOffset += 4 + length;
+        return true;
+    }
+
+    /**
+     * Drops the oldest segment to make room, moving the read and commit positions past it
+     */
+    private void dropOldestSegment() {
+        long oldest = segments.firstKey();
+        if (commitSegment == oldest) {
+            long[] saved = { readSegment, readOffset, read };
+            readSegment = commitSegment;
+            readOffset = commitOffset;
+            long lost = 0;
+            while (readSegment == oldest && skipRecord()) {
+                if (readSegment == oldest) {
+                    lost++;
+                }
+            }
+            dropped += lost;
+            committed += lost;
+            commitSegment = oldest + 1;
+            commitOffset = SEGMENT_HEADER_LENGTH;
+            writeCursor();
+            if (saved[0] == oldest) {
+                readSegment = commitSegment;
+                readOffset = commitOffset;
+                read = Math.max(saved[2], committed);
+            } else {
+                readSegment = saved[0];
+                readOffset = (int) saved[1];
+                read = saved[2];
+            }
+        }
+        unusedSegments.add(segments.remove(oldest));
+    }
+
+    /**
+     * Starts a segment, reusing an unused segment in place if there is one, as a mapped file can't be deleted or
+     * replaced on Windows
+     */
+    private void createSegment(long index) throws IOException {
+        MappedByteBuffer segment;
+        if (unusedSegments.isEmpty()) {
+            segment = map(getFile(nextFile++), segmentSize);
+        } else {
+            segment = unusedSegments.remove(unusedSegments.size() - 1);
+        }
+        // The old records are cleared before the index is changed, so a restart never sees them in the new segment
+        segment.putInt(SEGMENT_HEADER_LENGTH, 0);
+        segment.putLong(8, index);
+        segment.putInt(0, MAGIC);
+        segment.putInt(4, VERSION);
+        segments.put(index, segment);
+    }
+
+    private void writeCursor() {
+        cursor.putLong(0, commitSegment);
+        cursor.putLong(8, commitOffset);
+    }
+
+    private File getFile(long number) {
+        return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_EXTENSION));
+    }
+
+    /**
+     * Reads the index of a segment from its header without mapping the file
+     *
+     * @return the index, or -1 if the file isn't a valid segment
+     */
+    private static long readIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() < SEGMENT_HEADER_LENGTH || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return -1;
+            }
+            return raf.readLong();
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int length) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < length) {
+                raf.setLength(length);
+            }
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.stats;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregates per channel RF statistics - frame count, RSSI and LQI histograms, and airtime. All values are held in
+ * fixed size arrays indexed by channel (11 to 26), and are updated with atomic operations so that the capture path
+ * never takes a lock, and the values can be read for reporting from another thread at any time.
+ * <p>
+ * Airtime is calculated from the frame length at 250 kbit/s, including the 6 byte synchronisation header and PHY
+ * header, giving 32us per byte. The duty cycle is the airtime as a proportion of the time spent listening on the
+ * channel, so that it is meaningful when the sniffer is rotating through channels.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ChannelStatistics {
+    public static final int FIRST_CHANNEL = 11;
+    public static final int LAST_CHANNEL = 26;
+    public static final int CHANNELS = LAST_CHANNEL - FIRST_CHANNEL + 1;
+
+    /**
+     * RSSI histogram bins are 5dB wide, starting at -100dBm. Values outside the range go into the first or last bin.
+     */
+    public static final int RSSI_BINS = 16;
+    public static final int RSSI_BIN_MIN = -100;
+    public static final int RSSI_BIN_WIDTH = 5;
+
+    /**
+     * LQI histogram bins are 32 wide, covering 0 to 255
+     */
+    public static final int LQI_BINS = 8;
+    public static final int LQI_BIN_WIDTH = 32;
+
+    private static final int PHY_OVERHEAD_BYTES = 6;
+    private static final int MICROS_PER_BYTE = 32;
+
+    private final AtomicLongArray frames = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray bytes = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray airtimeMicros = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray listenMillis = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray rssiSum = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray lqiSum = new AtomicLongArray(CHANNELS);
+    private final AtomicLongArray rssiHistogram = new AtomicLongArray(CHANNELS * RSSI_BINS);
+    private final AtomicLongArray lqiHistogram = new AtomicLongArray(CHANNELS * LQI_BINS);
+
+    /**
+     * Adds a received frame to the statistics
+     *
+     * @param channel the channel the frame was received on
+     * @param rssi the RSSI in dBm
+     * @param lqi the LQI
+     * @param length the frame length in bytes, including the FCS
+     */
+    public void frameReceived(int channel, int rssi, int lqi, int length) {
+        frameReceived(channel, rssi, lqi, length, 1);
+    }
+
+    /**
+     * Adds a received frame that was kept as a sample of several frames. The frame is counted as many times as its
+     * weight.
+     *
+     * @param channel the channel the frame was received on
+     * @param rssi the RSSI in dBm
+     * @param lqi the LQI
+     * @param length the frame length in bytes, including the FCS
+     * @param weight the number of frames the frame stands for
+     */
+    public void frameReceived(int channel, int rssi, int lqi, int length, int weight) {
+        int index = channel - FIRST_CHANNEL;
+        if (index < 0 || index >= CHANNELS) {
+            return;
+        }
+        frames.addAndGet(index, weight);
+        bytes.addAndGet(index, (long) length * weight);
+        airtimeMicros.addAndGet(index, (long) (length + PHY_OVERHEAD_BYTES) * MICROS_PER_BYTE * weight);
+        rssiSum.addAndGet(index, (long) rssi * weight);
+        lqiSum.addAndGet(index, (long) lqi * weight);
+
+        int rssiBin = Math.min(RSSI_BINS - 1, Math.max(0, (rssi - RSSI_BIN_MIN) / RSSI_BIN_WIDTH));
+        rssiHistogram.addAndGet(index * RSSI_BINS + rssiBin, weight);
+        int lqiBin = Math.min(LQI_BINS - 1, Math.max(0, lqi / LQI_BIN_WIDTH));
+        lqiHistogram.addAndGet(index * LQI_BINS + lqiBin, weight);
+    }
+
+    /**
+     * Adds time spent listening on a channel
+     *
+     * @param channel the channel
+     * @param millis the time in milliseconds
+     */
+    public void addListenTime(int channel, long millis) {
+        int index = channel - FIRST_CHANNEL;
+        if (index < 0 || index >= CHANNELS) {
+            return;
+        }
+        listenMillis.addAndGet(index, millis);
+    }
+
+    public long getFrames(int channel) {
+        return frames.get(channel - FIRST_CHANNEL);
+    }
+
+    public long getBytes(int channel) {
+        return bytes.get(channel - FIRST_CHANNEL);
+    }
+
+    public long getAirtimeMicros(int channel) {
+        return airtimeMicros.get(channel - FIRST_CHANNEL);
+    }
+
+    public long getListenMillis(int channel) {
+        return listenMillis.get(channel - FIRST_CHANNEL);
+    }
+
+    /**
+     * @param channel the channel
+     * @return the airtime as a percentage of the listening time, or 0 if the channel has not been monitored
+     */
+    public double getDutyCycle(int channel) {
+        long listen = getListenMillis(channel);
+        if (listen == 0) {
+            return 0;
+        }
+        return getAirtimeMicros(channel) / (listen * 10.0);
+    }
+
+    /**
+     * @param channel the channel
+     * @return the mean RSSI in dBm, or 0 if no frames have been received
+     */
+    public double getMeanRssi(int channel) {
+        long count = getFrames(channel);
+        return count == 0 ? 0 : (double) rssiSum.get(channel - FIRST_CHANNEL) / count;
+    }
+
+    /**
+     * @param channel the channel
+     * @return the mean LQI, or 0 if no frames have been received
+     */
+    public double getMeanLqi(int channel) {
+        long count = getFrames(channel);
+        return count == 0 ? 0 : (double) lqiSum.get(channel - FIRST_CHANNEL) / count;
+    }
+
+    /**
+     * @param channel the channel
+     * @param bin the bin number (0 to {@link #RSSI_BINS} - 1)
+     * @return the number of frames in the RSSI bin
+     */
+    public long getRssiHistogram(int channel, int bin) {
+        return rssiHistogram.get((channel - FIRST_CHANNEL) * RSSI_BINS + bin);
+    }
+
+    /**
+     * @param channel the channel
+     * @param bin the bin number (0 to {@link #LQI_BINS} - 1)
+     * @return the number of frames in the LQI bin
+     */
+    public long getLqiHistogram(int channel, int bin) {
+        return lqiHistogram.get((channel - FIRST_CHANNEL) * LQI_BINS + bin);
+    }
+
+    /**
+     * Prints a table of the statistics for all channels that have been monitored. The RSSI histogram is shown as a
+     * single character per bin, from -100dBm on the left to -25dBm and above on the right.
+     *
+     * @param out the {@link PrintStream} to print to
+     */
+    public void print(PrintStream out) {
+        out.println("Ch  Frames    Listen(s)  Duty%   RSSI   LQI  RSSI histogram");
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            if (getListenMillis(channel) == 0 && getFrames(channel) == 0) {
+                continue;
+            }
+            out.println(String.format("%-3d %-9d %-10.1f %-7.3f %-6.1f %-4.0f %s", channel, getFrames(channel),
+                    getListenMillis(channel) / 1000.0, getDutyCycle(channel), getMeanRssi(channel),
+                    getMeanLqi(channel), getRssiBar(channel)));
+        }
+    }
+
+    /**
+     * Prints one CSV line per monitored channel. The line contains the time, channel, frame count, bytes, listening
+     * time, airtime, the RSSI histogram bins and the LQI histogram bins.
+     *
+     * @param out the {@link PrintStream} to print to
+     * @param timestamp the time of the report in milliseconds
+     */
+    public void printCsv(PrintStream out, long timestamp) {
+        for (int channel = FIRST_CHANNEL; channel <= LAST_CHANNEL; channel++) {
+            if (getListenMillis(channel) == 0 && getFrames(channel) == 0) {
+                continue;
+            }
+            StringBuilder builder = new StringBuilder(200);
+            builder.append(timestamp);
+            builder.append(',');
+            builder.append(channel);
+            builder.append(',');
+            builder.append(getFrames(channel));
+            builder.append(',');
+            builder.append(getBytes(channel));
+            builder.append(',');
+            builder.append(getListenMillis(channel));
+            builder.append(',');
+            builder.append(getAirtimeMicros(channel));
+            for (int bin = 0; bin < RSSI_BINS; bin++) {
+                builder.append(',');
+                builder.append(getRssiHistogram(channel, bin));
+            }
+            for (int bin = 0; bin < LQI_BINS; bin++) {
+                builder.append(',');
+                builder.append(getLqiHistogram(channel, bin));
+            }
+            out.println(builder.toString());
+        }
+    }
+
+    private String getRssiBar(int channel) {
+        final String levels = " .:-=+*#";
+        long max = 0;
+        for (int bin = 0; bin < RSSI_BINS; bin++) {
+            max = Math.max(max, getRssiHistogram(channel, bin));
+        }
+        StringBuilder builder = new StringBuilder(RSSI_BINS + 2);
+        builder.append('|');
+        for (int bin = 0; bin < RSSI_BINS; bin++) {
+            long count = getRssiHistogram(channel, bin);
+            int level = max == 0 ? 0 : (int) ((count * (levels.length() - 1) + max - 1) / max);
+            builder.append(levels.charAt(level));
+        }
+        builder.append('|');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.stats;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that feeds {@link ChannelStatistics} and prints the table to the console every reporting
+ * interval, and optionally appends the values to a CSV file. Sampled packets are counted by their sample weight, so
+ * the statistics are not changed by load shedding.
+ * <p>
+ * The time spent on each channel is measured by sampling the current channel every {@link #LISTEN_SAMPLE_PERIOD}
+ * milliseconds.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ChannelStatisticsSink implements PacketSink {
+    private static final long LISTEN_SAMPLE_PERIOD = 100;
+
+    private final ChannelStatistics statistics = new ChannelStatistics();
+    private final IntSupplier currentChannel;
+    private final ScheduledExecutorService scheduler;
+    private PrintStream csvFile;
+    private long lastSample = System.currentTimeMillis();
+
+    /**
+     * Creates the sink and starts reporting
+     *
+     * @param currentChannel supplies the channel the sniffer is currently listening on
+     * @param intervalMillis the reporting interval in milliseconds
+     * @param csvFilename the CSV file to append to, or null to only print to the console
+     * @throws FileNotFoundException if the CSV file could not be opened
+     */
+    public ChannelStatisticsSink(IntSupplier currentChannel, long intervalMillis, String csvFilename)
+            throws FileNotFoundException {
+        this.currentChannel = currentChannel;
+        if (csvFilename != null) {
+            csvFile = new PrintStream(new FileOutputStream(csvFilename, true), true);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ChannelStatistics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sampleListenTime();
+            }
+        }, LISTEN_SAMPLE_PERIOD, LISTEN_SAMPLE_PERIOD, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the {@link ChannelStatistics}
+     */
+    public ChannelStatistics getStatistics() {
+        return statistics;
+    }
+
+    @Override
+    public String getName() {
+        return "statistics";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        for (SnifferPacket packet : packets) {
+            statistics.frameReceived(packet.getChannel(), packet.getRssi(), packet.getLqi(), packet.getLength(),
+                    packet.getSampleWeight());
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        report();
+        if (csvFile != null) {
+            csvFile.close();
+        }
+    }
+
+    private void sampleListenTime() {
+        long now = System.currentTimeMillis();
+        statistics.addListenTime(currentChannel.getAsInt(), now - lastSample);
+        lastSample = now;
+    }
+
+    private void report() {
+        statistics.print(System.out);
+        if (csvFile != null) {
+            statistics.printCsv(csvFile, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,415 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.stats;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+
+/**
+ * Estimates the number of frames the sniffer has missed from gaps in the sequence numbers sent by each device. The
+ * last IEEE 802.15.4 MAC sequence number is tracked for each MAC source address, and the last NWK sequence number is
+ * tracked for each NWK source when the frame is heard on its first hop. A jump of more than one is counted as missed
+ * frames, and a repeated sequence number is counted as a duplicate - normally a MAC retry.
+ * <p>
+ * A jump of more than {@link #MAX_GAP} is taken as the device restarting rather than as lost frames, and tracking for
+ * a device is restarted when it is heard on a different channel, so channel rotation doesn't show as loss.
+ * <p>
+ * The engine sequence number of each packet is also tracked, so frames that were dropped or shed before they reached
+ * the estimator are counted separately and are not counted as air side loss. A sequence number gap for a device is
+ * reduced by the number of frames the engine didn't deliver since the device was last heard, as any of them may have
+ * been from the device. Frames shed by the {@link com.zsmartsystems.zigbee.sniffer.internal.LoadShedder} are
+ * counted from the sample weight of the frames that were kept, and are reported apart from the frames dropped.
+ * <p>
+ * Devices are held in fixed size tables, and a device is only looked for in a few slots - if they are all in use, the
+ * device heard least recently is evicted and its counters are lost - so the memory used is bounded however many
+ * source addresses are seen, for example from corrupted or spoofed frames. The channel totals are kept separately, so
+ * evictions don't change them.
+ * <p>
+ * The estimator is not thread safe - callers must synchronise on the estimator.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class LossEstimator {
+    /**
+     * The largest sequence number jump that is counted as lost frames
+     */
+    public static final int MAX_GAP = 32;
+
+    /**
+     * The number of devices held in each of the short and extended address tables
+     */
+    public static final int MAX_DEVICES = 2048;
+
+    /**
+     * The number of slots a device is looked for in
+     */
+    private static final int PROBES = 8;
+
+    private static final int COLUMN_LAST_MAC_SEQUENCE = 0;
+    private static final int COLUMN_LAST_NWK_SEQUENCE = 1;
+    private static final int COLUMN_CHANNEL = 2;
+    private static final int COLUMN_MAC_FRAMES = 3;
+    private static final int COLUMN_MAC_GAPS = 4;
+    private static final int COLUMN_MAC_DUPLICATES = 5;
+    private static final int COLUMN_NWK_FRAMES = 6;
+    private static final int COLUMN_NWK_GAPS = 7;
+    private static final int COLUMN_NWK_DUPLICATES = 8;
+    private static final int COLUMN_RESETS = 9;
+    private static final int COLUMN_LAST_ENGINE_GAPS = 10;
+    private static final int COLUMNS = 11;
+
+    private final MacHeader macHeader = new MacHeader();
+    private final NwkHeader nwkHeader = new NwkHeader();
+
+    // Devices are keyed by (PAN << 16) | short address, or by extended address
+    private final DeviceTable shortDevices = new DeviceTable(MAX_DEVICES);
+    private final DeviceTable extendedDevices = new DeviceTable(MAX_DEVICES);
+
+    private final long[] channelFrames = new long[ChannelStatistics.CHANNELS];
+    private final long[] channelGaps = new long[ChannelStatistics.CHANNELS];
+    private final long[] channelDuplicates = new long[ChannelStatistics.CHANNELS];
+
+    private long frames;
+    private long lastEngineSequence = -1;
+    private long engineGaps;
+    private long shedFrames;
+
+    /**
+     * Adds a received frame
+     *
+     * @param packet the {@link SnifferPacket}
+     */
+    public void frameReceived(SnifferPacket packet) {
+        frames++;
+        long sequence = packet.getSequence() & 0xFFFFFFFFL;
+        if (lastEngineSequence != -1 && sequence > lastEngineSequence + 1) {
+            engineGaps += sequence - lastEngineSequence - 1;
+        }
+        lastEngineSequence = sequence;
+        shedFrames += Math.max(packet.getSampleWeight(), 1) - 1;
+
+        int[] data = packet.getData();
+        if (!macHeader.parse(data, packet.getLength())) {
+            return;
+        }
+        int frameType = macHeader.getFrameType();
+        if (frameType != MacHeader.FRAME_TYPE_DATA && frameType != MacHeader.FRAME_TYPE_COMMAND) {
+            return;
+        }
+
+        DeviceTable table;
+        long key;
+        switch (macHeader.getSourceAddressMode()) {
+            case MacHeader.ADDRESS_MODE_SHORT:
+                table = shortDevices;
+                int pan = macHeader.getSourcePan() != -1 ? macHeader.getSourcePan() : macHeader.getDestinationPan();
+                key = ((long) pan << 16) | macHeader.getSourceAddress();
+                break;
+            case MacHeader.ADDRESS_MODE_EXTENDED:
+                table = extendedDevices;
+                key = macHeader.getSourceAddress();
+                break;
+            default:
+                return;
+        }
+
+        int channel = packet.getChannel();
+        int channelIndex = channel - ChannelStatistics.FIRST_CHANNEL;
+        boolean validChannel = channelIndex >= 0 && channelIndex < ChannelStatistics.CHANNELS;
+        int slot = table.getSlot(key, frames);
+        if (table.get(slot, COLUMN_CHANNEL) != channel) {
+            // Not heard on this channel before - start tracking again
+            table.add(slot, COLUMN_CHANNEL, channel - table.get(slot, COLUMN_CHANNEL));
+            table.add(slot, COLUMN_LAST_MAC_SEQUENCE, -table.get(slot, COLUMN_LAST_MAC_SEQUENCE));
+            table.add(slot, COLUMN_LAST_NWK_SEQUENCE, -table.get(slot, COLUMN_LAST_NWK_SEQUENCE));
+        }
+        // Frames not delivered by the engine since this device was last heard - they may have been from this device
+        long undelivered = engineGaps - table.get(slot, COLUMN_LAST_ENGINE_GAPS);
+        table.add(slot, COLUMN_LAST_ENGINE_GAPS, undelivered);
+
+        int gap = track(table, slot, COLUMN_LAST_MAC_SEQUENCE, COLUMN_MAC_FRAMES, macHeader.getSequence(),
+                undelivered);
+        if (validChannel) {
+            channelFrames[channelIndex]++;
+            if (gap == 0) {
+                channelDuplicates[channelIndex]++;
+            } else if (gap > 1) {
+                channelGaps[channelIndex] += gap - 1;
+            }
+        }
+
+        // Only track the NWK sequence on the first hop, as relayed frames carry the sequence of the originator
+        if (frameType != MacHeader.FRAME_TYPE_DATA || macHeader.isSecurity()
+                || macHeader.getSourceAddressMode() != MacHeader.ADDRESS_MODE_SHORT
+                || !nwkHeader.parse(data, macHeader.getHeaderLength(),
+                        macHeader.getHeaderLength() + macHeader.getPayloadLength())
+                || nwkHeader.getFrameType() == NwkHeader.FRAME_TYPE_INTERPAN
+                || nwkHeader.getSource() != macHeader.getSourceAddress()) {
+            return;
+        }
+        track(table, slot, COLUMN_LAST_NWK_SEQUENCE, COLUMN_NWK_FRAMES, nwkHeader.getSequence(), undelivered);
+    }
+
+    /**
+     * Updates the counters for a sequence number
+     *
+     * @param undelivered the number of frames the engine didn't deliver since the last sequence number
+     * @return the difference from the last sequence number less the undelivered frames, 0 for a duplicate, or -1 if
+     *         tracking was (re)started
+     */
+    private int track(DeviceTable table, int slot, int lastColumn, int framesColumn, int sequence,
+            long undelivered) {
+        // The last sequence is stored plus one so that zero means not yet seen
+        long last = table.get(slot, lastColumn) - 1;
+        table.add(slot, lastColumn, sequence - last);
+        table.add(slot, framesColumn, 1);
+        if (last == -1) {
+            return -1;
+        }
+        int gap = (int) ((sequence - last) & 0xFF);
+        if (gap == 0) {
+            table.add(slot, framesColumn + 2, 1);
+            return 0;
+        } else if (gap > MAX_GAP) {
+            table.add(slot, COLUMN_RESETS, 1);
+            return -1;
+        }
+        int missed = (int) Math.max(0, gap - 1 - undelivered);
+        table.add(slot, framesColumn + 1, missed);
+        return missed + 1;
+    }
+
+    /**
+     * @return the number of frames received
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of frames that were not delivered to the estimator by the engine
+     */
+    public long getEngineGaps() {
+        return engineGaps;
+    }
+
+    /**
+     * @return the number of frames shed by the load shedder before they reached the estimator
+     */
+    public long getShedFrames() {
+        return shedFrames;
+    }
+
+    /**
+     * @return the number of frames dropped before they reached the estimator, not counting shed frames
+     */
+    public long getDroppedFrames() {
+        return Math.max(0, engineGaps - shedFrames);
+    }
+
+    /**
+     * @return the total number of MAC sequence numbers that were missed, not counting those that may have been
+     *         frames the engine didn't deliver
+     */
+    public long getMacGaps() {
+        long gaps = 0;
+        for (long channelGap : channelGaps) {
+            gaps += channelGap;
+        }
+        return gaps;
+    }
+
+    /**
+     * @return the number of devices evicted from the tables to make room for other devices
+     */
+    public long getEvictedDevices() {
+        return shortDevices.evicted + extendedDevices.evicted;
+    }
+
+    /**
+     * @return the total number of repeated MAC sequence numbers
+     */
+    public long getMacDuplicates() {
+        long duplicates = 0;
+        for (long channelDuplicate : channelDuplicates) {
+            duplicates += channelDuplicate;
+        }
+        return duplicates;
+    }
+
+    /**
+     * Estimates the frames lost before reaching the sniffer - on air, in the NCP or on the serial link. This is the
+     * number of missed MAC sequence numbers, as the frames the engine did not deliver are already discounted.
+     *
+     * @return the estimated number of lost frames
+     */
+    public long getAirLoss() {
+        return getMacGaps();
+    }
+
+    /**
+     * Prints the loss tables
+     *
+     * @param out the {@link PrintStream}
+     * @param maxDevices the maximum number of devices to print, with the most missed frames first
+     */
+    public void print(PrintStream out, int maxDevices) {
+        out.println("Channel    Frames      Missed  Duplicate   Loss%");
+        for (int cnt = 0; cnt < ChannelStatistics.CHANNELS; cnt++) {
+            if (channelFrames[cnt] == 0) {
+                continue;
+            }
+            out.println(String.format("%7d %9d %11d %10d %7.2f", cnt + ChannelStatistics.FIRST_CHANNEL,
+                    channelFrames[cnt], channelGaps[cnt], channelDuplicates[cnt],
+                    lossPercent(channelFrames[cnt], channelGaps[cnt])));
+        }
+
+        List<long[]> devices = new ArrayList<>();
+        addDevices(devices, shortDevices, false);
+        addDevices(devices, extendedDevices, true);
+        Collections.sort(devices, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] device1, long[] device2) {
+                return Long.compare(device2[1 + COLUMN_MAC_GAPS], device1[1 + COLUMN_MAC_GAPS]);
+            }
+        });
+        out.println("Device              MacFrames  Missed  Dups  NwkFrames  Missed  Dups  Resets   Loss%");
+        for (int cnt = 0; cnt < devices.size() && cnt < maxDevices; cnt++) {
+            long[] device = devices.get(cnt);
+            String name = device[0] == 1 ? String.format("%016X", device[1 + COLUMNS])
+                    : String.format("%04X/%04X", device[1 + COLUMNS] >>> 16, device[1 + COLUMNS] & 0xFFFF);
+            out.println(String.format("%-18s %10d %7d %5d %10d %7d %5d %7d %7.2f", name,
+                    device[1 + COLUMN_MAC_FRAMES], device[1 + COLUMN_MAC_GAPS], device[1 + COLUMN_MAC_DUPLICATES],
+                    device[1 + COLUMN_NWK_FRAMES], device[1 + COLUMN_NWK_GAPS], device[1 + COLUMN_NWK_DUPLICATES],
+                    device[1 + COLUMN_RESETS],
+                    lossPercent(device[1 + COLUMN_MAC_FRAMES], device[1 + COLUMN_MAC_GAPS])));
+        }
+
+        if (getEvictedDevices() != 0) {
+            out.println(getEvictedDevices() + " devices evicted from the device tables");
+        }
+
+        long macFrames = 0;
+        for (long channelFrame : channelFrames) {
+            macFrames += channelFrame;
+        }
+        out.println(String.format(
+                "Estimated air/NCP loss: %d frames (%.2f%%), sniffer loss: %d frames, shed: %d frames", getAirLoss(),
+                lossPercent(macFrames, getAirLoss()), getDroppedFrames(), shedFrames));
+    }
+
+    private void addDevices(List<long[]> devices, DeviceTable table, boolean extended) {
+        for (int slot = 0; slot < table.capacity(); slot++) {
+            if (!table.isUsed(slot)) {
+                continue;
+            }
+            long[] device = new long[COLUMNS + 2];
+            device[0] = extended ? 1 : 0;
+            for (int column = 0; column < COLUMNS; column++) {
+                device[1 + column] = table.get(slot, column);
+            }
+            device[1 + COLUMNS] = table.getKey(slot);
+            devices.add(device);
+        }
+    }
+
+    private static double lossPercent(long received, long missed) {
+        return received + missed == 0 ? 0 : missed * 100.0 / (received + missed);
+    }
+
+    /**
+     * A fixed size table of counters per device, keyed by address. Slots are never emptied, only reused for another
+     * device, so the search can stop at the first empty slot.
+     */
+    private static class DeviceTable {
+        final long[] keys;
+        final boolean[] used;
+        final long[] lastHeard;
+        final long[] values;
+        final int mask;
+        long evicted;
+
+        DeviceTable(int capacity) {
+            keys = new long[capacity];
+            used = new boolean[capacity];
+            lastHeard = new long[capacity];
+            values = new long[capacity * COLUMNS];
+            mask = capacity - 1;
+        }
+
+        /**
+         * Gets the slot for a device, adding the device if needed
+         *
+         * @param key the device key
+         * @param now the frame count, used to find the device heard least recently
+         * @return the slot
+         */
+        int getSlot(long key, long now) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            int home = (int) (hash ^ (hash >>> 32)) & mask;
+            int victim = home;
+            for (int probe = 0; probe < PROBES; probe++) {
+                int slot = (home + probe) & mask;
+                if (!used[slot]) {
+                    reset(slot, key);
+                    victim = slot;
+                    break;
+                }
+                if (keys[slot] == key) {
+                    lastHeard[slot] = now;
+                    return slot;
+                }
+                if (lastHeard[slot] < lastHeard[victim]) {
+                    victim = slot;
+                }
+                if (probe == PROBES - 1) {
+                    evicted++;
+                    reset(victim, key);
+                }
+            }
+            lastHeard[victim] = now;
+            return victim;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        boolean isUsed(int slot) {
+            return used[slot];
+        }
+
+        long getKey(int slot) {
+            return keys[slot];
+        }
+
+        long get(int slot, int column) {
+            return values[slot * COLUMNS + column];
+        }
+
+        void add(int slot, int column, long value) {
+            values[slot * COLUMNS + column] += value;
+        }
+
+        private void reset(int slot, long key) {
+            used[slot] = true;
+            keys[slot] = key;
+            for (int column = 0; column < COLUMNS; column++) {
+                values[slot * COLUMNS + column] = 0;
+            }
+        }
+    }
+}
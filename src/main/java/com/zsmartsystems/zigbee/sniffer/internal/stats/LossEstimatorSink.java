@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.stats;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferEngine;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that feeds a {@link LossEstimator} and prints the estimated loss to the console every reporting
+ * interval. The report also lists the packets each sink has dropped because it could not keep up, so that loss before
+ * the sniffer can be told apart from loss in the sniffer.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class LossEstimatorSink implements PacketSink {
+    private static final int REPORT_DEVICES = 10;
+
+    private final LossEstimator estimator = new LossEstimator();
+    private final SnifferEngine engine;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the sink and starts reporting
+     *
+     * @param engine the {@link SnifferEngine} to read the sink drop counts from
+     * @param intervalMillis the reporting interval in milliseconds
+     */
+    public LossEstimatorSink(SnifferEngine engine, long intervalMillis) {
+        this.engine = engine;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LossEstimator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the {@link LossEstimator}. Callers must synchronise on the estimator while reading it.
+     */
+    public LossEstimator getEstimator() {
+        return estimator;
+    }
+
+    @Override
+    public String getName() {
+        return "loss";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        synchronized (estimator) {
+            for (SnifferPacket packet : packets) {
+                estimator.frameReceived(packet);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        report();
+    }
+
+    private void report() {
+        synchronized (estimator) {
+            estimator.print(System.out, REPORT_DEVICES);
+        }
+        StringBuilder builder = new StringBuilder("Sink drops            :");
+        for (PacketSink sink : engine.getSinks()) {
+            builder.append(' ');
+            builder.append(sink.getName());
+            builder.append('=');
+            builder.append(engine.getDropped(sink));
+        }
+        System.out.println(builder.toString());
+    }
+}
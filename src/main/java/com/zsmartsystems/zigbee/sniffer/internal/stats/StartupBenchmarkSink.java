@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * {@link PacketSink} that measures how long the sniffer takes to start, from the process starting until the first
+ * frame is captured. This is used to compare the start up time of the JAR, the JAR with a class data sharing archive,
+ * and the native image.
+ * <p>
+ * The times are measured from the process start time reported by the JVM, to the main method being called, the NCP
+ * responding, and the capture time of the first frame.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class StartupBenchmarkSink implements PacketSink {
+    private final long processStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+    private final long mainStart;
+    private volatile long ncpStart;
+    private volatile long firstFrame;
+
+    /**
+     * Creates the sink
+     *
+     * @param mainStart the time the main method was called in milliseconds
+     */
+    public StartupBenchmarkSink(long mainStart) {
+        this.mainStart = mainStart;
+    }
+
+    /**
+     * @return true once the first frame has been captured
+     */
+    public boolean isComplete() {
+        return firstFrame != 0;
+    }
+
+    @Override
+    public String getName() {
+        return "startup";
+    }
+
+    @Override
+    public void ncpStarted(IeeeAddress ieeeAddress, String firmwareVersion) {
+        if (ncpStart == 0) {
+            ncpStart = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        if (firstFrame != 0) {
+            return;
+        }
+        firstFrame = packets.get(0).getTimestamp();
+        System.out.println("Startup               : main " + (mainStart - processStart) + "ms, NCP ready "
+                + (ncpStart - processStart) + "ms, first frame " + (firstFrame - processStart) + "ms");
+    }
+
+    @Override
+    public void close() {
+        if (firstFrame == 0) {
+            System.out.println("Startup               : main " + (mainStart - processStart) + "ms, NCP ready "
+                    + (ncpStart == 0 ? "-" : (ncpStart - processStart) + "ms") + ", no frames captured");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.CaptureStatistics;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.PcapAnalyzer;
+
+/**
+ * Produces a report of the frames per device, per PAN, per frame type and per hour, and the RSSI and LQI
+ * distributions, from a set of pcap files. Directories are expanded to the pcap files they hold. The report is written
+ * as JSON, or as CSV if the output file name ends in .csv.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class AnalyzeTool implements SnifferTool {
+
+    @Override
+    public String getName() {
+        return "analyze";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Report frame counts and signal statistics from pcap files";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("filename")
+                .desc("Set the report file (.json or .csv) - the JSON report is printed if not set").build());
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("threads")
+                .desc("Set the number of analysis threads").build());
+        options.addOption(Option.builder("a").longOpt("addresses").hasArg().argName("filename")
+                .desc("Load an address cache to report the IEEE address of devices").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || cmdline.getArgList().isEmpty()) {
+            new HelpFormatter().printHelp("ZigBeeSniffer analyze [-o <filename>] <pcap files or directories>",
+                    options);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmdline.hasOption("threads")) {
+            threads = Integer.parseInt(cmdline.getOptionValue("threads"));
+        }
+
+        List<String> filenames = new ArrayList<>();
+        for (String name : cmdline.getArgList()) {
+            File file = new File(name);
+            if (!file.isDirectory()) {
+                filenames.add(name);
+                continue;
+            }
+            File[] files = file.listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File pcap : files) {
+                if (pcap.isFile() && pcap.getName().endsWith(".pcap")) {
+                    filenames.add(pcap.getPath());
+                }
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        CaptureStatistics statistics;
+        try {
+            PcapAnalyzer analyzer = new PcapAnalyzer(threads);
+            if (cmdline.hasOption("addresses")) {
+                AddressCache addressCache = new AddressCache();
+                File addressFile = new File(cmdline.getOptionValue("addresses"));
+                if (addressFile.exists()) {
+                    addressCache.load(addressFile);
+                }
+                analyzer.setAddressCache(addressCache);
+            }
+            statistics = analyzer.analyze(filenames);
+        } catch (IOException e) {
+            System.err.println("Analyze failed: " + e.getMessage());
+            return;
+        }
+
+        String output = cmdline.getOptionValue("output");
+        if (output == null) {
+            statistics.writeJson(System.out);
+            return;
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+            if (output.toLowerCase().endsWith(".csv")) {
+                statistics.writeCsv(out);
+            } else {
+                statistics.writeJson(out);
+            }
+        } catch (IOException e) {
+            System.err.println("Analyze failed: " + e.getMessage());
+            return;
+        }
+        System.out.println("Analyzed " + statistics.getFrames() + " packets from " + filenames.size() + " files in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+}
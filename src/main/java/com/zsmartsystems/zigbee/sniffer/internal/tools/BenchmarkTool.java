@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapSink;
+
+/**
+ * Measures how fast the pcap and Silabs ISD outputs write frames, and how much memory they allocate per frame. A set
+ * of random frames is created with a fixed seed and passed to each sink in batches, as the sink workers do, so runs on
+ * different builds or machines can be compared. Each round opens a new file, which is deleted afterwards. Only the
+ * time spent in {@link PacketSink#packetsReceived(List)} is measured, and the first round includes JIT warm up.
+ * <p>
+ * The allocation is read from the thread's allocation counter, which is only available on HotSpot based JVMs.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class BenchmarkTool implements SnifferTool {
+    private static final long SEED = 1;
+    private static final int MIN_LENGTH = 5;
+    // The longest IEEE 802.15.4 frame
+    private static final int MAX_LENGTH = 127;
+    private static final long START_TIME = 1700000000000L;
+
+    @Override
+    public String getName() {
+        return "benchmark";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Measure the write throughput and allocation of the pcap and ISD outputs";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("d").longOpt("directory").hasArg().argName("directory")
+                .desc("Set the directory the files are written to (default the temporary directory)").build());
+        options.addOption(Option.builder("f").longOpt("frames").hasArg().argName("frames")
+                .desc("Set the number of different frames (default 12800)").build());
+        options.addOption(Option.builder("b").longOpt("batch").hasArg().argName("frames")
+                .desc("Set the number of frames in each batch (default 64)").build());
+        options.addOption(Option.builder("n").longOpt("repeat").hasArg().argName("count")
+                .desc("Set the number of times the frames are written in each round (default 5)").build());
+        options.addOption(Option.builder("r").longOpt("rounds").hasArg().argName("count")
+                .desc("Set the number of rounds (default 6)").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help")) {
+            new HelpFormatter().printHelp("ZigBeeSniffer benchmark [-d <directory>] [-f <frames>] [-b <frames>]",
+                    options);
+            return;
+        }
+
+        File directory = new File(cmdline.getOptionValue("directory", System.getProperty("java.io.tmpdir")));
+        int frames = Integer.parseInt(cmdline.getOptionValue("frames", "12800"));
+        int batchSize = Integer.parseInt(cmdline.getOptionValue("batch", "64"));
+        int repeat = Integer.parseInt(cmdline.getOptionValue("repeat", "5"));
+        int rounds = Integer.parseInt(cmdline.getOptionValue("rounds", "6"));
+        if (!directory.isDirectory() || frames < 1 || batchSize < 1 || repeat < 1 || rounds < 1) {
+            System.err.println("Invalid benchmark parameters");
+            return;
+        }
+
+        List<List<SnifferPacket>> batches = createBatches(frames, batchSize);
+        String pcapName = new File(directory, "benchmark").getPath();
+        String isdName = new File(directory, "benchmark.isd").getPath();
+        System.out.println("Writing " + frames + " frames " + repeat + " times in batches of " + batchSize + " to "
+                + directory);
+        try {
+            for (int cnt = 1; cnt <= rounds; cnt++) {
+                WiresharkPcapSink pcapSink = new WiresharkPcapSink(pcapName, Long.MAX_VALUE, 0);
+                String pcapResult = measure(pcapSink, batches, repeat);
+                pcapSink.close();
+                new File(pcapName + ".pcap").delete();
+
+                SilabsIsdSink isdSink = new SilabsIsdSink(isdName);
+                String isdResult = measure(isdSink, batches, repeat);
+                isdSink.close();
+                new File(isdName).delete();
+
+                System.out.println("Round " + cnt + ": pcap " + pcapResult + ", isd " + isdResult);
+            }
+        } catch (IOException e) {
+            System.err.println("Benchmark failed: " + e.getMessage());
+        }
+    }
+
+    private List<List<SnifferPacket>> createBatches(int frames, int batchSize) {
+        Random random = new Random(SEED);
+        List<List<SnifferPacket>> batches = new ArrayList<>();
+        List<SnifferPacket> batch = null;
+        for (int cnt = 0; cnt < frames; cnt++) {
+            if (batch == null || batch.size() == batchSize) {
+                batch = new ArrayList<>(batchSize);
+                batches.add(batch);
+            }
+            int[] data = new int[MIN_LENGTH + random.nextInt(MAX_LENGTH - MIN_LENGTH + 1)];
+            for (int position = 0; position < data.length; position++) {
+                data[position] = random.nextInt(256);
+            }
+            SnifferPacket packet = new SnifferPacket();
+            packet.setData(data);
+            packet.setSequence(cnt);
+            packet.setRssi(-30 - random.nextInt(60));
+            packet.setLqi(random.nextInt(256));
+            packet.setChannel(11 + random.nextInt(16));
+            packet.setTimestampMicros((START_TIME + cnt) * 1000);
+            packet.setElapsedMicros(cnt * 1000L);
+            batch.add(packet);
+        }
+        return batches;
+    }
+
+    /**
+     * Writes all the batches to the sink
+     *
+     * @return the throughput and allocation per frame as text
+     */
+    private String measure(PacketSink sink, List<List<SnifferPacket>> batches, int repeat) {
+        long frames = 0;
+        long allocatedStart = getAllocatedBytes();
+        long start = System.nanoTime();
+        for (int cnt = 0; cnt < repeat; cnt++) {
+            for (List<SnifferPacket> batch : batches) {
+                sink.packetsReceived(batch);
+                frames += batch.size();
+            }
+        }
+        long nanos = Math.max(System.nanoTime() - start, 1);
+        long allocated = getAllocatedBytes() - allocatedStart;
+
+        String result = String.format("%.0f frames/s", frames * 1000000000.0 / nanos);
+        if (allocatedStart >= 0) {
+            result += String.format(" %.0f bytes/frame", (double) allocated / frames);
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bytes allocated by this thread, or -1 if the JVM doesn't count them
+     */
+    private long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.sniffer.internal.collector.ZepCollector;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkZepSink;
+
+/**
+ * Runs a {@link ZepCollector} that receives ZEP from remote sniffers and writes an archive per site, printing the
+ * node statistics at an interval until a key is pressed.
+ * <p>
+ * Sites are read from a properties file where each line maps a ZEP device ID to a site name, eg <code>0x0001=hq</code>.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class CollectTool implements SnifferTool {
+
+    @Override
+    public String getName() {
+        return "collect";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Collect ZEP from remote sniffers into an archive per site";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("directory")
+                .desc("Set the directory to write the site archives in").build());
+        options.addOption(Option.builder("u").longOpt("udp").hasArg().argName("port")
+                .desc("Set the UDP port to receive ZEP on (default " + WiresharkZepSink.ZEP_UDP_PORT + ")").build());
+        options.addOption(Option.builder("t").longOpt("tcp").hasArg().argName("port")
+                .desc("Accept length prefixed ZEP streams on this TCP port").build());
+        options.addOption(Option.builder("s").longOpt("sites").hasArg().argName("filename")
+                .desc("Read the site for each device ID from a properties file").build());
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("threads")
+                .desc("Set the number of decoding threads").build());
+        options.addOption(Option.builder("w").longOpt("window").hasArg().argName("milliseconds")
+                .desc("Set the reorder window for merging nodes (default 2000)").build());
+        options.addOption(Option.builder("i").longOpt("interval").hasArg().argName("seconds")
+                .desc("Print node statistics at this interval (default 10)").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || !cmdline.hasOption("output")) {
+            new HelpFormatter().printHelp("ZigBeeSniffer collect -o <directory> [-u <port>] [-t <port>] "
+                    + "[-s <filename>]", options);
+            return;
+        }
+
+        File directory = new File(cmdline.getOptionValue("output"));
+        if (!directory.isDirectory()) {
+            System.err.println(directory + " is not a directory");
+            return;
+        }
+
+        ZepCollector collector;
+        long interval;
+        try {
+            int udpPort = cmdline.hasOption("udp") ? Integer.parseInt(cmdline.getOptionValue("udp"))
+                    : WiresharkZepSink.ZEP_UDP_PORT;
+            int tcpPort = cmdline.hasOption("tcp") ? Integer.parseInt(cmdline.getOptionValue("tcp")) : 0;
+            int threads = cmdline.hasOption("threads") ? Integer.parseInt(cmdline.getOptionValue("threads"))
+                    : Runtime.getRuntime().availableProcessors();
+            long window = cmdline.hasOption("window") ? Long.parseLong(cmdline.getOptionValue("window")) : 2000;
+            interval = (cmdline.hasOption("interval") ? Long.parseLong(cmdline.getOptionValue("interval")) : 10)
+                    * 1000;
+            Map<Integer, String> sites = cmdline.hasOption("sites") ? readSites(cmdline.getOptionValue("sites"))
+                    : new HashMap<Integer, String>();
+            collector = new ZepCollector(udpPort, tcpPort, Math.max(1, threads), sites, directory, window);
+            System.out.println("Collecting ZEP on UDP port " + udpPort
+                    + (tcpPort != 0 ? " and TCP port " + tcpPort : "") + " into " + directory);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Collect failed: " + e.getMessage());
+            return;
+        }
+
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            long nextReport = System.currentTimeMillis() + interval;
+            while (!in.ready()) {
+                Thread.sleep(250);
+                if (System.currentTimeMillis() >= nextReport) {
+                    collector.report(System.out);
+                    nextReport += interval;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        collector.close();
+        collector.report(System.out);
+    }
+
+    private Map<Integer, String> readSites(String filename) throws IOException {
+        Properties properties = new Properties();
+        try (FileInputStream input = new FileInputStream(filename)) {
+            properties.load(input);
+        }
+        Map<Integer, String> sites = new HashMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            String deviceId = key.trim();
+            int value = deviceId.startsWith("0x") ? Integer.parseInt(deviceId.substring(2), 16)
+                    : Integer.parseInt(deviceId);
+            // The site name is used in the archive file name
+            sites.put(value, properties.getProperty(key).trim().replaceAll("[^A-Za-z0-9_.-]", "_"));
+        }
+        return sites;
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.internal.ChunkedPacketReader;
+import com.zsmartsystems.zigbee.sniffer.internal.PacketBatch;
+import com.zsmartsystems.zigbee.sniffer.internal.columnar.ColumnarSink;
+import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdReader;
+import com.zsmartsystems.zigbee.sniffer.internal.silabs.SilabsIsdSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapPacketReader;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapSink;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapngSink;
+
+/**
+ * Converts capture files between the pcap, pcapng and Silabs ISD formats, and exports them to the columnar format. The
+ * input files are split into chunks which are parsed in parallel, and the parsed chunks are written to the output in
+ * the original order. Only a limited number of chunks are in progress at once, so memory use does not depend on the
+ * file size.
+ * <p>
+ * The input format is detected from the file contents, and the output format is taken from the output file extension
+ * unless it is set with the format option. Several input files are converted into the one output file in the order
+ * they are given.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class ConvertTool implements SnifferTool {
+    private static final String VERSION = "0.0.0.0";
+
+    @Override
+    public String getName() {
+        return "convert";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Convert between pcap, pcapng and Silabs ISD files, or export to the columnar format";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("filename")
+                .desc("Set the output file").build());
+        options.addOption(Option.builder("f").longOpt("format").hasArg().argName("format")
+                .desc("Set the output format (pcap | pcapng | isd | zcol)").build());
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("threads")
+                .desc("Set the number of parsing threads").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || !cmdline.hasOption("output") || cmdline.getArgList().isEmpty()) {
+            new HelpFormatter().printHelp("ZigBeeSniffer convert -o <filename> <files>", options);
+            return;
+        }
+
+        String output = cmdline.getOptionValue("output");
+        String format = cmdline.getOptionValue("format");
+        if (format == null) {
+            format = output.substring(output.lastIndexOf('.') + 1).toLowerCase();
+        }
+        if (!format.equals("pcap") && !format.equals("pcapng") && !format.equals("isd") && !format.equals("log")
+                && !format.equals("zcol")) {
+            System.err.println("Unknown output format: " + format);
+            return;
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmdline.hasOption("threads")) {
+            threads = Integer.parseInt(cmdline.getOptionValue("threads"));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Convert");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        long packets = 0;
+        PacketSink sink = null;
+        try {
+            for (String input : cmdline.getArgList()) {
+                try (ChunkedPacketReader reader = openReader(input)) {
+                    if (sink == null) {
+                        sink = createSink(output, format, reader);
+                    }
+                    packets += convert(reader, sink, executor, threads * 2);
+                }
+            }
+            System.out.println("Converted " + packets + " packets in " + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException e) {
+            System.err.println("Convert failed: " + e.getMessage());
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+            executor.shutdownNow();
+        }
+    }
+
+    private long convert(final ChunkedPacketReader reader, PacketSink sink, ExecutorService executor, int maxPending)
+            throws IOException {
+        Deque<Future<PacketBatch>> pending = new ArrayDeque<>();
+        Deque<PacketBatch> free = new ArrayDeque<>();
+        long packets = 0;
+
+        long chunkStart = reader.getStart();
+        while (true) {
+            final long start = chunkStart;
+            final long end = reader.getChunkEnd(start);
+            if (end == start) {
+                break;
+            }
+            if (pending.size() >= maxPending) {
+                packets += write(pending.poll(), sink, free);
+            }
+            final PacketBatch batch = free.isEmpty() ? new PacketBatch() : free.poll();
+            pending.add(executor.submit(new Callable<PacketBatch>() {
+                @Override
+                public PacketBatch call() throws IOException {
+                    reader.read(start, end, batch);
+                    return batch;
+                }
+            }));
+            chunkStart = end;
+        }
+        while (!pending.isEmpty()) {
+            packets += write(pending.poll(), sink, free);
+        }
+        return packets;
+    }
+
+    private int write(Future<PacketBatch> future, PacketSink sink, Deque<PacketBatch> free) throws IOException {
+        PacketBatch batch;
+        try {
+            batch = future.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        int count = batch.size();
+        sink.packetsReceived(batch.getPackets());
+        batch.clear();
+        free.add(batch);
+        return count;
+    }
+
+    private ChunkedPacketReader openReader(String filename) throws IOException {
+        int magic;
+        try (DataInputStream input = new DataInputStream(new FileInputStream(filename))) {
+            magic = input.readInt();
+        }
+        if (magic == WiresharkPcapFile.MAGIC_NUMBER_STANDARD
+                || Integer.reverseBytes(magic) == WiresharkPcapFile.MAGIC_NUMBER_STANDARD
+                || magic == 0xa1b23c4d || Integer.reverseBytes(magic) == 0xa1b23c4d) {
+            return new WiresharkPcapPacketReader(filename);
+        }
+        return new SilabsIsdReader(filename);
+    }
+
+    private PacketSink createSink(String filename, String format, ChunkedPacketReader reader) throws IOException {
+        switch (format) {
+            case "pcap":
+                if (filename.endsWith(".pcap")) {
+                    filename = filename.substring(0, filename.length() - 5);
+                }
+                return new WiresharkPcapSink(filename, Long.MAX_VALUE, 0);
+            case "pcapng":
+                return new WiresharkPcapngSink(filename);
+            case "zcol":
+                return new ColumnarSink(filename);
+            default:
+                SilabsIsdSink sink = new SilabsIsdSink(filename);
+                IeeeAddress address = reader.getAdapterAddress();
+                sink.setStartTime(reader.getStartTime());
+                sink.ncpStarted(address == null ? new IeeeAddress("0000000000000000") : address, VERSION);
+                return sink;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.ClockAligner;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapMerger;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapRecord;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapStreamWriter;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkTapHeader;
+
+/**
+ * Merges a set of pcap files, such as the rotated files written by the sniffer or files from several sniffers, into
+ * a single file in timestamp order.
+ * <p>
+ * With the align option each file is taken to be from a different sniffer, and the timestamps of the files after the
+ * first are corrected to the clock of the first sniffer using a {@link ClockAligner}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class PcapMergeTool implements SnifferTool {
+
+    @Override
+    public String getName() {
+        return "merge";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Merge pcap files into one file in timestamp order";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("filename")
+                .desc("Set the output pcap file").build());
+        options.addOption(Option.builder("a").longOpt("align")
+                .desc("Correct the clock of each file to the first file using frames heard by both").build());
+        options.addOption(Option.builder("w").longOpt("window").hasArg().argName("milliseconds")
+                .desc("Set the longest clock difference between the files when aligning (default 1000)").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || !cmdline.hasOption("output") || cmdline.getArgList().isEmpty()) {
+            new HelpFormatter().printHelp("ZigBeeSniffer merge -o <filename> [-a] <pcap files>", options);
+            return;
+        }
+
+        ClockAligner aligner = null;
+        List<String> filenames = cmdline.getArgList();
+        long start = System.currentTimeMillis();
+        try {
+            if (cmdline.hasOption("align")) {
+                long window = cmdline.hasOption("window") ? Long.parseLong(cmdline.getOptionValue("window")) : 1000;
+                aligner = new ClockAligner(filenames.size(), window);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid window: " + e.getMessage());
+            return;
+        }
+
+        try (WiresharkPcapMerger merger = new WiresharkPcapMerger(filenames, aligner);
+                WiresharkPcapStreamWriter writer = new WiresharkPcapStreamWriter(cmdline.getOptionValue("output"),
+                        merger.getNetwork(), merger.getSnapLength())) {
+            WiresharkPcapRecord record = new WiresharkPcapRecord();
+            boolean tap = merger.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+            SnifferPacket radio = new SnifferPacket();
+            int[] data = new int[SnifferPacket.MAX_LENGTH];
+            int input;
+            while ((input = merger.next(record)) != -1) {
+                if (aligner == null) {
+                    writer.write(record);
+                    continue;
+                }
+                byte[] bytes = record.getData();
+                int length = record.getLength();
+                int frameOffset = tap ? WiresharkTapHeader.read(bytes, 0, length, radio) : 0;
+                int frameLength = frameOffset == -1 ? 0 : Math.min(length - frameOffset, SnifferPacket.MAX_LENGTH);
+                for (int cnt = 0; cnt < frameLength; cnt++) {
+                    data[cnt] = bytes[frameOffset + cnt] & 0xFF;
+                }
+                writer.write(record, aligner.frameReceived(input, record.getTimestamp(), data, frameLength));
+            }
+            System.out.println("Merged " + writer.getRecords() + " packets from " + merger.getReaders().size()
+                    + " files into " + writer.getFilename() + " in " + (System.currentTimeMillis() - start) + "ms");
+            if (aligner != null) {
+                aligner.print(System.out, filenames.toArray(new String[filenames.size()]));
+            }
+        } catch (IOException e) {
+            System.err.println("Merge failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapMerger;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapRecord;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapStreamWriter;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkTapHeader;
+
+/**
+ * Splits one or more pcap files into separate files by time window, by size, or by channel. If several input files
+ * are given they are merged in timestamp order first.
+ * <p>
+ * Each output file is written by its own {@link WiresharkPcapStreamWriter} thread, so when splitting by channel all
+ * the files are written in parallel, and when splitting by time or size the previous file is completed in the
+ * background while the next one is started.
+ * <p>
+ * The channel is only recorded in files with the {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_TAP} link type.
+ * Frames without a channel are written to a separate file.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class PcapSplitTool implements SnifferTool {
+    private final ExecutorService closer = Executors.newFixedThreadPool(2);
+    private final List<Future<Void>> closing = new ArrayList<>();
+
+    @Override
+    public String getName() {
+        return "split";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Split pcap files by time window, size or channel";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("prefix")
+                .desc("Set the output file name prefix").build());
+        options.addOption(Option.builder("t").longOpt("time").hasArg().argName("seconds")
+                .desc("Split into files covering this time window").build());
+        options.addOption(Option.builder("s").longOpt("size").hasArg().argName("bytes")
+                .desc("Split into files no larger than this size").build());
+        options.addOption(
+                Option.builder("c").longOpt("channel").desc("Split into one file per channel").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        int modes = (cmdline.hasOption("time") ? 1 : 0) + (cmdline.hasOption("size") ? 1 : 0)
+                + (cmdline.hasOption("channel") ? 1 : 0);
+        if (cmdline.hasOption("help") || !cmdline.hasOption("output") || cmdline.getArgList().isEmpty()
+                || modes != 1) {
+            new HelpFormatter().printHelp(
+                    "ZigBeeSniffer split -o <prefix> (-t <seconds> | -s <bytes> | -c) <pcap files>", options);
+            return;
+        }
+
+        String prefix = cmdline.getOptionValue("output");
+        if (prefix.endsWith(".pcap")) {
+            prefix = prefix.substring(0, prefix.length() - 5);
+        }
+
+        long start = System.currentTimeMillis();
+        try (WiresharkPcapMerger merger = new WiresharkPcapMerger(cmdline.getArgList())) {
+            long records;
+            if (cmdline.hasOption("time")) {
+                records = splitByTime(merger, prefix, Long.parseLong(cmdline.getOptionValue("time")) * 1000000L);
+            } else if (cmdline.hasOption("size")) {
+                records = splitBySize(merger, prefix, Long.parseLong(cmdline.getOptionValue("size")));
+            } else {
+                if (merger.getNetwork() != WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP) {
+                    System.out.println("Input does not record the channel - frames will be written to " + prefix
+                            + "-unknown.pcap");
+                }
+                records = splitByChannel(merger, prefix);
+            }
+            waitForFiles();
+            System.out.println("Split " + records + " packets into " + closing.size() + " files in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Split failed: " + e.getMessage());
+        } finally {
+            closer.shutdownNow();
+        }
+    }
+
+    private long splitByTime(WiresharkPcapMerger merger, String prefix, long window) throws IOException {
+        if (window <= 0) {
+            throw new IOException("Time window must be positive");
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        WiresharkPcapStreamWriter writer = null;
+        long windowEnd = Long.MIN_VALUE;
+        long records = 0;
+        while (merger.next(record) != -1) {
+            if (record.getTimestamp() >= windowEnd) {
+                closeInBackground(writer);
+                long windowStart = record.getTimestamp() - (record.getTimestamp() % window);
+                windowEnd = windowStart + window;
+                writer = new WiresharkPcapStreamWriter(
+                        prefix + "-" + format.format(new Date(windowStart / 1000)) + ".pcap", merger.getNetwork(),
+                        merger.getSnapLength());
+            }
+            writer.write(record);
+            records++;
+        }
+        closeInBackground(writer);
+        return records;
+    }
+
+    private long splitBySize(WiresharkPcapMerger merger, String prefix, long size) throws IOException {
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        WiresharkPcapStreamWriter writer = null;
+        int counter = 0;
+        long records = 0;
+        while (merger.next(record) != -1) {
+            if (writer == null || (writer.getRecords() != 0
+                    && writer.getLength() + 16 + record.getLength() > size)) {
+                closeInBackground(writer);
+                writer = new WiresharkPcapStreamWriter(String.format("%s-%04d.pcap", prefix, counter++),
+                        merger.getNetwork(), merger.getSnapLength());
+            }
+            writer.write(record);
+            records++;
+        }
+        closeInBackground(writer);
+        return records;
+    }
+
+    private long splitByChannel(WiresharkPcapMerger merger, String prefix) throws IOException {
+        boolean tap = merger.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+        WiresharkPcapStreamWriter[] writers = new WiresharkPcapStreamWriter[65536];
+        WiresharkPcapStreamWriter unknown = null;
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        long records = 0;
+        try {
+            while (merger.next(record) != -1) {
+                int channel = tap ? WiresharkTapHeader.getChannel(record.getData(), 0, record.getLength()) : -1;
+                WiresharkPcapStreamWriter writer;
+                if (channel == -1) {
+                    if (unknown == null) {
+                        unknown = new WiresharkPcapStreamWriter(prefix + "-unknown.pcap", merger.getNetwork(),
+                                merger.getSnapLength());
+                    }
+                    writer = unknown;
+                } else {
+                    if (writers[channel] == null) {
+                        writers[channel] = new WiresharkPcapStreamWriter(prefix + "-ch" + channel + ".pcap",
+                                merger.getNetwork(), merger.getSnapLength());
+                    }
+                    writer = writers[channel];
+                }
+                writer.write(record);
+                records++;
+            }
+        } finally {
+            for (WiresharkPcapStreamWriter writer : writers) {
+                closeInBackground(writer);
+            }
+            closeInBackground(unknown);
+        }
+        return records;
+    }
+
+    private void closeInBackground(final WiresharkPcapStreamWriter writer) {
+        if (writer == null) {
+            return;
+        }
+        closing.add(closer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                writer.close();
+                return null;
+            }
+        }));
+    }
+
+    private void waitForFiles() throws IOException {
+        for (Future<Void> future : closing) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.catalog.SegmentCatalog;
+import com.zsmartsystems.zigbee.sniffer.internal.catalog.SegmentInfo;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapFile;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapReader;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapRecord;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapStreamWriter;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkTapHeader;
+
+/**
+ * Finds the capture segments that hold frames in a time range, on a channel, or to or from a device, using the
+ * {@link SegmentCatalog} written alongside the segments so that only the matching segments are opened. The matching
+ * segments are listed, or the matching frames are extracted into a single pcap file.
+ * <p>
+ * Segments in the directory that are not in the catalog, such as the segment still being written, can't be pruned
+ * and are always selected. They can be added to the catalog with the rebuild option.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class QueryTool implements SnifferTool {
+    private final SimpleDateFormat segmentFormat = createFormat("yyyyMMdd-HHmmss");
+    private final SimpleDateFormat isoFormat = createFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private final SimpleDateFormat printFormat = createFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+    @Override
+    public String getName() {
+        return "query";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Find the capture segments covering a time range, channel or device";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("f").longOpt("from").hasArg().argName("time")
+                .desc("Select frames from this time (yyyyMMdd-HHmmss or yyyy-MM-ddTHH:mm:ss)").build());
+        options.addOption(Option.builder("t").longOpt("to").hasArg().argName("time")
+                .desc("Select frames up to this time (yyyyMMdd-HHmmss or yyyy-MM-ddTHH:mm:ss)").build());
+        options.addOption(Option.builder("c").longOpt("channel").hasArg().argName("channel")
+                .desc("Select segments recorded on this channel").build());
+        options.addOption(Option.builder("d").longOpt("device").hasArg().argName("address")
+                .desc("Select frames to or from this short or extended MAC address (hex)").build());
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("filename")
+                .desc("Extract the selected frames to a pcap file").build());
+        options.addOption(Option.builder().longOpt("rebuild")
+                .desc("Add segments missing from the catalog - only while the sniffer is stopped").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (org.apache.commons.cli.ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || cmdline.getArgList().size() != 1) {
+            new HelpFormatter().printHelp("ZigBeeSniffer query [-f <time>] [-t <time>] [-c <channel>] "
+                    + "[-d <address>] [-o <filename>] <capture name or catalog>", options);
+            return;
+        }
+
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        int channel = -1;
+        long device = -1;
+        try {
+            if (cmdline.hasOption("from")) {
+                from = parseTime(cmdline.getOptionValue("from"));
+            }
+            if (cmdline.hasOption("to")) {
+                // The end time is inclusive to the second
+                to = parseTime(cmdline.getOptionValue("to")) + 999999;
+            }
+            if (cmdline.hasOption("channel")) {
+                channel = Integer.parseInt(cmdline.getOptionValue("channel"));
+            }
+            if (cmdline.hasOption("device")) {
+                String address = cmdline.getOptionValue("device");
+                if (address.startsWith("0x") || address.startsWith("0X")) {
+                    address = address.substring(2);
+                }
+                device = Long.parseUnsignedLong(address, 16);
+            }
+        } catch (ParseException | NumberFormatException e) {
+            System.err.println("Invalid query: " + e.getMessage());
+            return;
+        }
+
+        String name = cmdline.getArgList().get(0);
+        if (name.endsWith(".pcap")) {
+            name = name.substring(0, name.length() - 5);
+        }
+        if (!name.endsWith(SegmentCatalog.EXTENSION)) {
+            name = name + SegmentCatalog.EXTENSION;
+        }
+        SegmentCatalog catalog = new SegmentCatalog(name);
+        String prefix = new File(name.substring(0, name.length() - SegmentCatalog.EXTENSION.length())).getName();
+
+        try {
+            long start = System.currentTimeMillis();
+            List<SegmentInfo> segments = catalog.read();
+            List<String> uncatalogued = findUncatalogued(catalog.getDirectory(), prefix, segments);
+            if (cmdline.hasOption("rebuild")) {
+                int added = 0;
+                for (String segmentName : uncatalogued) {
+                    SegmentInfo segment = scan(new File(catalog.getDirectory(), segmentName));
+                    if (segment.getFrames() != 0) {
+                        catalog.append(segment);
+                        segments.add(segment);
+                        added++;
+                    }
+                }
+                System.out.println("Added " + added + " segments to " + name);
+                uncatalogued.clear();
+            }
+
+            List<String> selected = new ArrayList<>();
+            for (SegmentInfo segment : segments) {
+                if (segment.overlaps(from, to) && (channel == -1 || segment.mayContainChannel(channel))
+                        && (device == -1 || segment.mayContainDevice(device))) {
+                    selected.add(segment.getName());
+                    if (!cmdline.hasOption("output")) {
+                        System.out.println(String.format("%-40s %s  %s  %-24s %10d %12d", segment.getName(),
+                                printFormat.format(new Date(segment.getFirstTimestamp() / 1000)),
+                                printFormat.format(new Date(segment.getLastTimestamp() / 1000)),
+                                channelList(segment.getChannels()), segment.getFrames(), segment.getBytes()));
+                    }
+                }
+            }
+            for (String segmentName : uncatalogued) {
+                selected.add(segmentName);
+                if (!cmdline.hasOption("output")) {
+                    System.out.println(String.format("%-40s (not catalogued)", segmentName));
+                }
+            }
+            System.out.println("Selected " + selected.size() + " of " + (segments.size() + uncatalogued.size())
+                    + " segments in " + (System.currentTimeMillis() - start) + "ms");
+
+            if (cmdline.hasOption("output")) {
+                long frames = extract(catalog.getDirectory(), selected, cmdline.getOptionValue("output"), from, to,
+                        channel, device);
+                System.out.println("Extracted " + frames + " packets in " + (System.currentTimeMillis() - start)
+                        + "ms");
+            }
+        } catch (IOException e) {
+            System.err.println("Query failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lists the segment files for the capture that are not in the catalog, in name order
+     */
+    private List<String> findUncatalogued(File directory, String prefix, List<SegmentInfo> segments) {
+        Set<String> catalogued = new HashSet<>();
+        for (SegmentInfo segment : segments) {
+            catalogued.add(segment.getName());
+        }
+        List<String> names = new ArrayList<>();
+        String[] files = directory.list();
+        if (files == null) {
+            return names;
+        }
+        Arrays.sort(files);
+        for (String file : files) {
+            if ((file.startsWith(prefix + "-") || file.equals(prefix + ".pcap")) && file.endsWith(".pcap")
+                    && !catalogued.contains(file)) {
+                names.add(file);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Reads a segment to build its catalog entry
+     */
+    private SegmentInfo scan(File file) throws IOException {
+        SegmentInfo segment = new SegmentInfo(file.getName());
+        int[] data = new int[SnifferPacket.MAX_LENGTH];
+        SnifferPacket radio = new SnifferPacket();
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        try (WiresharkPcapReader reader = new WiresharkPcapReader(file.getPath())) {
+            boolean tap = reader.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+            while (reader.next(record)) {
+                int length = getFrame(record, tap, radio, data);
+                if (length != -1) {
+                    segment.frameReceived(record.getTimestamp(), tap ? radio.getChannel() : 0, data, length);
+                }
+            }
+            segment.setBytes(reader.getPosition());
+        }
+        return segment;
+    }
+
+    /**
+     * Copies the frames that match the query from the selected segments into one file
+     */
+    private long extract(File directory, List<String> segments, String output, long from, long to, int channel,
+            long device) throws IOException {
+        int[] data = new int[SnifferPacket.MAX_LENGTH];
+        SnifferPacket radio = new SnifferPacket();
+        MacHeader header = new MacHeader();
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        WiresharkPcapStreamWriter writer = null;
+        int network = 0;
+        long frames = 0;
+        try {
+            for (String segment : segments) {
+                try (WiresharkPcapReader reader = new WiresharkPcapReader(new File(directory, segment).getPath())) {
+                    if (writer == null) {
+                        network = reader.getNetwork();
+                        writer = new WiresharkPcapStreamWriter(output, network, reader.getSnapLength());
+                    } else if (reader.getNetwork() != network) {
+                        System.err.println("Skipping " + segment + " with link type " + reader.getNetwork());
+                        continue;
+                    }
+                    boolean tap = reader.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+                    while (reader.next(record)) {
+                        if (record.getTimestamp() < from || record.getTimestamp() > to) {
+                            continue;
+                        }
+                        int length = getFrame(record, tap, radio, data);
+                        if (length == -1 || (tap && channel != -1 && radio.getChannel() != channel)) {
+                            continue;
+                        }
+                        if (device != -1 && !(header.parse(data, length)
+                                && ((header.getSourceAddressMode() != MacHeader.ADDRESS_MODE_NONE
+                                        && header.getSourceAddress() == device)
+                                        || (header.getDestinationAddressMode() != MacHeader.ADDRESS_MODE_NONE
+                                                && header.getDestinationAddress() == device)))) {
+                            continue;
+                        }
+                        writer.write(record);
+                        frames++;
+                    }
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Gets the 802.15.4 frame from a record, skipping the TAP header if there is one
+     *
+     * @return the frame length, or -1 if the TAP header is not valid
+     */
+    private int getFrame(WiresharkPcapRecord record, boolean tap, SnifferPacket radio, int[] data) {
+        byte[] bytes = record.getData();
+        int offset = 0;
+        if (tap) {
+            offset = WiresharkTapHeader.read(bytes, 0, record.getLength(), radio);
+            if (offset == -1) {
+                return -1;
+            }
+        }
+        int length = Math.min(record.getLength() - offset, data.length);
+        for (int cnt = 0; cnt < length; cnt++) {
+            data[cnt] = bytes[offset + cnt] & 0xFF;
+        }
+        return length;
+    }
+
+    private String channelList(int channels) {
+        if (channels == 0) {
+            return "-";
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int cnt = 0; cnt < 32; cnt++) {
+            if ((channels & (1 << cnt)) != 0) {
+                if (builder.length() != 0) {
+                    builder.append(',');
+                }
+                builder.append(cnt);
+            }
+        }
+        return builder.toString();
+    }
+
+    private long parseTime(String time) throws ParseException {
+        SimpleDateFormat format = time.indexOf('T') != -1 ? isoFormat : segmentFormat;
+        return format.parse(time).getTime() * 1000;
+    }
+
+    private static SimpleDateFormat createFormat(String pattern) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        return format;
+    }
+}
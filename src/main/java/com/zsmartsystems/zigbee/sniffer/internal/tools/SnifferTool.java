@@ -0,0 +1,34 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+/**
+ * An offline tool that is run from the sniffer command line by giving its name as the first argument, eg
+ * <code>ZigBeeSniffer merge -o all.pcap *.pcap</code>. Tools don't use the NCP.
+ *
+ * @author Chris Jackson
+ *
+ */
+public interface SnifferTool {
+    /**
+     * @return the name used to select the tool on the command line
+     */
+    String getName();
+
+    /**
+     * @return a one line description for the usage information
+     */
+    String getDescription();
+
+    /**
+     * Runs the tool. Errors are reported to the console.
+     *
+     * @param args the command line arguments following the tool name
+     */
+    void run(String[] args);
+}
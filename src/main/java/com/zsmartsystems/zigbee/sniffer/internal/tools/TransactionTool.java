@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import com.zsmartsystems.zigbee.security.ZigBeeKey;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.security.ZigBeeKeyStore;
+import com.zsmartsystems.zigbee.sniffer.internal.transaction.TransactionAnalyzer;
+import com.zsmartsystems.zigbee.sniffer.internal.transaction.TransactionCorrelator;
+
+/**
+ * Reconstructs the ZCL and ZDO transactions in a set of pcap files, and reports the response latency, acknowledgement
+ * times and retries per device and per cluster. Directories are expanded to the pcap files they hold. The report is
+ * printed, or written as CSV to the output file.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class TransactionTool implements SnifferTool {
+
+    @Override
+    public String getName() {
+        return "transactions";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Report request/response latency and retries from pcap files";
+    }
+
+    @Override
+    public void run(String[] args) {
+        Options options = new Options();
+        options.addOption(Option.builder("o").longOpt("output").hasArg().argName("filename")
+                .desc("Write the report to a CSV file - the report is printed if not set").build());
+        options.addOption(Option.builder("j").longOpt("threads").hasArg().argName("threads")
+                .desc("Set the number of analysis threads").build());
+        options.addOption(Option.builder("t").longOpt("timeout").hasArg().argName("seconds")
+                .desc("Set the time to wait for a response (default 15)").build());
+        options.addOption(Option.builder("a").longOpt("addresses").hasArg().argName("filename")
+                .desc("Load an address cache to report the IEEE address of devices").build());
+        options.addOption(Option.builder("n").longOpt("nwkkey").hasArg().argName("key")
+                .desc("Add a network key to decrypt frames (may be repeated)").build());
+        options.addOption(Option.builder("y").longOpt("linkkey").hasArg().argName("key")
+                .desc("Add a trust centre link key to decrypt frames (may be repeated)").build());
+        options.addOption(Option.builder("?").longOpt("help").desc("Print usage information").build());
+
+        CommandLine cmdline;
+        try {
+            cmdline = new DefaultParser().parse(options, args);
+        } catch (ParseException exp) {
+            System.err.println("Parsing command line failed.  Reason: " + exp.getMessage());
+            return;
+        }
+        if (cmdline.hasOption("help") || cmdline.getArgList().isEmpty()) {
+            new HelpFormatter().printHelp(
+                    "ZigBeeSniffer transactions [-o <filename>] [-n <key>] <pcap files or directories>", options);
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (cmdline.hasOption("threads")) {
+            threads = Integer.parseInt(cmdline.getOptionValue("threads"));
+        }
+
+        List<String> filenames = new ArrayList<>();
+        for (String name : cmdline.getArgList()) {
+            File file = new File(name);
+            if (!file.isDirectory()) {
+                filenames.add(name);
+                continue;
+            }
+            File[] files = file.listFiles();
+            if (files == null) {
+                continue;
+            }
+            Arrays.sort(files);
+            for (File pcap : files) {
+                if (pcap.isFile() && pcap.getName().endsWith(".pcap")) {
+                    filenames.add(pcap.getPath());
+                }
+            }
+        }
+
+        TransactionAnalyzer analyzer = new TransactionAnalyzer(threads);
+        if (cmdline.hasOption("timeout")) {
+            analyzer.setTimeout(Long.parseLong(cmdline.getOptionValue("timeout")) * 1000000L);
+        }
+        if (cmdline.hasOption("nwkkey") || cmdline.hasOption("linkkey")) {
+            ZigBeeKeyStore keyStore = new ZigBeeKeyStore();
+            try {
+                if (cmdline.hasOption("nwkkey")) {
+                    for (String key : cmdline.getOptionValues("nwkkey")) {
+                        keyStore.addNetworkKey(new ZigBeeKey(key));
+                    }
+                }
+                if (cmdline.hasOption("linkkey")) {
+                    for (String key : cmdline.getOptionValues("linkkey")) {
+                        keyStore.addTrustCentreLinkKey(new ZigBeeKey(key));
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid key: " + e.getMessage());
+                return;
+            }
+            analyzer.setKeyStore(keyStore);
+        }
+
+        long start = System.currentTimeMillis();
+        TransactionCorrelator correlator;
+        try {
+            if (cmdline.hasOption("addresses")) {
+                AddressCache addressCache = new AddressCache();
+                File addressFile = new File(cmdline.getOptionValue("addresses"));
+                if (addressFile.exists()) {
+                    addressCache.load(addressFile);
+                }
+                analyzer.setAddressCache(addressCache);
+            }
+            correlator = analyzer.analyze(filenames);
+        } catch (IOException e) {
+            System.err.println("Transactions failed: " + e.getMessage());
+            return;
+        }
+
+        String output = cmdline.getOptionValue("output");
+        if (output == null) {
+            correlator.print(System.out, Integer.MAX_VALUE);
+            return;
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(output), false, "UTF-8")) {
+            correlator.writeCsv(out);
+        } catch (IOException e) {
+            System.err.println("Transactions failed: " + e.getMessage());
+            return;
+        }
+        System.out.println("Reconstructed " + correlator.getTransactions() + " transactions from "
+                + correlator.getFrames() + " packets in " + filenames.size() + " files in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.transaction;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.PacketBatch;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressLearner;
+import com.zsmartsystems.zigbee.sniffer.internal.security.ZigBeeDecryptor;
+import com.zsmartsystems.zigbee.sniffer.internal.security.ZigBeeKeyStore;
+import com.zsmartsystems.zigbee.sniffer.internal.wireshark.WiresharkPcapPacketReader;
+
+/**
+ * Reconstructs the transactions in a set of pcap files in parallel. A transaction is spread over several frames, so
+ * unlike the {@link com.zsmartsystems.zigbee.sniffer.internal.analysis.PcapAnalyzer} a file can't be split into
+ * chunks - each file is read in order by one worker with its own {@link TransactionCorrelator}, and the workers'
+ * statistics are merged at the end. Transactions that span two files are not matched.
+ * <p>
+ * Frames can be decrypted with the keys in a {@link ZigBeeKeyStore} before they are correlated, and the addresses of
+ * devices can be learned into an {@link AddressCache} so the report gives their IEEE addresses.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class TransactionAnalyzer {
+    private final ExecutorService executor;
+    private long timeoutMicros = TransactionCorrelator.DEFAULT_TIMEOUT_MICROS;
+    private ZigBeeKeyStore keyStore;
+    private AddressCache addressCache;
+
+    /**
+     * Creates the analyser
+     *
+     * @param parallelism the number of worker threads
+     */
+    public TransactionAnalyzer(int parallelism) {
+        executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Transactions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the time after a request that its transaction is closed
+     *
+     * @param timeoutMicros the timeout in microseconds
+     */
+    public void setTimeout(long timeoutMicros) {
+        this.timeoutMicros = timeoutMicros;
+    }
+
+    /**
+     * Sets the keys used to decrypt secured frames
+     *
+     * @param keyStore the {@link ZigBeeKeyStore}, or null to not decrypt frames
+     */
+    public void setKeyStore(ZigBeeKeyStore keyStore) {
+        this.keyStore = keyStore;
+    }
+
+    /**
+     * Sets the cache that the addresses of devices are learned into, and which is used to report the IEEE address of
+     * devices
+     *
+     * @param addressCache the {@link AddressCache}, or null to not learn addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Analyses the files
+     *
+     * @param filenames the pcap files
+     * @return a {@link TransactionCorrelator} holding the statistics for all the files
+     * @throws IOException if a file can't be read or has an unsupported link type
+     */
+    public TransactionCorrelator analyze(List<String> filenames) throws IOException {
+        List<Future<TransactionCorrelator>> futures = new ArrayList<>();
+        for (final String filename : filenames) {
+            futures.add(executor.submit(new Callable<TransactionCorrelator>() {
+                @Override
+                public TransactionCorrelator call() throws IOException {
+                    return analyzeFile(filename);
+                }
+            }));
+        }
+
+        TransactionCorrelator result = new TransactionCorrelator(2, timeoutMicros);
+        result.setAddressCache(addressCache);
+        try {
+            for (Future<TransactionCorrelator> future : futures) {
+                result.merge(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private TransactionCorrelator analyzeFile(String filename) throws IOException {
+        TransactionCorrelator correlator = new TransactionCorrelator(TransactionCorrelator.DEFAULT_CAPACITY,
+                timeoutMicros);
+        ZigBeeDecryptor decryptor = keyStore == null ? null : new ZigBeeDecryptor(keyStore);
+        AddressLearner learner = addressCache == null ? null : new AddressLearner(addressCache);
+        PacketBatch batch = new PacketBatch();
+        try (WiresharkPcapPacketReader reader = new WiresharkPcapPacketReader(filename)) {
+            long start = reader.getStart();
+            while (true) {
+                long end = reader.getChunkEnd(start);
+                if (end == start) {
+                    break;
+                }
+                reader.read(start, end, batch);
+                for (SnifferPacket packet : batch.getPackets()) {
+                    int[] data = packet.getData();
+                    int length = packet.getLength();
+                    if (decryptor != null) {
+                        int[] decrypted = decryptor.decrypt(data, length);
+                        if (decrypted != null) {
+                            data = decrypted;
+                            length = decrypted.length;
+                        }
+                    }
+                    if (learner != null) {
+                        learner.frameReceived(data, length);
+                    }
+                    correlator.frameReceived(data, length, packet.getTimestampMicros());
+                }
+                batch.clear();
+                start = end;
+            }
+        }
+        correlator.flush();
+        return correlator;
+    }
+}
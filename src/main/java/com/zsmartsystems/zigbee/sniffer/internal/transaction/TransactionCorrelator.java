@@ -0,0 +1,740 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.transaction;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.LongIntIndex;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.analysis.LongKeyTable;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.ApsHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.NwkHeader;
+
+/**
+ * Reconstructs ZCL and ZDO request and response transactions from a stream of frames, and collects the response
+ * latency and retries per device and per cluster.
+ * <p>
+ * A transaction is opened by a unicast request that expects a response - a ZDO request, a ZCL global command that is
+ * always answered, or any other ZCL command that doesn't disable the default response. The other frames of the
+ * transaction are matched to it by:
+ * <ul>
+ * <li>the response - a ZCL or ZDO frame in the other direction between the same NWK addresses, with the same cluster
+ * and transaction sequence number
+ * <li>the APS acknowledgement - an APS ACK in the other direction with the APS counter of the request
+ * <li>the MAC acknowledgement - an ACK with the MAC sequence number of the first hop of the request, received within
+ * {@link #MAC_ACK_WINDOW_MICROS} of it
+ * </ul>
+ * When the request or response is heard again, a frame with the same NWK sequence number from the same MAC source and
+ * with the same MAC sequence number is counted as a MAC retry, and a frame with a new NWK sequence number is counted as
+ * an APS retry. A frame with the same NWK sequence number from another MAC source is the frame being relayed, and is
+ * not counted.
+ * <p>
+ * Open transactions are held in primitive arrays used as a ring, in the order they were opened, and are indexed by two
+ * {@link LongIntIndex} tables - one keyed by the addresses, cluster and transaction sequence number, and one keyed by
+ * the addresses and APS counter. A transaction is closed, and counted in the statistics, when the timeout has passed
+ * since the request, so late retries and acknowledgements are still matched. If the ring is full the oldest
+ * transaction is closed early, so the memory used is fixed however many frames are processed.
+ * <p>
+ * Frames must be unencrypted to be correlated - NWK and APS secured frames are only counted, so captures should be
+ * decrypted with a {@link com.zsmartsystems.zigbee.sniffer.internal.security.ZigBeeDecryptor} first.
+ * <p>
+ * The statistics are held in {@link LongKeyTable}s, so separate captures can be correlated on different threads and
+ * the results merged with {@link #merge(TransactionCorrelator)}. Latency percentiles are reported as the upper limit
+ * of the histogram bucket they fall in.
+ * <p>
+ * The class is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class TransactionCorrelator {
+    /**
+     * The default maximum number of open transactions
+     */
+    public static final int DEFAULT_CAPACITY = 65536;
+
+    /**
+     * The default time after the request that a transaction is closed
+     */
+    public static final long DEFAULT_TIMEOUT_MICROS = 15000000L;
+
+    /**
+     * The longest time from a frame to its MAC acknowledgement
+     */
+    public static final long MAC_ACK_WINDOW_MICROS = 20000L;
+
+    // The upper limits of the latency histogram buckets in milliseconds - the last bucket holds longer latencies
+    private static final int[] LATENCY_LIMITS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000 };
+
+    private static final int COLUMN_TRANSACTIONS = 0;
+    private static final int COLUMN_RESPONSES = 1;
+    private static final int COLUMN_MAC_RETRIES = 2;
+    private static final int COLUMN_APS_RETRIES = 3;
+    private static final int COLUMN_MAC_ACKS = 4;
+    private static final int COLUMN_MAC_ACK_SUM = 5;
+    private static final int COLUMN_APS_ACKS = 6;
+    private static final int COLUMN_APS_ACK_SUM = 7;
+    private static final int COLUMN_LATENCY_SUM = 8;
+    private static final int COLUMN_HISTOGRAM = 9;
+    private static final int COLUMNS = COLUMN_HISTOGRAM + LATENCY_LIMITS.length + 1;
+
+    private static final int TYPE_ZCL = 0;
+    private static final int TYPE_ZDO = 1;
+
+    private static final int DIRECTION_REQUEST = 0;
+    private static final int DIRECTION_RESPONSE = 1;
+
+    private static final int ZDO_PROFILE = 0x0000;
+    private static final int ZDO_RESPONSE = 0x8000;
+
+    private static final int ZCL_FRAME_TYPE_MASK = 0x03;
+    private static final int ZCL_FRAME_TYPE_GLOBAL = 0x00;
+    private static final int ZCL_MANUFACTURER_SPECIFIC = 0x04;
+    private static final int ZCL_DISABLE_DEFAULT_RESPONSE = 0x10;
+
+    private static final int BROADCAST_ADDRESSES = 0xFFF8;
+
+    private static final long NO_KEY = -1;
+    private static final long NO_TIME = -1;
+    private static final long NO_RECORD = -1;
+
+    private final int capacity;
+    private final int mask;
+    private final long timeout;
+
+    // The open transactions, from the record number first up to next, in slot record & mask
+    private final long[] transactionKeys;
+    private final long[] apsKeys;
+    private final int[] pans;
+    private final int[] responders;
+    private final int[] clusters;
+    private final int[] apsCounters;
+    private final long[] requestTimes;
+    private final long[] macAckTimes;
+    private final long[] apsAckTimes;
+    private final long[] responseTimes;
+    private final int[] macRetries;
+    private final int[] apsRetries;
+    // The last frame heard in each direction, in index slot * 2 + direction
+    private final int[] nwkSequences;
+    private final long[] macSources;
+    private final int[] macSequences;
+    private long first;
+    private long next;
+
+    private final LongIntIndex transactionIndex;
+    private final LongIntIndex apsIndex;
+
+    // The last frame that requested a MAC ACK, and the transaction it was the first hop of
+    private long pendingAckRecord = NO_RECORD;
+    private int pendingAckSequence;
+    private long pendingAckTime;
+
+    private final MacHeader mac = new MacHeader();
+    private final NwkHeader nwk = new NwkHeader();
+    private final ApsHeader aps = new ApsHeader();
+
+    // Devices are keyed by (PAN << 16) | network address of the responder, and clusters by (type << 16) | cluster
+    private final LongKeyTable devices = new LongKeyTable(COLUMNS);
+    private final LongKeyTable clusterStatistics = new LongKeyTable(COLUMNS);
+    private long frames;
+    private long secured;
+    private long evicted;
+    private long now;
+
+    private AddressCache addressCache;
+
+    /**
+     * Creates a correlator holding up to {@link #DEFAULT_CAPACITY} open transactions, with a timeout of
+     * {@link #DEFAULT_TIMEOUT_MICROS}
+     */
+    public TransactionCorrelator() {
+        this(DEFAULT_CAPACITY, DEFAULT_TIMEOUT_MICROS);
+    }
+
+    /**
+     * Creates the correlator
+     *
+     * @param capacity the maximum number of open transactions, which is rounded up to a power of two
+     * @param timeoutMicros the time after the request that a transaction is closed in microseconds
+     */
+    public TransactionCorrelator(int capacity, long timeoutMicros) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        this.mask = this.capacity - 1;
+        this.timeout = timeoutMicros;
+        transactionKeys = new long[this.capacity];
+        apsKeys = new long[this.capacity];
+        pans = new int[this.capacity];
+        responders = new int[this.capacity];
+        clusters = new int[this.capacity];
+        apsCounters = new int[this.capacity];
+        requestTimes = new long[this.capacity];
+        macAckTimes = new long[this.capacity];
+        apsAckTimes = new long[this.capacity];
+        responseTimes = new long[this.capacity];
+        macRetries = new int[this.capacity];
+        apsRetries = new int[this.capacity];
+        nwkSequences = new int[this.capacity * 2];
+        macSources = new long[this.capacity * 2];
+        macSequences = new int[this.capacity * 2];
+        transactionIndex = new LongIntIndex(this.capacity);
+        apsIndex = new LongIntIndex(this.capacity);
+    }
+
+    /**
+     * Sets the cache used to give the IEEE addresses of devices in the report
+     *
+     * @param addressCache the {@link AddressCache}, or null to only report network addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * Adds a received frame
+     *
+     * @param packet the {@link SnifferPacket}
+     */
+    public void frameReceived(SnifferPacket packet) {
+        frameReceived(packet.getData(), packet.getLength(), packet.getTimestampMicros());
+    }
+
+    /**
+     * Adds a received frame. Frames must be added in the order they were captured.
+     *
+     * @param data the frame, including the FCS
+     * @param length the frame length
+     * @param timestamp the capture time in microseconds
+     */
+    public void frameReceived(int[] data, int length, long timestamp) {
+        frames++;
+        advance(timestamp);
+        if (!mac.parse(data, length)) {
+            return;
+        }
+        if (mac.getFrameType() == MacHeader.FRAME_TYPE_ACK) {
+            macAckReceived(mac.getSequence(), timestamp);
+            return;
+        }
+        if (mac.getFrameType() != MacHeader.FRAME_TYPE_DATA) {
+            return;
+        }
+        if (mac.isAckRequest()) {
+            // ACKs only carry the sequence number, so they can only be matched to the last frame that asked for one
+            pendingAckRecord = NO_RECORD;
+            pendingAckSequence = mac.getSequence();
+            pendingAckTime = timestamp;
+        }
+        if (mac.isSecurity() || mac.getSourceAddressMode() != MacHeader.ADDRESS_MODE_SHORT
+                || mac.getDestinationAddressMode() != MacHeader.ADDRESS_MODE_SHORT) {
+            return;
+        }
+
+        int limit = mac.getHeaderLength() + mac.getPayloadLength();
+        if (!nwk.parse(data, mac.getHeaderLength(), limit) || nwk.getFrameType() != NwkHeader.FRAME_TYPE_DATA
+                || nwk.isMulticast() || nwk.getDestination() >= BROADCAST_ADDRESSES) {
+            return;
+        }
+        if (nwk.isSecurity()) {
+            secured++;
+            return;
+        }
+        if (!aps.parse(data, nwk.getOffset() + nwk.getHeaderLength(), limit)) {
+            return;
+        }
+        if (aps.isSecurity()) {
+            secured++;
+            return;
+        }
+
+        int pan = mac.getDestinationPan();
+        int source = nwk.getSource();
+        int destination = nwk.getDestination();
+        if (aps.getFrameType() == ApsHeader.FRAME_TYPE_ACK) {
+            int slot = apsIndex.get(getApsKey(destination, source, aps.getCounter()));
+            if (slot != LongIntIndex.NONE && pans[slot] == pan && apsAckTimes[slot] == NO_TIME) {
+                apsAckTimes[slot] = timestamp;
+            }
+            return;
+        }
+        if (aps.getFrameType() != ApsHeader.FRAME_TYPE_DATA || aps.getDeliveryMode() != ApsHeader.DELIVERY_UNICAST) {
+            return;
+        }
+
+        int payload = aps.getOffset() + aps.getHeaderLength();
+        if (payload >= limit) {
+            return;
+        }
+        int type;
+        int cluster;
+        int sequence;
+        boolean request;
+        if (aps.getProfile() == ZDO_PROFILE) {
+            type = TYPE_ZDO;
+            cluster = aps.getCluster() & ~ZDO_RESPONSE;
+            sequence = data[payload];
+            request = (aps.getCluster() & ZDO_RESPONSE) == 0;
+        } else {
+            int frameControl = data[payload];
+            int position = payload + ((frameControl & ZCL_MANUFACTURER_SPECIFIC) != 0 ? 3 : 1);
+            if (position + 2 > limit) {
+                return;
+            }
+            type = TYPE_ZCL;
+            cluster = aps.getCluster();
+            sequence = data[position];
+            request = isRequest(frameControl, data[position + 1]);
+        }
+        boolean firstHop = mac.getSourceAddress() == source;
+
+        int slot = find(getTransactionKey(type, destination, source, cluster, sequence), pan);
+        if (slot != LongIntIndex.NONE) {
+            if (responseTimes[slot] == NO_TIME) {
+                responseTimes[slot] = timestamp;
+                setLastFrame(slot, DIRECTION_RESPONSE);
+            } else {
+                frameRepeated(slot, DIRECTION_RESPONSE);
+            }
+            return;
+        }
+
+        long key = getTransactionKey(type, source, destination, cluster, sequence);
+        slot = find(key, pan);
+        if (slot != LongIntIndex.NONE) {
+            if (responseTimes[slot] == NO_TIME || apsCounters[slot] == aps.getCounter()) {
+                frameRepeated(slot, DIRECTION_REQUEST);
+                if (apsCounters[slot] != aps.getCounter()) {
+                    setApsKey(slot, source, destination);
+                }
+                if (firstHop && mac.isAckRequest() && macAckTimes[slot] == NO_TIME) {
+                    pendingAckRecord = getRecord(slot);
+                }
+                return;
+            }
+            // The sequence number has been used again for a new request - the old transaction no longer matches
+            transactionIndex.remove(key);
+        }
+        if (!request) {
+            return;
+        }
+
+        if (next - first == capacity) {
+            close((int) first & mask);
+            first++;
+            evicted++;
+        }
+        long record = next++;
+        slot = (int) record & mask;
+        transactionKeys[slot] = key;
+        pans[slot] = pan;
+        responders[slot] = destination;
+        clusters[slot] = (type << 16) | cluster;
+        requestTimes[slot] = timestamp;
+        macAckTimes[slot] = NO_TIME;
+        apsAckTimes[slot] = NO_TIME;
+        responseTimes[slot] = NO_TIME;
+        macRetries[slot] = 0;
+        apsRetries[slot] = 0;
+        apsKeys[slot] = NO_KEY;
+        setApsKey(slot, source, destination);
+        setLastFrame(slot, DIRECTION_REQUEST);
+        transactionIndex.put(key, slot);
+        if (firstHop && mac.isAckRequest()) {
+            pendingAckRecord = record;
+        }
+    }
+
+    /**
+     * Closes the transactions whose timeout has passed. This is called for each frame, and can be called when no
+     * frames are received so that transactions are still closed.
+     *
+     * @param timestamp the current time in microseconds
+     */
+    public void advance(long timestamp) {
+        if (timestamp <= now) {
+            return;
+        }
+        now = timestamp;
+        while (first != next) {
+            int slot = (int) first & mask;
+            if (requestTimes[slot] + timeout > now) {
+                break;
+            }
+            close(slot);
+            first++;
+        }
+    }
+
+    /**
+     * Closes all the open transactions, at the end of a capture
+     */
+    public void flush() {
+        while (first != next) {
+            close((int) first & mask);
+            first++;
+        }
+        pendingAckRecord = NO_RECORD;
+    }
+
+    /**
+     * Adds the statistics from another correlator to this one. Open transactions are not merged.
+     *
+     * @param other the {@link TransactionCorrelator} to merge
+     */
+    public void merge(TransactionCorrelator other) {
+        devices.merge(other.devices);
+        clusterStatistics.merge(other.clusterStatistics);
+        frames += other.frames;
+        secured += other.secured;
+        evicted += other.evicted;
+    }
+
+    /**
+     * @return the number of frames received
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of transactions that have been closed
+     */
+    public long getTransactions() {
+        long transactions = 0;
+        for (int slot = 0; slot < clusterStatistics.capacity(); slot++) {
+            if (clusterStatistics.isUsed(slot)) {
+                transactions += clusterStatistics.get(slot, COLUMN_TRANSACTIONS);
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * @return the number of transactions that are open
+     */
+    public int getOpen() {
+        return (int) (next - first);
+    }
+
+    /**
+     * Prints the transaction statistics per device and per cluster
+     *
+     * @param out the {@link PrintStream}
+     * @param maxRows the maximum number of devices and of clusters to print, with the most transactions first
+     */
+    public void print(PrintStream out, int maxRows) {
+        out.println(String.format("Transactions          : %d closed, %d open, %d closed early, %d secured frames",
+                getTransactions(), getOpen(), evicted, secured));
+        printTable(out, "Device", devices, true, maxRows);
+        printTable(out, "Cluster", clusterStatistics, false, maxRows);
+    }
+
+    /**
+     * Writes the statistics as CSV. Each line starts with the section (device or cluster) and the key, followed by the
+     * counts, the mean acknowledgement and response times and the latency percentiles in milliseconds, and the
+     * latency histogram. If an {@link AddressCache} is set, there is a last column with the IEEE address of devices.
+     *
+     * @param out the {@link PrintStream} to write to
+     */
+    public void writeCsv(PrintStream out) {
+        StringBuilder header = new StringBuilder("section,key,transactions,responses,no_response,mac_retries,"
+                + "aps_retries,mean_mac_ack_ms,mean_aps_ack_ms,mean_latency_ms,p50_ms,p90_ms,p99_ms");
+        for (int limit : LATENCY_LIMITS) {
+            header.append(",le_").append(limit).append("ms");
+        }
+        header.append(",gt_").append(LATENCY_LIMITS[LATENCY_LIMITS.length - 1]).append("ms");
+        if (addressCache != null) {
+            header.append(",ieee");
+        }
+        out.println(header.toString());
+        writeCsvTable(out, "device", devices, true);
+        writeCsvTable(out, "cluster", clusterStatistics, false);
+    }
+
+    private void macAckReceived(int sequence, long timestamp) {
+        if (pendingAckRecord != NO_RECORD && pendingAckRecord >= first && sequence == pendingAckSequence
+                && timestamp - pendingAckTime <= MAC_ACK_WINDOW_MICROS) {
+            int slot = (int) pendingAckRecord & mask;
+            if (macAckTimes[slot] == NO_TIME) {
+                macAckTimes[slot] = timestamp;
+            }
+        }
+        pendingAckRecord = NO_RECORD;
+    }
+
+    /**
+     * Counts a request or response heard again as a retry, or as the frame being relayed
+     */
+    private void frameRepeated(int slot, int direction) {
+        int last = slot * 2 + direction;
+        if (nwk.getSequence() != nwkSequences[last]) {
+            apsRetries[slot]++;
+        } else if (mac.getSourceAddress() == macSources[last] && mac.getSequence() == macSequences[last]) {
+            macRetries[slot]++;
+        }
+        setLastFrame(slot, direction);
+    }
+
+    private void setLastFrame(int slot, int direction) {
+        int last = slot * 2 + direction;
+        nwkSequences[last] = nwk.getSequence();
+        macSources[last] = mac.getSourceAddress();
+        macSequences[last] = mac.getSequence();
+    }
+
+    /**
+     * Indexes a transaction by the APS counter of the current request frame, if it asks for an APS ACK
+     */
+    private void setApsKey(int slot, int source, int destination) {
+        if (apsKeys[slot] != NO_KEY && apsIndex.get(apsKeys[slot]) == slot) {
+            apsIndex.remove(apsKeys[slot]);
+        }
+        apsCounters[slot] = aps.getCounter();
+        apsKeys[slot] = NO_KEY;
+        if (aps.isAckRequest()) {
+            apsKeys[slot] = getApsKey(source, destination, aps.getCounter());
+            apsIndex.put(apsKeys[slot], slot);
+        }
+    }
+
+    private int find(long key, int pan) {
+        int slot = transactionIndex.get(key);
+        if (slot == LongIntIndex.NONE || pans[slot] != pan) {
+            return LongIntIndex.NONE;
+        }
+        return slot;
+    }
+
+    private long getRecord(int slot) {
+        return first + ((slot - (int) first) & mask);
+    }
+
+    private void close(int slot) {
+        if (transactionIndex.get(transactionKeys[slot]) == slot) {
+            transactionIndex.remove(transactionKeys[slot]);
+        }
+        if (apsKeys[slot] != NO_KEY && apsIndex.get(apsKeys[slot]) == slot) {
+            apsIndex.remove(apsKeys[slot]);
+        }
+        count(devices, ((long) pans[slot] << 16) | responders[slot], slot);
+        count(clusterStatistics, clusters[slot], slot);
+    }
+
+    private void count(LongKeyTable table, long key, int slot) {
+        int row = table.getSlot(key);
+        table.add(row, COLUMN_TRANSACTIONS, 1);
+        table.add(row, COLUMN_MAC_RETRIES, macRetries[slot]);
+        table.add(row, COLUMN_APS_RETRIES, apsRetries[slot]);
+        if (macAckTimes[slot] != NO_TIME) {
+            table.add(row, COLUMN_MAC_ACKS, 1);
+            table.add(row, COLUMN_MAC_ACK_SUM, macAckTimes[slot] - requestTimes[slot]);
+        }
+        if (apsAckTimes[slot] != NO_TIME) {
+            table.add(row, COLUMN_APS_ACKS, 1);
+            table.add(row, COLUMN_APS_ACK_SUM, apsAckTimes[slot] - requestTimes[slot]);
+        }
+        if (responseTimes[slot] != NO_TIME) {
+            long latency = responseTimes[slot] - requestTimes[slot];
+            table.add(row, COLUMN_RESPONSES, 1);
+            table.add(row, COLUMN_LATENCY_SUM, latency);
+            int bucket = 0;
+            while (bucket < LATENCY_LIMITS.length && latency > LATENCY_LIMITS[bucket] * 1000L) {
+                bucket++;
+            }
+            table.add(row, COLUMN_HISTOGRAM + bucket, 1);
+        }
+    }
+
+    /**
+     * A ZCL frame is a request if it is a global command that is always answered, or any other command that isn't a
+     * response and doesn't disable the default response
+     */
+    private static boolean isRequest(int frameControl, int command) {
+        if ((frameControl & ZCL_FRAME_TYPE_MASK) != ZCL_FRAME_TYPE_GLOBAL) {
+            return (frameControl & ZCL_DISABLE_DEFAULT_RESPONSE) == 0;
+        }
+        switch (command) {
+            case 0x00: // Read attributes
+            case 0x02: // Write attributes
+            case 0x03: // Write attributes undivided
+            case 0x06: // Configure reporting
+            case 0x08: // Read reporting configuration
+            case 0x0C: // Discover attributes
+            case 0x11: // Discover commands received
+            case 0x13: // Discover commands generated
+            case 0x15: // Discover attributes extended
+                return true;
+            case 0x01: // Read attributes response
+            case 0x04: // Write attributes response
+            case 0x07: // Configure reporting response
+            case 0x09: // Read reporting configuration response
+            case 0x0B: // Default response
+            case 0x0D: // Discover attributes response
+            case 0x12: // Discover commands received response
+            case 0x14: // Discover commands generated response
+            case 0x16: // Discover attributes extended response
+                return false;
+            default:
+                return (frameControl & ZCL_DISABLE_DEFAULT_RESPONSE) == 0;
+        }
+    }
+
+    private static long getTransactionKey(int type, int requester, int responder, int cluster, int sequence) {
+        return ((long) type << 56) | ((long) requester << 40) | ((long) responder << 24) | ((long) cluster << 8)
+                | sequence;
+    }
+
+    private static long getApsKey(int requester, int responder, int counter) {
+        return ((long) requester << 24) | ((long) responder << 8) | counter;
+    }
+
+    private void printTable(PrintStream out, String title, final LongKeyTable table, boolean device,
+            int maxRows) {
+        List<Integer> rows = sortedRows(table);
+        Collections.sort(rows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer row1, Integer row2) {
+                return Long.compare(table.get(row2, COLUMN_TRANSACTIONS), table.get(row1, COLUMN_TRANSACTIONS));
+            }
+        });
+        out.println(String.format("%-18s %7s %7s %6s %6s %6s %7s %7s %7s %6s %6s %6s", title, "Trans", "Resp",
+                "NoRsp", "MacRty", "ApsRty", "MacAck", "ApsAck", "Mean", "P50", "P90", "P99"));
+        for (int cnt = 0; cnt < rows.size() && cnt < maxRows; cnt++) {
+            int row = rows.get(cnt);
+            long transactions = table.get(row, COLUMN_TRANSACTIONS);
+            long responses = table.get(row, COLUMN_RESPONSES);
+            out.println(String.format("%-18s %7d %7d %6d %6d %6d %7s %7s %7s %6s %6s %6s",
+                    formatKey(table.getKey(row), device, true), transactions, responses, transactions - responses,
+                    table.get(row, COLUMN_MAC_RETRIES), table.get(row, COLUMN_APS_RETRIES),
+                    formatMean(table, row, COLUMN_MAC_ACK_SUM, COLUMN_MAC_ACKS, "-"),
+                    formatMean(table, row, COLUMN_APS_ACK_SUM, COLUMN_APS_ACKS, "-"),
+                    formatMean(table, row, COLUMN_LATENCY_SUM, COLUMN_RESPONSES, "-"),
+                    formatPercentile(table, row, 50),
+                    formatPercentile(table, row, 90), formatPercentile(table, row, 99)));
+        }
+    }
+
+    private void writeCsvTable(PrintStream out, String section, LongKeyTable table, boolean device) {
+        for (int row : sortedRows(table)) {
+            long transactions = table.get(row, COLUMN_TRANSACTIONS);
+            long responses = table.get(row, COLUMN_RESPONSES);
+            StringBuilder builder = new StringBuilder();
+            builder.append(section).append(',').append(formatKey(table.getKey(row), device, false));
+            builder.append(',').append(transactions).append(',').append(responses);
+            builder.append(',').append(transactions - responses);
+            builder.append(',').append(table.get(row, COLUMN_MAC_RETRIES));
+            builder.append(',').append(table.get(row, COLUMN_APS_RETRIES));
+            builder.append(',').append(formatMean(table, row, COLUMN_MAC_ACK_SUM, COLUMN_MAC_ACKS, ""));
+            builder.append(',').append(formatMean(table, row, COLUMN_APS_ACK_SUM, COLUMN_APS_ACKS, ""));
+            builder.append(',').append(formatMean(table, row, COLUMN_LATENCY_SUM, COLUMN_RESPONSES, ""));
+            for (int percentile : new int[] { 50, 90, 99 }) {
+                int bucket = getPercentileBucket(table, row, percentile);
+                builder.append(',');
+                if (bucket != -1 && bucket < LATENCY_LIMITS.length) {
+                    builder.append(LATENCY_LIMITS[bucket]);
+                }
+            }
+            for (int bucket = 0; bucket <= LATENCY_LIMITS.length; bucket++) {
+                builder.append(',').append(table.get(row, COLUMN_HISTOGRAM + bucket));
+            }
+            if (addressCache != null) {
+                builder.append(',');
+                long ieeeAddress = device ? resolve(table.getKey(row)) : AddressCache.UNKNOWN;
+                if (ieeeAddress != AddressCache.UNKNOWN) {
+                    builder.append(String.format("%016X", ieeeAddress));
+                }
+            }
+            out.println(builder.toString());
+        }
+    }
+
+    /**
+     * @return the histogram bucket holding the percentile of the response latency, or -1 if there were no responses
+     */
+    private static int getPercentileBucket(LongKeyTable table, int row, int percentile) {
+        long responses = table.get(row, COLUMN_RESPONSES);
+        if (responses == 0) {
+            return -1;
+        }
+        long target = (responses * percentile + 99) / 100;
+        long count = 0;
+        for (int bucket = 0; bucket < LATENCY_LIMITS.length; bucket++) {
+            count += table.get(row, COLUMN_HISTOGRAM + bucket);
+            if (count >= target) {
+                return bucket;
+            }
+        }
+        return LATENCY_LIMITS.length;
+    }
+
+    private static String formatPercentile(LongKeyTable table, int row, int percentile) {
+        int bucket = getPercentileBucket(table, row, percentile);
+        if (bucket == -1) {
+            return "-";
+        }
+        if (bucket == LATENCY_LIMITS.length) {
+            return ">" + LATENCY_LIMITS[LATENCY_LIMITS.length - 1];
+        }
+        return Integer.toString(LATENCY_LIMITS[bucket]);
+    }
+
+    private static String formatMean(LongKeyTable table, int row, int sumColumn, int countColumn, String empty) {
+        long count = table.get(row, countColumn);
+        if (count == 0) {
+            return empty;
+        }
+        return String.format(Locale.ROOT, "%.1f", table.get(row, sumColumn) / 1000.0 / count);
+    }
+
+    private String formatKey(long key, boolean device, boolean resolve) {
+        if (!device) {
+            return String.format("%s %04X", (key >> 16) == TYPE_ZDO ? "ZDO" : "ZCL", key & 0xFFFF);
+        }
+        if (resolve) {
+            long ieeeAddress = resolve(key);
+            if (ieeeAddress != AddressCache.UNKNOWN) {
+                return String.format("%016X", ieeeAddress);
+            }
+        }
+        return String.format("%04X/%04X", (key >> 16) & 0xFFFF, key & 0xFFFF);
+    }
+
+    /**
+     * @param key the PAN and network address of a device
+     * @return the IEEE address of the device, or {@link AddressCache#UNKNOWN}
+     */
+    private long resolve(long key) {
+        if (addressCache == null) {
+            return AddressCache.UNKNOWN;
+        }
+        return addressCache.getIeeeAddress((int) (key >> 16) & 0xFFFF, (int) key & 0xFFFF);
+    }
+
+    private static List<Integer> sortedRows(final LongKeyTable table) {
+        List<Integer> rows = new ArrayList<>(table.size());
+        for (int row = 0; row < table.capacity(); row++) {
+            if (table.isUsed(row)) {
+                rows.add(row);
+            }
+        }
+        Collections.sort(rows, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer row1, Integer row2) {
+                return Long.compare(table.getKey(row1), table.getKey(row2));
+            }
+        });
+        return rows;
+    }
+}
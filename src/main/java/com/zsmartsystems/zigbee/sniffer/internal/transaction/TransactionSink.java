@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.transaction;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+
+/**
+ * {@link PacketSink} that feeds a {@link TransactionCorrelator} and prints the transaction latency and retries per
+ * device and per cluster to the console every reporting interval. Transactions are counted when they close, at the
+ * correlator timeout after the request, so the report lags the capture by the timeout. The remaining transactions are
+ * closed and a final report is printed when the sink is closed.
+ * <p>
+ * Secured frames can't be correlated, so the sink should be wrapped in a
+ * {@link com.zsmartsystems.zigbee.sniffer.internal.security.DecryptingSink} when the network key is known.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class TransactionSink implements PacketSink {
+    private static final int REPORT_ROWS = 10;
+
+    private final TransactionCorrelator correlator = new TransactionCorrelator();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the sink and starts reporting
+     *
+     * @param intervalMillis the reporting interval in milliseconds
+     * @param addressCache the {@link AddressCache} used to report the IEEE address of devices, or null
+     */
+    public TransactionSink(long intervalMillis, AddressCache addressCache) {
+        correlator.setAddressCache(addressCache);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Transactions");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (correlator) {
+                    correlator.advance(System.currentTimeMillis() * 1000);
+                    correlator.print(System.out, REPORT_ROWS);
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String getName() {
+        return "transactions";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        synchronized (correlator) {
+            for (SnifferPacket packet : packets) {
+                correlator.frameReceived(packet);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        synchronized (correlator) {
+            correlator.flush();
+            correlator.print(System.out, REPORT_ROWS);
+        }
+    }
+}
@@ -8,10 +8,14 @@
 package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
 
 import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * The file has a global header containing some global information followed by zero or more records for each captured
@@ -53,26 +57,83 @@ import java.io.UnsupportedEncodingException;
  * <li>195: LINKTYPE_IEEE802_15_4_WITHFCS
  * <li>215: LINKTYPE_IEEE802_15_4_NONASK_PHY
  * <li>230: LINKTYPE_IEEE802_15_4_NOFCS
+ * <li>283: LINKTYPE_IEEE802_15_4_TAP
  * </ul>
  * <p>
+ * The file can be preallocated to its expected size before it is opened, so that a file that is written slowly over a
+ * long time is still contiguous on disk. The unused space is removed when the file is closed. If the file is not
+ * closed, the unused space is left filled with zeros, which readers take as the end of the file.
  *
  * @author Chris Jackson
  *
  */
 public class WiresharkPcapFile {
+    private static final int PREALLOCATE_BLOCK_SIZE = 64 * 1024;
+
     private BufferedOutputStream output;
-    private int bytesWritten;
+    private RandomAccessFile file;
+    private long bytesWritten;
 
     public static int MAGIC_NUMBER_STANDARD = 0xa1b2c3d4;
 
     public static int LINKTYPE_IEEE802_15_4_WITHFCS = 195;
     public static int LINKTYPE_IEEE802_15_4_NONASK_PHY = 215;
     public static int LINKTYPE_IEEE802_15_4_NOFCS = 230;
+    public static int LINKTYPE_IEEE802_15_4_TAP = 283;
 
     public WiresharkPcapFile(String filename) throws FileNotFoundException, UnsupportedEncodingException {
         output = new BufferedOutputStream(new FileOutputStream(filename));
     }
 
+    /**
+     * Opens a file that was preallocated with {@link #preallocate(File, long)}, renaming it to the given file name. The
+     * preallocated space is overwritten, and the space that is not used is removed when the file is closed.
+     *
+     * @param preallocated the preallocated file, which must be in the same directory
+     * @param filename the file name
+     * @throws FileNotFoundException if the file could not be renamed or opened
+     */
+    public WiresharkPcapFile(File preallocated, String filename) throws FileNotFoundException {
+        if (!preallocated.renameTo(new File(filename))) {
+            throw new FileNotFoundException(preallocated + " could not be renamed to " + filename);
+        }
+        file = new RandomAccessFile(filename, "rw");
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(file.getFD()));
+        } catch (IOException e) {
+            try {
+                file.close();
+            } catch (IOException e1) {
+                // Ignore - the file is not usable
+            }
+            throw new FileNotFoundException(filename + " could not be opened: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a file and preallocates it to the given size, ready to be opened with
+     * {@link #WiresharkPcapFile(File, String)}. The space is filled with zeros, rather than just setting the file
+     * length, as most file systems don't allocate the blocks for a sparse file until they are written. This writes the
+     * whole length, so it can take seconds for a large file and should not be called on a thread that is capturing.
+     *
+     * @param preallocated the file to create - an existing file is overwritten
+     * @param length the number of bytes to allocate
+     * @throws IOException if the file could not be created or written
+     */
+    public static void preallocate(File preallocated, long length) throws IOException {
+        try (RandomAccessFile newFile = new RandomAccessFile(preallocated, "rw")) {
+            newFile.setLength(0);
+            FileChannel channel = newFile.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_BLOCK_SIZE);
+            long position = 0;
+            while (position < length) {
+                zeros.clear();
+                zeros.limit((int) Math.min(PREALLOCATE_BLOCK_SIZE, length - position));
+                position += channel.write(zeros, position);
+            }
+        }
+    }
+
     public void write(WiresharkPcapFrame frame) {
         try {
             byte[] buffer = frame.getBuffer();
@@ -84,17 +145,40 @@ public class WiresharkPcapFile {
         }
     }
 
+    /**
+     * Writes records that have already been encoded
+     *
+     * @param buffer the array holding the records
+     * @param offset the offset of the first record
+     * @param length the number of bytes to write
+     */
+    public void write(byte[] buffer, int offset, int length) {
+        try {
+            bytesWritten += length;
+            output.write(buffer, offset, length);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public void close() {
         try {
             output.flush();
+            if (file != null) {
+                // Remove any preallocated space that was not used
+                file.setLength(bytesWritten);
+            }
             output.close();
+            if (file != null) {
+                file.close();
+            }
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
         }
     }
 
-    public int getLength() {
+    public long getLength() {
         return bytesWritten;
     }
 
@@ -48,6 +48,7 @@ import com.zsmartsystems.zigbee.sniffer.internal.ZigBeeSnifferBinaryFrame;
 public class WiresharkPcapFrame extends ZigBeeSnifferBinaryFrame {
     private int seconds;
     private int microseconds;
+    private int originalLength;
 
     /**
      * @param seconds the seconds to set
@@ -63,11 +64,20 @@ public class WiresharkPcapFrame extends ZigBeeSnifferBinaryFrame {
         this.microseconds = microseconds;
     }
 
+    /**
+     * Sets the length of the frame on the network, when the data has been truncated to the snapshot length
+     *
+     * @param originalLength the length of the frame on the network
+     */
+    public void setOriginalLength(int originalLength) {
+        this.originalLength = originalLength;
+    }
+
     public byte[] getBuffer() {
         serializeInt32(seconds);
         serializeInt32(microseconds);
         serializeInt32(data.length);
-        serializeInt32(data.length);
+        serializeInt32(Math.max(originalLength, data.length));
         serializeData(data);
 
         return Arrays.copyOfRange(buffer, 0, length);
@@ -0,0 +1,177 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges any number of pcap files into a single stream of records in timestamp order. The next record from each file
+ * is held in a heap, so only one record per file is in memory at a time. Records with the same timestamp are returned
+ * in the order the files were given, so merging is stable.
+ * <p>
+ * All files are expected to have the same link-layer header type. The snapshot length of the merged stream is the
+ * largest of the inputs.
+ * <p>
+ * If a {@link TimestampCorrection} is set, records are merged in the order of their corrected timestamps, so files
+ * from sniffers with different clocks can be merged in the order the frames were sent.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapMerger implements Closeable {
+    private final List<WiresharkPcapReader> readers = new ArrayList<>();
+    private final PriorityQueue<Input> heap;
+    private int network = -1;
+    private int snapLength;
+    private final TimestampCorrection correction;
+
+    /**
+     * Corrects the timestamps of each file for merging
+     */
+    public interface TimestampCorrection {
+        /**
+         * Gets the corrected timestamp of a record
+         *
+         * @param index the index of the file
+         * @param timestamp the timestamp in the file in microseconds
+         * @return the corrected timestamp in microseconds
+         */
+        long correct(int index, long timestamp);
+    }
+
+    private class Input implements Comparable<Input> {
+        final int index;
+        final WiresharkPcapReader reader;
+        final WiresharkPcapRecord record = new WiresharkPcapRecord();
+        long timestamp;
+
+        Input(int index, WiresharkPcapReader reader) {
+            this.index = index;
+            this.reader = reader;
+        }
+
+        boolean next() throws IOException {
+            if (!reader.next(record)) {
+                return false;
+            }
+            timestamp = correction == null ? record.getTimestamp() : correction.correct(index, record.getTimestamp());
+            return true;
+        }
+
+        @Override
+        public int compareTo(Input other) {
+            if (timestamp != other.timestamp) {
+                return timestamp < other.timestamp ? -1 : 1;
+            }
+            return Integer.compare(index, other.index);
+        }
+    }
+
+    /**
+     * Opens all the files and reads the first record from each
+     *
+     * @param filenames the pcap files to merge
+     * @throws IOException if a file can't be read, or the files have different link-layer header types
+     */
+    public WiresharkPcapMerger(List<String> filenames) throws IOException {
+        this(filenames, null);
+    }
+
+    /**
+     * Opens all the files and reads the first record from each, ordering the records by their corrected timestamps.
+     * The correction is applied to each record as it is read from its file, and may change as the merge progresses.
+     *
+     * @param filenames the pcap files to merge
+     * @param correction the {@link TimestampCorrection}, or null to merge by the original timestamps
+     * @throws IOException if a file can't be read, or the files have different link-layer header types
+     */
+    public WiresharkPcapMerger(List<String> filenames, TimestampCorrection correction) throws IOException {
+        this.correction = correction;
+        heap = new PriorityQueue<>(Math.max(1, filenames.size()));
+        try {
+            for (String filename : filenames) {
+                WiresharkPcapReader reader = new WiresharkPcapReader(filename);
+                readers.add(reader);
+                if (network == -1) {
+                    network = reader.getNetwork();
+                } else if (network != reader.getNetwork()) {
+                    throw new IOException(filename + " has link type " + reader.getNetwork() + ", expected " + network);
+                }
+                snapLength = Math.max(snapLength, reader.getSnapLength());
+
+                Input input = new Input(readers.size() - 1, reader);
+                if (input.next()) {
+                    heap.add(input);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the readers for each of the files
+     */
+    public List<WiresharkPcapReader> getReaders() {
+        return Collections.unmodifiableList(readers);
+    }
+
+    /**
+     * @return the link-layer header type
+     */
+    public int getNetwork() {
+        return network;
+    }
+
+    /**
+     * @return the largest snapshot length of all the files
+     */
+    public int getSnapLength() {
+        return snapLength;
+    }
+
+    /**
+     * Reads the next record in timestamp order
+     *
+     * @param record the {@link WiresharkPcapRecord} to read into
+     * @return the index of the file the record was read from, or -1 when all files have been read
+     * @throws IOException if a file can't be read
+     */
+    public int next(WiresharkPcapRecord record) throws IOException {
+        Input input = heap.poll();
+        if (input == null) {
+            return -1;
+        }
+        record.copy(input.record);
+        if (input.next()) {
+            heap.add(input);
+        }
+        return input.index;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (WiresharkPcapReader reader : readers) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.ChunkedPacketReader;
+import com.zsmartsystems.zigbee.sniffer.internal.PacketBatch;
+
+/**
+ * Reads {@link SnifferPacket}s from a pcap file in chunks. The chunk boundaries are found by skipping through the
+ * record headers with a {@link WiresharkPcapReader}, and each chunk is then read and decoded separately so that
+ * chunks can be decoded in parallel.
+ * <p>
+ * Files with the {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_WITHFCS} and
+ * {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_TAP} link types are supported. The channel, RSSI and LQI are only
+ * available from TAP files.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapPacketReader implements ChunkedPacketReader {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private final WiresharkPcapReader reader;
+    private final FileChannel channel;
+    private final boolean tap;
+    private long startTime;
+    private long startMicros;
+
+    /**
+     * Opens the file and reads the time of the first record
+     *
+     * @param filename the pcap file
+     * @throws IOException if the file can't be read, or has an unsupported link type
+     */
+    public WiresharkPcapPacketReader(String filename) throws IOException {
+        reader = new WiresharkPcapReader(filename);
+        if (reader.getNetwork() != WiresharkPcapFile.LINKTYPE_IEEE802_15_4_WITHFCS
+                && reader.getNetwork() != WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP) {
+            reader.close();
+            throw new IOException(filename + " has unsupported link type " + reader.getNetwork());
+        }
+        tap = reader.getNetwork() == WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+
+        WiresharkPcapRecord record = new WiresharkPcapRecord();
+        if (reader.next(record)) {
+            // Start on a whole second so times are kept exactly in formats that only hold the start to the second
+            startMicros = record.getTimestamp() - record.getMicroseconds();
+            startTime = startMicros / 1000;
+        }
+    }
+
+    @Override
+    public long getStart() {
+        return HEADER_LENGTH;
+    }
+
+    @Override
+    public IeeeAddress getAdapterAddress() {
+        return null;
+    }
+
+    @Override
+    public long getStartTime() {
+        return startTime;
+    }
+
+    @Override
+    public long getChunkEnd(long start) throws IOException {
+        reader.setPosition(start);
+        while (reader.getPosition() - start < CHUNK_SIZE && reader.skip()) {
+            // Skip to the end of the chunk
+        }
+        return reader.getPosition();
+    }
+
+    @Override
+    public void read(long start, long end, PacketBatch batch) throws IOException {
+        int length = (int) (end - start);
+        ByteBuffer buffer = ByteBuffer.wrap(batch.getBuffer(length), 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.order(reader.getByteOrder());
+        byte[] bytes = buffer.array();
+        int[] data = new int[SnifferPacket.MAX_LENGTH];
+
+        int position = 0;
+        while (position + RECORD_HEADER_LENGTH <= length) {
+            long seconds = buffer.getInt(position) & 0xFFFFFFFFL;
+            int fraction = buffer.getInt(position + 4);
+            int recordLength = buffer.getInt(position + 8);
+            int offset = position + RECORD_HEADER_LENGTH;
+            position = offset + recordLength;
+            if (recordLength < 0 || position > length) {
+                break;
+            }
+
+            SnifferPacket packet = batch.add();
+            long timestamp = seconds * 1000000L + (reader.isNanosecond() ? fraction / 1000 : fraction);
+            packet.setTimestampMicros(timestamp);
+            packet.setElapsedMicros(timestamp - startMicros);
+            packet.setSequence(0);
+            if (tap) {
+                int headerLength = WiresharkTapHeader.read(bytes, offset, recordLength, packet);
+                if (headerLength == -1) {
+                    batch.removeLast();
+                    continue;
+                }
+                offset += headerLength;
+                recordLength -= headerLength;
+            } else {
+                packet.setChannel(0);
+                packet.setRssi(0);
+                packet.setLqi(0);
+            }
+            recordLength = Math.min(recordLength, SnifferPacket.MAX_LENGTH);
+            for (int cnt = 0; cnt < recordLength; cnt++) {
+                data[cnt] = bytes[offset + cnt] & 0xFF;
+            }
+            packet.setData(data, recordLength);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        channel.close();
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streaming pcap file reader. The file is memory mapped in windows so that files of any size can be read with
+ * constant memory, and records are read into a reusable {@link WiresharkPcapRecord}.
+ * <p>
+ * Both byte orders, and both the microsecond and nanosecond formats, are supported. Nanosecond timestamps are
+ * truncated to microseconds.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapReader implements Closeable {
+    private static final int MAGIC_NUMBER_NANOSECOND = 0xa1b23c4d;
+    private static final int HEADER_LENGTH = 24;
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer buffer;
+    private long windowStart;
+    private long position;
+    private ByteOrder order;
+    private boolean nanosecond;
+    private int network;
+    private int snapLength;
+
+    /**
+     * Opens the file and reads the header
+     *
+     * @param filename the pcap file name
+     * @throws IOException if the file can't be read or is not a pcap file
+     */
+    public WiresharkPcapReader(String filename) throws IOException {
+        this.filename = filename;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        size = channel.size();
+        if (size < HEADER_LENGTH) {
+            channel.close();
+            throw new IOException(filename + " is not a pcap file");
+        }
+
+        map(0, HEADER_LENGTH);
+        buffer.order(ByteOrder.BIG_ENDIAN);
+        int magic = buffer.getInt(0);
+        if (magic == WiresharkPcapFile.MAGIC_NUMBER_STANDARD || magic == MAGIC_NUMBER_NANOSECOND) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == WiresharkPcapFile.MAGIC_NUMBER_STANDARD
+                || Integer.reverseBytes(magic) == MAGIC_NUMBER_NANOSECOND) {
+            order = ByteOrder.LITTLE_ENDIAN;
+            magic = Integer.reverseBytes(magic);
+        } else {
+            channel.close();
+            throw new IOException(filename + " is not a pcap file");
+        }
+        nanosecond = magic == MAGIC_NUMBER_NANOSECOND;
+        buffer.order(order);
+        snapLength = buffer.getInt(16);
+        network = buffer.getInt(20);
+        position = HEADER_LENGTH;
+    }
+
+    /**
+     * @return the file name
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the link-layer header type
+     */
+    public int getNetwork() {
+        return network;
+    }
+
+    /**
+     * @return the snapshot length from the file header
+     */
+    public int getSnapLength() {
+        return snapLength;
+    }
+
+    /**
+     * @return the file size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the offset of the next record in the file
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Sets the offset of the next record to read. This must be the start of a record.
+     *
+     * @param position the file offset
+     */
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    /**
+     * @return the byte order of the file
+     */
+    public ByteOrder getByteOrder() {
+        return order;
+    }
+
+    /**
+     * @return true if the file holds nanosecond timestamps
+     */
+    public boolean isNanosecond() {
+        return nanosecond;
+    }
+
+    /**
+     * Skips the next record without reading the data. A truncated or empty record ends the file, as for
+     * {@link #next(WiresharkPcapRecord)}.
+     *
+     * @return true if a record was skipped, false at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    public boolean skip() throws IOException {
+        if (position + RECORD_HEADER_LENGTH > size) {
+            return false;
+        }
+        ensureMapped(position, RECORD_HEADER_LENGTH);
+        int length = buffer.getInt((int) (position - windowStart) + 8);
+        if (length <= 0 || position + RECORD_HEADER_LENGTH + length > size) {
+            return false;
+        }
+        position += RECORD_HEADER_LENGTH + length;
+        return true;
+    }
+
+    /**
+     * Reads the next record. A truncated record at the end of the file is ignored, and an empty record is taken as
+     * the end of the file so that the zero filled space at the end of a preallocated file that was not closed is
+     * ignored.
+     *
+     * @param record the {@link WiresharkPcapRecord} to read into
+     * @return true if a record was read, false at the end of the file
+     * @throws IOException if the file can't be read
+     */
+    public boolean next(WiresharkPcapRecord record) throws IOException {
+        if (position + RECORD_HEADER_LENGTH > size) {
+            return false;
+        }
+        ensureMapped(position, RECORD_HEADER_LENGTH);
+        int offset = (int) (position - windowStart);
+        long seconds = buffer.getInt(offset) & 0xFFFFFFFFL;
+        int fraction = buffer.getInt(offset + 4);
+        int length = buffer.getInt(offset + 8);
+        int originalLength = buffer.getInt(offset + 12);
+        if (length <= 0 || position + RECORD_HEADER_LENGTH + length > size) {
+            return false;
+        }
+
+        record.setTime(seconds, nanosecond ? fraction / 1000 : fraction);
+        record.setLength(length, originalLength);
+        ensureMapped(position, RECORD_HEADER_LENGTH + length);
+        buffer.position((int) (position - windowStart) + RECORD_HEADER_LENGTH);
+        buffer.get(record.getData(), 0, length);
+
+        position += RECORD_HEADER_LENGTH + length;
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer = null;
+        channel.close();
+    }
+
+    private void ensureMapped(long start, int length) throws IOException {
+        if (buffer == null || start < windowStart || start + length > windowStart + buffer.limit()) {
+            map(start, Math.max(length, WINDOW_SIZE));
+        }
+    }
+
+    private void map(long start, long length) throws IOException {
+        windowStart = start;
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, size - start));
+        if (order != null) {
+            buffer.order(order);
+        }
+    }
+}
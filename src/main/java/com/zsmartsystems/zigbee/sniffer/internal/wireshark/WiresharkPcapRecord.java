@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+/**
+ * A packet record read from a pcap file by the {@link WiresharkPcapReader}. The record is reused for each packet that
+ * is read, and the data buffer grows as needed, so reading doesn't allocate memory per packet.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapRecord {
+    private long seconds;
+    private int microseconds;
+    private int originalLength;
+    private int length;
+    private byte[] data = new byte[256];
+
+    public long getSeconds() {
+        return seconds;
+    }
+
+    public int getMicroseconds() {
+        return microseconds;
+    }
+
+    /**
+     * @return the timestamp in microseconds since the epoch
+     */
+    public long getTimestamp() {
+        return seconds * 1000000L + microseconds;
+    }
+
+    /**
+     * @return the length of the packet on the network
+     */
+    public int getOriginalLength() {
+        return originalLength;
+    }
+
+    /**
+     * @return the number of bytes captured
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Gets the packet data. Only the first {@link #getLength()} bytes are valid.
+     *
+     * @return the data buffer
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Sets the record time
+     *
+     * @param seconds the seconds since the epoch
+     * @param microseconds the microseconds offset
+     */
+    public void setTime(long seconds, int microseconds) {
+        this.seconds = seconds;
+        this.microseconds = microseconds;
+    }
+
+    /**
+     * Sets the lengths, and makes sure the data buffer can hold the packet
+     *
+     * @param length the number of bytes captured
+     * @param originalLength the length of the packet on the network
+     */
+    public void setLength(int length, int originalLength) {
+        this.length = length;
+        this.originalLength = originalLength;
+        if (data.length < length) {
+            data = new byte[Math.max(length, data.length * 2)];
+        }
+    }
+
+    /**
+     * Copies another record into this one
+     *
+     * @param record the {@link WiresharkPcapRecord} to copy
+     */
+    public void copy(WiresharkPcapRecord record) {
+        setTime(record.seconds, record.microseconds);
+        setLength(record.length, record.originalLength);
+        System.arraycopy(record.data, 0, data, 0, record.length);
+    }
+}
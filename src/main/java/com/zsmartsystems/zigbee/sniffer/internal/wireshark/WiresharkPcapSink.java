@@ -0,0 +1,339 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.catalog.SegmentCatalog;
+import com.zsmartsystems.zigbee.sniffer.internal.catalog.SegmentInfo;
+import com.zsmartsystems.zigbee.sniffer.internal.jfr.SnifferEvents;
+
+/**
+ * {@link PacketSink} that writes packets to a Wireshark pcap file. If a maximum file length is set, the file is broken
+ * into segments named with the time of the first packet in the segment (filename-yyyyMMdd-HHmmss.pcap), so a segment
+ * can be found by time without opening the files. Segments are opened when their first packet is received.
+ * <p>
+ * Segments can optionally be preallocated to the maximum file length so that they are contiguous on disk. Filling a
+ * large segment with zeros takes time, so the next segment is preallocated ahead of time on a background thread, as a
+ * spare file (filename.preallocate) that is renamed when the segment is opened. If the spare is not ready when a
+ * segment is needed, the segment is written without preallocation rather than holding up the capture.
+ * <p>
+ * If a snapshot length is set, only the start of each frame is written, up to the snapshot length, along with the
+ * length of the whole frame.
+ * <p>
+ * When the sink is rotated, the current file is closed and a new segment is started with the next packet, whether or
+ * not a maximum file length is set.
+ * <p>
+ * Once the output is segmented, each segment is added to a {@link SegmentCatalog} (filename.catalog) when it is
+ * closed, so that segments can be found by time, channel and device without opening them.
+ * <p>
+ * The records for a batch of packets are encoded into one buffer, which is written to the file at once.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapSink implements PacketSink {
+    private static final int RECORD_HEADER_LENGTH = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PREALLOCATE_EXTENSION = ".preallocate";
+
+    private final String filename;
+    private final long maxLength;
+    private final long timezone;
+    private final boolean preallocate;
+    private final int snapLength;
+    private final SimpleDateFormat segmentFormat;
+    private WiresharkPcapFile pcapFile;
+    private String segmentName;
+    private SegmentInfo segment;
+    private SegmentCatalog catalog;
+    private boolean stopped;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int pending;
+    private ExecutorService preallocator;
+    private Future<File> spare;
+
+    /**
+     * Creates the sink and opens the file if it is not segmented
+     *
+     * @param filename the filename, without the .pcap extension
+     * @param maxLength the maximum file length, or {@link Long#MAX_VALUE} to write a single file
+     * @param timezone the offset in milliseconds added to the packet time
+     * @throws FileNotFoundException if the file could not be created
+     * @throws UnsupportedEncodingException
+     */
+    public WiresharkPcapSink(String filename, long maxLength, long timezone)
+            throws FileNotFoundException, UnsupportedEncodingException {
+        this(filename, maxLength, timezone, false);
+    }
+
+    /**
+     * Creates the sink and opens the file if it is not segmented
+     *
+     * @param filename the filename, without the .pcap extension
+     * @param maxLength the maximum file length, or {@link Long#MAX_VALUE} to write a single file
+     * @param timezone the offset in milliseconds added to the packet time
+     * @param preallocate true to preallocate each segment to the maximum file length
+     * @throws FileNotFoundException if the file could not be created
+     * @throws UnsupportedEncodingException
+     */
+    public WiresharkPcapSink(String filename, long maxLength, long timezone, boolean preallocate)
+            throws FileNotFoundException, UnsupportedEncodingException {
+        this(filename, maxLength, timezone, preallocate, SnifferPacket.MAX_LENGTH);
+    }
+
+    /**
+     * Creates the sink and opens the file if it is not segmented
+     *
+     * @param filename the filename, without the .pcap extension
+     * @param maxLength the maximum file length, or {@link Long#MAX_VALUE} to write a single file
+     * @param timezone the offset in milliseconds added to the packet time
+     * @param preallocate true to preallocate each segment to the maximum file length
+     * @param snapLength the maximum number of bytes written for each frame
+     * @throws FileNotFoundException if the file could not be created
+     * @throws UnsupportedEncodingException
+     */
+    public WiresharkPcapSink(String filename, long maxLength, long timezone, boolean preallocate, int snapLength)
+            throws FileNotFoundException, UnsupportedEncodingException {
+        this.snapLength = Math.max(1, Math.min(snapLength, SnifferPacket.MAX_LENGTH));
+        this.filename = filename;
+        this.maxLength = maxLength;
+        this.timezone = timezone;
+        this.preallocate = preallocate && maxLength != Long.MAX_VALUE;
+
+        // The timezone offset is already added to the packet time, so the segment times are formatted as UTC
+        segmentFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+        segmentFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        if (maxLength == Long.MAX_VALUE) {
+            pcapFile = openPcapFile(filename + ".pcap");
+            segmentName = filename + ".pcap";
+            segment = new SegmentInfo(new File(segmentName).getName());
+        } else {
+            File directory = new File(filename).getAbsoluteFile().getParentFile();
+            if (directory == null || !directory.isDirectory()) {
+                throw new FileNotFoundException(filename + " is not in an existing directory");
+            }
+            catalog = new SegmentCatalog(filename + SegmentCatalog.EXTENSION);
+        }
+
+        if (this.preallocate) {
+            preallocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PcapPreallocate");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            preallocateSpare();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "pcap";
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        for (SnifferPacket packet : packets) {
+            long packetMicros = packet.getTimestampMicros() + timezone * 1000;
+            if (pcapFile == null && (stopped || !openSegment(packetMicros / 1000))) {
+                return;
+            }
+            if (pending + RECORD_HEADER_LENGTH + SnifferPacket.MAX_LENGTH > BUFFER_SIZE) {
+                writeRecords();
+            }
+            pending = putRecord(pending, packetMicros, packet.getData(), Math.min(packet.getLength(), snapLength),
+                    packet.getLength());
+            segment.frameReceived(packetMicros, packet.getChannel(), packet.getData(), packet.getLength());
+
+            if (pcapFile.getLength() + pending > maxLength) {
+                writeRecords();
+                System.out.println(
+                        "Breaking wireshark file " + segmentName + " at " + pcapFile.getLength() + " bytes.");
+                closeSegment();
+            }
+        }
+        if (pcapFile != null) {
+            writeRecords();
+        }
+    }
+
+    @Override
+    public boolean isRotatable() {
+        return true;
+    }
+
+    @Override
+    public void rotate() {
+        if (pcapFile != null) {
+            System.out.println("Rotating wireshark file " + segmentName + " at " + pcapFile.getLength() + " bytes.");
+            if (catalog == null) {
+                // The output is now segmented, so the first file is catalogued along with the following segments
+                catalog = new SegmentCatalog(filename + SegmentCatalog.EXTENSION);
+            }
+            closeSegment();
+        }
+    }
+
+    @Override
+    public void close() {
+        stopped = true;
+        if (pcapFile != null) {
+            closeSegment();
+        }
+        if (preallocator != null) {
+            preallocator.shutdownNow();
+            try {
+                preallocator.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            new File(filename + PREALLOCATE_EXTENSION).delete();
+        }
+    }
+
+    /**
+     * Adds a record to the buffer. The record header is big endian, to match the file header.
+     */
+    private int putRecord(int position, long packetMicros, int[] data, int capturedLength, int originalLength) {
+        long seconds = packetMicros / 1000000;
+        position = putInt32(position, (int) seconds);
+        position = putInt32(position, (int) (packetMicros - (seconds * 1000000)));
+        position = putInt32(position, capturedLength);
+        position = putInt32(position, originalLength);
+        for (int cnt = 0; cnt < capturedLength; cnt++) {
+            buffer[position++] = (byte) data[cnt];
+        }
+        return position;
+    }
+
+    private int putInt32(int position, int value) {
+        buffer[position] = (byte) (value >> 24);
+        buffer[position + 1] = (byte) (value >> 16);
+        buffer[position + 2] = (byte) (value >> 8);
+        buffer[position + 3] = (byte) value;
+        return position + 4;
+    }
+
+    private void writeRecords() {
+        pcapFile.write(buffer, 0, pending);
+        pending = 0;
+    }
+
+    /**
+     * Closes the current file, and adds it to the catalog if the output is segmented
+     */
+    private void closeSegment() {
+        Object event = SnifferEvents.beginRotation();
+        pcapFile.close();
+        if (catalog != null && segment.getFrames() != 0) {
+            segment.setBytes(pcapFile.getLength());
+            try {
+                catalog.append(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        SnifferEvents.endRotation(event, segmentName, pcapFile.getLength(), segment.getFrames());
+        pcapFile = null;
+        segment = null;
+    }
+
+    /**
+     * Opens a new segment named with the time of its first packet. If a segment with the same name already exists,
+     * for example when segments are small enough to be filled in under a second, a number is added to the name.
+     *
+     * @param time the time of the first packet in milliseconds
+     * @return true if the segment was opened - if not, no more packets are written
+     */
+    private boolean openSegment(long time) {
+        String base = filename + "-" + segmentFormat.format(new Date(time));
+        String name = base + ".pcap";
+        for (int cnt = 1; new File(name).exists(); cnt++) {
+            name = base + "-" + cnt + ".pcap";
+        }
+        try {
+            pcapFile = openPcapFile(name);
+        } catch (FileNotFoundException | UnsupportedEncodingException e) {
+            e.printStackTrace();
+            stopped = true;
+            return false;
+        }
+        segmentName = name;
+        segment = new SegmentInfo(new File(name).getName());
+        return true;
+    }
+
+    /**
+     * Starts preallocating the spare file for the next segment on the background thread
+     */
+    private void preallocateSpare() {
+        spare = preallocator.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                File file = new File(filename + PREALLOCATE_EXTENSION);
+                // Allow for the last packet which takes the file over the maximum length
+                WiresharkPcapFile.preallocate(file, maxLength + RECORD_HEADER_LENGTH + SnifferPacket.MAX_LENGTH);
+                return file;
+            }
+        });
+    }
+
+    /**
+     * Opens the file, using the preallocated spare if it is ready
+     */
+    private WiresharkPcapFile openPcapFile(String file) throws FileNotFoundException, UnsupportedEncodingException {
+        WiresharkPcapFile newFile = null;
+        if (preallocate) {
+            if (!spare.isDone()) {
+                System.out.println("Wireshark file " + file + " not preallocated - the spare is not ready.");
+            } else {
+                try {
+                    newFile = new WiresharkPcapFile(spare.get(), file);
+                } catch (ExecutionException | FileNotFoundException e) {
+                    e.printStackTrace();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                preallocateSpare();
+            }
+        }
+        if (newFile == null) {
+            newFile = new WiresharkPcapFile(file);
+        }
+
+        WiresharkPcapHeader header = new WiresharkPcapHeader();
+        header.setMagicNumber(WiresharkPcapFile.MAGIC_NUMBER_STANDARD);
+        header.setNetwork(WiresharkPcapFile.LINKTYPE_IEEE802_15_4_WITHFCS);
+        header.setSnapLen(snapLength);
+        header.setThisZone((int) timezone);
+        header.setSigFigs(3);
+        newFile.write(header);
+
+        return newFile;
+    }
+}
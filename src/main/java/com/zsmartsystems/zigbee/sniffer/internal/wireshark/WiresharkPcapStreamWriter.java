@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes pcap records to a file from a dedicated thread. Records are serialised into large buffers which are handed
+ * to the writer thread when full, so the caller only blocks if the disk can't keep up. A fixed number of buffers is
+ * used, so memory use is constant however much data is written.
+ * <p>
+ * Several writers can be open at once to write different files in parallel. Files are written in the same format as
+ * {@link WiresharkPcapFile}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapStreamWriter implements Closeable {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int BUFFER_COUNT = 4;
+    private static final int RECORD_HEADER_LENGTH = 16;
+
+    private final String filename;
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(BUFFER_COUNT);
+    private final BlockingQueue<ByteBuffer> fullBuffers = new LinkedBlockingQueue<>();
+    private final ByteBuffer endMarker = ByteBuffer.allocate(0);
+    private final Thread thread;
+    private ByteBuffer current;
+    private long bytesWritten;
+    private long records;
+    private volatile IOException error;
+
+    /**
+     * Creates the file and writes the pcap header
+     *
+     * @param filename the file to write
+     * @param network the link-layer header type
+     * @param snapLength the snapshot length
+     * @throws IOException if the file can't be created
+     */
+    public WiresharkPcapStreamWriter(String filename, int network, int snapLength) throws IOException {
+        this.filename = filename;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        for (int cnt = 0; cnt < BUFFER_COUNT; cnt++) {
+            freeBuffers.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        current = freeBuffers.poll();
+
+        current.putInt(WiresharkPcapFile.MAGIC_NUMBER_STANDARD);
+        current.putShort((short) 2);
+        current.putShort((short) 4);
+        current.putInt(0);
+        current.putInt(0);
+        current.putInt(snapLength);
+        current.putInt(network);
+        bytesWritten = current.position();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffers();
+            }
+        }, "PcapWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the file name
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return the number of bytes written, including the file header
+     */
+    public long getLength() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return the number of records written
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Writes a record
+     *
+     * @param record the {@link WiresharkPcapRecord} to write
+     * @throws IOException if a previous write failed
+     */
+    public void write(WiresharkPcapRecord record) throws IOException {
+        write(record, record.getTimestamp());
+    }
+
+    /**
+     * Writes a record with a different timestamp
+     *
+     * @param record the {@link WiresharkPcapRecord} to write
+     * @param timestamp the timestamp in microseconds since the epoch
+     * @throws IOException if a previous write failed
+     */
+    public void write(WiresharkPcapRecord record, long timestamp) throws IOException {
+        int length = RECORD_HEADER_LENGTH + record.getLength();
+        if (current.remaining() < length) {
+            submit();
+        }
+        if (current.remaining() < length) {
+            // Larger than a buffer - write it through on its own
+            submit(ByteBuffer.allocate(length));
+        }
+        current.putInt((int) (timestamp / 1000000));
+        current.putInt((int) (timestamp % 1000000));
+        current.putInt(record.getLength());
+        current.putInt(record.getOriginalLength());
+        current.put(record.getData(), 0, record.getLength());
+        bytesWritten += length;
+        records++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (current.position() != 0) {
+                submit();
+            }
+            fullBuffers.put(endMarker);
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void submit() throws IOException {
+        try {
+            submit(freeBuffers.take());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing " + filename);
+        }
+    }
+
+    private void submit(ByteBuffer next) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        current.flip();
+        fullBuffers.add(current);
+        current = next;
+    }
+
+    private void writeBuffers() {
+        try {
+            while (true) {
+                ByteBuffer buffer = fullBuffers.take();
+                if (buffer == endMarker) {
+                    return;
+                }
+                try {
+                    while (buffer.hasRemaining() && error == null) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                buffer.clear();
+                if (buffer.isDirect()) {
+                    freeBuffers.add(buffer);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.address.AddressCache;
+import com.zsmartsystems.zigbee.sniffer.internal.decode.MacHeader;
+
+/**
+ * {@link PacketSink} that writes packets to a Wireshark pcapng file. The file holds a section header block, a single
+ * interface description block with the {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_TAP} link type and microsecond
+ * timestamps, and an enhanced packet block for each packet. Each packet starts with a {@link WiresharkTapHeader} so
+ * the channel, RSSI and LQI are kept in the file and are shown by Wireshark.
+ * <p>
+ * If a snapshot length is set, only the start of each frame is written, up to the snapshot length, along with the
+ * length of the whole frame. Packets that were sampled by load shedding have a comment giving their sample weight.
+ * If an {@link AddressCache} is set, packets that use short MAC addresses have a comment giving the IEEE addresses of
+ * the source and destination where they are known.
+ * <p>
+ * All blocks are written little endian.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkPcapngSink implements PacketSink {
+    private static final int BLOCK_SECTION_HEADER = 0x0A0D0D0A;
+    private static final int BLOCK_INTERFACE_DESCRIPTION = 0x00000001;
+    private static final int BLOCK_ENHANCED_PACKET = 0x00000006;
+    private static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+
+    private static final int OPTION_END = 0;
+    private static final int OPTION_COMMENT = 1;
+    private static final int OPTION_SHB_USERAPPL = 4;
+    private static final int OPTION_IF_TSRESOL = 9;
+
+    private static final String APPLICATION = "Z-Smart Systems ZigBeeSniffer";
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SOURCE_IEEE = "Source IEEE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DESTINATION_IEEE = "Destination IEEE ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.US_ASCII);
+
+    private final BufferedOutputStream output;
+    private final int snapLength;
+    private final ByteBuffer block = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+    private final MacHeader macHeader = new MacHeader();
+    private final byte[] comment = new byte[64];
+    private AddressCache addressCache;
+    private long bytesWritten;
+
+    /**
+     * Creates the sink, opens the file and writes the section header and interface description
+     *
+     * @param filename the file name
+     * @throws FileNotFoundException if the file could not be created
+     */
+    public WiresharkPcapngSink(String filename) throws FileNotFoundException {
+        this(filename, SnifferPacket.MAX_LENGTH);
+    }
+
+    /**
+     * Creates the sink, opens the file and writes the section header and interface description
+     *
+     * @param filename the file name
+     * @param snapLength the maximum number of frame bytes written for each packet
+     * @throws FileNotFoundException if the file could not be created
+     */
+    public WiresharkPcapngSink(String filename, int snapLength) throws FileNotFoundException {
+        this.snapLength = Math.max(1, Math.min(snapLength, SnifferPacket.MAX_LENGTH));
+        output = new BufferedOutputStream(new FileOutputStream(filename), 65536);
+
+        byte[] application = APPLICATION.getBytes(StandardCharsets.UTF_8);
+        startBlock(BLOCK_SECTION_HEADER);
+        block.putInt(BYTE_ORDER_MAGIC);
+        block.putShort((short) 1);
+        block.putShort((short) 0);
+        block.putLong(-1);
+        putOption(OPTION_SHB_USERAPPL, application, application.length);
+        putOption(OPTION_END, null, 0);
+        endBlock();
+
+        startBlock(BLOCK_INTERFACE_DESCRIPTION);
+        block.putShort((short) WiresharkPcapFile.LINKTYPE_IEEE802_15_4_TAP);
+        block.putShort((short) 0);
+        block.putInt(WiresharkTapHeader.LENGTH + this.snapLength);
+        putOption(OPTION_IF_TSRESOL, new byte[] { 6 }, 1);
+        putOption(OPTION_END, null, 0);
+        endBlock();
+    }
+
+    @Override
+    public String getName() {
+        return "pcapng";
+    }
+
+    /**
+     * Sets the cache used to add the IEEE addresses of devices to packets
+     *
+     * @param addressCache the {@link AddressCache}, or null to not add addresses
+     */
+    public void setAddressCache(AddressCache addressCache) {
+        this.addressCache = addressCache;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long getLength() {
+        return bytesWritten;
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        for (SnifferPacket packet : packets) {
+            startBlock(BLOCK_ENHANCED_PACKET);
+            int frameLength = Math.min(packet.getLength(), snapLength);
+            long timestamp = packet.getTimestampMicros();
+            block.putInt(0);
+            block.putInt((int) (timestamp >>> 32));
+            block.putInt((int) timestamp);
+            block.putInt(WiresharkTapHeader.LENGTH + frameLength);
+            block.putInt(WiresharkTapHeader.LENGTH + packet.getLength());
+
+            int position = block.position();
+            position += WiresharkTapHeader.write(block.array(), position, packet);
+            int[] data = packet.getData();
+            for (int cnt = 0; cnt < frameLength; cnt++) {
+                block.array()[position++] = (byte) data[cnt];
+            }
+            block.position(position);
+            pad();
+            boolean options = false;
+            if (packet.isSampled()) {
+                byte[] sampled = ("Sampled 1 of " + packet.getSampleWeight()).getBytes(StandardCharsets.UTF_8);
+                putOption(OPTION_COMMENT, sampled, sampled.length);
+                options = true;
+            }
+            int commentLength = addressCache == null ? 0 : resolveAddresses(packet);
+            if (commentLength != 0) {
+                putOption(OPTION_COMMENT, comment, commentLength);
+                options = true;
+            }
+            if (options) {
+                putOption(OPTION_END, null, 0);
+            }
+            endBlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes a comment with the IEEE addresses of the short source and destination addresses into the comment buffer
+     *
+     * @return the length of the comment, or 0 if no addresses are known
+     */
+    private int resolveAddresses(SnifferPacket packet) {
+        if (!macHeader.parse(packet.getData(), packet.getLength())) {
+            return 0;
+        }
+        long source = AddressCache.UNKNOWN;
+        long destination = AddressCache.UNKNOWN;
+        if (macHeader.getSourceAddressMode() == MacHeader.ADDRESS_MODE_SHORT) {
+            source = addressCache.getIeeeAddress(macHeader.getSourcePan(), (int) macHeader.getSourceAddress());
+        }
+        if (macHeader.getDestinationAddressMode() == MacHeader.ADDRESS_MODE_SHORT) {
+            destination = addressCache.getIeeeAddress(macHeader.getDestinationPan(),
+                    (int) macHeader.getDestinationAddress());
+        }
+        int length = 0;
+        if (source != AddressCache.UNKNOWN) {
+            length = putAddress(length, SOURCE_IEEE, source);
+        }
+        if (destination != AddressCache.UNKNOWN) {
+            if (length != 0) {
+                System.arraycopy(SEPARATOR, 0, comment, length, SEPARATOR.length);
+                length += SEPARATOR.length;
+            }
+            length = putAddress(length, DESTINATION_IEEE, destination);
+        }
+        return length;
+    }
+
+    private int putAddress(int position, byte[] label, long address) {
+        System.arraycopy(label, 0, comment, position, label.length);
+        position += label.length;
+        for (int cnt = 15; cnt >= 0; cnt--) {
+            comment[position + cnt] = HEX[(int) (address & 0x0F)];
+            address >>>= 4;
+        }
+        return position + 16;
+    }
+
+    private void startBlock(int type) {
+        block.clear();
+        block.putInt(type);
+        block.putInt(0);
+    }
+
+    private void endBlock() {
+        int length = block.position() + 4;
+        block.putInt(length);
+        block.putInt(4, length);
+        try {
+            output.write(block.array(), 0, length);
+            bytesWritten += length;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void putOption(int code, byte[] value, int length) {
+        block.putShort((short) code);
+        block.putShort((short) length);
+        if (value != null) {
+            block.put(value, 0, length);
+        }
+        pad();
+    }
+
+    private void pad() {
+        while ((block.position() & 3) != 0) {
+            block.put((byte) 0);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * Reads and writes the IEEE 802.15.4 TAP header used with the {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_TAP}
+ * link type. The header carries the radio information for each frame as a list of TLVs, all little endian -:
+ *
+ * <pre>
+ * uint8  version;     // 0
+ * uint8  reserved;
+ * uint16 length;      // total header length including the TLVs
+ * TLV    tlvs[];      // uint16 type, uint16 length, value padded to 4 bytes
+ * </pre>
+ * <p>
+ * The TLVs written are the FCS type (0), the RSS in dBm as a float (1), the channel assignment (3) and the LQI (10).
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkTapHeader {
+    public static final int LENGTH = 36;
+
+    private static final int TLV_FCS_TYPE = 0;
+    private static final int TLV_RSS = 1;
+    private static final int TLV_CHANNEL = 3;
+    private static final int TLV_LQI = 10;
+
+    private static final int FCS_TYPE_16BIT = 1;
+
+    private WiresharkTapHeader() {
+    }
+
+    /**
+     * Writes the TAP header for a packet
+     *
+     * @param buffer the buffer to write to
+     * @param offset the offset to write at - there must be at least {@link #LENGTH} bytes available
+     * @param packet the {@link SnifferPacket} holding the radio information
+     * @return the number of bytes written
+     */
+    public static int write(byte[] buffer, int offset, SnifferPacket packet) {
+        int position = offset;
+        buffer[position++] = 0;
+        buffer[position++] = 0;
+        position = writeInt16(buffer, position, LENGTH);
+
+        position = writeTlv(buffer, position, TLV_FCS_TYPE, 1);
+        buffer[position++] = FCS_TYPE_16BIT;
+        position = pad(buffer, position, 3);
+
+        position = writeTlv(buffer, position, TLV_RSS, 4);
+        int rss = Float.floatToIntBits(packet.getRssi());
+        position = writeInt16(buffer, position, rss & 0xFFFF);
+        position = writeInt16(buffer, position, rss >>> 16);
+
+        position = writeTlv(buffer, position, TLV_CHANNEL, 3);
+        position = writeInt16(buffer, position, packet.getChannel());
+        buffer[position++] = 0;
+        position = pad(buffer, position, 1);
+
+        position = writeTlv(buffer, position, TLV_LQI, 1);
+        buffer[position++] = (byte) packet.getLqi();
+        position = pad(buffer, position, 3);
+
+        return position - offset;
+    }
+
+    /**
+     * Reads the radio information from a TAP header into a packet
+     *
+     * @param buffer the buffer holding the header
+     * @param offset the offset of the header
+     * @param length the number of bytes available
+     * @param packet the {@link SnifferPacket} to set the channel, RSSI and LQI in
+     * @return the length of the header, or -1 if it is not a valid header
+     */
+    public static int read(byte[] buffer, int offset, int length, SnifferPacket packet) {
+        int headerLength = getHeaderLength(buffer, offset, length);
+        if (headerLength == -1) {
+            return -1;
+        }
+        packet.setChannel(0);
+        packet.setRssi(0);
+        packet.setLqi(0);
+        int position = offset + 4;
+        int end = offset + headerLength;
+        while (position + 4 <= end) {
+            int type = readInt16(buffer, position);
+            int tlvLength = readInt16(buffer, position + 2);
+            int value = position + 4;
+            if (value + tlvLength > end) {
+                break;
+            }
+            if (type == TLV_RSS && tlvLength == 4) {
+                int rss = readInt16(buffer, value) | (readInt16(buffer, value + 2) << 16);
+                packet.setRssi(Math.round(Float.intBitsToFloat(rss)));
+            } else if (type == TLV_CHANNEL && tlvLength >= 2) {
+                packet.setChannel(readInt16(buffer, value));
+            } else if (type == TLV_LQI && tlvLength >= 1) {
+                packet.setLqi(buffer[value] & 0xFF);
+            }
+            position = value + ((tlvLength + 3) & ~3);
+        }
+        return headerLength;
+    }
+
+    /**
+     * Gets the channel from a TAP header
+     *
+     * @param buffer the buffer holding the header
+     * @param offset the offset of the header
+     * @param length the number of bytes available
+     * @return the channel, or -1 if it is not known
+     */
+    public static int getChannel(byte[] buffer, int offset, int length) {
+        int headerLength = getHeaderLength(buffer, offset, length);
+        int position = offset + 4;
+        int end = offset + headerLength;
+        while (position + 4 <= end) {
+            int type = readInt16(buffer, position);
+            int tlvLength = readInt16(buffer, position + 2);
+            if (type == TLV_CHANNEL && tlvLength >= 2 && position + 6 <= end) {
+                return readInt16(buffer, position + 4);
+            }
+            position += 4 + ((tlvLength + 3) & ~3);
+        }
+        return -1;
+    }
+
+    private static int getHeaderLength(byte[] buffer, int offset, int length) {
+        if (length < 4 || buffer[offset] != 0) {
+            return -1;
+        }
+        int headerLength = readInt16(buffer, offset + 2);
+        return headerLength < 4 || headerLength > length ? -1 : headerLength;
+    }
+
+    private static int readInt16(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) + ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int writeInt16(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        return offset + 2;
+    }
+
+    private static int writeTlv(byte[] buffer, int offset, int type, int length) {
+        return writeInt16(buffer, writeInt16(buffer, offset, type), length);
+    }
+
+    private static int pad(byte[] buffer, int offset, int count) {
+        for (int cnt = 0; cnt < count; cnt++) {
+            buffer[offset + cnt] = 0;
+        }
+        return offset + count;
+    }
+}
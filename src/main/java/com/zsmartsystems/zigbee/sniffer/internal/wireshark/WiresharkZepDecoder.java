@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * Decodes ZEP data frames, as written by {@link WiresharkZepFrame}, back into {@link SnifferPacket}s. Version 1 and
+ * version 2 data frames are supported - version 2 acknowledgement frames are ignored.
+ * <p>
+ * In LQI mode the last two bytes of the frame hold the "TI CC24xx" RSSI and CRC OK flag in place of the FCS. The RSSI
+ * is taken from these bytes and the FCS is calculated again, so the frame can be written to a file with the
+ * {@link WiresharkPcapFile#LINKTYPE_IEEE802_15_4_WITHFCS} link type. If the CRC OK flag is not set, the FCS is
+ * inverted so the frame is still shown as having a bad FCS. In CRC mode the frame is kept as received.
+ * <p>
+ * Version 1 frames have no timestamp, so the time the frame is decoded is used. The decoder is not thread safe.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkZepDecoder {
+    /**
+     * The length of the version 1 header
+     */
+    public static final int HEADER_LENGTH_V1 = 16;
+
+    /**
+     * The length of the version 2 data header
+     */
+    public static final int HEADER_LENGTH_V2 = 32;
+
+    private static final int PREAMBLE_0 = 0x45;
+    private static final int PREAMBLE_1 = 0x58;
+    private static final int TYPE_DATA = 1;
+
+    private static final int[] FCS_TABLE = new int[256];
+
+    static {
+        for (int cnt = 0; cnt < 256; cnt++) {
+            int crc = cnt;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x8408 : crc >>> 1;
+            }
+            FCS_TABLE[cnt] = crc;
+        }
+    }
+
+    private int version;
+    private int deviceId;
+    private int sequence;
+
+    /**
+     * Gets the device ID from a ZEP data frame without decoding it
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the offset of the frame
+     * @param length the number of bytes available
+     * @return the device ID, or -1 if the buffer doesn't hold a ZEP data frame
+     */
+    public static int getDeviceId(byte[] buffer, int offset, int length) {
+        int headerLength = getHeaderLength(buffer, offset, length);
+        if (headerLength == -1) {
+            return -1;
+        }
+        // The version 2 header has the type before the channel, so the device ID is one byte later
+        int position = offset + (headerLength == HEADER_LENGTH_V1 ? 4 : 5);
+        return ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+    }
+
+    /**
+     * Decodes a ZEP data frame into a packet. The channel, LQI, RSSI, timestamp and frame are set - the sequence
+     * number of the packet is not changed.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the offset of the frame
+     * @param length the number of bytes available
+     * @param packet the {@link SnifferPacket} to decode into
+     * @return true if the frame was decoded, false if it is not a valid ZEP data frame
+     */
+    public boolean decode(byte[] buffer, int offset, int length, SnifferPacket packet) {
+        int headerLength = getHeaderLength(buffer, offset, length);
+        if (headerLength == -1) {
+            return false;
+        }
+        int frameLength = buffer[offset + headerLength - 1] & 0xFF;
+        if (frameLength < 2 || frameLength > SnifferPacket.MAX_LENGTH || headerLength + frameLength > length) {
+            return false;
+        }
+
+        version = buffer[offset + 2] & 0xFF;
+        int position = offset + (version == 1 ? 3 : 4);
+        packet.setChannel(buffer[position++] & 0xFF);
+        deviceId = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+        position += 2;
+        boolean crcMode = buffer[position++] != 0;
+        packet.setLqi(buffer[position++] & 0xFF);
+        if (version == 1) {
+            sequence = 0;
+            packet.setTimestampMicros(System.currentTimeMillis() * 1000);
+        } else {
+            packet.setTimestampMicros(fromNtpTime(readLong(buffer, position)));
+            sequence = (int) readInt(buffer, position + 8);
+        }
+
+        int[] data = packet.getData();
+        int start = offset + headerLength;
+        for (int cnt = 0; cnt < frameLength; cnt++) {
+            data[cnt] = buffer[start + cnt] & 0xFF;
+        }
+        if (crcMode) {
+            packet.setRssi(0);
+        } else {
+            packet.setRssi((byte) data[frameLength - 2]);
+            boolean crcOk = (data[frameLength - 1] & 0x80) != 0;
+            int fcs = calculateFcs(data, frameLength - 2);
+            if (!crcOk) {
+                fcs = ~fcs;
+            }
+            data[frameLength - 2] = fcs & 0xFF;
+            data[frameLength - 1] = (fcs >> 8) & 0xFF;
+        }
+        packet.setData(data, frameLength);
+        return true;
+    }
+
+    /**
+     * @return the ZEP version of the last decoded frame
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the device ID of the last decoded frame
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return the ZEP sequence number of the last decoded frame, or 0 for a version 1 frame
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Calculates the IEEE 802.15.4 FCS (CRC-16 with the 0x1021 polynomial, bit reversed)
+     *
+     * @param data the frame
+     * @param length the number of bytes before the FCS
+     * @return the FCS, to be written least significant byte first
+     */
+    public static int calculateFcs(int[] data, int length) {
+        int crc = 0;
+        for (int cnt = 0; cnt < length; cnt++) {
+            crc = (crc >>> 8) ^ FCS_TABLE[(crc ^ data[cnt]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int getHeaderLength(byte[] buffer, int offset, int length) {
+        if (length < HEADER_LENGTH_V1 || (buffer[offset] & 0xFF) != PREAMBLE_0
+                || (buffer[offset + 1] & 0xFF) != PREAMBLE_1) {
+            return -1;
+        }
+        int version = buffer[offset + 2] & 0xFF;
+        if (version == 1) {
+            return HEADER_LENGTH_V1;
+        }
+        if (version == 2 && length >= HEADER_LENGTH_V2 && (buffer[offset + 3] & 0xFF) == TYPE_DATA) {
+            return HEADER_LENGTH_V2;
+        }
+        return -1;
+    }
+
+    private static long fromNtpTime(long ntp) {
+        long seconds = ntp >>> 32;
+        long fraction = ntp & 0xFFFFFFFFL;
+        long base = (seconds & 0x80000000L) != 0 ? WiresharkZepFrame.msb1baseTime : WiresharkZepFrame.msb0baseTime;
+        return base * 1000 + seconds * 1000000 + ((fraction * 1000000) >>> 32);
+    }
+
+    private static long readInt(byte[] buffer, int position) {
+        return ((buffer[position] & 0xFFL) << 24) | ((buffer[position + 1] & 0xFFL) << 16)
+                | ((buffer[position + 2] & 0xFFL) << 8) | (buffer[position + 3] & 0xFFL);
+    }
+
+    private static long readLong(byte[] buffer, int position) {
+        return (readInt(buffer, position) << 32) | readInt(buffer, position + 4);
+    }
+}
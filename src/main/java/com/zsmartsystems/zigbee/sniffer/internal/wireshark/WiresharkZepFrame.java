@@ -9,6 +9,7 @@ package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
 
 import java.util.Arrays;
 
+import com.zsmartsystems.zigbee.sniffer.internal.HexTable;
 import com.zsmartsystems.zigbee.sniffer.internal.ZigBeeSnifferBinaryFrame;
 
 /**
@@ -257,7 +258,7 @@ public class WiresharkZepFrame extends ZigBeeSnifferBinaryFrame {
     public String toString() {
         StringBuilder builder = new StringBuilder(200);
         builder.append("WiresharkZepFrame [sequence=");
-        builder.append(String.format("%08X", sequence));
+        HexTable.appendValue(builder, sequence & 0xFFFFFFFFL, 8);
         builder.append(", lqi=");
         builder.append(lqi);
         builder.append(", rssi=");
@@ -269,7 +270,7 @@ public class WiresharkZepFrame extends ZigBeeSnifferBinaryFrame {
                 builder.append(' ');
             }
             first = false;
-            builder.append(String.format("%02X", val));
+            HexTable.appendValue(builder, val);
         }
         builder.append("}]");
         return builder.toString();
@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferEngine;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+/**
+ * Receives ZEP frames from other sniffers over UDP and passes them to a {@link SnifferEngine} created without an NCP,
+ * so the engine's sinks can record frames from any ZEP source. Each datagram is decoded by a
+ * {@link WiresharkZepDecoder} straight into a pooled packet from the engine, including the RSSI and LQI, and the
+ * capture time from version 2 frames.
+ * <p>
+ * Frames are received on one thread. The socket receive buffer is made large so that bursts of frames are held by the
+ * operating system while the engine is busy, rather than dropped. Frames lost before they reach the receiver are
+ * counted from gaps in the ZEP sequence numbers of each device.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkZepReceiver {
+    /**
+     * The default size of the socket receive buffer
+     */
+    public static final int DEFAULT_RECEIVE_BUFFER = 8 * 1024 * 1024;
+
+    private static final int MAX_DATAGRAM = 65535;
+    private static final int MAX_GAP = 1000;
+    // The time to wait after a receive error, so a persistent error doesn't use a whole CPU
+    private static final long ERROR_DELAY = 100;
+
+    private final SnifferEngine engine;
+    private final DatagramChannel channel;
+    private final WiresharkZepDecoder decoder = new WiresharkZepDecoder();
+    private final Thread thread;
+
+    // The next ZEP sequence number expected from each device, plus one so that zero means not yet seen
+    private final long[] nextSequences = new long[65536];
+
+    private volatile boolean running;
+    private volatile long frames;
+    private volatile long invalid;
+    private volatile long lost;
+
+    /**
+     * Opens the socket
+     *
+     * @param engine the {@link SnifferEngine} to pass the frames to
+     * @param port the UDP port to listen on
+     * @param receiveBuffer the requested size of the socket receive buffer in bytes
+     * @throws IOException if the socket can't be opened
+     */
+    public WiresharkZepReceiver(SnifferEngine engine, int port, int receiveBuffer) throws IOException {
+        this.engine = engine;
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        channel.bind(new InetSocketAddress(port));
+        if (channel.getOption(StandardSocketOptions.SO_RCVBUF) < receiveBuffer) {
+            System.out.println("ZEP receive buffer limited to " + channel.getOption(StandardSocketOptions.SO_RCVBUF)
+                    + " bytes by the operating system");
+        }
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "ZepReceiver");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts receiving frames. The engine must already be started.
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops receiving frames and closes the socket
+     */
+    public void close() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of ZEP frames passed to the engine
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of datagrams that were not valid ZEP data frames
+     */
+    public long getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * @return the number of frames missing from the ZEP sequence numbers
+     */
+    public long getLost() {
+        return lost;
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        byte[] bytes = buffer.array();
+        while (running) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                // Closed by close()
+                return;
+            } catch (IOException e) {
+                // Errors such as an ICMP port unreachable from a sender are transient, so keep receiving
+                System.err.println("ZEP receive error: " + e.getMessage());
+                try {
+                    Thread.sleep(ERROR_DELAY);
+                } catch (InterruptedException e1) {
+                    return;
+                }
+                continue;
+            }
+            SnifferPacket packet = engine.acquirePacket();
+            if (!decoder.decode(bytes, 0, buffer.position(), packet)) {
+                engine.releasePacket(packet);
+                invalid++;
+                continue;
+            }
+            if (decoder.getVersion() != 1) {
+                trackSequence(decoder.getDeviceId(), decoder.getSequence());
+            }
+            frames++;
+            engine.packetReceived(packet);
+        }
+    }
+
+    private void trackSequence(int deviceId, int sequence) {
+        long expected = nextSequences[deviceId] - 1;
+        nextSequences[deviceId] = (sequence & 0xFFFFFFFFL) + 2;
+        if (expected == -1) {
+            return;
+        }
+        long gap = ((sequence & 0xFFFFFFFFL) - expected) & 0xFFFFFFFFL;
+        // A large jump is taken as the sender restarting, or frames arriving out of order
+        if (gap <= MAX_GAP) {
+            lost += gap;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.List;
+
+import com.zsmartsystems.zigbee.IeeeAddress;
+import com.zsmartsystems.zigbee.sniffer.PacketSink;
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+import com.zsmartsystems.zigbee.sniffer.internal.spool.SegmentSpool;
+
+/**
+ * {@link PacketSink} that sends each packet to Wireshark as a {@link WiresharkZepFrame} over UDP
+ * <p>
+ * If a {@link SegmentSpool} is set, frames are appended to the spool and sent from it by a
+ * {@link WiresharkZepSpoolSender}, so frames are kept on disk while the destination is unreachable and are sent in
+ * order once it can be reached again. Without a spool, frames that can't be sent are lost.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class WiresharkZepSink implements PacketSink {
+    /**
+     * The UDP port used by Wireshark for the ZigBee Encapsulation Protocol
+     */
+    public static final int ZEP_UDP_PORT = 17754;
+
+    private static final long SPOOL_CLOSE_TIMEOUT = 2000;
+
+    private final DatagramSocket client;
+    private final InetAddress address;
+    private final int destinationPort;
+    private Integer deviceId;
+    private int localDeviceId = 1;
+    private long timezone = 0;
+    private SegmentSpool spool;
+    private WiresharkZepSpoolSender sender;
+    private long spoolErrors;
+
+    /**
+     * Creates the sink and opens the UDP socket
+     *
+     * @param address the remote {@link InetAddress}
+     * @param destinationPort the remote UDP port
+     * @param sourcePort the local UDP port, or 0 to let the system choose
+     * @throws SocketException if the socket could not be opened
+     */
+    public WiresharkZepSink(InetAddress address, int destinationPort, int sourcePort) throws SocketException {
+        this.address = address;
+        this.destinationPort = destinationPort;
+        client = new DatagramSocket(sourcePort);
+    }
+
+    /**
+     * Sets the device ID included in the ZEP frame. If not set, the last 16 bits of the NCP EUID are used.
+     *
+     * @param deviceId the device ID
+     */
+    public void setDeviceId(Integer deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * @param timezone the offset in milliseconds added to the packet time
+     */
+    public void setTimezone(long timezone) {
+        this.timezone = timezone;
+    }
+
+    /**
+     * Sends frames through a persistent spool, so they are not lost while the destination is unreachable. This must be
+     * called before any packets are received. Frames left in the spool when the sniffer was last stopped are sent
+     * first.
+     *
+     * @param spool the {@link SegmentSpool}
+     * @param maxRate the maximum number of frames sent per second while the spool is replayed
+     * @throws SocketException if the socket could not be connected to the destination
+     */
+    public void setSpool(SegmentSpool spool, int maxRate) throws SocketException {
+        // A connected socket reports when the destination is unreachable
+        client.connect(address, destinationPort);
+        this.spool = spool;
+        sender = new WiresharkZepSpoolSender(spool, client, maxRate);
+    }
+
+    /**
+     * @return true if the destination is reachable - always true if there is no spool
+     */
+    public boolean isReachable() {
+        return sender == null || sender.isReachable();
+    }
+
+    /**
+     * @return the number of frames held in the spool that have not been sent
+     */
+    public long getSpooled() {
+        return spool == null ? 0 : spool.getBacklog();
+    }
+
+    @Override
+    public String getName() {
+        return "zep";
+    }
+
+    @Override
+    public void ncpStarted(IeeeAddress ieeeAddress, String firmwareVersion) {
+        localDeviceId = (ieeeAddress.getValue()[1] << 8) + ieeeAddress.getValue()[0];
+    }
+
+    @Override
+    public void packetsReceived(List<SnifferPacket> packets) {
+        for (SnifferPacket packet : packets) {
+            WiresharkZepFrame zepFrame = new WiresharkZepFrame();
+            zepFrame.setLqi(packet.getLqi());
+            zepFrame.setChannelId(packet.getChannel());
+            zepFrame.setDeviceId(deviceId != null ? deviceId : localDeviceId);
+            zepFrame.setData(packet.getData(), packet.getLength());
+            zepFrame.setSequence(packet.getSequence());
+            zepFrame.setTimestamp(packet.getTimestamp() + timezone);
+            zepFrame.setRssi(packet.getRssi());
+
+            byte[] buffer = zepFrame.getBuffer();
+            if (spool != null) {
+                try {
+                    spool.append(buffer, 0, buffer.length);
+                } catch (IOException e) {
+                    if (spoolErrors++ == 0) {
+                        e.printStackTrace();
+                    }
+                }
+                continue;
+            }
+            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length, address, destinationPort);
+            try {
+                client.send(datagram);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (sender != null) {
+            sender.framesAdded();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sender != null) {
+            sender.framesAdded();
+            sender.close(SPOOL_CLOSE_TIMEOUT);
+            spool.close();
+            if (spool.getUncommitted() != 0) {
+                System.out.println("ZEP spool holds " + spool.getUncommitted() + " frames to send on the next start");
+            }
+            if (spool.getDropped() != 0) {
+                System.out.println("ZEP spool was full - " + spool.getDropped() + " frames were dropped");
+            }
+        }
+        client.close();
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.wireshark;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+
+import com.zsmartsystems.zigbee.sniffer.internal.spool.SegmentSpool;
+
+/**
+ * Sends the ZEP frames held in a {@link SegmentSpool} in order on a connected UDP socket. UDP doesn't acknowledge
+ * frames, but a connected socket reports the ICMP port or host unreachable errors for earlier frames on the next
+ * send or receive. Frames are therefore only committed once the socket has reported no error for
+ * {@link #CONFIRM_DELAY} milliseconds after they were sent, and when an error is reported the spool is rewound to the
+ * last commit so the frames that may have been lost are sent again. A few frames may be sent twice.
+ * <p>
+ * While the destination is unreachable frames stay in the spool, and the oldest frame is sent as a probe every
+ * {@link #RETRY_INTERVAL} milliseconds. Once the destination is reachable the spool is replayed in order, no faster
+ * than the maximum rate, so the analyser is not flooded while it catches up.
+ * <p>
+ * A destination that silently drops frames, for example behind a firewall, can't be detected.
+ *
+ * @author Chris Jackson
+ *
+ */
+class WiresharkZepSpoolSender implements Runnable {
+    /**
+     * The time in milliseconds after a frame is sent without an error before it is committed
+     */
+    static final long CONFIRM_DELAY = 500;
+
+    /**
+     * The time in milliseconds between probes while the destination is unreachable
+     */
+    static final long RETRY_INTERVAL = 2000;
+
+    private static final long CHECK_INTERVAL = 100;
+    private static final int MAX_FRAME_LENGTH = 1024;
+
+    private final SegmentSpool spool;
+    private final DatagramSocket socket;
+    private final long frameIntervalNanos;
+    private final Thread thread;
+    private final ArrayDeque<long[]> checkpoints = new ArrayDeque<>();
+    private final byte[] frame = new byte[MAX_FRAME_LENGTH];
+    private final DatagramPacket datagram = new DatagramPacket(frame, MAX_FRAME_LENGTH);
+    private final byte[] receiveBuffer = new byte[MAX_FRAME_LENGTH];
+
+    private volatile boolean running = true;
+    private volatile boolean reachable = true;
+    private volatile long sent;
+    private volatile long resent;
+    private long nextSendNanos;
+    private long lastCheck;
+
+    /**
+     * Creates the sender and starts its thread
+     *
+     * @param spool the {@link SegmentSpool} holding the ZEP frames
+     * @param socket the {@link DatagramSocket}, connected to the destination
+     * @param maxRate the maximum number of frames sent per second
+     */
+    WiresharkZepSpoolSender(SegmentSpool spool, DatagramSocket socket, int maxRate) {
+        this.spool = spool;
+        this.socket = socket;
+        this.frameIntervalNanos = 1000000000L / Math.max(1, maxRate);
+        thread = new Thread(this, "ZepSpoolSender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wakes the sender when frames have been added to the spool
+     */
+    void framesAdded() {
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the destination is reachable
+     */
+    boolean isReachable() {
+        return reachable;
+    }
+
+    /**
+     * @return the number of frames sent, including frames sent again
+     */
+    long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return the number of frames sent again after the destination was unreachable
+     */
+    long getResent() {
+        return resent;
+    }
+
+    /**
+     * Stops the sender, waiting up to the given time for the spool to be sent and committed
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     */
+    void close(long timeout) {
+        long end = System.currentTimeMillis() + timeout;
+        while (reachable && spool.getUncommitted() != 0 && System.currentTimeMillis() < end) {
+            framesAdded();
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (!reachable) {
+                    Thread.sleep(RETRY_INTERVAL);
+                    probe();
+                    continue;
+                }
+
+                int length = spool.read(frame);
+                if (length == -1) {
+                    synchronized (this) {
+                        if (spool.getBacklog() == 0) {
+                            wait(CHECK_INTERVAL);
+                        }
+                    }
+                    check();
+                    continue;
+                }
+                pace();
+                send(length);
+                check();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                unreachable(e);
+            }
+        }
+    }
+
+    /**
+     * Sends the oldest uncommitted frame, and checks if an error is reported for it
+     */
+    private void probe() throws InterruptedException {
+        int length = spool.read(frame);
+        try {
+            if (length != -1) {
+                send(length);
+                resent++;
+                Thread.sleep(CHECK_INTERVAL);
+            }
+            checkError();
+        } catch (IOException e) {
+            spool.rewind();
+            return;
+        }
+        System.out.println("ZEP destination reachable. Replaying " + (spool.getBacklog() + (length == -1 ? 0 : 1))
+                + " spooled frames.");
+        reachable = true;
+        checkpoints.clear();
+        lastCheck = System.currentTimeMillis();
+        nextSendNanos = System.nanoTime();
+    }
+
+    private void send(int length) throws IOException {
+        datagram.setData(frame, 0, length);
+        socket.send(datagram);
+        sent++;
+    }
+
+    /**
+     * Limits the send rate. Time that was not used while the spool was empty is not saved up, so frames are never
+     * sent in a burst that could overflow the receive buffer of the destination.
+     */
+    private void pace() throws InterruptedException {
+        long now = System.nanoTime();
+        if (now - nextSendNanos > 0) {
+            nextSendNanos = now;
+        }
+        long wait = nextSendNanos - now;
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+        nextSendNanos += frameIntervalNanos;
+    }
+
+    /**
+     * Checks the socket for an error, and commits the frames that were sent long enough ago
+     */
+    private void check() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < CHECK_INTERVAL) {
+            return;
+        }
+        lastCheck = now;
+        checkError();
+        while (!checkpoints.isEmpty() && now - checkpoints.peekFirst()[3] >= CONFIRM_DELAY) {
+            long[] checkpoint = checkpoints.pollFirst();
+            spool.commit(checkpoint);
+        }
+        long[] position = spool.getReadPosition();
+        long[] checkpoint = { position[0], position[1], position[2], now };
+        checkpoints.addLast(checkpoint);
+    }
+
+    /**
+     * Receives on the connected socket, which throws an exception if an earlier frame was not delivered
+     */
+    private void checkError() throws IOException {
+        socket.setSoTimeout(1);
+        try {
+            socket.receive(new DatagramPacket(receiveBuffer, receiveBuffer.length));
+        } catch (SocketTimeoutException e) {
+            // No error waiting
+        }
+    }
+
+    private void unreachable(IOException e) {
+        spool.rewind();
+        checkpoints.clear();
+        if (reachable) {
+            System.err.println("ZEP destination unreachable (" + e.getMessage() + "). Spooling frames.");
+        }
+        reachable = false;
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides the {@link Executor} that a {@link SinkWorker} runs its output on.
+ * <p>
+ * This is the Java 21 implementation, packaged under META-INF/versions/21. All sinks share one executor that starts a
+ * virtual thread for every batch, so blocking file and socket I/O never holds a platform thread. As with the Java 8
+ * pool, the executor lives for the life of the process, so adding and removing sinks doesn't create executors.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SinkExecutors {
+    private static final Executor EXECUTOR = Executors
+            .newThreadPerTaskExecutor(Thread.ofVirtual().name("SnifferSink-", 0).factory());
+
+    private SinkExecutors() {
+    }
+
+    /**
+     * Gets the executor to be used for the named sink
+     *
+     * @param name the name of the sink, used for naming threads
+     * @return the {@link Executor} to run the sink on
+     */
+    public static Executor getExecutor(String name) {
+        return EXECUTOR;
+    }
+}
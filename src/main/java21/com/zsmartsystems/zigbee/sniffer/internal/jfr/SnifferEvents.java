@@ -0,0 +1,394 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.jfr;
+
+import java.util.List;
+
+import com.zsmartsystems.zigbee.sniffer.SnifferPacket;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Emits JDK Flight Recorder events for the capture pipeline, so that hiccups in a capture can be correlated with
+ * garbage collection, thread and I/O events recorded by the JVM.
+ * <p>
+ * Events that have a duration are started with a begin method, which returns a handle that is passed to the matching
+ * end method. The handle is null when the event is not being recorded, and the end methods then do nothing.
+ * <p>
+ * This is the Java 21 implementation, packaged under META-INF/versions/21. The events are disabled unless they are
+ * enabled by the recording settings, for example with the sniffer.jfc profile, and no event objects are created at all
+ * while no recording is running. The duration events have thresholds, so only slow operations are recorded.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class SnifferEvents {
+    private static final String CATEGORY = "ZigBee Sniffer";
+
+    private static volatile boolean recording;
+
+    static {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recorderInitialized(FlightRecorder recorder) {
+                updateRecording(recorder);
+            }
+
+            @Override
+            public void recordingStateChanged(Recording changed) {
+                updateRecording(FlightRecorder.getFlightRecorder());
+            }
+        });
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.FrameReceived")
+    @Label("Frame Received")
+    @Description("A frame handled on the capture thread, from the NCP callback until it is queued for the sinks")
+    @Category({ CATEGORY, "Capture" })
+    @Enabled(false)
+    @StackTrace(false)
+    @Threshold("1 ms")
+    private static class FrameReceivedEvent extends Event {
+        @Label("Sequence")
+        int sequence;
+
+        @Label("Channel")
+        int channel;
+
+        @Label("Length")
+        @DataAmount
+        int length;
+
+        @Label("RSSI")
+        int rssi;
+
+        @Label("LQI")
+        int lqi;
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.SinkWrite")
+    @Label("Sink Write")
+    @Description("A batch of packets written by a sink")
+    @Category({ CATEGORY, "Sinks" })
+    @Enabled(false)
+    @StackTrace(false)
+    @Threshold("10 ms")
+    private static class SinkWriteEvent extends Event {
+        @Label("Sink")
+        String sink;
+
+        @Label("Packets")
+        int packets;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.Rotation")
+    @Label("Capture File Rotation")
+    @Description("A capture file being closed when the output is rotated or reaches its maximum length")
+    @Category({ CATEGORY, "Sinks" })
+    @Enabled(false)
+    @StackTrace(false)
+    @Threshold("0 ms")
+    private static class RotationEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Length")
+        @DataAmount
+        long bytes;
+
+        @Label("Frames")
+        long frames;
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.ChannelSwitch")
+    @Label("Channel Switch")
+    @Description("The NCP being switched to a new channel")
+    @Category({ CATEGORY, "NCP" })
+    @Enabled(false)
+    @StackTrace(false)
+    @Threshold("0 ms")
+    private static class ChannelSwitchEvent extends Event {
+        @Label("From Channel")
+        int fromChannel;
+
+        @Label("To Channel")
+        int toChannel;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.NcpRestart")
+    @Label("NCP Restart")
+    @Description("The NCP being recovered after it stopped responding")
+    @Category({ CATEGORY, "NCP" })
+    @Enabled(false)
+    @StackTrace(false)
+    @Threshold("0 ms")
+    private static class NcpRestartEvent extends Event {
+        @Label("Full Restart")
+        @Description("True if the serial port and NCP were restarted, or false if only mfglib was restarted")
+        boolean full;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("com.zsmartsystems.zigbee.sniffer.QueueDrop")
+    @Label("Queue Drop")
+    @Description("A packet dropped because a sink could not keep up and its queue was full")
+    @Category({ CATEGORY, "Sinks" })
+    @Enabled(false)
+    @StackTrace(false)
+    private static class QueueDropEvent extends Event {
+        @Label("Sink")
+        String sink;
+
+        @Label("Total Dropped")
+        long dropped;
+    }
+
+    private SnifferEvents() {
+    }
+
+    private static void updateRecording(FlightRecorder recorder) {
+        boolean running = false;
+        for (Recording current : recorder.getRecordings()) {
+            if (current.getState() == RecordingState.RUNNING) {
+                running = true;
+                break;
+            }
+        }
+        recording = running;
+    }
+
+    /**
+     * Starts timing the handling of a received frame on the capture thread
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginFrame() {
+        if (!recording) {
+            return null;
+        }
+        FrameReceivedEvent event = new FrameReceivedEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the handling of a received frame
+     *
+     * @param event the handle returned by {@link #beginFrame()}
+     * @param sequence the sniffer sequence number of the frame
+     * @param channel the channel the frame was received on
+     * @param length the frame length
+     * @param rssi the RSSI of the frame
+     * @param lqi the LQI of the frame
+     */
+    public static void endFrame(Object event, int sequence, int channel, int length, int rssi, int lqi) {
+        if (event == null) {
+            return;
+        }
+        FrameReceivedEvent frame = (FrameReceivedEvent) event;
+        frame.end();
+        if (frame.shouldCommit()) {
+            frame.sequence = sequence;
+            frame.channel = channel;
+            frame.length = length;
+            frame.rssi = rssi;
+            frame.lqi = lqi;
+            frame.commit();
+        }
+    }
+
+    /**
+     * Starts timing a batch of packets being written by a sink
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginSinkWrite() {
+        if (!recording) {
+            return null;
+        }
+        SinkWriteEvent event = new SinkWriteEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a batch of packets being written by a sink
+     *
+     * @param event the handle returned by {@link #beginSinkWrite()}
+     * @param sink the name of the sink
+     * @param packets the packets that were written
+     */
+    public static void endSinkWrite(Object event, String sink, List<SnifferPacket> packets) {
+        if (event == null) {
+            return;
+        }
+        SinkWriteEvent write = (SinkWriteEvent) event;
+        write.end();
+        if (write.shouldCommit()) {
+            long bytes = 0;
+            for (SnifferPacket packet : packets) {
+                bytes += packet.getLength();
+            }
+            write.sink = sink;
+            write.packets = packets.size();
+            write.bytes = bytes;
+            write.commit();
+        }
+    }
+
+    /**
+     * Starts timing the closing of a capture file when the output is rotated
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginRotation() {
+        if (!recording) {
+            return null;
+        }
+        RotationEvent event = new RotationEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the closing of a capture file
+     *
+     * @param event the handle returned by {@link #beginRotation()}
+     * @param file the name of the file that was closed
+     * @param bytes the length of the file
+     * @param frames the number of frames in the file
+     */
+    public static void endRotation(Object event, String file, long bytes, long frames) {
+        if (event == null) {
+            return;
+        }
+        RotationEvent rotation = (RotationEvent) event;
+        rotation.end();
+        if (rotation.shouldCommit()) {
+            rotation.file = file;
+            rotation.bytes = bytes;
+            rotation.frames = frames;
+            rotation.commit();
+        }
+    }
+
+    /**
+     * Starts timing a channel switch on the NCP
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginChannelSwitch() {
+        if (!recording) {
+            return null;
+        }
+        ChannelSwitchEvent event = new ChannelSwitchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a channel switch on the NCP
+     *
+     * @param event the handle returned by {@link #beginChannelSwitch()}
+     * @param fromChannel the previous channel
+     * @param toChannel the new channel
+     * @param success true if the NCP switched channel
+     */
+    public static void endChannelSwitch(Object event, int fromChannel, int toChannel, boolean success) {
+        if (event == null) {
+            return;
+        }
+        ChannelSwitchEvent channelSwitch = (ChannelSwitchEvent) event;
+        channelSwitch.end();
+        if (channelSwitch.shouldCommit()) {
+            channelSwitch.fromChannel = fromChannel;
+            channelSwitch.toChannel = toChannel;
+            channelSwitch.success = success;
+            channelSwitch.commit();
+        }
+    }
+
+    /**
+     * Starts timing a restart of the NCP
+     *
+     * @return the event handle, or null if the event is not being recorded
+     */
+    public static Object beginNcpRestart() {
+        if (!recording) {
+            return null;
+        }
+        NcpRestartEvent event = new NcpRestartEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a restart of the NCP
+     *
+     * @param event the handle returned by {@link #beginNcpRestart()}
+     * @param full true if the serial port and NCP were restarted, or false if only mfglib was restarted
+     * @param success true if the NCP is capturing again
+     */
+    public static void endNcpRestart(Object event, boolean full, boolean success) {
+        if (event == null) {
+            return;
+        }
+        NcpRestartEvent restart = (NcpRestartEvent) event;
+        restart.end();
+        if (restart.shouldCommit()) {
+            restart.full = full;
+            restart.success = success;
+            restart.commit();
+        }
+    }
+
+    /**
+     * Records a packet being dropped because a sink's queue was full
+     *
+     * @param sink the name of the sink
+     * @param dropped the total number of packets dropped by the sink
+     */
+    public static void queueDropped(String sink, long dropped) {
+        if (!recording) {
+            return;
+        }
+        QueueDropEvent event = new QueueDropEvent();
+        if (event.shouldCommit()) {
+            event.sink = sink;
+            event.dropped = dropped;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2016-2018 by Z-Smart Systems.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package com.zsmartsystems.zigbee.sniffer.internal.json;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Opens the output of an {@link NdjsonSink}. The target is a file name, - for the standard output, or unix:path for a
+ * Unix domain socket that a log shipper is listening on.
+ * <p>
+ * This is the Java 21 implementation, packaged under META-INF/versions/21, which connects to Unix domain sockets with
+ * a {@link SocketChannel}.
+ *
+ * @author Chris Jackson
+ *
+ */
+public class NdjsonOutputs {
+    /**
+     * The target prefix for a Unix domain socket
+     */
+    public static final String UNIX_PREFIX = "unix:";
+
+    private NdjsonOutputs() {
+    }
+
+    /**
+     * Opens the output
+     *
+     * @param target the file name, - for the standard output, or unix:path for a Unix domain socket
+     * @return the {@link WritableByteChannel} to write to
+     * @throws IOException if the output can't be opened
+     */
+    public static WritableByteChannel open(String target) throws IOException {
+        if ("-".equals(target)) {
+            return new FileOutputStream(FileDescriptor.out).getChannel();
+        }
+        if (target.startsWith(UNIX_PREFIX)) {
+            SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                channel.connect(UnixDomainSocketAddress.of(target.substring(UNIX_PREFIX.length())));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+        return new FileOutputStream(target).getChannel();
+    }
+}